@@ -27,6 +27,7 @@
 package haven;
 
 import java.util.*;
+import java.util.function.*;
 import java.io.*;
 import java.nio.file.*;
 import javax.sound.sampled.*;
@@ -34,6 +35,8 @@ import dolda.xiphutil.*;
 
 public class Audio {
     public static final Config.Variable<String> outname = Config.Variable.prop("haven.audio-output", "");
+    public static final Config.Variable<Integer> cachesize = Config.Variable.propi("haven.audio-cache", 16);
+    public static final Config.Variable<Double> cachelen = Config.Variable.propf("haven.audio-cache-len", 2.0);
     public static final AudioFormat fmt = new AudioFormat(44100, 16, 2, true, false);
     public static boolean enabled = true;
     public static double volume = Double.parseDouble(Utils.getpref("sfxvol", "1.0"));
@@ -45,8 +48,62 @@ public class Audio {
 	Utils.setpref("sfxvol", Double.toString(volume));
     }
 
+    /* Sample streams fill the first len samples of each channel
+     * buffer in buf and return the number of samples produced, or -1
+     * at their end. Implementations should provide the float
+     * variant, which the mixer uses; the double variant remains for
+     * older streams, which are adapted at the cost of a temporary
+     * buffer. A stream must implement at least one of them. */
     public interface CS {
-	public int get(double[][] buf, int len);
+	public default int get(float[][] buf, int len) {
+	    if(!csimpl.get(getClass())[1])
+		throw(new AbstractMethodError(getClass().getName() + " implements neither variant of CS.get"));
+	    double[][] dbuf = new double[buf.length][len];
+	    int ret = get(dbuf, len);
+	    for(int ch = 0; ch < buf.length; ch++) {
+		float[] d = buf[ch];
+		double[] s = dbuf[ch];
+		for(int sm = 0; sm < ret; sm++)
+		    d[sm] = (float)s[sm];
+	    }
+	    return(ret);
+	}
+
+	public default int get(double[][] buf, int len) {
+	    if(!csimpl.get(getClass())[0])
+		throw(new AbstractMethodError(getClass().getName() + " implements neither variant of CS.get"));
+	    float[][] fbuf = new float[buf.length][len];
+	    int ret = get(fbuf, len);
+	    for(int ch = 0; ch < buf.length; ch++) {
+		double[] d = buf[ch];
+		float[] s = fbuf[ch];
+		for(int sm = 0; sm < ret; sm++)
+		    d[sm] = s[sm];
+	    }
+	    return(ret);
+	}
+    }
+
+    /* Which of the float and double variants of CS.get a class
+     * implements itself, so that the default adapters can refuse to
+     * call each other in circles. */
+    private static final ClassValue<boolean[]> csimpl = new ClassValue<boolean[]>() {
+	    protected boolean[] computeValue(Class<?> cl) {
+		try {
+		    return(new boolean[] {
+			    cl.getMethod("get", float[][].class, int.class).getDeclaringClass() != CS.class,
+			    cl.getMethod("get", double[][].class, int.class).getDeclaringClass() != CS.class,
+			});
+		} catch(NoSuchMethodException e) {
+		    throw(new AssertionError(e));
+		}
+	    }
+	};
+
+    private static float[][] ckbuf(float[][] buf, int nch, int ns) {
+	if((buf.length != nch) || ((nch > 0) && (buf[0].length < ns)))
+	    buf = new float[nch][Math.max(ns, 512)];
+	return(buf);
     }
 
     public interface Clip extends Resource.IDLayer<String> {
@@ -58,7 +115,8 @@ public class Audio {
 
     public static class Mixer implements CS {
 	public final boolean cont;
-	private final Collection<CS> clips = new LinkedList<CS>();
+	private final List<CS> clips = new ArrayList<CS>();
+	private float[][] buf = {};
 
 	public Mixer(boolean continuous) {
 	    this.cont = continuous;
@@ -68,29 +126,30 @@ public class Audio {
 	    this(false);
 	}
 
-	public int get(double[][] dst, int ns) {
+	public int get(float[][] dst, int ns) {
 	    int nch = dst.length;
-	    double[][] buf = new double[nch][ns];
+	    float[][] buf = this.buf = ckbuf(this.buf, nch, ns);
 	    int max = 0;
 	    synchronized(clips) {
-		clip: for(Iterator<CS> i = clips.iterator(); i.hasNext();) {
-		    CS cs = i.next();
+		clip: for(int i = 0; i < clips.size(); i++) {
+		    CS cs = clips.get(i);
 		    int left = ns;
 		    int boff = 0;
 		    while(left > 0) {
 			int ret = cs.get(buf, left);
 			if(ret < 0) {
-			    i.remove();
+			    clips.remove(i--);
 			    continue clip;
 			}
 			if(boff + ret > max) {
 			    for(int ch = 0; ch < nch; ch++)
-				Arrays.fill(dst[ch], max, boff + ret, 0.0);
+				Arrays.fill(dst[ch], max, boff + ret, 0.0f);
 			    max = boff + ret;
 			}
 			for(int ch = 0; ch < nch; ch++) {
+			    float[] d = dst[ch], b = buf[ch];
 			    for(int sm = 0; sm < ret; sm++)
-				dst[ch][boff + sm] += buf[ch][sm];
+				d[boff + sm] += b[sm];
 			}
 			left -= ret;
 			boff += ret;
@@ -98,10 +157,8 @@ public class Audio {
 		}
 	    }
 	    if(cont) {
-		for(int ch = 0; ch < nch; ch++) {
-		    for(int sm = max; sm < ns; sm++)
-			dst[ch][sm] = 0;
-		}
+		for(int ch = 0; ch < nch; ch++)
+		    Arrays.fill(dst[ch], max, ns, 0.0f);
 		return(ns);
 	    } else {
 		return((max > 0)?max:-1);
@@ -116,9 +173,9 @@ public class Audio {
 
 	public void stop(CS clip) {
 	    synchronized(clips) {
-		for(Iterator<CS> i = clips.iterator(); i.hasNext();) {
-		    if(i.next() == clip) {
-			i.remove();
+		for(int i = 0; i < clips.size(); i++) {
+		    if(clips.get(i) == clip) {
+			clips.remove(i);
 			break;
 		    }
 		}
@@ -166,12 +223,14 @@ public class Audio {
 	public final int sch, sfmt, ssz;
 	public int size = -1;
 	private final byte[] dbuf = new byte[256];
+	private final float[] dec;
 	private int head = 0, tail = 0;
 	private boolean eof = false;
 
 	public PCMClip(InputStream clip, int nch, int sfmt) {
 	    this.clip = clip;
 	    this.sch = nch;
+	    this.dec = new float[nch];
 	    switch(this.sfmt = sfmt) {
 	    case UN8:  ssz = 1; break;
 	    case SN8:  ssz = 1; break;
@@ -212,9 +271,9 @@ public class Audio {
 	    }
 	}
 
-	public int get(double[][] dst, int ns) {
+	public int get(float[][] dst, int ns) {
 	    int nch = dst.length;
-	    double[] dec = new double[sch];
+	    float[] dec = this.dec;
 	    for(int sm = 0; sm < ns; sm++) {
 		while(tail - head < ssz * sch) {
 		    if(head > 0) {
@@ -231,22 +290,22 @@ public class Audio {
 		for(int ch = 0; ch < sch; ch++) {
 		    switch(sfmt) {
 		    case UN8:
-			dec[ch] = ((dbuf[head++] & 0xff) - 0x80) * 0x1.0p-7;
+			dec[ch] = ((dbuf[head++] & 0xff) - 0x80) * 0x1.0p-7f;
 			break;
 		    case SN8:
-			dec[ch] = dbuf[head++] * 0x1.0p-7;
+			dec[ch] = dbuf[head++] * 0x1.0p-7f;
 			break;
 		    case SN16:
 			dec[ch] = ((int)(short)((dbuf[head++] & 0xff) |
 						((dbuf[head++] & 0xff) << 8)))
-			    * 0x1.0p-15;
+			    * 0x1.0p-15f;
 			break;
 		    case SN32:
 			dec[ch] = ((dbuf[head++] & 0xff) |
 				   ((dbuf[head++] & 0xff) << 8) |
 				   ((dbuf[head++] & 0xff) << 16) |
 				   ((dbuf[head++] & 0xff) << 24))
-			    * 0x1.0p-31;
+			    * 0x1.0p-31f;
 			break;
 		    }
 		}
@@ -344,11 +403,11 @@ public class Audio {
 	    this(new VorbisStream(bs));
 	}
 
-	public int get(double[][] dst, int ns) {
+	public int get(float[][] dst, int ns) {
 	    int nch = dst.length;
 	    if(data == null)
 		return(-1);
-	    for(int sm = 0; sm < ns; sm++) {
+	    for(int sm = 0; sm < ns;) {
 		while(dp >= data[0].length) {
 		    try {
 			if((data = clip.decode()) == null)
@@ -358,18 +417,124 @@ public class Audio {
 		    }
 		    dp = 0;
 		}
+		int n = Math.min(ns - sm, data[0].length - dp);
 		for(int ch = 0; ch < nch; ch++)
-		    dst[ch][sm] = data[ch % clip.chn][dp];
-		dp++;
+		    System.arraycopy(data[ch % clip.chn], dp, dst[ch], sm, n);
+		dp += n;
+		sm += n;
 	    }
 	    return(ns);
 	}
     }
 
+    /* Keeps the decoded output of short clips, so that sounds played
+     * over and over (footsteps, hits, UI sounds) need only be decoded
+     * once. The first play of a clip streams from its decoder as
+     * usual while recording what it produces; if it runs to its end
+     * within the length limit, the recording is kept as 16-bit PCM
+     * and later plays are served from it through a PCMClip. The
+     * memory budget is enforced in least-recently-used order. */
+    public static class ClipCache {
+	public final long budget;
+	public final int maxlen;
+	private final Map<Object, byte[]> clips = new LinkedHashMap<>(16, 0.75f, true);
+	private long size = 0;
+	public long hits, misses;
+
+	public ClipCache(long budget, int maxlen) {
+	    this.budget = budget;
+	    this.maxlen = maxlen;
+	}
+
+	private class Recorder implements CS {
+	    final Object key;
+	    final CS bk;
+	    byte[] buf = new byte[4096];
+	    int len = 0, nch = -1;
+
+	    Recorder(Object key, CS bk) {
+		this.key = key;
+		this.bk = bk;
+	    }
+
+	    public int get(float[][] dst, int ns) {
+		int ret = bk.get(dst, ns);
+		if(buf == null)
+		    return(ret);
+		if(ret < 0) {
+		    put(key, nch, Arrays.copyOf(buf, len));
+		    buf = null;
+		    return(ret);
+		}
+		int nch = dst.length;
+		if(this.nch < 0)
+		    this.nch = nch;
+		if((this.nch != nch) || ((len / (2 * nch)) + ret > maxlen)) {
+		    buf = null;
+		    return(ret);
+		}
+		if(len + (ret * nch * 2) > buf.length)
+		    buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + (ret * nch * 2)));
+		for(int sm = 0; sm < ret; sm++) {
+		    for(int ch = 0; ch < nch; ch++) {
+			int iv = (int)(dst[ch][sm] * 32768.0f);
+			iv = Math.max(Math.min(iv, 32767), -32768);
+			buf[len++] = (byte)iv;
+			buf[len++] = (byte)(iv >> 8);
+		    }
+		}
+		return(ret);
+	    }
+	}
+
+	private void put(Object key, int nch, byte[] data) {
+	    if((nch != fmt.getChannels()) || (data.length > budget))
+		return;
+	    synchronized(clips) {
+		byte[] prev = clips.put(key, data);
+		if(prev != null)
+		    size -= prev.length;
+		size += data.length;
+		for(Iterator<byte[]> i = clips.values().iterator(); (size > budget) && i.hasNext();) {
+		    size -= i.next().length;
+		    i.remove();
+		}
+	    }
+	}
+
+	public CS stream(Object key, Supplier<CS> decoder) {
+	    byte[] data;
+	    synchronized(clips) {
+		data = clips.get(key);
+		if(data != null)
+		    hits++;
+		else
+		    misses++;
+	    }
+	    if(data != null)
+		return(new PCMClip(new ByteArrayInputStream(data), fmt.getChannels(), PCMClip.SN16).size(data.length));
+	    return(new Recorder(key, decoder.get()));
+	}
+
+	public void clear() {
+	    synchronized(clips) {
+		clips.clear();
+		size = 0;
+	    }
+	}
+
+	public String stats() {
+	    synchronized(clips) {
+		return(String.format("%d clips, %d KiB, %d hits, %d misses", clips.size(), size >> 10, hits, misses));
+	    }
+	}
+    }
+    public static final ClipCache pcmcache = new ClipCache((long)cachesize.get() << 20, (int)Math.round(cachelen.get() * fmt.getSampleRate()));
+
     public static class VolAdjust implements CS {
 	public final CS bk;
 	public double vol = 1.0, bal = 0.0;
-	private double[] cvol = {};
+	private float[] cvol = {};
 
 	public VolAdjust(CS bk, double vol) {
 	    this.bk = bk;
@@ -380,22 +545,26 @@ public class Audio {
 	    this(bk, 1.0);
 	}
 
-	public int get(double[][] dst, int ns) {
+	public int get(float[][] dst, int ns) {
 	    int nch = dst.length;
 	    int ret = bk.get(dst, ns);
 	    if(ret < 0)
 		return(ret);
 	    if(cvol.length != nch)
-		cvol = new double[nch];
+		cvol = new float[nch];
 	    for(int i = 0; i < cvol.length; i++)
-		cvol[i] = vol;
+		cvol[i] = (float)vol;
 	    if(bal < 0)
 		cvol[1] *= 1.0 + bal;
 	    if(bal > 0)
 		cvol[0] *= 1.0 - bal;
 	    for(int ch = 0; ch < nch; ch++) {
+		float[] d = dst[ch];
+		float v = cvol[ch % cvol.length];
+		if(v == 1.0f)
+		    continue;
 		for(int sm = 0; sm < ret; sm++)
-		    dst[ch][sm] *= cvol[ch % cvol.length];
+		    d[sm] *= v;
 	    }
 	    return(ret);
 	}
@@ -406,8 +575,8 @@ public class Audio {
 	public double irate, orate;
 	public double sp = 1.0;
 	private double ack;
-	private double[] lval = {0}, nval = {0};
-	private double[][] data = {};
+	private float[] lval = {0}, nval = {0};
+	private float[][] data = {};
 	private int dp = 0, dl = 0;
 
 	public Resampler(CS bk, double irate, double orate) {
@@ -424,14 +593,14 @@ public class Audio {
 	    this(bk, fmt.getSampleRate());
 	}
 
-	public int get(double[][] dst, int ns) {
+	public int get(float[][] dst, int ns) {
 	    int nch = dst.length;
 	    if(nval.length != nch) {
-		nval = new double[nch];
-		lval = new double[nch];
+		nval = new float[nch];
+		lval = new float[nch];
 	    }
 	    if(data.length != nch)
-		data = new double[nch][512];
+		data = new float[nch][512];
 	    double esp = sp * irate / orate;
 	    for(int sm = 0; sm < ns; sm++) {
 		ack += esp;
@@ -448,8 +617,9 @@ public class Audio {
 		    dp++;
 		    ack -= 1.0;
 		}
+		float a = (float)ack;
 		for(int ch = 0; ch < nch; ch++)
-		    dst[ch][sm] = (lval[ch] * (1.0 - ack)) + (nval[ch] * ack);
+		    dst[ch][sm] = lval[ch] + ((nval[ch] - lval[ch]) * a);
 	    }
 	    return(ns);
 	}
@@ -465,7 +635,7 @@ public class Audio {
 	    this.bk = bk;
 	}
 
-	public int get(double[][] dst, int ns) {
+	public int get(float[][] dst, int ns) {
 	    int ret = bk.get(dst, ns);
 	    if((ret < 0) && !eof) {
 		eof = true;
@@ -492,7 +662,7 @@ public class Audio {
     public static abstract class Repeater implements CS {
 	private CS cur = null;
 
-	public int get(double[][] buf, int ns) {
+	public int get(float[][] buf, int ns) {
 	    while(true) {
 		if(cur == null) {
 		    if((cur = cons()) == null)
@@ -522,7 +692,7 @@ public class Audio {
 	    this(bk, 44100);
 	}
 
-	public int get(double[][] buf, int ns) {
+	public int get(float[][] buf, int ns) {
 	    int nch = buf.length;
 	    int ret = bk.get(buf, ns);
 	    if(ret < 0) {
@@ -547,6 +717,7 @@ public class Audio {
     private static class Player extends HackThread {
 	private final CS stream;
 	private final int nch;
+	private float[][] val = {};
 	private volatile boolean reopen = false;
 
 	Player(CS stream) {
@@ -558,7 +729,8 @@ public class Audio {
 
 	private int fillbuf(byte[] dst, int off, int len) {
 	    int ns = len / (2 * nch);
-	    double[][] val = new double[nch][ns];
+	    float[][] val = this.val = ckbuf(this.val, nch, ns);
+	    float vol = (float)(volume * 32767.0);
 	    int left = ns, wr = 0;
 	    while(left > 0) {
 		int ret = stream.get(val, left);
@@ -566,7 +738,7 @@ public class Audio {
 		    return((wr > 0)?wr:-1);
 		for(int i = 0; i < ret; i++) {
 		    for(int o = 0; o < nch; o++) {
-			int iv = (int)(val[o][i] * volume * 32767.0);
+			int iv = (int)(val[o][i] * vol);
 			if(iv < 0) {
 			    if(iv < -32768)
 				iv = -32768;
@@ -780,6 +952,45 @@ public class Audio {
 		play(c);
 	    for(Monitor c : clips)
 		c.finwait();
+	} else if(args[0].equals("bench")) {
+	    /* Mixes synthetic sources into a null sink, as fast as
+	     * possible, the way the player thread would. */
+	    int nsrc = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+	    double secs = (args.length > 2) ? Double.parseDouble(args[2]) : 600;
+	    class Saw implements CS {
+		final float f;
+		float p = 0;
+		Saw(float f) {this.f = f;}
+		public int get(float[][] dst, int ns) {
+		    for(int sm = 0; sm < ns; sm++) {
+			if((p += f) > 1.0f)
+			    p -= 2.0f;
+			for(int ch = 0; ch < dst.length; ch++)
+			    dst[ch][sm] = p * 0.01f;
+		    }
+		    return(ns);
+		}
+	    }
+	    Mixer mixer = new Mixer(true);
+	    for(int i = 0; i < nsrc; i++) {
+		CS src = new Saw(0.01f + (i * 0.001f));
+		if((i % 2) == 0)
+		    src = new Resampler(src).sp(0.9 + (i * 0.005));
+		mixer.add(new VolAdjust(src, 0.5));
+	    }
+	    Player sink = new Player(mixer);
+	    byte[] buf = new byte[bufsize / 2];
+	    long total = Math.round(secs * fmt.getSampleRate()) * fmt.getFrameSize();
+	    long gc0 = 0;
+	    for(java.lang.management.GarbageCollectorMXBean gc : java.lang.management.ManagementFactory.getGarbageCollectorMXBeans())
+		gc0 += gc.getCollectionCount();
+	    double st = Utils.rtime();
+	    for(long done = 0; done < total; done += sink.fillbuf(buf, 0, buf.length));
+	    double el = Utils.rtime() - st;
+	    long gc1 = 0;
+	    for(java.lang.management.GarbageCollectorMXBean gc : java.lang.management.ManagementFactory.getGarbageCollectorMXBeans())
+		gc1 += gc.getCollectionCount();
+	    System.out.printf("%d sources, %.0f s of audio in %.2f s (%.1fx realtime), %d collections\n", nsrc, secs, el, secs / el, gc1 - gc0);
 	} else if(args[0].equals("outputs")) {
 	    for(javax.sound.sampled.Mixer.Info m : AudioSystem.getMixerInfo()) {
 		System.out.printf("%s\t%s (%s %s)\n", m.getName(), m.getDescription(), m.getVendor(), m.getVersion());
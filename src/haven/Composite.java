@@ -235,7 +235,7 @@ public class Composite extends Drawable implements EquipTarget {
 	}
     }
 
-    @OCache.DeltaType(OCache.OD_CMPMOD)
+    @OCache.DeltaType(value = OCache.OD_CMPMOD, supersedes = {OCache.OD_CMPMOD})
     public static class $cmpmod implements OCache.Delta {
 	public void apply(Gob g, OCache.AttrDelta msg) {
 	    List<Composited.MD> mod = new LinkedList<Composited.MD>();
@@ -268,7 +268,7 @@ public class Composite extends Drawable implements EquipTarget {
 	}
     }
 
-    @OCache.DeltaType(OCache.OD_CMPEQU)
+    @OCache.DeltaType(value = OCache.OD_CMPEQU, supersedes = {OCache.OD_CMPEQU})
     public static class $cmpequ implements OCache.Delta {
 	public void apply(Gob g, OCache.AttrDelta msg) {
 	    List<Composited.ED> equ = new LinkedList<Composited.ED>();
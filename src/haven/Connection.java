@@ -32,6 +32,11 @@ import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
 import java.security.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import javax.crypto.*;
 import javax.crypto.spec.*;
 
@@ -39,19 +44,27 @@ public class Connection implements Transport {
     public static final Config.Variable<Boolean> encrypt = Config.Variable.propb("haven.hcrypt", false);
     private static final double ACK_HOLD = 0.030;
     private static final double OBJACK_HOLD = 0.08, OBJACK_HOLD_MAX = 0.5;
+    private static final int SEND_WINDOW = 32;
     public final SocketAddress server;
     public final Stats stats = new Stats();
+    private final RTTEstimator rtt = new RTTEstimator();
     private final Collection<Callback> cbs = new ArrayList<>();
     private final DatagramChannel sk;
     private final Selector sel;
-    private final SelectionKey key;
+    private final Reactor reactor;
+    private SelectionKey key;
     private Worker worker;
     private int tseq;
-    private boolean alive = true;
-    private Crypto crypt;
+    private boolean started = false, alive = true;
+    private volatile boolean closing = false;
+    private volatile Crypto crypt;
+    private volatile ExecutorService txcrypt, rxcrypt;
 
-    public Connection(SocketAddress server) {
+    /* A connection created with a reactor is driven by the
+     * reactor's thread instead of by a worker thread of its own. */
+    public Connection(SocketAddress server, Reactor reactor) {
 	this.server = server;
+	this.reactor = reactor;
 	try {
 	    this.sk = DatagramChannel.open();
 	    try {
@@ -63,13 +76,21 @@ public class Connection implements Transport {
 	    }
 	    sk.configureBlocking(false);
 
-	    sel = Selector.open();
-	    key = sk.register(sel, SelectionKey.OP_READ);
+	    if(reactor == null) {
+		sel = Selector.open();
+		key = sk.register(sel, SelectionKey.OP_READ);
+	    } else {
+		sel = null;
+	    }
 	} catch(IOException e) {
 	    throw(new RuntimeException(e));
 	}
     }
 
+    public Connection(SocketAddress server) {
+	this(server, null);
+    }
+
     public Connection add(Callback cb) {
 	cbs.add(cb);
 	return(this);
@@ -89,76 +110,109 @@ public class Connection implements Transport {
 	}
     }
 
-    private class Crypto {
-	private final Cipher cipher;
+    public static class Crypto {
+	private static final int RWIN = 128;
+	private final Cipher tcipher, rcipher;
 	private final Key tkey, rkey;
-	private final NavigableSet<Long> rseqs = new TreeSet<>();
-	private long tseq;
+	private final byte[] tiv = new byte[8], riv = new byte[8];
+	private final long[] rwin = new long[RWIN / 64];
+	private long tseq, rtop = -1;
 
-	private Crypto(byte[] cookie, byte[] salt) {
+	/* Encryption and decryption each have their own cipher, so
+	 * that they can proceed on separate threads. */
+	public Crypto(byte[] cookie, byte[] salt) {
 	    try {
-		this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		this.tcipher = Cipher.getInstance("AES/GCM/NoPadding");
+		this.rcipher = Cipher.getInstance("AES/GCM/NoPadding");
 	    } catch(Exception e) {
 		throw(new UnsupportedOperationException(e));
 	    }
-	    rseqs.add(-1L);
 	    tkey = new SecretKeySpec(Digest.hkdf(Digest.SHA256, salt, cookie, "client".getBytes(Utils.ascii), 16), "AES");
 	    rkey = new SecretKeySpec(Digest.hkdf(Digest.SHA256, salt, cookie, "server".getBytes(Utils.ascii), 16), "AES");
 	}
 
-	public synchronized byte[] encrypt(byte[] msg) {
-	    long seq = tseq++;
-	    byte[] iv = new byte[8];
-	    Utils.int64e(seq, iv, 0);
-	    try {
-		cipher.init(Cipher.ENCRYPT_MODE, tkey, new GCMParameterSpec(128, iv));
-	    } catch(InvalidKeyException | InvalidAlgorithmParameterException e) {
-		throw(new AssertionError(e));
+	private byte[] encrypt(byte[] msg, int off, int len) {
+	    synchronized(tcipher) {
+		long seq = tseq++;
+		Utils.int64e(seq, tiv, 0);
+		byte[] ret;
+		try {
+		    tcipher.init(Cipher.ENCRYPT_MODE, tkey, new GCMParameterSpec(128, tiv));
+		    ret = new byte[tcipher.getOutputSize(len) + 3];
+		    tcipher.doFinal(msg, off, len, ret, 3);
+		} catch(GeneralSecurityException e) {
+		    throw(new AssertionError(e));
+		}
+		ret[0] = (byte)((seq >>  0) & 0xff);
+		ret[1] = (byte)((seq >>  8) & 0xff);
+		ret[2] = (byte)((seq >> 16) & 0xff);
+		return(ret);
 	    }
-	    byte[] ct;
-	    try {
-		ct = cipher.doFinal(msg);
-	    } catch(IllegalBlockSizeException | BadPaddingException e) {
-		throw(new AssertionError(e));
-	    }
-	    byte[] ret = new byte[ct.length + 3];
-	    System.arraycopy(ct, 0, ret, 3, ct.length);
-	    ret[0] = (byte)((seq >>  0) & 0xff);
-	    ret[1] = (byte)((seq >>  8) & 0xff);
-	    ret[2] = (byte)((seq >> 16) & 0xff);
-	    return(ret);
 	}
 
-	public synchronized byte[] decrypt(byte[] msg) throws DecryptException {
-	    long mseq = rseqs.last();
-	    long loseq = (msg[0] & 0xff) | ((msg[1] & 0xff) << 8) | ((msg[2] & 0xff) << 16);
-	    long seq = (mseq & ~0xffffffL) | loseq;
-	    if((Utils.sb(seq - mseq, 24) > 0) && (seq < mseq))
-		seq += 0x1000000L;
-	    else if((Utils.sb(loseq - mseq, 24) < 0) && (seq > mseq))
-		seq -= 0x1000000L;
-	    if(seq <= rseqs.first())
-		throw(new DecryptException("duplicated packet"));
-	    byte[] iv = new byte[8];
-	    Utils.int64e(seq, iv, 0);
-	    try {
-		cipher.init(Cipher.DECRYPT_MODE, rkey, new GCMParameterSpec(128, iv));
-	    } catch(InvalidKeyException | InvalidAlgorithmParameterException e) {
-		throw(new AssertionError(e));
+	public byte[] encrypt(byte[] msg) {
+	    return(encrypt(msg, 0, msg.length));
+	}
+
+	/* Sliding window of the last RWIN sequence numbers up to
+	 * rtop, as a ring of bits indexed by sequence number. */
+	private boolean seen(long seq) {
+	    if(seq > rtop)
+		return(false);
+	    if(seq <= rtop - RWIN)
+		return(true);
+	    int b = (int)(seq & (RWIN - 1));
+	    return((rwin[b >> 6] & (1L << (b & 63))) != 0);
+	}
+
+	private void mark(long seq) {
+	    if(seq > rtop) {
+		if(seq - rtop >= RWIN) {
+		    Arrays.fill(rwin, 0);
+		} else {
+		    for(long s = rtop + 1; s <= seq; s++) {
+			int b = (int)(s & (RWIN - 1));
+			rwin[b >> 6] &= ~(1L << (b & 63));
+		    }
+		}
+		rtop = seq;
 	    }
-	    byte[] ret;
-	    try {
-		ret = cipher.doFinal(msg, 3, msg.length - 3);
-	    } catch(IllegalBlockSizeException e) {
-		throw(new AssertionError(e));
-	    } catch(BadPaddingException e) {
-		throw(new DecryptException("decryption failed", e));
-	    }
-	    if(!rseqs.add(seq))
-		throw(new DecryptException("duplicated packet"));
-	    while(rseqs.size() > 128)
-		rseqs.pollFirst();
-	    return(ret);
+	    int b = (int)(seq & (RWIN - 1));
+	    rwin[b >> 6] |= 1L << (b & 63);
+	}
+
+	public byte[] decrypt(byte[] msg, int off, int len) throws DecryptException {
+	    synchronized(rcipher) {
+		long mseq = rtop;
+		long loseq = (msg[off] & 0xff) | ((msg[off + 1] & 0xff) << 8) | ((msg[off + 2] & 0xff) << 16);
+		long seq = (mseq & ~0xffffffL) | loseq;
+		if((Utils.sb(seq - mseq, 24) > 0) && (seq < mseq))
+		    seq += 0x1000000L;
+		else if((Utils.sb(loseq - mseq, 24) < 0) && (seq > mseq))
+		    seq -= 0x1000000L;
+		if(seen(seq))
+		    throw(new DecryptException("duplicated packet"));
+		Utils.int64e(seq, riv, 0);
+		try {
+		    rcipher.init(Cipher.DECRYPT_MODE, rkey, new GCMParameterSpec(128, riv));
+		} catch(InvalidKeyException | InvalidAlgorithmParameterException e) {
+		    throw(new AssertionError(e));
+		}
+		byte[] ret;
+		try {
+		    ret = rcipher.doFinal(msg, off + 3, len - 3);
+		} catch(IllegalBlockSizeException e) {
+		    throw(new AssertionError(e));
+		} catch(BadPaddingException e) {
+		    throw(new DecryptException("decryption failed", e));
+		}
+		mark(seq);
+		return(ret);
+	    }
+	}
+
+	public byte[] decrypt(byte[] msg) throws DecryptException {
+	    return(decrypt(msg, 0, msg.length));
 	}
 
 	public PMessage encrypt(PMessage msg) {
@@ -171,7 +225,8 @@ public class Connection implements Transport {
 	}
 
 	public PMessage decrypt(MessageBuf msg) throws DecryptException {
-	    byte[] dec = decrypt(msg.bytes());
+	    byte[] dec = decrypt(msg.rbuf, msg.rh, msg.rt - msg.rh);
+	    msg.rh = msg.rt;
 	    return(new PMessage(dec[0], dec, 1, dec.length - 1));
 	}
     }
@@ -182,8 +237,13 @@ public class Connection implements Transport {
 	private long btx, brx, prerx, prorx;
 	private int rplhead = 0, nrpls = 0;
 	private double srtt, rttv;
+	/* Called with every individual round-trip time measured,
+	 * for users that want more than the running average. */
+	public java.util.function.DoubleConsumer onreply = null;
 
 	private void addreply(double time) {
+	    if(onreply != null)
+		onreply.accept(time);
 	    rpltimes[rplhead] = time;
 	    rplhead = (rplhead + 1) % rpltimes.length;
 	    if(nrpls < rpltimes.length)
@@ -229,6 +289,126 @@ public class Connection implements Transport {
 	}
     }
 
+    /* Smoothed round-trip time and the retransmission timeout
+     * derived from it, as in RFC 6298, though with bounds more
+     * suited to interactive traffic than those of TCP. */
+    public static class RTTEstimator {
+	public static final double INIT = 0.25, MIN = 0.05, MAX = 2.0, G = 0.01;
+	private double srtt, rttvar;
+	private boolean valid = false;
+
+	public void sample(double r) {
+	    if(!valid) {
+		srtt = r;
+		rttvar = r / 2;
+		valid = true;
+	    } else {
+		rttvar = (0.75 * rttvar) + (0.25 * Math.abs(srtt - r));
+		srtt = (0.875 * srtt) + (0.125 * r);
+	    }
+	}
+
+	public double srtt() {
+	    return(valid ? srtt : 0);
+	}
+
+	public double rto() {
+	    if(!valid)
+		return(INIT);
+	    return(Utils.clip(srtt + Math.max(G, 4 * rttvar), MIN, MAX));
+	}
+
+	/* The timeout before the given retransmission, backing off
+	 * exponentially for each one already made. */
+	public double rto(int retx) {
+	    double ret = rto();
+	    for(int i = 1; (i < retx) && (ret < MAX); i++)
+		ret *= 2;
+	    return(Math.min(ret, MAX));
+	}
+    }
+
+    /* Reassembles fragmented reliable messages into a single buffer
+     * that grows geometrically, so that each fragment is copied only
+     * once. */
+    public static class Defragmenter {
+	private byte[] buf = null;
+	private int type, len;
+
+	private void add(PMessage msg) {
+	    int flen = msg.rt - msg.rh;
+	    if(buf.length - len < flen)
+		buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + flen));
+	    msg.bytes(buf, len, flen);
+	    len += flen;
+	}
+
+	/* Takes an RMSG_FRAGMENT message, and returns the reassembled
+	 * message once its last fragment has been added. */
+	public PMessage add(int head, PMessage msg) {
+	    if((head & 0x80) == 0) {
+		if(buf != null)
+		    throw(new Session.MessageException("Got start fragment while still defragmenting", msg));
+		buf = new byte[Math.max((msg.rt - msg.rh) * 4, 1024)];
+		len = 0;
+		type = head;
+		add(msg);
+	    } else if((head == 0x80) || (head == 0x81)) {
+		if(buf == null)
+		    throw(new Session.MessageException("Got continued fragment without start", msg));
+		add(msg);
+		if(head == 0x81) {
+		    PMessage ret = new PMessage(type, buf, 0, len);
+		    buf = null;
+		    return(ret);
+		}
+	    } else {
+		throw(new Session.MessageException("Got invalid fragment type: " + head, msg));
+	    }
+	    return(null);
+	}
+    }
+
+    /* Once a session is encrypted, each direction of packet crypto
+     * is done in order on a thread of its own, so that it does not
+     * hold up the connection's thread. */
+    private static ExecutorService cryptstage(String name) {
+	return(Executors.newSingleThreadExecutor(tgt -> {
+		    Thread th = new HackThread(tgt, name);
+		    th.setDaemon(true);
+		    return(th);
+		}));
+    }
+
+    private void finish() {
+	if(txcrypt != null) {
+	    /* Let the encryptor send what it already has, such as
+	     * the final close. */
+	    txcrypt.shutdown();
+	    rxcrypt.shutdownNow();
+	    try {
+		if(!txcrypt.awaitTermination(1, TimeUnit.SECONDS))
+		    txcrypt.shutdownNow();
+	    } catch(InterruptedException e) {
+		txcrypt.shutdownNow();
+		Thread.currentThread().interrupt();
+	    }
+	}
+	try {
+	    alive = false;
+	    for(Callback cb : cbs)
+		cb.closed();
+	} finally {
+	    try {
+		sk.close();
+		if(sel != null)
+		    sel.close();
+	    } catch(IOException e) {
+		throw(new RuntimeException(e));
+	    }
+	}
+    }
+
     private class Worker extends HackThread {
 	private Task init;
 	
@@ -242,44 +422,168 @@ public class Connection implements Transport {
 	    Task task = init;
 	    init = null;
 	    try {
-		/* Poor man's tail recursion. */
-		while(task != null)
-		    task = task.run();
-	    } finally {
-		try {
-		    alive = false;
-		    for(Callback cb : cbs)
-			cb.closed();
-		} finally {
+		while(task != null) {
 		    try {
-			sk.close();
-			sel.close();
+			select(task.deadline() - Utils.rtime());
 		    } catch(IOException e) {
 			throw(new RuntimeException(e));
 		    }
+		    if(Thread.interrupted())
+			closing = true;
+		    task = task.run(Utils.rtime());
 		}
+	    } finally {
+		finish();
 	    }
 	}
     }
 
+    /* Tasks never block, but are run whenever packets may have
+     * arrived, whenever the connection is woken up, and when their
+     * deadline passes. */
     public interface Task {
-	public Task run();
+	/* Returns the task to continue with, which is normally the
+	 * task itself, or null when the connection is done. */
+	public Task run(double now);
+	public double deadline();
     }
 
+    /* Drives any number of connections from a single thread, for
+     * users such as load-testers that would otherwise need
+     * thousands of worker threads. */
+    public static class Reactor extends HackThread {
+	private final Selector sel;
+	private final Collection<Connection> ready = new LinkedHashSet<>();
+	private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+
+	private static class Timer implements Comparable<Timer> {
+	    final double t;
+	    final Connection conn;
+
+	    Timer(double t, Connection conn) {
+		this.t = t;
+		this.conn = conn;
+	    }
+
+	    public int compareTo(Timer that) {
+		return(Double.compare(this.t, that.t));
+	    }
+	}
+
+	public Reactor() {
+	    super("Connection reactor");
+	    setDaemon(true);
+	    try {
+		sel = Selector.open();
+	    } catch(IOException e) {
+		throw(new RuntimeException(e));
+	    }
+	    start();
+	}
+
+	private void kick(Connection conn) {
+	    synchronized(ready) {
+		ready.add(conn);
+	    }
+	    sel.wakeup();
+	}
+
+	private void step(Connection conn, double now) {
+	    Task next;
+	    try {
+		next = conn.rtask.run(now);
+	    } catch(RuntimeException e) {
+		new Warning(e, "connection task failed").issue();
+		next = null;
+	    }
+	    if(next == null) {
+		conn.rtask = null;
+		conn.key.cancel();
+		conn.finish();
+		return;
+	    }
+	    conn.rtask = next;
+	    double due = next.deadline();
+	    if(due != conn.rdue)
+		timers.add(new Timer(conn.rdue = due, conn));
+	}
+
+	public void run() {
+	    Collection<Connection> run = new LinkedHashSet<>();
+	    try {
+		while(true) {
+		    double now = Utils.rtime();
+		    if(timers.isEmpty()) {
+			sel.select();
+		    } else {
+			long to = (long)Math.ceil((timers.peek().t - now) * 1000);
+			if(to > 0)
+			    sel.select(to);
+			else
+			    sel.selectNow();
+		    }
+		    synchronized(ready) {
+			run.addAll(ready);
+			ready.clear();
+		    }
+		    for(Connection conn : run) {
+			if(conn.key == null)
+			    conn.key = conn.sk.register(sel, SelectionKey.OP_READ, conn);
+		    }
+		    for(SelectionKey key : sel.selectedKeys())
+			run.add((Connection)key.attachment());
+		    sel.selectedKeys().clear();
+		    now = Utils.rtime();
+		    while(!timers.isEmpty() && (timers.peek().t <= now)) {
+			Timer t = timers.poll();
+			if((t.conn.rtask != null) && (t.t == t.conn.rdue)) {
+			    t.conn.rdue = Double.NaN;
+			    run.add(t.conn);
+			}
+		    }
+		    for(Connection conn : run) {
+			if(conn.rtask != null)
+			    step(conn, now);
+		    }
+		    run.clear();
+		}
+	    } catch(IOException e) {
+		throw(new RuntimeException(e));
+	    }
+	}
+    }
+
+    private Task rtask;
+    private double rdue = Double.NaN;
+
     private void start(Task init) {
 	synchronized(this) {
-	    if(worker != null)
+	    if(started)
 		throw(new IllegalStateException());
-	    worker = new Worker(init);
-	    worker.start();
+	    started = true;
+	    if(reactor == null) {
+		worker = new Worker(init);
+		worker.start();
+	    } else {
+		rtask = init;
+		reactor.kick(this);
+	    }
 	}
     }
 
     public boolean alive() {
-	return(alive && (worker != null));
+	return(alive && started);
     }
 
-    private final ByteBuffer recvbuf = ByteBuffer.allocate(65536);
+    private static final int RXBUFS = 16;
+    private ByteBuffer recvbuf = ByteBuffer.allocate(65536);
+    private final Queue<ByteBuffer> rxfree = new ArrayBlockingQueue<>(RXBUFS);
+    private int rxbufs = 1;
+    /* Encrypted packets are returned as slices of the receive
+     * buffer itself. They are either decrypted into fresh buffers
+     * or dropped before the next call, or handed to the decryptor
+     * along with the buffer itself by rxhandoff(). Anything else
+     * may be retained by callbacks and so gets its own copy. */
     private PMessage recv() throws IOException {
 	recvbuf.clear();
 	int ret = sk.read(recvbuf);
@@ -290,14 +594,39 @@ public class Connection implements Transport {
 	} else {
 	    recvbuf.flip();
 	    byte type = recvbuf.get();
-	    byte[] buf = new byte[recvbuf.remaining()];
-	    recvbuf.get(buf);
+	    int len = recvbuf.remaining();
 	    stats.prx++;
-	    stats.brx += buf.length;
+	    stats.brx += len;
+	    if(type == Session.MSG_CRYPT)
+		return(new PMessage(type, recvbuf.array(), recvbuf.arrayOffset() + recvbuf.position(), len));
+	    byte[] buf = new byte[len];
+	    recvbuf.get(buf);
 	    return(new PMessage(type, buf));
 	}
     }
 
+    /* Gives up the receive buffer, which the last received packet
+     * is a slice of, to whoever is to decrypt it, who should pass it
+     * to rxrelease() when done. Returns null instead, keeping the
+     * buffer, if all RXBUFS buffers are already handed off, in
+     * which case the packet must be copied. */
+    private ByteBuffer rxhandoff() {
+	ByteBuffer nb = rxfree.poll();
+	if(nb == null) {
+	    if(rxbufs >= RXBUFS)
+		return(null);
+	    nb = ByteBuffer.allocate(recvbuf.capacity());
+	    rxbufs++;
+	}
+	ByteBuffer ret = recvbuf;
+	recvbuf = nb;
+	return(ret);
+    }
+
+    private void rxrelease(ByteBuffer buf) {
+	rxfree.offer(buf);
+    }
+
     public void send(ByteBuffer msg) {
 	try {
 	    long sz = msg.remaining();
@@ -312,8 +641,19 @@ public class Connection implements Transport {
     }
 
     public void send(PMessage msg) {
-	if((crypt != null) && (msg.type != Session.MSG_CRYPT))
-	    msg = crypt.encrypt(msg);
+	if((crypt != null) && (msg.type != Session.MSG_CRYPT)) {
+	    Crypto crypt = this.crypt;
+	    try {
+		txcrypt.execute(() -> send0(crypt.encrypt(msg)));
+	    } catch(RejectedExecutionException e) {
+		/* Connection already finished; as good as lost. */
+	    }
+	    return;
+	}
+	send0(msg);
+    }
+
+    private void send0(PMessage msg) {
 	ByteBuffer buf = ByteBuffer.allocate(msg.size() + 1);
 	buf.put((byte)msg.type);
 	msg.fin(buf);
@@ -322,19 +662,26 @@ public class Connection implements Transport {
     }
 
     public void close() {
-	if(worker == null)
+	if(!started)
 	    throw(new IllegalStateException());
-	worker.interrupt();
+	closing = true;
+	wake();
     }
 
-    private boolean select(double timeout) throws IOException {
+    private void select(double timeout) throws IOException {
 	sel.selectedKeys().clear();
-	sel.select((long)Math.ceil(timeout * 1000));
-	return(key.isReadable());
+	long ms = (long)Math.ceil(timeout * 1000);
+	if(ms > 0)
+	    sel.select(ms);
+	else
+	    sel.selectNow();
     }
 
     private void wake() {
-	sel.wakeup();
+	if(reactor != null)
+	    reactor.kick(this);
+	else
+	    sel.wakeup();
     }
 
     private final List<RMessage> pending = new LinkedList<>();
@@ -377,111 +724,143 @@ public class Connection implements Transport {
 	    }
 	}
 
-	public Task run() {
-	    int retries = 0;
-	    double last = 0;
+	private int retries = 0;
+	private double last = 0;
+
+	public double deadline() {
+	    return(last + 2);
+	}
+
+	private Task step(double now) {
+	    if(closing)
+		return(null);
 	    try {
-		while(true) {
-		    double now = Utils.rtime();
-		    if(now - last > 2) {
-			if(++retries > 5) {
-			    result = Session.SESSERR_CONN;
-			    return(null);
+		PMessage msg;
+		while((msg = recv()) != null) {
+		    boolean cr = false;
+		    if((msg.type == Session.MSG_CRYPT) && (crypt != null)) {
+			try {
+			    msg = crypt.decrypt(msg);
+			} catch(DecryptException e) {
+			    new Warning(e).ctrace(false).issue();
+			    continue;
 			}
-			send(msg);
-			last = now;
+			cr = true;
 		    }
-		    try {
-			if(select(Math.max(0.0, last + 2 - now))) {
-			    PMessage msg = recv();
-			    boolean cr = false;
-			    if((msg != null) && (msg.type == Session.MSG_CRYPT) && (crypt != null)) {
-				msg = crypt.decrypt(msg);
-				cr = true;
-			    }
-			    if((msg != null) && (msg.type == Session.MSG_SESS)) {
-				int error = msg.uint8();
-				if(error == 0) {
-				    if((crypt == null) || cr) {
-					result = 0;
-					Connection.this.crypt = crypt;
-					stats.addreply(Utils.rtime() - last);
-					return(new Main());
-				    }
-				} else {
-				    this.result = error;
-				    if(error == Session.SESSERR_MESG)
-					message = msg.string();
-				    return(null);
+		    if(msg.type == Session.MSG_SESS) {
+			int error = msg.uint8();
+			if(error == 0) {
+			    if((crypt == null) || cr) {
+				result = 0;
+				if(crypt != null) {
+				    txcrypt = cryptstage("Connection encryptor");
+				    rxcrypt = cryptstage("Connection decryptor");
 				}
+				Connection.this.crypt = crypt;
+				/* A reply to a retransmitted request
+				 * cannot be told apart from a late reply
+				 * to an earlier one (Karn's rule). */
+				if(retries == 1) {
+				    stats.addreply(now - last);
+				    rtt.sample(now - last);
+				}
+				return(new Main());
 			    }
+			} else {
+			    this.result = error;
+			    if(error == Session.SESSERR_MESG)
+				message = msg.string();
+			    return(null);
 			}
-		    } catch(ClosedByInterruptException | CancelledKeyException e) {
-			return(null);
-		    } catch(DecryptException e) {
-			new Warning(e).ctrace(false).issue();
-		    } catch(IOException e) {
-			result = Session.SESSERR_CONN;
-			cause = e;
-			return(null);
 		    }
 		}
-	    } finally {
-		synchronized(this) {
-		    if(result < 0)
-			result = Session.SESSERR_CONN;
-		    notifyAll();
+	    } catch(ClosedByInterruptException | CancelledKeyException e) {
+		return(null);
+	    } catch(IOException e) {
+		result = Session.SESSERR_CONN;
+		cause = e;
+		return(null);
+	    }
+	    if(now - last > 2) {
+		if(++retries > 5) {
+		    result = Session.SESSERR_CONN;
+		    return(null);
 		}
+		send(msg);
+		last = now;
 	    }
+	    return(this);
 	}
-    }
-
-    private static class ObjAck {
-	long id;
-	int frame;
-	double frecv, lrecv;
 
-	ObjAck(long id, int frame, double recv) {
-	    this.id = id;
-	    this.frame = frame;
-	    this.frecv = this.lrecv = recv;
+	public Task run(double now) {
+	    Task next = null;
+	    try {
+		next = step(now);
+	    } finally {
+		if(next != this) {
+		    synchronized(this) {
+			if(result < 0)
+			    result = Session.SESSERR_CONN;
+			notifyAll();
+		    }
+		}
+	    }
+	    return(next);
 	}
     }
 
     private class Main implements Task {
 	private final Map<Short, RMessage> waiting = new HashMap<>();
 	private final Map<Long, ObjAck> objacks = new HashMap<>();
-	private double now, lasttx;
+	private final TimerWheel timers;
+	private double now, lasttx, pendto, nexttx;
 	private short rseq, ackseq;
 	private double acktime = -1;
-	private byte[] fragbuf = null;
-	private int fragtype;
+	private PMessage objackmsg = null;
+	private final Queue<PMessage> decrypted = new ArrayDeque<>();
+
+	private class ObjAck extends TimerWheel.Timer {
+	    final long id;
+	    int frame;
+	    double frecv, lrecv;
+
+	    ObjAck(long id, int frame, double recv) {
+		this.id = id;
+		this.frame = frame;
+		this.frecv = this.lrecv = recv;
+	    }
+
+	    void update() {
+		timers.schedule(this, Math.min(lrecv + OBJACK_HOLD, frecv + OBJACK_HOLD_MAX));
+	    }
+
+	    public void expire() {
+		objacks.remove(id);
+		if(objackmsg == null) {
+		    objackmsg = new PMessage(Session.MSG_OBJACK);
+		} else if(objackmsg.size() > 1000 - 8) {
+		    send(objackmsg);
+		    objackmsg = new PMessage(Session.MSG_OBJACK);
+		}
+		objackmsg.adduint32(id);
+		objackmsg.addint32(frame);
+	    }
+	}
+
+	private final TimerWheel.Timer acktimer = new TimerWheel.Timer() {
+		public void expire() {
+		    send((PMessage)new PMessage(Session.MSG_ACK).adduint16(ackseq));
+		    acktime = -1;
+		    lasttx = now;
+		}
+	    };
+	private final Defragmenter defrag = new Defragmenter();
 
 	private void handlerel(PMessage msg) {
 	    if(msg.type == RMessage.RMSG_FRAGMENT) {
-		int head = msg.uint8();
-		if((head & 0x80) == 0) {
-		    if(fragbuf != null)
-			throw(new Session.MessageException("Got start fragment while still defragmenting", msg));
-		    fragbuf = msg.bytes();
-		    fragtype = head;
-		} else {
-		    if((head == 0x80) || (head == 0x81)) {
-			byte[] frag = msg.bytes();
-			byte[] curbuf = fragbuf;
-			byte[] newbuf = new byte[curbuf.length + frag.length];
-			System.arraycopy(curbuf, 0, newbuf, 0, curbuf.length);
-			System.arraycopy(frag, 0, newbuf, curbuf.length, frag.length);
-			fragbuf = newbuf;
-			if(head == 0x81) {
-			    PMessage nmsg = new PMessage(fragtype, fragbuf);
-			    fragbuf = null;
-			    handlerel(nmsg);
-			}
-		    } else {
-			throw(new Session.MessageException("Got invalid fragment type: " + head, msg));
-		    }
-		}
+		PMessage whole = defrag.add(msg.uint8(), msg);
+		if(whole != null)
+		    handlerel(whole);
 	    } else {
 		for(Iterator<Callback> i = cbs.iterator(); i.hasNext();) {
 		    Callback cb = i.next();
@@ -511,23 +890,37 @@ public class Connection implements Transport {
 	}
 
 	private void sendack(short seq) {
-	    if(acktime < 0)
+	    if(acktime < 0) {
 		acktime = now;
+		timers.schedule(acktimer, now + ACK_HOLD);
+	    }
 	    ackseq = seq;
 	}
 
 	private void gotack(short seq) {
 	    synchronized(pending) {
+		/* Only the newest message acked gives an RTT sample,
+		 * and only if none of them were retransmitted: as per
+		 * Karn's algorithm, such acks are ambiguous, and they
+		 * also finish gaps that older messages have been
+		 * waiting behind. */
+		boolean clean = true;
+		RMessage last = null;
 		for(Iterator<RMessage> i = pending.iterator(); i.hasNext();) {
 		    RMessage msg = i.next();
 		    short sd = (short)(msg.seq - seq);
 		    if(sd <= 0) {
 			stats.addreply(now - msg.first);
+			if(msg.retx != 1)
+			    clean = false;
+			last = msg;
 			i.remove();
 		    } else {
 			break;
 		    }
 		}
+		if(clean && (last != null))
+		    rtt.sample(now - last.first);
 	    }
 	}
 
@@ -580,10 +973,12 @@ public class Connection implements Transport {
 		ObjAck ack = objacks.get(id);
 		if(ack == null) {
 		    objacks.put(id, ack = new ObjAck(id, fr, now));
+		    ack.update();
 		} else {
 		    if(fr > ack.frame) {
 			ack.frame = fr;
 			ack.lrecv = now;
+			ack.update();
 		    }
 		}
 	    }
@@ -598,12 +993,19 @@ public class Connection implements Transport {
 		int seq = msg.uint16();
 		while(!msg.eom()) {
 		    int type = msg.uint8();
-		    RMessage rmsg;
+		    int len;
 		    if((type & 0x80) != 0) {
-			rmsg = new RMessage(type & 0x7f, msg.bytes(msg.uint16()));
+			type &= 0x7f;
+			len = msg.uint16();
+			if(len > msg.rt - msg.rh)
+			    throw(new Message.EOF("Truncated reliable message"));
 		    } else {
-			rmsg = new RMessage(type, msg.bytes());
+			len = msg.rt - msg.rh;
 		    }
+		    /* Slice rather than copy; the packet buffer is
+		     * never reused. */
+		    RMessage rmsg = new RMessage(type, msg.rbuf, msg.rh, len);
+		    msg.rh += len;
 		    rmsg.seq = seq++;
 		    gotrel(rmsg);
 		}
@@ -625,34 +1027,39 @@ public class Connection implements Transport {
 	}
 
 	private double min2(double a, double b) {
-	    return((a < 0) ? b : Math.min(a, b));
+	    if(a < 0)
+		return(b);
+	    if(b < 0)
+		return(a);
+	    return(Math.min(a, b));
 	}
 
+	/* Only the first SEND_WINDOW unacknowledged messages are ever
+	 * in flight, and new ones among them are spread out over a
+	 * round-trip rather than sent all at once. */
 	private double sendpending() {
 	    double mint = -1;
 	    synchronized(pending) {
+		int n = 0;
 		for(RMessage msg : pending) {
+		    if(n++ >= SEND_WINDOW)
+			break;
 		    double txtime;
 		    if(msg.retx == 0)
-			txtime = 0;
-		    else if(msg.retx <= 1)
-			txtime = 0.08;
-		    else if(msg.retx <= 3)
-			txtime = 0.20;
-		    else if(msg.retx <= 9)
-			txtime = 0.62;
+			txtime = nexttx;
 		    else
-			txtime = 2.00;
-		    txtime = msg.last + txtime;
+			txtime = msg.last + rtt.rto(msg.retx);
 		    if(now >= txtime) {
 			PMessage rmsg = new PMessage(Session.MSG_REL);
 			rmsg.adduint16(msg.seq).adduint8(msg.type).addbytes(msg.fin());
 			send(rmsg);
 			msg.last = now;
-			if(msg.retx == 0)
+			if(msg.retx == 0) {
 			    msg.first = now;
-			else
+			    nexttx = now + (rtt.srtt() / SEND_WINDOW);
+			} else {
 			    stats.pretx++;
+			}
 			msg.retx++;
 			lasttx = now;
 		    } else {
@@ -663,82 +1070,81 @@ public class Connection implements Transport {
 	    return(mint);
 	}
 
-	private double sendobjacks() {
-	    double mint = -1;
-	    PMessage msg = null;
-	    for(Iterator<ObjAck> i = objacks.values().iterator(); i.hasNext();) {
-		ObjAck ack = i.next();
-		double txtime = Math.min(ack.lrecv + OBJACK_HOLD, ack.frecv + OBJACK_HOLD_MAX);
-		if(txtime <= now) {
-		    if(msg == null) {
-			msg = new PMessage(Session.MSG_OBJACK);
-		    } else if(msg.size() > 1000 - 8) {
-			send(msg);
-			msg = new PMessage(Session.MSG_OBJACK);
-		    }
-		    msg.adduint32(ack.id);
-		    msg.addint32(ack.frame);
-		    i.remove();
-		} else {
-		    mint = min2(mint, txtime);
-		}
-	    }
-	    if(msg != null) {
-		send(msg);
-		lasttx = now;
-	    }
-	    return(mint);
+	private Main() {
+	    pendto = lasttx = now = Utils.rtime();
+	    timers = new TimerWheel(0.01, now);
 	}
 
-	public Task run() {
-	    lasttx = now = Utils.rtime();
-	    double pendto = now;
-	    while(true) {
-		double to = 5 - (now - lasttx);
-		if(acktime > 0)
-		    to = Math.min(to, acktime + ACK_HOLD - now);
-		if(pendto >= 0)
-		    to = Math.min(to, pendto - now);
+	public double deadline() {
+	    return(min2(min2(pendto, timers.next()), lasttx + 5));
+	}
 
-		try {
-		    Utils.checkirq();
-		    boolean readable = select(Math.max(to, 0));
-		    now = Utils.rtime();
-		    if(readable) {
-			PMessage msg;
-			while((msg = recv()) != null) {
-			    if(crypt != null) {
-				if(msg.type != Session.MSG_CRYPT)
-				    continue;
-				msg = crypt.decrypt(msg);
-			    }
-			    if(msg.type == Session.MSG_CLOSE)
-				return(new Close(true));
-			    handlemsg(msg);
-			}
+	public Task run(double now) {
+	    this.now = now;
+	    if(closing)
+		return(new Close(false));
+	    try {
+		PMessage msg;
+		while((msg = recv()) != null) {
+		    if(crypt != null) {
+			if(msg.type != Session.MSG_CRYPT)
+			    continue;
+			Crypto crypt = Connection.this.crypt;
+			ByteBuffer buf = rxhandoff();
+			PMessage ct = (buf != null) ? msg : new PMessage(msg.type, msg.bytes());
+			rxcrypt.execute(() -> {
+				PMessage dec;
+				try {
+				    dec = crypt.decrypt(ct);
+				} catch(DecryptException e) {
+				    new Warning(e).ctrace(false).issue();
+				    return;
+				} finally {
+				    if(buf != null)
+					rxrelease(buf);
+				}
+				synchronized(decrypted) {
+				    decrypted.add(dec);
+				}
+				wake();
+			    });
+			continue;
 		    }
-		} catch(ClosedByInterruptException | CancelledKeyException | InterruptedException e) {
-		    return(new Close(false));
-		} catch(PortUnreachableException e) {
-		    return(null);
-		} catch(DecryptException e) {
-		    new Warning(e).ctrace(false).issue();
-		} catch(IOException e) {
-		    new Warning(e, "connection error").issue();
-		    return(null);
+		    if(msg.type == Session.MSG_CLOSE)
+			return(new Close(true));
+		    handlemsg(msg);
 		}
-
-		pendto = min2(sendpending(), sendobjacks());
-		if((acktime > 0) && (now - acktime >= ACK_HOLD)) {
-		    send((PMessage)new PMessage(Session.MSG_ACK).adduint16(ackseq));
-		    acktime = -1;
-		    lasttx = now;
-		}
-		if(now - lasttx >= 5) {
-		    send(new PMessage(Session.MSG_BEAT));
-		    lasttx = now;
+		while(true) {
+		    synchronized(decrypted) {
+			msg = decrypted.poll();
+		    }
+		    if(msg == null)
+			break;
+		    if(msg.type == Session.MSG_CLOSE)
+			return(new Close(true));
+		    handlemsg(msg);
 		}
+	    } catch(ClosedByInterruptException | CancelledKeyException e) {
+		return(new Close(false));
+	    } catch(PortUnreachableException e) {
+		return(null);
+	    } catch(IOException e) {
+		new Warning(e, "connection error").issue();
+		return(null);
+	    }
+
+	    pendto = sendpending();
+	    timers.expire(now);
+	    if(objackmsg != null) {
+		send(objackmsg);
+		objackmsg = null;
+		lasttx = now;
+	    }
+	    if(now - lasttx >= 5) {
+		send(new PMessage(Session.MSG_BEAT));
+		lasttx = now;
 	    }
+	    return(this);
 	}
     }
 
@@ -749,44 +1155,51 @@ public class Connection implements Transport {
 	    this.sawclose = sawclose;
 	}
 
-	public Task run() {
-	    int retries = 0;
-	    double last = 0;
-	    while(true) {
-		double now = Utils.rtime();
-		if(now - last > 0.5) {
-		    if(++retries > 5)
-			return(null);
-		    send(new PMessage(Session.MSG_CLOSE));
-		    last = now;
-		}
-		try {
-		    if(select(Math.max(0.0, last + 0.5 - now))) {
-			PMessage msg = recv();
-			if(msg != null) {
-			    if((msg.type == Session.MSG_CRYPT) && (crypt != null))
-				msg = crypt.decrypt(msg);
-			    if(msg.type == Session.MSG_CLOSE)
-				sawclose = true;
+	private int retries = 0;
+	private double last = 0;
+
+	public double deadline() {
+	    return(last + 0.5);
+	}
+
+	public Task run(double now) {
+	    try {
+		PMessage msg;
+		while((msg = recv()) != null) {
+		    if((msg.type == Session.MSG_CRYPT) && (crypt != null)) {
+			try {
+			    msg = crypt.decrypt(msg);
+			} catch(DecryptException e) {
+			    new Warning(e).ctrace(false).issue();
+			    continue;
 			}
 		    }
-		} catch(ClosedByInterruptException | CancelledKeyException e) {
-		    /* XXX: I'm not really sure what causes
-		     * CancelledKeyExceptions to occur here, but they
-		     * seem to be somewhat common in practice. As far
-		     * as my understanding goes, the channel should
-		     * not be closed by interrupts so long as it is
-		     * non-blocking, and interrupting a selecting
-		     * thread shouldn't cause any channel closure. */
-		    return(null);
-		} catch(DecryptException e) {
-		    new Warning(e).ctrace(false).issue();
-		} catch(IOException e) {
-		    return(null);
+		    if(msg.type == Session.MSG_CLOSE)
+			sawclose = true;
 		}
-		if(sawclose)
+	    } catch(ClosedByInterruptException | CancelledKeyException e) {
+		/* XXX: I'm not really sure what causes
+		 * CancelledKeyExceptions to occur here, but they
+		 * seem to be somewhat common in practice. As far
+		 * as my understanding goes, the channel should
+		 * not be closed by interrupts so long as it is
+		 * non-blocking, and interrupting a selecting
+		 * thread shouldn't cause any channel closure. */
+		return(null);
+	    } catch(IOException e) {
+		return(null);
+	    }
+	    if(now - last > 0.5) {
+		if(++retries > 5)
 		    return(null);
+		send(new PMessage(Session.MSG_CLOSE));
+		last = now;
 	    }
+	    /* Checked only after sending, so that a close from the
+	     * server is always answered at least once. */
+	    if(sawclose)
+		return(null);
+	    return(this);
 	}
     }
 
@@ -33,7 +33,7 @@ import java.util.concurrent.atomic.*;
 
 public class Defer extends ThreadGroup {
     private static final Map<ThreadGroup, Defer> groups = new WeakHashMap<ThreadGroup, Defer>();
-    private final Queue<Future<?>> queue = new PrioQueue<Future<?>>();
+    private final PrioQueue<Future<?>> queue = new PrioQueue<Future<?>>();
     private final Collection<Thread> pool = new LinkedList<Thread>();
     private final int maxthreads = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
     private final AtomicInteger busy = new AtomicInteger(0);
@@ -219,8 +219,12 @@ public class Defer extends ThreadGroup {
 	
 	public void boostprio(int prio) {
 	    synchronized(this) {
-		if(this.prio < prio)
+		if(this.prio < prio) {
 		    this.prio = prio;
+		    synchronized(queue) {
+			queue.update(this);
+		    }
+		}
 	    }
 	}
     }
@@ -34,7 +34,7 @@ public class DrawOffset extends GAttrib {
 	this.off = off;
     }
 
-    @OCache.DeltaType(OCache.OD_ZOFF)
+    @OCache.DeltaType(value = OCache.OD_ZOFF, supersedes = {OCache.OD_ZOFF})
     public static class $zoff implements OCache.Delta {
 	public void apply(Gob g, OCache.AttrDelta msg) {
 	    float off = msg.int16() / 100.0f;
@@ -47,6 +47,7 @@ public class DrawOffset extends GAttrib {
 		    g.setattr(dro);
 		} else {
 		    dro.off = Coord3f.of(0, 0, off);
+		    g.plchanged();
 		}
 	    }
 	}
@@ -101,7 +101,7 @@ public class Following extends Moving {
 	return(xf);
     }
 
-    @OCache.DeltaType(OCache.OD_FOLLOW)
+    @OCache.DeltaType(value = OCache.OD_FOLLOW, supersedes = {OCache.OD_FOLLOW})
     public static class $follow implements OCache.Delta {
 	public void apply(Gob g, OCache.AttrDelta msg) {
 	    long oid = msg.uint32();
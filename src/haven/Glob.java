@@ -35,7 +35,7 @@ public class Glob {
     public final OCache oc = new OCache(this);
     public final MCache map;
     public final Session sess;
-    public final Loader loader = new Loader();
+    public final Loader loader;
     public double gtime, sgtime, epoch = Utils.rtime();
     public Astronomy ast;
     public Party party;
@@ -51,12 +51,17 @@ public class Glob {
     private final Map<String, CAttr> cattr = new HashMap<String, CAttr>();
     private Map<Indir<Resource>, Object> wmap = new HashMap<Indir<Resource>, Object>();
     
-    public Glob(Session sess) {
+    public Glob(Session sess, Loader loader) {
 	this.sess = sess;
+	this.loader = loader;
 	map = new MCache(sess);
 	party = new Party(this);
     }
 
+    public Glob(Session sess) {
+	this(sess, new Loader());
+    }
+
     public static interface Weather {
 	public default Pipe.Op state() {return(null);}
 	public default void update(Object... args) {}
@@ -42,6 +42,7 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
     public final Collection<Overlay> ols = new ArrayList<Overlay>();
     public final Collection<RenderTree.Slot> slots = new ArrayList<>(1);
     public int updateseq = 0, lastolid = 0;
+    private int plseq = 0;
     private final Collection<SetupMod> setupmods = new ArrayList<>();
     private final LinkedList<Runnable> deferred = new LinkedList<>();
     private Loader.Future<?> deferral = null;
@@ -569,6 +570,15 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 	    m.move(c);
 	this.rc = c;
 	this.a = a;
+	plchanged();
+    }
+
+    /* Called whenever something that determines the placement of
+     * this gob, other than the map itself, is changed. */
+    public void plchanged() {
+	synchronized(this) {
+	    plseq++;
+	}
     }
 
     public Placer placer() {
@@ -641,6 +651,7 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 		setupmods.add((SetupMod)a);
 	    attr.put(ac, a);
 	}
+	plchanged();
 	if(prev != null)
 	    prev.dispose();
     }
@@ -856,8 +867,15 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 	    final Pipe.Op flw, tilestate, mods;
 	    final Coord3f oc, rc;
 	    final Matrix4f rot;
+	    final int seq, mseq;
+	    final boolean moving;
+	    final Placer placer;
+	    final Pipe.Op[] modops;
 
 	    Placement() {
+		this.seq = plseq;
+		this.mseq = glob.map.chseq;
+		this.moving = Gob.this.getattr(Moving.class) != null;
 		try {
 		    Following flw = Gob.this.getattr(Following.class);
 		    Pipe.Op flwxf = (flw == null) ? null : flw.xf();
@@ -869,23 +887,28 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 			this.flw = null;
 			this.oc = oc;
 			this.rc = rc;
-			this.rot = Gob.this.placer().getr(Coord2d.of(oc), Gob.this.a);
+			this.placer = Gob.this.placer();
+			this.rot = this.placer.getr(Coord2d.of(oc), Gob.this.a);
 			tilestate = Gob.this.getmapstate(oc);
 		    } else {
 			this.flw = flwxf;
 			this.oc = this.rc = null;
 			this.rot = null;
+			this.placer = null;
 		    }
 		    this.tilestate = tilestate;
 		    if(setupmods.isEmpty()) {
+			this.modops = null;
 			this.mods = null;
 		    } else {
-			Pipe.Op[] mods = new Pipe.Op[setupmods.size()];
-			int n = 0;
+			Pipe.Op[] modops = new Pipe.Op[setupmods.size()];
+			Pipe.Op[] mods = new Pipe.Op[modops.length];
+			int i = 0, n = 0;
 			for(SetupMod mod : setupmods) {
-			    if((mods[n] = mod.placestate()) != null)
+			    if((modops[i++] = mods[n] = mod.placestate()) != null)
 				n++;
 			}
+			this.modops = modops;
 			this.mods = (n > 0) ? Pipe.Op.compose(mods) : null;
 		    }
 		} catch(Loading bl) {
@@ -899,6 +922,25 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 		}
 	    }
 
+	    /* Checks whether this placement is still current without
+	     * constructing a new one. Placers and tile states are only
+	     * functions of the gob's position and the map (cf. the
+	     * chseq caching in the placers themselves), so unless the
+	     * gob is moving, its own change sequence and the map's
+	     * suffice, leaving only the setup mods to be asked. */
+	    boolean current() {
+		if(moving || (seq != plseq) || (mseq != glob.map.chseq))
+		    return(false);
+		if((placer != null) && (placer != Gob.this.placer()))
+		    return(false);
+		int i = 0, n = (modops == null) ? 0 : modops.length;
+		for(SetupMod mod : setupmods) {
+		    if((i >= n) || !Utils.eq(modops[i++], mod.placestate()))
+			return(false);
+		}
+		return(i == n);
+	    }
+
 	    public boolean equals(Placement that) {
 		if(this.flw != null) {
 		    if(!Utils.eq(this.flw, that.flw))
@@ -943,12 +985,16 @@ public class Gob implements RenderTree.Node, Sprite.Owner, Skeleton.ModOwner, Eq
 	    synchronized(Gob.this) {
 		Placement np;
 		try {
+		    if((cur != null) && cur.current())
+			return;
 		    np = new Placement();
 		} catch(Loading l) {
 		    return;
 		}
 		if(!Utils.eq(this.cur, np))
 		    update(np);
+		else
+		    this.cur = np; /* Equal, but with newer change sequences */
 	    }
 	}
 
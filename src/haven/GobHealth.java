@@ -55,7 +55,7 @@ public class GobHealth extends GAttrib implements Gob.SetupMod {
 	return(fx);
     }
 
-    @OCache.DeltaType(OCache.OD_HEALTH)
+    @OCache.DeltaType(value = OCache.OD_HEALTH, supersedes = {OCache.OD_HEALTH})
     public static class $health implements OCache.Delta {
 	public void apply(Gob g, OCache.AttrDelta msg) {
 	    int hp = msg.uint8();
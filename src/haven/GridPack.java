@@ -0,0 +1,498 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.nio.channels.*;
+import java.util.concurrent.locks.*;
+import static haven.Utils.pj;
+
+/* Stores the grids of a MapFile in a single container file, rather
+ * than as one cache entry per grid. Each record in the data file
+ * carries the grid ID and the ID of the segment the grid was saved
+ * in, followed by the grid in its ordinary encoding. Record
+ * locations are kept in an in-memory index, persisted as a journal
+ * of fixed-size records, so that opening a pack is one sequential
+ * read and fetching a grid is one positional read. Updated grids
+ * are appended; the space left dead by them is reclaimed in the
+ * background by rewriting the live grids, ordered by segment, into
+ * a new generation of the data file. The index names the generation
+ * it refers to, so a compaction interrupted halfway is simply
+ * discarded on the next open.
+ *
+ * Several clients may share a pack. Saving a grid is serialized
+ * between them by a lock on one byte of the lock file, and each
+ * client catches up with records journalled by the others before
+ * using its index. Every client holds a shared lock on another byte
+ * for as long as it has the pack open, and a compaction is only
+ * switched over to when it can lock that byte exclusively, so that
+ * no client is ever left reading a replaced generation. */
+public class GridPack {
+    public static final double DEADRATIO = 0.4;
+    private static final long MINCOMPACT = 4L << 20;
+    private static final int IDXVER = 1, IDXHDR = 8, IDXREC = 28, RECHDR = 20;
+    private static final long WLOCK = 0, PLOCK = 1;
+    public final Path dir;
+    public final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Long, Loc> index = new HashMap<>();
+    private final FileChannel lockf;
+    private final Path idxpath;
+    private FileChannel idxf, data;
+    private FileLock presence;
+    private int gen;
+    private long idxend, dataend, live;
+    private Thread compactor = null;
+    private double lastshared = Double.NEGATIVE_INFINITY;
+    private final Object compacting = new Object();
+
+    private static class Loc {
+	final long seg, off;
+	final int len;
+
+	Loc(long seg, long off, int len) {
+	    this.seg = seg; this.off = off; this.len = len;
+	}
+    }
+
+    public GridPack(Path dir) throws IOException {
+	this.dir = dir;
+	this.idxpath = pj(dir, "index");
+	Files.createDirectories(dir);
+	FileChannel lockf = FileChannel.open(pj(dir, "lock"), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+	try {
+	    try(FileLock wl = lockf.lock(WLOCK, 1, false)) {
+		FileLock solo = lockf.tryLock(PLOCK, 1, false);
+		try {
+		    open(solo != null);
+		} finally {
+		    if(solo != null)
+			solo.release();
+		}
+		presence = lockf.lock(PLOCK, 1, true);
+	    }
+	    this.lockf = lockf;
+	    lockf = null;
+	} finally {
+	    if(lockf != null)
+		lockf.close();
+	}
+    }
+
+    private Path datapath(int gen) {
+	return(pj(dir, String.format("grids-%08x", gen)));
+    }
+
+    /* Writes what has been put into buf. */
+    private static void writefully(FileChannel fp, ByteBuffer buf, long off) throws IOException {
+	buf.flip();
+	while(buf.hasRemaining())
+	    off += fp.write(buf, off);
+    }
+
+    private static ByteBuffer readfully(FileChannel fp, ByteBuffer buf, long off) throws IOException {
+	while(buf.hasRemaining()) {
+	    if(fp.read(buf, off + buf.position()) < 0)
+		throw(new EOFException());
+	}
+	buf.flip();
+	return(buf);
+    }
+
+    private void account(Loc prev, Loc nl) {
+	if(prev != null)
+	    live -= RECHDR + prev.len;
+	if(nl != null)
+	    live += RECHDR + nl.len;
+    }
+
+    /* Stale generations are only removed when no other client has
+     * the pack open, since one may still be compacting into one. */
+    private void open(boolean alone) throws IOException {
+	idxf = FileChannel.open(idxpath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+	long sz = idxf.size();
+	if(sz < IDXHDR) {
+	    gen = 0;
+	    writefully(idxf, ByteBuffer.allocate(IDXHDR).putInt(IDXVER).putInt(gen), 0);
+	    sz = IDXHDR;
+	}
+	ByteBuffer buf = readfully(idxf, ByteBuffer.allocate((int)sz), 0);
+	if(buf.getInt() != IDXVER)
+	    throw(new IOException("grid pack " + dir + " has an unknown index"));
+	gen = buf.getInt();
+	data = FileChannel.open(datapath(gen), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+	dataend = data.size();
+	long end = 0;
+	while(buf.remaining() >= IDXREC) {
+	    long id = buf.getLong(), seg = buf.getLong(), off = buf.getLong();
+	    int len = buf.getInt();
+	    if(off + RECHDR + len > dataend) {
+		/* Can only happen for a torn write of the data file,
+		 * which is always written before the index. */
+		buf.position(buf.position() - IDXREC);
+		break;
+	    }
+	    Loc nl = new Loc(seg, off, len);
+	    account(index.put(id, nl), nl);
+	    end = Math.max(end, off + RECHDR + len);
+	}
+	idxend = buf.position();
+	idxf.truncate(idxend);
+	recover(end);
+	if(alone) {
+	    try(DirectoryStream<Path> ls = Files.newDirectoryStream(dir, "grids-*")) {
+		for(Path p : ls) {
+		    if(!p.equals(datapath(gen)))
+			Files.delete(p);
+		}
+	    }
+	}
+    }
+
+    /* Picks up the grids journalled by other clients since the index
+     * was last read. Whole records are always preceded by their data,
+     * so only a record still being written can be partial. */
+    private void catchup() throws IOException {
+	long sz = idxf.size();
+	if(sz - idxend < IDXREC)
+	    return;
+	ByteBuffer buf = readfully(idxf, ByteBuffer.allocate((int)(((sz - idxend) / IDXREC) * IDXREC)), idxend);
+	long dsz = data.size();
+	while(buf.hasRemaining()) {
+	    long id = buf.getLong(), seg = buf.getLong(), off = buf.getLong();
+	    int len = buf.getInt();
+	    if(off + RECHDR + len > dsz)
+		break;
+	    Loc nl = new Loc(seg, off, len);
+	    account(index.put(id, nl), nl);
+	    dataend = Math.max(dataend, off + RECHDR + len);
+	    idxend += IDXREC;
+	}
+    }
+
+    /* Takes the read lock, having first caught up with the other
+     * clients if they have saved anything. */
+    private Locked rdlock() throws IOException {
+	boolean stale;
+	try(Locked lk = new Locked(lock.readLock())) {
+	    stale = (idxf.size() - idxend) >= IDXREC;
+	}
+	if(stale) {
+	    try(Locked lk = new Locked(lock.writeLock())) {
+		catchup();
+	    }
+	}
+	return(new Locked(lock.readLock()));
+    }
+
+    /* Returns an exclusive lock on the presence byte if no other
+     * client has the pack open, or null if one has. Must be called
+     * holding the write lock. */
+    private FileLock solo() throws IOException {
+	presence.release();
+	FileLock ret = null;
+	try {
+	    ret = lockf.tryLock(PLOCK, 1, false);
+	} finally {
+	    if(ret == null)
+		presence = lockf.lock(PLOCK, 1, true);
+	}
+	return(ret);
+    }
+
+    private void unsolo(FileLock solo) throws IOException {
+	solo.release();
+	presence = lockf.lock(PLOCK, 1, true);
+    }
+
+    /* Picks up records that made it to the data file but not to the
+     * index, and drops any torn record at the end. Must be called
+     * holding the write lock of the lock file. */
+    private void recover(long off) throws IOException {
+	long sz = data.size();
+	while(off + RECHDR <= sz) {
+	    ByteBuffer hdr = readfully(data, ByteBuffer.allocate(RECHDR), off);
+	    long id = hdr.getLong(), seg = hdr.getLong();
+	    int len = hdr.getInt();
+	    if((len < 0) || (off + RECHDR + len > sz))
+		break;
+	    Loc nl = new Loc(seg, off, len);
+	    journal(id, nl);
+	    account(index.put(id, nl), nl);
+	    off += RECHDR + len;
+	}
+	if(off < sz)
+	    data.truncate(off);
+	dataend = off;
+    }
+
+    private static ByteBuffer idxrec(ByteBuffer buf, long id, Loc loc) {
+	return(buf.putLong(id).putLong(loc.seg).putLong(loc.off).putInt(loc.len));
+    }
+
+    private void journal(long id, Loc loc) throws IOException {
+	writefully(idxf, idxrec(ByteBuffer.allocate(IDXREC), id, loc), idxend);
+	idxend += IDXREC;
+    }
+
+    private static Loc append(FileChannel fp, long off, long id, long seg, byte[] grid) throws IOException {
+	ByteBuffer rec = ByteBuffer.allocate(RECHDR + grid.length);
+	rec.putLong(id).putLong(seg).putInt(grid.length).put(grid);
+	writefully(fp, rec, off);
+	return(new Loc(seg, off, grid.length));
+    }
+
+    private byte[] read(Loc loc) throws IOException {
+	return(readfully(data, ByteBuffer.allocate(loc.len), loc.off + RECHDR).array());
+    }
+
+    public void put(long id, long seg, byte[] grid) throws IOException {
+	try(Locked lk = new Locked(lock.writeLock()); FileLock wl = lockf.lock(WLOCK, 1, false)) {
+	    catchup();
+	    recover(dataend);
+	    Loc nl = append(data, dataend, id, seg, grid);
+	    dataend += RECHDR + grid.length;
+	    journal(id, nl);
+	    account(index.put(id, nl), nl);
+	}
+	ckcompact();
+    }
+
+    /* Returns null if the grid is not in the pack. */
+    public byte[] get(long id) throws IOException {
+	try(Locked lk = rdlock()) {
+	    Loc loc = index.get(id);
+	    if(loc == null)
+		return(null);
+	    return(read(loc));
+	}
+    }
+
+    public boolean has(long id) throws IOException {
+	try(Locked lk = rdlock()) {
+	    return(index.containsKey(id));
+	}
+    }
+
+    /* The segment recorded for a grid is the one it was last saved
+     * in, which may since have been merged into another. */
+    public Collection<Long> grids(long seg) throws IOException {
+	Collection<Long> ret = new ArrayList<>();
+	try(Locked lk = rdlock()) {
+	    for(Map.Entry<Long, Loc> ent : index.entrySet()) {
+		if(ent.getValue().seg == seg)
+		    ret.add(ent.getKey());
+	    }
+	}
+	return(ret);
+    }
+
+    public int size() throws IOException {
+	try(Locked lk = rdlock()) {
+	    return(index.size());
+	}
+    }
+
+    private boolean needcompact() {
+	return((dataend > MINCOMPACT) && ((1.0 - ((double)live / (double)dataend)) > DEADRATIO));
+    }
+
+    private void ckcompact() {
+	synchronized(this) {
+	    if((compactor != null) || (Utils.rtime() - lastshared < 60))
+		return;
+	    try(Locked lk = new Locked(lock.readLock())) {
+		if(!needcompact())
+		    return;
+	    }
+	    compactor = new HackThread(() -> {
+		    try {
+			if(!compact()) {
+			    synchronized(GridPack.this) {
+				lastshared = Utils.rtime();
+			    }
+			}
+		    } catch(IOException e) {
+			new Warning(e, "compacting " + this).issue();
+		    } finally {
+			synchronized(GridPack.this) {
+			    compactor = null;
+			}
+		    }
+		}, "Grid-pack compactor");
+	    compactor.setDaemon(true);
+	    compactor.start();
+	}
+    }
+
+    /* Copies the live grids, ordered by segment, into the next
+     * generation of the data file. The bulk of the copying is done
+     * holding only the read lock; grids saved in the meantime are
+     * caught up with under the write lock before switching over.
+     * Returns false, having done nothing, if another client has the
+     * pack open. */
+    public boolean compact() throws IOException {
+	synchronized(compacting) {
+	    List<Map.Entry<Long, Loc>> snap;
+	    int ngen;
+	    try(Locked lk = new Locked(lock.writeLock())) {
+		FileLock solo = solo();
+		if(solo == null)
+		    return(false);
+		unsolo(solo);
+		catchup();
+		snap = new ArrayList<>(index.entrySet());
+		ngen = gen + 1;
+	    }
+	    snap.sort((a, b) -> {
+		    int c = Long.compare(a.getValue().seg, b.getValue().seg);
+		    return((c != 0) ? c : Long.compare(a.getKey(), b.getKey()));
+		});
+	    Path npath = datapath(ngen), tmp = pj(dir, "index.new");
+	    boolean done = false;
+	    try(FileChannel nf = FileChannel.open(npath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+		Map<Long, Loc> nindex = new HashMap<>();
+		Map<Long, Loc> copied = new HashMap<>();
+		long nend = 0;
+		for(Map.Entry<Long, Loc> ent : snap) {
+		    byte[] grid;
+		    try(Locked lk = new Locked(lock.readLock())) {
+			grid = read(ent.getValue());
+		    }
+		    nindex.put(ent.getKey(), append(nf, nend, ent.getKey(), ent.getValue().seg, grid));
+		    copied.put(ent.getKey(), ent.getValue());
+		    nend += RECHDR + grid.length;
+		}
+		try(Locked lk = new Locked(lock.writeLock()); FileLock wl = lockf.lock(WLOCK, 1, false)) {
+		    FileLock solo = solo();
+		    if(solo == null)
+			return(false);
+		    try {
+			catchup();
+			for(Map.Entry<Long, Loc> ent : index.entrySet()) {
+			    if(copied.get(ent.getKey()) != ent.getValue()) {
+				byte[] grid = read(ent.getValue());
+				nindex.put(ent.getKey(), append(nf, nend, ent.getKey(), ent.getValue().seg, grid));
+				nend += RECHDR + grid.length;
+			    }
+			}
+			nf.force(true);
+			try(FileChannel xf = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			    ByteBuffer buf = ByteBuffer.allocate(IDXHDR + (nindex.size() * IDXREC));
+			    buf.putInt(IDXVER).putInt(ngen);
+			    for(Map.Entry<Long, Loc> ent : nindex.entrySet())
+				idxrec(buf, ent.getKey(), ent.getValue());
+			    writefully(xf, buf, 0);
+			    xf.force(true);
+			}
+			/* Should the index fail to be replaced, the pack
+			 * simply stays on the current generation. */
+			boolean moved = false;
+			idxf.close();
+			try {
+			    try {
+				Files.move(tmp, idxpath, StandardCopyOption.ATOMIC_MOVE);
+			    } catch(AtomicMoveNotSupportedException e) {
+				Files.move(tmp, idxpath, StandardCopyOption.REPLACE_EXISTING);
+			    }
+			    moved = true;
+			} finally {
+			    idxf = FileChannel.open(idxpath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			    if(!moved)
+				Files.deleteIfExists(tmp);
+			}
+			idxend = idxf.size();
+			FileChannel ndata = FileChannel.open(npath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			Path opath = datapath(gen);
+			data.close();
+			data = ndata;
+			gen = ngen;
+			dataend = nend;
+			index.clear();
+			index.putAll(nindex);
+			live = nend;
+			done = true;
+			try {
+			    Files.delete(opath);
+			} catch(IOException e) {
+			    /* Removed on the next open instead. */
+			}
+		    } finally {
+			unsolo(solo);
+		    }
+		}
+	    } finally {
+		if(!done)
+		    Files.deleteIfExists(npath);
+	    }
+	    return(true);
+	}
+    }
+
+    public String stats() {
+	try(Locked lk = new Locked(lock.readLock())) {
+	    return(String.format("%d grids, %,d/%,d bytes live, generation %d", index.size(), live, dataend, gen));
+	}
+    }
+
+    public String toString() {
+	return("GridPack(" + dir + ")");
+    }
+
+    private static final Map<Path, GridPack> current = new HashMap<>();
+    public static GridPack get(Path dir) throws IOException {
+	synchronized(current) {
+	    GridPack ret = current.get(dir);
+	    if(ret == null)
+		current.put(dir, ret = new GridPack(dir));
+	    return(ret);
+	}
+    }
+
+    public static void main(String[] args) throws IOException {
+	if(args.length < 2) {
+	    System.err.println("usage: GridPack DIR COMMAND");
+	    System.exit(1);
+	}
+	GridPack pack = new GridPack(Utils.path(args[0]));
+	switch(args[1]) {
+	case "stat":
+	    System.out.println(pack.stats());
+	    break;
+	case "compact":
+	    if(!pack.compact())
+		System.err.println("grid pack is in use by another client");
+	    System.out.println(pack.stats());
+	    break;
+	default:
+	    System.err.printf("%s: no such command\n", args[1]);
+	    break;
+	}
+    }
+}
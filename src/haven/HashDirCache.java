@@ -34,9 +34,11 @@ import java.net.*;
 import static haven.Utils.pj;
 
 public class HashDirCache implements ResCache {
+    public static final Config.Variable<Integer> cachelimit = Config.Variable.propi("haven.cachelimit", 0);
     private final Path base;
     public final URI id;
     private final long idhash;
+    private final Usage usage;
 
     public static Path findbase() {
 	try {
@@ -83,6 +85,7 @@ public class HashDirCache implements ResCache {
 	this.base = findbase();
 	this.id = id;
 	this.idhash = namehash(0, id.toString());
+	this.usage = (cachelimit.get() > 0) ? Usage.get(base, cachelimit.get() * 1048576L) : null;
     }
 
     private static final Map<URI, HashDirCache> current = new CacheMap<>();
@@ -176,11 +179,7 @@ public class HashDirCache implements ResCache {
 
     private static final Map<Path, int[]> monitors = new HashMap<>();
     private static boolean monwarned = false;
-    private CacheFile lookup(String name, boolean creat) throws IOException {
-	long h = namehash(idhash, name);
-	Path lfn = pj(base, String.format("%016x.0", h));
-	if(!Files.exists(lfn) && !creat)
-	    return(null);
+    private static int[] getmon(Path lfn) {
 	int[] mon;
 	synchronized(monitors) {
 	    if(!monwarned && (monitors.size() > 100)) {
@@ -194,6 +193,27 @@ public class HashDirCache implements ResCache {
 	    else
 		mon[0]++;
 	}
+	return(mon);
+    }
+
+    private static void putmon(Path lfn, int[] mon, String name) {
+	synchronized(monitors) {
+	    mon[0]--;
+	    if(mon[0] < 0) {
+		throw(new AssertionError(String.format("monitor refcount %d for %s (%s)", mon[0], lfn, name)));
+	    } else if(mon[0] == 0) {
+		if(monitors.remove(lfn) != mon)
+		    throw(new AssertionError(String.format("monitor identity crisis for %s (%s)", lfn, name)));
+	    }
+	}
+    }
+
+    private CacheFile lookup(String name, boolean creat) throws IOException {
+	long h = namehash(idhash, name);
+	Path lfn = pj(base, String.format("%016x.0", h));
+	if(!Files.exists(lfn) && !creat)
+	    return(null);
+	int[] mon = getmon(lfn);
 	try {
 	    synchronized(mon) {
 		try(LockedFile lf = LockedFile.lock(lfn)) {
@@ -212,10 +232,13 @@ public class HashDirCache implements ResCache {
 				head = new Header();
 				head.cid = id.toString();
 				head.name = name;
+				touch(path);
 				return(new CacheFile(path, head, lf));
 			    }
-			    if(head.cid.equals(id.toString()) && head.name.equals(name))
+			    if(head.cid.equals(id.toString()) && head.name.equals(name)) {
+				touch(path);
 				return(new CacheFile(path, head, lf));
+			    }
 			} finally {
 			    if(idx != 0)
 				fp.close();
@@ -224,13 +247,231 @@ public class HashDirCache implements ResCache {
 		}
 	    }
 	} finally {
-	    synchronized(monitors) {
-		mon[0]--;
-		if(mon[0] < 0) {
-		    throw(new AssertionError(String.format("monitor refcount %d for %s (%s)", mon[0], lfn, name)));
-		} else if(mon[0] == 0) {
-		    if(monitors.remove(lfn) != mon)
-			throw(new AssertionError(String.format("monitor identity crisis for %s (%s)", lfn, name)));
+	    putmon(lfn, mon, name);
+	}
+    }
+
+    private void touch(Path path) {
+	if(usage != null)
+	    usage.touch(path);
+    }
+
+    private static Path entry(Path base, long h, int idx) {
+	return(pj(base, String.format("%016x.%d", h, idx)));
+    }
+
+    /* Evicts the entry file IDX of the hash chain H, keeping the
+     * chain contiguous by moving its last file into the evicted
+     * slot. Runs under the same monitor and file lock as lookup(),
+     * so that it is safe against concurrent lookups both within
+     * this JVM and in other processes sharing the directory. Like
+     * store() and remove(), it only ever renames or deletes files and
+     * never rewrites one in place, so readers still holding an entry
+     * open from fetch() keep seeing its complete old contents.
+     * Returns the number of bytes freed. */
+    private static long evict(Path base, long h, int idx, Map<String, Long> atimes) throws IOException {
+	Path lfn = entry(base, h, 0);
+	if(!Files.exists(lfn))
+	    return(0);
+	int[] mon = getmon(lfn);
+	try {
+	    synchronized(mon) {
+		try(LockedFile lf = LockedFile.lock(lfn)) {
+		    Path victim = entry(base, h, idx);
+		    if(!Files.exists(victim))
+			return(0);
+		    long sz = Files.size(victim);
+		    int last = idx;
+		    while(Files.exists(entry(base, h, last + 1)))
+			last++;
+		    Path lp = entry(base, h, last);
+		    if(last == idx) {
+			Files.delete(victim);
+		    } else {
+			Utils.ioretry(() -> {
+				try {
+				    return(Files.move(lp, victim, StandardCopyOption.ATOMIC_MOVE));
+				} catch(AtomicMoveNotSupportedException e) {
+				    return(Files.move(lp, victim, StandardCopyOption.REPLACE_EXISTING));
+				}
+			    });
+		    }
+		    Long lt = atimes.remove(lp.getFileName().toString());
+		    if(last == idx)
+			atimes.remove(victim.getFileName().toString());
+		    else if(lt != null)
+			atimes.put(victim.getFileName().toString(), lt);
+		    return(sz);
+		}
+	    }
+	} finally {
+	    putmon(lfn, mon, String.format("%016x.%d", h, idx));
+	}
+    }
+
+    private static boolean isentry(String f) {
+	return((f.length() >= 18) && (f.charAt(16) == '.') &&
+	       Utils.strcheck(f.substring(17), Character::isDigit));
+    }
+
+    /* Tracks entry access times for a cache directory and keeps its
+     * total size within a budget by evicting the least recently used
+     * entries. Accesses are recorded in memory and periodically
+     * merged into a sidecar index file, which is shared by all
+     * clients using the same directory. */
+    private static class Usage implements Runnable {
+	private static final Map<Path, Usage> current = new HashMap<>();
+	private static final int IDXVER = 1;
+	final Path base, idxfile;
+	final long limit;
+	private final Map<String, Long> recent = new HashMap<>();
+	private Thread sweeper = null;
+
+	private Usage(Path base, long limit) {
+	    this.base = base;
+	    this.idxfile = pj(base, "lru-index");
+	    this.limit = limit;
+	}
+
+	static Usage get(Path base, long limit) {
+	    synchronized(current) {
+		Usage ret = current.get(base);
+		if(ret == null)
+		    current.put(base, ret = new Usage(base, limit));
+		return(ret);
+	    }
+	}
+
+	void touch(Path path) {
+	    synchronized(recent) {
+		recent.put(path.getFileName().toString(), System.currentTimeMillis());
+		if(sweeper == null) {
+		    sweeper = new HackThread(this, "Cache sweeper");
+		    sweeper.setDaemon(true);
+		    sweeper.start();
+		}
+	    }
+	}
+
+	private static Map<String, Long> readindex(FileChannel fp) throws IOException {
+	    Map<String, Long> ret = new HashMap<>();
+	    fp.position(0);
+	    DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(fp)));
+	    try {
+		if(in.readInt() != IDXVER)
+		    return(ret);
+		for(int i = 0, n = in.readInt(); i < n; i++) {
+		    long h = in.readLong();
+		    int idx = in.readInt();
+		    long t = in.readLong();
+		    ret.put(String.format("%016x.%d", h, idx), t);
+		}
+	    } catch(EOFException e) {
+	    }
+	    return(ret);
+	}
+
+	private static void writeindex(FileChannel fp, Map<String, Long> idx) throws IOException {
+	    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	    DataOutputStream out = new DataOutputStream(buf);
+	    out.writeInt(IDXVER);
+	    out.writeInt(idx.size());
+	    for(Map.Entry<String, Long> ent : idx.entrySet()) {
+		String nm = ent.getKey();
+		out.writeLong(Long.parseUnsignedLong(nm.substring(0, 16), 16));
+		out.writeInt(Integer.parseInt(nm.substring(17)));
+		out.writeLong(ent.getValue());
+	    }
+	    java.nio.ByteBuffer data = java.nio.ByteBuffer.wrap(buf.toByteArray());
+	    fp.truncate(0);
+	    fp.position(0);
+	    while(data.hasRemaining())
+		fp.write(data);
+	}
+
+	private static class Entry {
+	    final String name;
+	    final long size, atime;
+
+	    Entry(String name, long size, long atime) {
+		this.name = name; this.size = size; this.atime = atime;
+	    }
+	}
+
+	private void sweep(Map<String, Long> atimes) throws IOException {
+	    List<Entry> ents = new ArrayList<>();
+	    Set<String> present = new HashSet<>();
+	    long total = 0;
+	    try(DirectoryStream<Path> dir = Files.newDirectoryStream(base, fnfilter(HashDirCache::isentry))) {
+		for(Path p : dir) {
+		    String nm = p.getFileName().toString();
+		    long sz, at;
+		    try {
+			sz = Files.size(p);
+			Long t = atimes.get(nm);
+			at = (t != null) ? t : Files.getLastModifiedTime(p).toMillis();
+		    } catch(NoSuchFileException e) {
+			continue;
+		    }
+		    present.add(nm);
+		    ents.add(new Entry(nm, sz, at));
+		    total += sz;
+		}
+	    }
+	    atimes.keySet().retainAll(present);
+	    if(total <= limit)
+		return;
+	    Collections.sort(ents, (a, b) -> Long.compare(a.atime, b.atime));
+	    long target = limit - (limit / 10);
+	    for(Entry ent : ents) {
+		if(total <= target)
+		    break;
+		synchronized(recent) {
+		    if(recent.containsKey(ent.name))
+			continue;
+		}
+		try {
+		    total -= evict(base, Long.parseUnsignedLong(ent.name.substring(0, 16), 16),
+				   Integer.parseInt(ent.name.substring(17)), atimes);
+		} catch(IOException e) {
+		    /* Most likely in use on a platform that doesn't
+		     * allow deleting open files; just try the next. */
+		}
+	    }
+	}
+
+	/* Merges recent accesses into the sidecar index, and
+	 * optionally evicts entries beyond the budget while holding
+	 * the index lock, so that only one client sweeps at a
+	 * time. */
+	synchronized void flush(boolean sweep) throws IOException {
+	    try(LockedFile lf = LockedFile.lock(idxfile)) {
+		Map<String, Long> atimes = readindex(lf.f);
+		synchronized(recent) {
+		    for(Map.Entry<String, Long> ent : recent.entrySet())
+			atimes.merge(ent.getKey(), ent.getValue(), Math::max);
+		    recent.clear();
+		}
+		if(sweep)
+		    sweep(atimes);
+		writeindex(lf.f, atimes);
+	    }
+	}
+
+	public void run() {
+	    try {
+		for(int n = 0; ; n++) {
+		    Thread.sleep(30000);
+		    try {
+			flush((n % 10) == 0);
+		    } catch(IOException e) {
+			new Warning(e, "sweeping cache directory").issue();
+		    }
+		}
+	    } catch(InterruptedException e) {
+	    } finally {
+		synchronized(recent) {
+		    sweeper = null;
 		}
 	    }
 	}
@@ -242,10 +483,7 @@ public class HashDirCache implements ResCache {
 
     private Iterator<String> list(boolean filter) throws IOException {
 	Iterator<Path> files =
-	    Files.newDirectoryStream(base, fnfilter(f -> (f.length() >= 18) &&
-						    (f.charAt(16) == '.') &&
-						    Utils.strcheck(f.substring(17), Character::isDigit)))
-	    .iterator();
+	    Files.newDirectoryStream(base, fnfilter(HashDirCache::isentry)).iterator();
 	return(new Iterator<String>() {
 		int i = 0;
 		String next = null;
@@ -334,6 +572,7 @@ public class HashDirCache implements ResCache {
 				return(Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING));
 			    }
 			});
+		    touch(path);
 		    cleaner.closed = true;
 		    clean.run();
 		}
@@ -422,6 +661,14 @@ public class HashDirCache implements ResCache {
 	    }
 	    System.err.printf("%s: %d files purged\n", cache.id, n);
 	    break;
+	case "sweep":
+	    long limit = (args.length > 2) ? (Long.parseLong(args[2]) * 1048576L) : (cachelimit.get() * 1048576L);
+	    if(limit <= 0) {
+		System.err.println("usage: HashDirCache ID-URI sweep LIMIT-MB");
+		System.exit(1);
+	    }
+	    new Usage(cache.base, limit).flush(true);
+	    break;
 	case "rm":
 	    for(int i = 2; i < args.length; i++) {
 		try {
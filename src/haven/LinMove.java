@@ -68,7 +68,7 @@ public class LinMove extends Moving {
 	}
     }
 
-    @OCache.DeltaType(OCache.OD_LINBEG)
+    @OCache.DeltaType(value = OCache.OD_LINBEG, supersedes = {OCache.OD_LINBEG, OCache.OD_LINSTEP})
     public static class $linbeg implements OCache.Delta {
 	public void apply(Gob g, OCache.AttrDelta msg) {
 	    Coord2d s = msg.coord().mul(OCache.posres);
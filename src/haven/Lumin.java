@@ -37,7 +37,7 @@ public class Lumin extends GAttrib {
 	this.str = str;
     }
 
-    @OCache.DeltaType(OCache.OD_LUMIN)
+    @OCache.DeltaType(value = OCache.OD_LUMIN, supersedes = {OCache.OD_LUMIN})
     public static class $lumin implements OCache.Delta {
 	public void apply(Gob g, OCache.AttrDelta msg) {
 	    Coord off = msg.coord();
@@ -353,6 +353,18 @@ public class MCache implements MapSource {
 		return(this.val);
 	    }
 
+	    /* Like get(), but waits for any pending rebuild instead of
+	     * returning the previous value meanwhile. */
+	    public T fresh() {
+		Defer.Future<T> def;
+		synchronized(this) {
+		    def = this.def;
+		}
+		if((def != null) && !def.done())
+		    def.get();
+		return(get());
+	    }
+
 	    public void rebuild() {
 		synchronized(this) {
 		    Defer.Future<T> prev = this.def;
@@ -410,6 +422,10 @@ public class MCache implements MapSource {
 		    };
 		this.fo = new Deferred<Flavobjs>() {
 			public Flavobjs build() {
+			    /* Flavor objects are placed on the map mesh once
+			     * added, so wait for it to be rebuilt as well
+			     * when a neighbouring grid has changed. */
+			    mesh.fresh();
 			    return(makeflavor(cc));
 			}
 			public String message() {
@@ -475,20 +491,26 @@ public class MCache implements MapSource {
 	private class Flavobjs implements RenderTree.Node {
 	    final RenderTree.Node[] mats;
 	    final Gob[] all;
+	    final Tileset.Flavor.SprObj[] sprs;
 
-	    Flavobjs(Map<NodeWrap, Collection<Gob>> flavobjs) {
+	    Flavobjs(Tileset.Flavor.Buffer buf) {
 		Collection<Gob> all = new ArrayList<>();
-		RenderTree.Node[] mats = new RenderTree.Node[flavobjs.size()];
+		Collection<Tileset.Flavor.SprObj> sprs = new ArrayList<>();
+		Set<NodeWrap> matids = new HashSet<>(buf.mats.keySet());
+		matids.addAll(buf.sprs.keySet());
+		RenderTree.Node[] mats = new RenderTree.Node[matids.size()];
 		int i = 0;
-		for(Map.Entry<NodeWrap, Collection<Gob>> matent : flavobjs.entrySet()) {
-		    final NodeWrap mat = matent.getKey();
-		    Collection<Gob> fos = matent.getValue();
-		    final Gob[] fol = fos.toArray(new Gob[0]);
-		    all.addAll(fos);
+		for(NodeWrap mat : matids) {
+		    final Gob[] fol = buf.mats.getOrDefault(mat, Collections.emptyList()).toArray(new Gob[0]);
+		    final Tileset.Flavor.SprObj[] sol = buf.sprs.getOrDefault(mat, Collections.emptyList()).toArray(new Tileset.Flavor.SprObj[0]);
+		    all.addAll(Arrays.asList(fol));
+		    sprs.addAll(Arrays.asList(sol));
 		    mats[i] = new RenderTree.Node() {
 			    public void added(RenderTree.Slot slot) {
 				for(Gob fo : fol)
 				    slot.add(fo.placed);
+				for(Tileset.Flavor.SprObj so : sol)
+				    slot.add(so);
 			    }
 			};
 		    if(mat != null)
@@ -497,6 +519,7 @@ public class MCache implements MapSource {
 		}
 		this.mats = mats;
 		this.all = all.toArray(new Gob[0]);
+		this.sprs = sprs.toArray(new Tileset.Flavor.SprObj[0]);
 	    }
 
 	    public void added(RenderTree.Slot slot) {
@@ -507,11 +530,15 @@ public class MCache implements MapSource {
 	    void tick(double dt) {
 		for(Gob fo : all)
 		    fo.ctick(dt);
+		for(Tileset.Flavor.SprObj so : sprs)
+		    so.ctick(dt);
 	    }
 
 	    void gtick(Render g) {
 		for(Gob fo : all)
 		    fo.gtick(g);
+		for(Tileset.Flavor.SprObj so : sprs)
+		    so.gtick(g);
 	    }
 	}
 
@@ -551,7 +578,7 @@ public class MCache implements MapSource {
 	    }
 	    buf.finish();
 
-	    return(new Flavobjs(buf.mats));
+	    return(new Flavobjs(buf));
 	}
 
 	public RenderTree.Node getfo(Coord cc) {
@@ -27,8 +27,9 @@
 package haven;
 
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.locks.*;
-import java.util.function.Function;
+import java.util.function.*;
 import java.io.*;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
@@ -40,9 +41,12 @@ import static haven.PType.*;
 
 public class MapFile {
     public static final Config.Variable<java.net.URI> mapbase = Config.Variable.propu("haven.mapbase", "");
+    public static final Config.Variable<Boolean> usegridpack = Config.Variable.propb("haven.mapgridpack", true);
+    public static final Config.Variable<Boolean> cacheimgs = Config.Variable.propb("haven.mapimgcache", true);
     public static boolean debug = false;
     public final ResCache store;
     public final String filename;
+    public final GridPack grids, images, zooms;
     public final Collection<Long> knownsegs = new HashSet<>();
     public final Collection<Marker> markers = new ArrayList<>();
     public volatile int markerseq = 0;
@@ -52,6 +56,134 @@ public class MapFile {
     public MapFile(ResCache store, String filename) {
 	this.store = store;
 	this.filename = filename;
+	java.nio.file.Path dir = packdir(store, filename);
+	this.grids = (dir == null) ? null : gridpack(dir, filename);
+	this.images = ((dir == null) || !cacheimgs.get()) ? null : gridpack(Utils.pj(dir, "images"), filename);
+	this.zooms = (dir == null) ? null : gridpack(Utils.pj(dir, "zoom"), filename);
+    }
+
+    /* Grids are kept in a GridPack next to the local cache the map
+     * is stored in, when there is one. Grids not yet in the pack are
+     * still read from the store, and move into the pack as they are
+     * next saved. */
+    private static java.nio.file.Path packdir(ResCache store, String filename) {
+	java.net.URI id;
+	if(!usegridpack.get())
+	    return(null);
+	if(store instanceof HashDirCache)
+	    id = ((HashDirCache)store).id;
+	else if(store instanceof PackCache)
+	    id = ((PackCache)store).id;
+	else
+	    return(null);
+	String nm = id + "/" + filename;
+	long h = 0;
+	for(int i = 0; i < nm.length(); i++)
+	    h = (h * 31) + nm.charAt(i);
+	try {
+	    return(Utils.pj(HashDirCache.findbase(), String.format("map-%016x", h)));
+	} catch(RuntimeException e) {
+	    warn(e, "could not find a place for grid packs: %s", e);
+	    return(null);
+	}
+    }
+
+    private static GridPack gridpack(java.nio.file.Path dir, String filename) {
+	try {
+	    return(GridPack.get(dir));
+	} catch(IOException | RuntimeException e) {
+	    warn(e, "could not open grid pack for %s: %s", filename, e);
+	    return(null);
+	}
+    }
+
+    /* Rendered images of grids are cached by where they are
+     * displayed (segment, zoom level, grid coordinate and overlay
+     * tag, if any), along with a digest of all the data that went
+     * into rendering them. A cached image is only used if the data
+     * it would be rendered from now has the same digest, so that
+     * re-saved grids and changed tileset versions are rendered
+     * anew, replacing the old image. */
+    private static long packkey(long seg, int lvl, Coord sc, String tag) {
+	MessageBuf buf = new MessageBuf();
+	buf.addint64(seg).addint32(lvl).addcoord(sc).addstring((tag == null) ? "" : tag);
+	return(new MessageBuf(Digest.hash(Digest.SHA256, buf.fin())).int64());
+    }
+
+    public BufferedImage cachedimg(long seg, int lvl, Coord sc, String tag, Consumer<Message> data, Supplier<BufferedImage> render) {
+	long key = packkey(seg, lvl, sc, tag);
+	MessageBuf dbuf = new MessageBuf();
+	data.accept(dbuf);
+	byte[] dig = Digest.hash(Digest.SHA256, dbuf.fin());
+	byte[] cached = imgfetch(key);
+	if((cached != null) && (cached.length > dig.length) && Arrays.equals(Arrays.copyOf(cached, dig.length), dig)) {
+	    try {
+		BufferedImage img = javax.imageio.ImageIO.read(new ByteArrayInputStream(cached, dig.length, cached.length - dig.length));
+		if(img != null)
+		    return(img);
+	    } catch(IOException e) {
+		warn(e, "could not decode cached image %016x: %s", key, e);
+	    }
+	}
+	BufferedImage img = render.get();
+	ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	try {
+	    buf.write(dig);
+	    javax.imageio.ImageIO.write(img, "PNG", buf);
+	    imgstore(key, buf.toByteArray());
+	} catch(IOException e) {
+	    warn(e, "could not cache image %016x: %s", key, e);
+	}
+	return(img);
+    }
+
+    private byte[] imgfetch(long key) {
+	try {
+	    if(images != null)
+		return(images.get(key));
+	    try(InputStream fp = sfetch("img-%016x", key)) {
+		return(Utils.readall(fp));
+	    }
+	} catch(FileNotFoundException e) {
+	    return(null);
+	} catch(IOException e) {
+	    warn(e, "could not read cached image %016x: %s", key, e);
+	    return(null);
+	}
+    }
+
+    /* Zoom grids are stored empty when invalidated. */
+    private byte[] zfetch(long seg, int lvl, Coord sc) throws IOException {
+	if(zooms != null) {
+	    byte[] data = zooms.get(packkey(seg, lvl, sc, null));
+	    if(data != null)
+		return(data);
+	}
+	try(InputStream fp = sfetch("zgrid-%x-%d-%d-%d", seg, lvl, sc.x, sc.y)) {
+	    return(Utils.readall(fp));
+	} catch(FileNotFoundException e) {
+	    return(null);
+	}
+    }
+
+    private void zstore(long seg, int lvl, Coord sc, byte[] data) throws IOException {
+	if(zooms != null) {
+	    zooms.put(packkey(seg, lvl, sc, null), seg, data);
+	    return;
+	}
+	try(OutputStream fp = sstore("zgrid-%x-%d-%d-%d", seg, lvl, sc.x, sc.y)) {
+	    fp.write(data);
+	}
+    }
+
+    private void imgstore(long key, byte[] data) throws IOException {
+	if(images != null) {
+	    images.put(key, 0, data);
+	    return;
+	}
+	try(OutputStream fp = sstore("img-%016x", key)) {
+	    fp.write(data);
+	}
     }
 
     private void checklock() {
@@ -220,6 +352,11 @@ public class MapFile {
     private Thread processor = null;
     private final Collection<Pair<MCache, Collection<MCache.Grid>>> updqueue = new HashSet<>();
     private final Collection<Segment> dirty = new HashSet<>();
+    private final Collection<Long> wbqueue = new LinkedHashSet<>();
+    private final Collection<Long> wbfailed = new HashSet<>();
+    private long wbfailtime = 0;
+    private final Map<Long, Pair<Grid, Long>> pending = new HashMap<>();
+    private final Map<Segment, Collection<ZoomCoord>> zdirty = new HashMap<>();
     private boolean gdirty = false;
     private class Processor extends HackThread {
 	Processor() {
@@ -237,14 +374,39 @@ public class MapFile {
 			if(!updqueue.isEmpty()) {
 			    Pair<MCache, Collection<MCache.Grid>> el = Utils.take(updqueue);
 			    task = () -> MapFile.this.update(el.a, el.b);
+			} else if(!wbqueue.isEmpty()) {
+			    long id = Utils.take(wbqueue);
+			    Pair<Grid, Long> gs = pending.get(id);
+			    if(gs == null)
+				continue;
+			    task = () -> {
+				try {
+				    writegrid(gs);
+				} catch(RuntimeException e) {
+				    warn(e, "could not write grid %x: %s", id, e);
+				}
+			    };
+			} else if(!zdirty.isEmpty()) {
+			    Segment seg = Utils.el(zdirty.keySet());
+			    Collection<ZoomCoord> zcs = zdirty.remove(seg);
+			    task = locked(() -> rebuild(seg, zcs), lock.readLock());
 			} else if(!dirty.isEmpty()) {
 			    Segment seg = Utils.take(dirty);
-			    task = locked(() -> segments.put(seg.id, seg), lock.writeLock());
+			    task = locked(() -> {
+				    segments.put(seg.id, seg);
+				    newsegs.remove(seg.id, seg);
+				}, lock.writeLock());
 			} else if(gdirty) {
 			    task = locked(MapFile.this::save, lock.readLock());
 			    gdirty = false;
 			} else {
-			    if(now - last > 10000) {
+			    if(!wbfailed.isEmpty()) {
+				if(now - wbfailtime > 10000) {
+				    wbqueue.addAll(wbfailed);
+				    wbfailed.clear();
+				    continue;
+				}
+			    } else if(now - last > 10000) {
 				processor = null;
 				return;
 			    }
@@ -263,6 +425,83 @@ public class MapFile {
 	    }
 	}
     }
+
+    /* Grids changed by updates are encoded and written behind by the
+     * processor, so that updates need only hold the lock for
+     * changing what's in what segment. Until written, they are
+     * served from here. A grid that fails to be written stays here,
+     * and is tried again a while later. */
+    private void writebehind(Grid grid, long seg) {
+	synchronized(procmon) {
+	    pending.put(grid.id, new Pair<>(grid, seg));
+	    wbqueue.add(grid.id);
+	    process();
+	}
+    }
+
+    /* Grids are written one at a time, and only while still the
+     * latest version, so that an older version is never written
+     * over a newer one. A newer version is written by whoever made
+     * it. */
+    private final Object wrmon = new Object();
+    private void writegrid(Pair<Grid, Long> gs) {
+	synchronized(wrmon) {
+	    synchronized(procmon) {
+		if(pending.get(gs.a.id) != gs)
+		    return;
+	    }
+	    try {
+		gs.a.save(this, gs.b);
+	    } catch(RuntimeException e) {
+		synchronized(procmon) {
+		    if(pending.get(gs.a.id) == gs) {
+			wbfailed.add(gs.a.id);
+			wbfailtime = System.currentTimeMillis();
+			process();
+		    }
+		}
+		throw(e);
+	    }
+	    synchronized(procmon) {
+		if(pending.get(gs.a.id) == gs)
+		    pending.remove(gs.a.id);
+	    }
+	}
+    }
+
+    private void zdirty(Segment seg, Collection<ZoomCoord> zcs) {
+	synchronized(procmon) {
+	    zdirty.computeIfAbsent(seg, k -> new HashSet<>()).addAll(zcs);
+	    process();
+	}
+    }
+
+    /* Rebuilds zoom grids from the bottom up, so that each level is
+     * made from already rebuilt grids below it. */
+    private void rebuild(Segment seg, Collection<ZoomCoord> zcs) {
+	List<ZoomCoord> order = new ArrayList<>(zcs);
+	order.sort((a, b) -> a.lvl - b.lvl);
+	for(ZoomCoord zc : order)
+	    seg.zrebuilt(zc, ZoomGrid.from(this, seg, zc.lvl, zc.c));
+    }
+
+    /* For saving a grid outside the lock after including it, without
+     * exposing it as missing in the meantime. */
+    private Pair<Grid, Long> pending(Grid grid, long seg) {
+	Pair<Grid, Long> ret = new Pair<>(grid, seg);
+	synchronized(procmon) {
+	    pending.put(grid.id, ret);
+	}
+	return(ret);
+    }
+
+    private Grid pending(long id) {
+	synchronized(procmon) {
+	    Pair<Grid, Long> gs = pending.get(id);
+	    return((gs == null) ? null : gs.a);
+	}
+    }
+
     private void process() {
 	synchronized(procmon) {
 	    if(processor == null) {
@@ -513,6 +752,17 @@ public class MapFile {
 	    return(texes[t]);
 	}
 
+	/* Adds the data render() and olrender() depend on. */
+	public void imgdata(Message buf, boolean z, boolean ols) {
+	    savetiles(buf, tilesets, tiles);
+	    if(z) {
+		for(float v : zmap)
+		    buf.addfloat32(v);
+	    }
+	    if(ols)
+		saveols(buf, this.ols);
+	}
+
 	public BufferedImage render(Coord off) {
 	    BufferedImage[] texes = new BufferedImage[tilesets.length];
 	    boolean[] cached = new boolean[tilesets.length];
@@ -842,7 +1092,17 @@ public class MapFile {
 	    z.finish();
 	}
 
-	public void save(MapFile file) {
+	public void save(MapFile file, long seg) {
+	    if(file.grids != null) {
+		MessageBuf buf = new MessageBuf();
+		save(buf);
+		try {
+		    file.grids.put(id, seg, buf.fin());
+		} catch(IOException e) {
+		    throw(new StreamMessage.IOError(e));
+		}
+		return;
+	    }
 	    OutputStream fp;
 	    try {
 		fp = file.sstore("grid-%x", id);
@@ -855,6 +1115,26 @@ public class MapFile {
 	}
 
 	public static Grid load(MapFile file, long id) {
+	    Grid pending = file.pending(id);
+	    if(pending != null)
+		return(pending);
+	    if(file.grids != null) {
+		byte[] data;
+		try {
+		    data = file.grids.get(id);
+		} catch(IOException e) {
+		    warn(e, "error when reading grid %x: %s", id, e);
+		    return(null);
+		}
+		if(data != null) {
+		    try {
+			return(load(new MessageBuf(data), id));
+		    } catch(Message.BinError e) {
+			warn(e, "error when loading grid %x: %s", id, e);
+			return(null);
+		    }
+		}
+	    }
 	    InputStream fp;
 	    try {
 		fp = file.sfetch("grid-%x", id);
@@ -863,31 +1143,35 @@ public class MapFile {
 		return(null);
 	    }
 	    try(StreamMessage data = new StreamMessage(fp)) {
-		int ver = data.uint8();
-		if((ver >= 1) && (ver <= 5)) {
-		    ZMessage z = new ZMessage(data);
-		    long storedid = z.int64();
-		    if(storedid != id)
-			throw(new Message.FormatError(String.format("Grid ID mismatch: expected %s, got %s", id, storedid)));
-		    long mtime = (ver >= 2) ? z.int64() : System.currentTimeMillis();
-		    Pair<TileInfo[], int[]> tiles = loadtiles(z, (ver >= 5) ? 2 : 1);
-		    float[] zmap;
-		    if(ver >= 3)
-			zmap = loadz(z, String.format("%x", id));
-		    else
-			zmap = new float[cmaps.x * cmaps.y];
-		    Grid g = new Grid(id, tiles.a, tiles.b, zmap, mtime);
-		    if(ver >= 4)
-			loadols(g.ols, z, String.format("%x", id));
-		    return(g);
-		} else {
-		    throw(new Message.FormatError(String.format("Unknown grid data version for %x: %d", id, ver)));
-		}
+		return(load(data, id));
 	    } catch(Message.BinError e) {
 		warn(e, "error when loading grid %x: %s", id, e);
 		return(null);
 	    }
 	}
+
+	private static Grid load(Message data, long id) {
+	    int ver = data.uint8();
+	    if((ver >= 1) && (ver <= 5)) {
+		ZMessage z = new ZMessage(data);
+		long storedid = z.int64();
+		if(storedid != id)
+		    throw(new Message.FormatError(String.format("Grid ID mismatch: expected %s, got %s", id, storedid)));
+		long mtime = (ver >= 2) ? z.int64() : System.currentTimeMillis();
+		Pair<TileInfo[], int[]> tiles = loadtiles(z, (ver >= 5) ? 2 : 1);
+		float[] zmap;
+		if(ver >= 3)
+		    zmap = loadz(z, String.format("%x", id));
+		else
+		    zmap = new float[cmaps.x * cmaps.y];
+		Grid g = new Grid(id, tiles.a, tiles.b, zmap, mtime);
+		if(ver >= 4)
+		    loadols(g.ols, z, String.format("%x", id));
+		return(g);
+	    } else {
+		throw(new Message.FormatError(String.format("Unknown grid data version for %x: %d", id, ver)));
+	    }
+	}
     }
 
     public static class ZoomGrid extends DataGrid {
@@ -924,11 +1208,23 @@ public class MapFile {
 	    if((lvl < 1) || ((sc.x & ((1 << lvl) - 1)) != 0) || ((sc.y & ((1 << lvl) - 1)) != 0))
 		throw(new IllegalArgumentException(String.format("%s %s", sc, lvl)));
 	    DataGrid[] lower = new DataGrid[4];
-	    boolean any = false;
-	    long maxmtime = 0;
 	    for(int i = 0; i < 4; i++) {
 		int x = i % 2, y = i / 2;
 		lower[i] = fetchg(file, seg, lvl - 1, sc.add(x << (lvl - 1), y << (lvl - 1)));
+	    }
+	    ZoomGrid ret = build(seg.id, lvl, sc, lower);
+	    if(ret != null)
+		ret.save(file);
+	    return(ret);
+	}
+
+	/* Builds a zoom grid from the four grids below it, in
+	 * row-major order, any of which may be null. */
+	public static ZoomGrid build(long seg, int lvl, Coord sc, DataGrid[] lower) {
+	    lower = lower.clone();
+	    boolean any = false;
+	    long maxmtime = 0;
+	    for(int i = 0; i < 4; i++) {
 		if(lower[i] != null) {
 		    any = true;
 		    maxmtime = Math.max(maxmtime, lower[i].mtime);
@@ -1020,9 +1316,8 @@ public class MapFile {
 		    }
 		}
 	    }
-	    ZoomGrid ret = new ZoomGrid(seg.id, lvl, sc, infos, tiles, zmap, maxmtime);
+	    ZoomGrid ret = new ZoomGrid(seg, lvl, sc, infos, tiles, zmap, maxmtime);
 	    zoomols(ret.ols, lower);
-	    ret.save(file);
 	    return(ret);
 	}
 
@@ -1076,28 +1371,27 @@ public class MapFile {
 	}
 
 	public void save(MapFile file) {
-	    OutputStream fp;
+	    MessageBuf buf = new MessageBuf();
+	    save(buf);
 	    try {
-		fp = file.sstore("zgrid-%x-%d-%d-%d", seg, lvl, sc.x, sc.y);
+		file.zstore(seg, lvl, sc, buf.fin());
 	    } catch(IOException e) {
 		throw(new StreamMessage.IOError(e));
 	    }
-	    try(StreamMessage out = new StreamMessage(fp)) {
-		save(out);
-	    }
 	}
 
 	public static ZoomGrid load(MapFile file, long seg, int lvl, Coord sc) {
-	    InputStream fp;
+	    byte[] buf;
 	    try {
-		fp = file.sfetch("zgrid-%x-%d-%d-%d", seg, lvl, sc.x, sc.y);
-	    } catch(FileNotFoundException e) {
-		return(null);
+		buf = file.zfetch(seg, lvl, sc);
 	    } catch(IOException e) {
 		warn(e, "error when locating zoomgrid (%d, %d) in %x@%d: %s", sc.x, sc.y, seg, lvl, e);
 		return(null);
 	    }
-	    try(StreamMessage data = new StreamMessage(fp)) {
+	    if(buf == null)
+		return(null);
+	    try {
+		Message data = new MessageBuf(buf);
 		if(data.eom())
 		    return(null);
 		int ver = data.uint8();
@@ -1133,21 +1427,26 @@ public class MapFile {
 	    }
 	}
 
+	/* Invalidates the stored ancestors of a grid, returning the
+	 * number of levels that were stored. */
 	public static int inval(MapFile file, long seg, Coord sc) {
 	    for(int lvl = 1; true; lvl++) {
 		sc = new Coord(sc.x & ~((1 << lvl) - 1), sc.y & ~((1 << lvl) - 1));
+		byte[] cur;
 		try {
-		    file.sfetch("zgrid-%x-%d-%d-%d", seg, lvl, sc.x, sc.y).close();
-		} catch(FileNotFoundException e) {
-		    return(lvl - 1);
+		    cur = file.zfetch(seg, lvl, sc);
 		} catch(IOException e) {
 		    warn(e, "error when invalidating zoomgrid (%d, %d) in %x@%d: %s", sc.x, sc.y, seg, lvl, e);
 		    return(lvl - 1);
 		}
-		try {
-		    file.sstore("zgrid-%x-%d-%d-%d", seg, lvl, sc.x, sc.y).close();
-		} catch(IOException e) {
-		    throw(new StreamMessage.IOError(e));
+		if(cur == null)
+		    return(lvl - 1);
+		if(cur.length > 0) {
+		    try {
+			file.zstore(seg, lvl, sc, new byte[0]);
+		    } catch(IOException e) {
+			throw(new StreamMessage.IOError(e));
+		    }
 		}
 	    }
 	}
@@ -1249,18 +1548,20 @@ public class MapFile {
 	    return(Defer.later(locked(() -> ZoomGrid.fetch(MapFile.this, Segment.this, zc.lvl, zc.c), lock.readLock())));
 	}
 
+	/* Rebuilt grids are handed over by the processor, so the
+	 * state is only accessed under the object's monitor. */
 	private class ByZCoord implements Indir<ZoomGrid> {
 	    final ZoomCoord zc;
-	    ZoomGrid loaded;
-	    boolean got = false;
-	    Future<ZoomGrid> loading;
+	    private ZoomGrid loaded;
+	    private boolean got = false;
+	    private Future<ZoomGrid> loading;
 
 	    ByZCoord(ZoomCoord zc, Future<ZoomGrid> loading) {
 		this.zc = zc;
 		this.loading = loading;
 	    }
 
-	    public ZoomGrid get() {
+	    public synchronized ZoomGrid get() {
 		if(loading != null) {
 		    try {
 			loaded = loading.get(0);
@@ -1273,6 +1574,12 @@ public class MapFile {
 		}
 		return(loaded);
 	    }
+
+	    synchronized void rebuilt(ZoomGrid grid) {
+		loaded = grid;
+		got = true;
+		loading = null;
+	    }
 	}
 
 	public Indir<Grid> grid(Coord gc) {
@@ -1286,6 +1593,21 @@ public class MapFile {
 	    }
 	}
 
+	/* The data a level-0 image of a grid is rendered from, which
+	 * is the grid and its neighbours, since tile borders blend
+	 * into them. */
+	public void imgdata(Coord sc, Message buf) {
+	    checklock();
+	    for(int y = -1; y <= 1; y++) {
+		for(int x = -1; x <= 1; x++) {
+		    Grid g = grid(sc.add(x, y)).get();
+		    buf.adduint8((g == null) ? 0 : 1);
+		    if(g != null)
+			g.imgdata(buf, true, false);
+		}
+	    }
+	}
+
 	public Indir<? extends DataGrid> grid(int lvl, Coord gc) {
 	    if((lvl < 0) || ((gc.x & ((1 << lvl) - 1)) != 0) || ((gc.y & ((1 << lvl) - 1)) != 0))
 		throw(new IllegalArgumentException(String.format("%s %s", gc, lvl)));
@@ -1299,21 +1621,20 @@ public class MapFile {
 
 	private void include(long id, Coord sc) {
 	    map.put(sc, id);
+	    /* Stored ancestors are rebuilt in the background, as are
+	     * those currently displayed, which may not have been
+	     * stored for lack of grids under them. */
 	    int zl = ZoomGrid.inval(MapFile.this, this.id, sc);
+	    Collection<ZoomCoord> rebuild = new ArrayList<>();
 	    synchronized(zcache) {
-		/* XXX? Not sure how nice it is to iterate through the
-		 * entire zcache to do invalidations, but I also don't
-		 * think it ought to tend to be enormously large.
-		 * Perhaps keep a hierarchical zcache per level, and
-		 * only iterate all the levels? */
-		for(Map.Entry<ZoomCoord, ByZCoord> ent : zcache.entrySet()) {
-		    ZoomCoord zc = ent.getKey();
-		    if((zc.c.x == (sc.x & ~((1 << zc.lvl) - 1))) && (zc.c.y == (sc.y & ~((1 << zc.lvl) - 1)))) {
-			ByZCoord zg = ent.getValue();
-			zg.loading = loadzgrid(zc);
-		    }
+		for(int lvl = 1; lvl < 31; lvl++) {
+		    ZoomCoord zc = new ZoomCoord(lvl, new Coord(sc.x & ~((1 << lvl) - 1), sc.y & ~((1 << lvl) - 1)));
+		    if((lvl <= zl) || zcache.containsKey(zc))
+			rebuild.add(zc);
 		}
 	    }
+	    if(!rebuild.isEmpty())
+		zdirty(this, rebuild);
 	    ByCoord bc;
 	    synchronized(ccache) {
 		bc = ccache.get(sc);
@@ -1322,6 +1643,15 @@ public class MapFile {
 		bc.cur = grid0(id);
 	}
 
+	private void zrebuilt(ZoomCoord zc, ZoomGrid grid) {
+	    ByZCoord zg;
+	    synchronized(zcache) {
+		zg = zcache.get(zc);
+	    }
+	    if(zg != null)
+		zg.rebuilt(grid);
+	}
+
 	private void include(Grid grid, Coord sc) {
 	    checklock();
 	    include(grid.id, sc);
@@ -1550,9 +1880,82 @@ public class MapFile {
 	}
     }
 
+    /* Updates are done in three steps. Which grids need updating is
+     * determined under the read lock; the new grids are then made
+     * from the map, and merged with their previous versions, without
+     * holding the lock, since that may need to wait for resources;
+     * and only changing the segments themselves is done under the
+     * write lock. The grids are written out behind the update.
+     *
+     * Should any grid have been changed by an import in between, as
+     * told by gridseq, the new grids are merged again, under the
+     * write lock, with what is current then. */
+    private final Object updmon = new Object();
+    private long gridseq = 0;
     public void update(MCache map, Collection<MCache.Grid> grids) {
+	synchronized(updmon) {
+	    Map<Long, Grid> prev = new HashMap<>();
+	    Collection<MCache.Grid> changed = new ArrayList<>();
+	    long seq;
+	    lock.readLock().lock();
+	    try {
+		for(MCache.Grid g : grids) {
+		    GridInfo info = gridinfo.get(g.id);
+		    Segment seg = (info == null) ? null : segment(info.seg);
+		    Grid cur = (seg == null) ? null : seg.loaded(g.id);
+		    if((cur != null) && (cur.useq == g.seq))
+			continue;
+		    changed.add(g);
+		    if(seg != null)
+			prev.put(g.id, (cur != null) ? cur : Grid.load(this, g.id));
+		}
+		seq = gridseq;
+	    } finally {
+		lock.readLock().unlock();
+	    }
+	    Map<Long, Grid> made = new HashMap<>();
+	    Map<Long, Grid> fresh = new HashMap<>();
+	    for(MCache.Grid g : changed) {
+		Grid sg = Grid.from(map, g);
+		Grid pg = prev.get(g.id);
+		made.put(g.id, sg);
+		fresh.put(g.id, (pg != null) ? sg.mergeprev(pg) : sg);
+	    }
+	    update(map, grids, made, fresh, seq);
+	}
+    }
+
+    /* Returns the current version of a grid, or null if it is not
+     * in any segment. */
+    private Grid prevgrid(long id) {
+	checklock();
+	GridInfo info = gridinfo.get(id);
+	Segment seg = (info == null) ? null : segment(info.seg);
+	if(seg == null)
+	    return(null);
+	Grid cur = seg.loaded(id);
+	return((cur != null) ? cur : Grid.load(this, id));
+    }
+
+    /* Segments made by updates are stored by the processor, and are
+     * found here until then. Only changed under the write lock. */
+    private final Map<Long, Segment> newsegs = new HashMap<>();
+    private Segment segment(long id) {
+	checklock();
+	Segment ret = newsegs.get(id);
+	return((ret != null) ? ret : segments.get(id));
+    }
+
+    private void update(MCache map, Collection<MCache.Grid> grids, Map<Long, Grid> made, Map<Long, Grid> fresh, long seq) {
 	lock.writeLock().lock();
 	try {
+	    if(gridseq != seq) {
+		for(Map.Entry<Long, Grid> ent : made.entrySet()) {
+		    Grid pg = prevgrid(ent.getKey());
+		    fresh.put(ent.getKey(), (pg != null) ? ent.getValue().mergeprev(pg) : ent.getValue());
+		}
+	    }
+	    gridseq++;
 	    long mseg = -1;
 	    Coord moff = null;
 	    Collection<MCache.Grid> missing = new ArrayList<>(grids.size());
@@ -1563,7 +1966,7 @@ public class MapFile {
 		    missing.add(g);
 		    continue;
 		}
-		Segment seg = segments.get(info.seg);
+		Segment seg = segment(info.seg);
 		if(seg == null) {
 		    missing.add(g);
 		    continue;
@@ -1582,15 +1985,9 @@ public class MapFile {
 		    mseg = seg.id;
 		    moff = info.sc.sub(g.gc);
 		}
-		Grid cur = seg.loaded(g.id);
-		if(!((cur != null) && (cur.useq == g.seq))) {
-		    Grid sg = Grid.from(map, g);
-		    Grid prev = cur;
-		    if(prev == null)
-			prev = Grid.load(MapFile.this, sg.id);
-		    if(prev != null)
-			sg = sg.mergeprev(prev);
-		    sg.save(MapFile.this);
+		Grid sg = fresh.get(g.id);
+		if(sg != null) {
+		    writebehind(sg, seg.id);
 		    seg.include(sg, info.sc);
 		}
 		if(seg.id != mseg) {
@@ -1604,27 +2001,30 @@ public class MapFile {
 		Segment seg;
 		if(mseg == -1) {
 		    seg = new Segment(rnd.nextLong());
+		    newsegs.put(seg.id, seg);
 		    moff = Coord.z;
 		    if(debug) Debug.log.printf("mapfile: creating new segment %x\n", seg.id);
 		} else {
-		    seg = segments.get(mseg);
+		    seg = segment(mseg);
 		}
 		synchronized(procmon) {
 		    dirty.add(seg);
 		    process();
 		}
 		for(MCache.Grid g : missing) {
-		    Grid sg = Grid.from(map, g);
+		    Grid sg = fresh.get(g.id);
+		    if(sg == null)
+			sg = Grid.from(map, g);
 		    Coord sc = g.gc.add(moff);
-		    sg.save(MapFile.this);
+		    writebehind(sg, seg.id);
 		    seg.include(sg, sc);
 		    gridinfo.put(g.id, new GridInfo(g.id, seg.id, sc));
 		}
 	    }
 	    if(merge != null) {
 		for(Pair<Long, Coord> mel : merge) {
-		    Segment a = segments.get(mseg);
-		    Segment b = segments.get(mel.a);
+		    Segment a = segment(mseg);
+		    Segment b = segment(mel.a);
 		    Coord ab = mel.b;
 		    Segment src, dst; Coord soff;
 		    if(a.map.size() > b.map.size()) {
@@ -1689,59 +2089,227 @@ public class MapFile {
 	public default void mark(int cm, int nm) {}
     }
 
+    /* Runs tasks on worker threads, handing their results back in
+     * the order they were submitted, with a bounded number of them
+     * in flight. */
+    private static class Pipeline<T> implements AutoCloseable {
+	private final ExecutorService pool;
+	private final Deque<java.util.concurrent.Future<T>> queue = new ArrayDeque<>();
+	private final int depth;
+
+	Pipeline(String name) {
+	    int n = Math.max(Runtime.getRuntime().availableProcessors(), 1);
+	    this.pool = Executors.newFixedThreadPool(n, tgt -> {
+		    Thread th = new HackThread(tgt, name);
+		    th.setDaemon(true);
+		    return(th);
+		});
+	    this.depth = n * 2;
+	}
+
+	boolean full() {return(queue.size() >= depth);}
+	boolean empty() {return(queue.isEmpty());}
+
+	void submit(Callable<T> task) {
+	    queue.add(pool.submit(task));
+	}
+
+	T take() throws InterruptedException {
+	    try {
+		return(queue.remove().get());
+	    } catch(ExecutionException e) {
+		Throwable c = e.getCause();
+		if(c instanceof RuntimeException)
+		    throw((RuntimeException)c);
+		if(c instanceof Error)
+		    throw((Error)c);
+		throw(new RuntimeException(c));
+	    }
+	}
+
+	public void close() {
+	    pool.shutdownNow();
+	}
+    }
+
+    /*
+     * Version 1 export files are one z-stream of records. Version 2
+     * files are a series of independently compressed chunks of
+     * records, each prefixed by its length and terminated by a zero
+     * length, so that they can be decompressed in parallel as well.
+     * Version 1 is still written by default, so that exported maps
+     * can be shared with older clients; its z-stream is then made of
+     * sync-flushed deflate blocks, which can be compressed in
+     * parallel all the same.
+     */
+    public static final Config.Variable<Integer> exportver = Config.Variable.propi("haven.mapexportver", 1);
     private static final byte[] EXPORT_SIG = "Haven Mapfile 1".getBytes(Utils.ascii);
-    public void export(Message out, ExportFilter filter, ExportStatus prog) throws InterruptedException {
-	if(prog == null) prog = new ExportStatus() {};
-	out.addbytes(EXPORT_SIG);
-	ZMessage zout = new ZMessage(out);
-	Collection<Long> segbuf = locked((Collection<Long> c) -> new ArrayList<>(c), lock.readLock()).apply(knownsegs);
-	int nseg = 0;
-	for(Long sid : segbuf) {
-	    if(!filter.includeseg(sid))
+    private static final byte[] EXPORT_SIG2 = "Haven Mapfile 2".getBytes(Utils.ascii);
+    private static final int EXPORT_CHUNK = 32;
+
+    private byte[] exportgrids(long segid, Collection<Pair<Coord, Long>> grids) {
+	MessageBuf ret = new MessageBuf();
+	for(Pair<Coord, Long> gd : grids) {
+	    Grid grid = Grid.load(this, gd.b);
+	    if(grid == null) {
+		/* This /should/ never happen, but for unknown
+		 * reasons (crashes? reboots?) some grids can be
+		 * included but missing. It's not like they'll be
+		 * coming back by any other means, however, so
+		 * just ignore them here. */
 		continue;
-	    Segment seg;
-	    Collection<Pair<Coord, Long>> gridbuf = new ArrayList<>();
-	    lock.readLock().lock();
+	    }
+	    MessageBuf buf = new MessageBuf();
+	    buf.adduint8(4);
+	    buf.addint64(gd.b);
+	    buf.addint64(segid);
+	    buf.addint64(grid.mtime);
+	    buf.addcoord(gd.a);
+	    buf.addint32(cmaps.x * cmaps.y);
+	    DataGrid.savetiles(buf, grid.tilesets, grid.tiles);
+	    DataGrid.savez(buf, grid.zmap);
+	    DataGrid.saveols(buf, grid.ols);
+	    byte[] od = buf.fin();
+	    ret.addstring("grid");
+	    ret.addint32(od.length);
+	    ret.addbytes(od);
+	}
+	return(ret.fin());
+    }
+
+    /* Where the records of an export go. Chunks of records are
+     * compressed on worker threads, and then written in order. */
+    private static abstract class ExportOut {
+	final Message out;
+
+	ExportOut(Message out) {
+	    this.out = out;
+	}
+
+	abstract byte[] compress(byte[] recs);
+	abstract void write(byte[] recs, byte[] data);
+	abstract void finish();
+    }
+
+    private static class Export1 extends ExportOut {
+	final java.util.zip.Adler32 sum = new java.util.zip.Adler32();
+
+	Export1(Message out) {
+	    super(out);
+	    out.addbytes(EXPORT_SIG);
+	    out.adduint8(0x78).adduint8(0xda);
+	}
+
+	static byte[] deflate(byte[] recs, boolean fin) {
+	    java.util.zip.Deflater z = new java.util.zip.Deflater(9, true);
 	    try {
-		seg = segments.get(sid);
-		for(Map.Entry<Coord, Long> gd : seg.map.entrySet()) {
-		    if(filter.includegrid(seg, gd.getKey(), gd.getValue()))
-			gridbuf.add(new Pair<>(gd.getKey(), gd.getValue()));
+		z.setInput(recs);
+		if(fin)
+		    z.finish();
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		byte[] tmp = new byte[65536];
+		while(true) {
+		    int n = z.deflate(tmp, 0, tmp.length, fin ? java.util.zip.Deflater.NO_FLUSH : java.util.zip.Deflater.SYNC_FLUSH);
+		    buf.write(tmp, 0, n);
+		    if(fin ? z.finished() : (n < tmp.length))
+			break;
 		}
+		return(buf.toByteArray());
 	    } finally {
-		lock.readLock().unlock();
+		z.end();
 	    }
-	    int ngrid = 0;
-	    for(Pair<Coord, Long> gd : gridbuf) {
-		prog.grid(nseg, segbuf.size(), ngrid++, gridbuf.size());
-		Grid grid = Grid.load(this, gd.b);
-		if(grid == null) {
-		    /* This /should/ never happen, but for unknown
-		     * reasons (crashes? reboots?) some grids can be
-		     * included but missing. It's not like they'll be
-		     * coming back by any other means, however, so
-		     * just ignore them here. */
+	}
+
+	byte[] compress(byte[] recs) {
+	    return(deflate(recs, false));
+	}
+
+	void write(byte[] recs, byte[] data) {
+	    sum.update(recs);
+	    out.addbytes(data);
+	}
+
+	void finish() {
+	    out.addbytes(deflate(new byte[0], true));
+	    int v = (int)sum.getValue();
+	    out.adduint8((v >>> 24) & 0xff).adduint8((v >>> 16) & 0xff).adduint8((v >>> 8) & 0xff).adduint8(v & 0xff);
+	}
+    }
+
+    private static class Export2 extends ExportOut {
+	Export2(Message out) {
+	    super(out);
+	    out.addbytes(EXPORT_SIG2);
+	}
+
+	byte[] compress(byte[] recs) {
+	    MessageBuf ret = new MessageBuf();
+	    ZMessage z = new ZMessage(ret);
+	    z.addbytes(recs);
+	    z.finish();
+	    return(ret.fin());
+	}
+
+	void write(byte[] recs, byte[] data) {
+	    out.addint32(data.length);
+	    out.addbytes(data);
+	}
+
+	void finish() {
+	    out.addint32(0);
+	}
+    }
+
+    public void export(Message out, ExportFilter filter, ExportStatus prog, int ver) throws InterruptedException {
+	if(prog == null) prog = new ExportStatus() {};
+	ExportOut eo;
+	if(ver == 1)
+	    eo = new Export1(out);
+	else if(ver == 2)
+	    eo = new Export2(out);
+	else
+	    throw(new IllegalArgumentException("Unknown map file format: " + ver));
+	Collection<Long> segbuf = locked((Collection<Long> c) -> new ArrayList<>(c), lock.readLock()).apply(knownsegs);
+	try(Pipeline<Pair<byte[], byte[]>> pipe = new Pipeline<>("Mapfile exporter")) {
+	    int nseg = 0;
+	    for(Long sid : segbuf) {
+		if(!filter.includeseg(sid))
 		    continue;
+		Segment seg;
+		List<Pair<Coord, Long>> gridbuf = new ArrayList<>();
+		lock.readLock().lock();
+		try {
+		    seg = segments.get(sid);
+		    for(Map.Entry<Coord, Long> gd : seg.map.entrySet()) {
+			if(filter.includegrid(seg, gd.getKey(), gd.getValue()))
+			    gridbuf.add(new Pair<>(gd.getKey(), gd.getValue()));
+		    }
+		} finally {
+		    lock.readLock().unlock();
 		}
-		MessageBuf buf = new MessageBuf();
-		buf.adduint8(4);
-		buf.addint64(gd.b);
-		buf.addint64(seg.id);
-		buf.addint64(grid.mtime);
-		buf.addcoord(gd.a);
-		buf.addint32(cmaps.x * cmaps.y);
-		DataGrid.savetiles(buf, grid.tilesets, grid.tiles);
-		DataGrid.savez(buf, grid.zmap);
-		DataGrid.saveols(buf, grid.ols);
-		byte[] od = buf.fin();
-		zout.addstring("grid");
-		zout.addint32(od.length);
-		zout.addbytes(od);
-		Utils.checkirq();
+		long segid = seg.id;
+		for(int i = 0; i < gridbuf.size(); i += EXPORT_CHUNK) {
+		    prog.grid(nseg, segbuf.size(), i, gridbuf.size());
+		    while(pipe.full()) {
+			Pair<byte[], byte[]> chunk = pipe.take();
+			eo.write(chunk.a, chunk.b);
+		    }
+		    List<Pair<Coord, Long>> part = gridbuf.subList(i, Math.min(i + EXPORT_CHUNK, gridbuf.size()));
+		    pipe.submit(() -> {
+			    byte[] recs = exportgrids(segid, part);
+			    return(new Pair<>(recs, eo.compress(recs)));
+			});
+		    Utils.checkirq();
+		}
+		nseg++;
+	    }
+	    while(!pipe.empty()) {
+		Pair<byte[], byte[]> chunk = pipe.take();
+		eo.write(chunk.a, chunk.b);
 	    }
-	    nseg++;
 	}
 	Collection<Marker> markbuf = locked((Collection<Marker> c) -> new ArrayList<>(c), lock.readLock()).apply(markers);
+	MessageBuf mbuf = new MessageBuf();
 	int nmark = 0;
 	for(Marker mark : markbuf) {
 	    prog.mark(nmark++, markbuf.size());
@@ -1750,20 +2318,30 @@ public class MapFile {
 	    MessageBuf buf = new MessageBuf();
 	    savemarker(buf, mark);
 	    byte[] od = buf.fin();
-	    zout.addstring("mark");
-	    zout.addint32(od.length);
-	    zout.addbytes(od);
+	    mbuf.addstring("mark");
+	    mbuf.addint32(od.length);
+	    mbuf.addbytes(od);
 	    Utils.checkirq();
 	}
-	zout.finish();
+	byte[] mrecs = mbuf.fin();
+	eo.write(mrecs, eo.compress(mrecs));
+	eo.finish();
     }
 
-    public void export(OutputStream out, ExportFilter filter, ExportStatus prog) throws InterruptedException {
+    public void export(Message out, ExportFilter filter, ExportStatus prog) throws InterruptedException {
+	export(out, filter, prog, exportver.get());
+    }
+
+    public void export(OutputStream out, ExportFilter filter, ExportStatus prog, int ver) throws InterruptedException {
 	StreamMessage msg = new StreamMessage(null, out);
-	export(msg, filter, prog);
+	export(msg, filter, prog, ver);
 	msg.flush();
     }
 
+    public void export(OutputStream out, ExportFilter filter, ExportStatus prog) throws InterruptedException {
+	export(out, filter, prog, exportver.get());
+    }
+
     public static class ImportedGrid {
 	public long gid, segid, mtime;
 	public Coord sc;
@@ -1873,15 +2451,14 @@ public class MapFile {
 	    Segment ret;
 	    lock.readLock().lock();
 	    try {
-		ret = segments.get(id);
+		ret = segment(id);
 	    } finally {
 		lock.readLock().unlock();
 	    }
 	    return(chseg(ret));
 	}
 
-	void importgrid(Message data) {
-	    ImportedGrid grid = new ImportedGrid(data);
+	void importgrid(ImportedGrid grid) {
 	    ImportedSegment seg = segs.get(grid.segid);
 	    if(seg == null) {
 		segs.put(grid.segid, seg = new ImportedSegment());
@@ -1904,10 +2481,10 @@ public class MapFile {
 	    }
 	    Segment rseg;
 	    if(filter.includegrid(grid, info != null)) {
+		Grid rgrid = grid.togrid();
+		Pair<Grid, Long> save;
 		lock.writeLock().lock();
 		try {
-		    Grid rgrid = grid.togrid();
-		    rgrid.save(MapFile.this);
 		    if(seg.noff == null) {
 			if(info == null) {
 			    rseg = chseg(new Segment(seg.nseg = grid.gid));
@@ -1927,7 +2504,7 @@ public class MapFile {
 			} else {
 			    if(curseg.id != seg.nseg)
 				throw(new AssertionError());
-			    Segment nseg = segments.get(info.seg);
+			    Segment nseg = segment(info.seg);
 			    Coord noff = seg.offs.get(info.seg);
 			    Coord soff = seg.noff.sub(noff);
 			    merge(nseg, curseg, soff);
@@ -1937,13 +2514,15 @@ public class MapFile {
 			}
 		    }
 		    Coord nc = grid.sc.add(seg.noff);
-		    if(info == null) {
-			rseg.include(rgrid, nc);
+		    rseg.include(rgrid, nc);
+		    if(info == null)
 			gridinfo.put(rgrid.id, new GridInfo(rgrid.id, rseg.id, nc));
-		    }
+		    save = pending(rgrid, rseg.id);
+		    gridseq++;
 		} finally {
 		    lock.writeLock().unlock();
 		}
+		writegrid(save);
 	    }
 	}
 
@@ -1975,31 +2554,112 @@ public class MapFile {
 	    }
 	}
 
-	void reimport(Message data) throws InterruptedException {
-	    if(!Arrays.equals(EXPORT_SIG, data.bytes(EXPORT_SIG.length)))
-		throw(new Message.FormatError("Invalid map file format"));
-	    data = new ZMessage(data);
-	    try {
-		while(!data.eom()) {
-		    String type = data.string();
-		    int len = data.int32();
-		    Message lay = new LimitMessage(data, len);
-		    if(type.equals("grid")) {
-			try {
-			    importgrid(lay);
-			} catch(RuntimeException exc) {
-			    filter.handleerror(exc, "grid");
-			}
-		    } else if(type.equals("mark")) {
-			try {
-			    importmark(lay);
-			} catch(RuntimeException exc) {
-			    filter.handleerror(exc, "mark");
-			}
+	void importgrid(Message data) {
+	    importgrid(new ImportedGrid(data));
+	}
+
+	void reimport1(Message data) throws InterruptedException {
+	    while(!data.eom()) {
+		String type = data.string();
+		int len = data.int32();
+		Message lay = new LimitMessage(data, len);
+		if(type.equals("grid")) {
+		    try {
+			importgrid(lay);
+		    } catch(RuntimeException exc) {
+			filter.handleerror(exc, "grid");
+		    }
+		} else if(type.equals("mark")) {
+		    try {
+			importmark(lay);
+		    } catch(RuntimeException exc) {
+			filter.handleerror(exc, "mark");
 		    }
-		    lay.skip();
+		}
+		lay.skip();
+		Utils.checkirq();
+	    }
+	}
+
+	class Record {
+	    final String type;
+	    byte[] data;
+	    ImportedGrid grid;
+	    RuntimeException err;
+
+	    Record(String type) {
+		this.type = type;
+	    }
+	}
+
+	/* Run on worker threads, so must not touch the map file. */
+	List<Record> decode(byte[] chunk) {
+	    List<Record> ret = new ArrayList<>();
+	    Message data = new ZMessage(new MessageBuf(chunk));
+	    while(!data.eom()) {
+		Record rec = new Record(data.string());
+		byte[] buf = data.bytes(data.int32());
+		if(rec.type.equals("grid")) {
+		    try {
+			rec.grid = new ImportedGrid(new MessageBuf(buf));
+		    } catch(RuntimeException exc) {
+			rec.err = exc;
+		    }
+		} else {
+		    rec.data = buf;
+		}
+		ret.add(rec);
+	    }
+	    return(ret);
+	}
+
+	void apply(List<Record> recs) throws InterruptedException {
+	    for(Record rec : recs) {
+		if(rec.type.equals("grid")) {
+		    try {
+			if(rec.err != null)
+			    throw(rec.err);
+			importgrid(rec.grid);
+		    } catch(RuntimeException exc) {
+			filter.handleerror(exc, "grid");
+		    }
+		} else if(rec.type.equals("mark")) {
+		    try {
+			importmark(new MessageBuf(rec.data));
+		    } catch(RuntimeException exc) {
+			filter.handleerror(exc, "mark");
+		    }
+		}
+		Utils.checkirq();
+	    }
+	}
+
+	void reimport2(Message data) throws InterruptedException {
+	    try(Pipeline<List<Record>> pipe = new Pipeline<>("Mapfile importer")) {
+		while(true) {
+		    int len = data.int32();
+		    if(len == 0)
+			break;
+		    byte[] chunk = data.bytes(len);
+		    while(pipe.full())
+			apply(pipe.take());
+		    pipe.submit(() -> decode(chunk));
 		    Utils.checkirq();
 		}
+		while(!pipe.empty())
+		    apply(pipe.take());
+	    }
+	}
+
+	void reimport(Message data) throws InterruptedException {
+	    byte[] sig = data.bytes(EXPORT_SIG.length);
+	    try {
+		if(Arrays.equals(EXPORT_SIG, sig))
+		    reimport1(new ZMessage(data));
+		else if(Arrays.equals(EXPORT_SIG2, sig))
+		    reimport2(data);
+		else
+		    throw(new Message.FormatError("Invalid map file format"));
 	    } catch(InterruptedException e) {
 		flush();
 		throw(e);
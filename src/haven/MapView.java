@@ -538,17 +538,127 @@ public class MapView extends PView implements DTarget, Console.Directory {
 	}
     }
 
+    public static final Config.Variable<Boolean> cullgobs = Config.Variable.propb("haven.cullgobs", true);
+    public static final float defbound = (float)(MCache.tilesz.x * 2), cullmargin = (float)(MCache.tilesz.x * 3);
+    private static final Map<Resource, Float> gobbounds = new WeakHashMap<>();
+
+    /* The radius of a sphere around the origin that encloses all
+     * vertices of a resource's meshes, or a default guess for
+     * resources without any. */
+    private static float resbound(Resource res) {
+	synchronized(gobbounds) {
+	    Float ret = gobbounds.get(res);
+	    if(ret == null) {
+		float r2 = 0;
+		boolean any = false;
+		for(VertexBuf.VertexRes vr : res.layers(VertexBuf.VertexRes.class)) {
+		    VertexBuf.VertexData vd = vr.b.buf(VertexBuf.VertexData.class);
+		    if(vd == null)
+			continue;
+		    java.nio.FloatBuffer data = vd.data;
+		    for(int i = 0; i + 2 < data.capacity(); i += 3) {
+			float x = data.get(i), y = data.get(i + 1), z = data.get(i + 2);
+			r2 = Math.max(r2, (x * x) + (y * y) + (z * z));
+		    }
+		    any = true;
+		}
+		gobbounds.put(res, ret = any ? (float)Math.sqrt(r2) : defbound);
+	    }
+	    return(ret);
+	}
+    }
+
+    /* Whether a gob's bounding sphere, grown by margin, intersects
+     * the given frustum. Gobs whose position or resource isn't yet
+     * known are considered visible. */
+    public static boolean visible(Frustum f, Gob ob, float margin) {
+	Coord3f c;
+	float r = defbound;
+	synchronized(ob) {
+	    try {
+		c = ob.getc();
+		Drawable d = ob.getattr(Drawable.class);
+		Resource res = (d == null) ? null : d.getres();
+		if(res != null)
+		    r = resbound(res);
+	    } catch(Loading l) {
+		return(true);
+	    }
+	}
+	return(f.sphere(c.x, -c.y, c.z, r + margin));
+    }
+
+    /* Gobs outside the view frustum are kept in the render tree
+     * with this state set, so that their sounds, lights and
+     * shadows stay in place, and are only kept out of the main
+     * draw list. */
+    public static final State.StandAlone culled = new State.StandAlone(State.Slot.Type.SYS) {
+	    public haven.render.sl.ShaderMacro shader() {return(null);}
+	};
+
+    private static class CullList implements RenderList<Rendered> {
+	private final RenderList<Rendered> back;
+	private final Set<Slot<? extends Rendered>> shown = new HashSet<>();
+
+	CullList(RenderList<Rendered> back) {
+	    this.back = back;
+	}
+
+	private static boolean visible(Slot<? extends Rendered> slot) {
+	    return(slot.state().get(culled.slot) == null);
+	}
+
+	public void add(Slot<? extends Rendered> slot) {
+	    if(visible(slot)) {
+		shown.add(slot);
+		back.add(slot);
+	    }
+	}
+
+	public void remove(Slot<? extends Rendered> slot) {
+	    if(shown.remove(slot))
+		back.remove(slot);
+	}
+
+	public void update(Slot<? extends Rendered> slot) {
+	    if(shown.contains(slot)) {
+		if(visible(slot)) {
+		    back.update(slot);
+		} else {
+		    shown.remove(slot);
+		    back.remove(slot);
+		}
+	    } else if(visible(slot)) {
+		shown.add(slot);
+		back.add(slot);
+	    }
+	}
+
+	public void update(Pipe group, int[] statemask) {
+	    back.update(group, statemask);
+	}
+    }
+
+    protected RenderList<Rendered> mainlist(DrawList back) {
+	return(new CullList(back));
+    }
+
     private final Gobs gobs;
     private class Gobs implements RenderTree.Node, OCache.ChangeCallback {
 	final OCache oc = glob.oc;
 	final Map<Gob, Loader.Future<?>> adding = new HashMap<>();
 	final Map<Gob, RenderTree.Slot> current = new HashMap<>();
+	final Set<Gob> hidden = new HashSet<>();
 	RenderTree.Slot slot;
+	Frustum frustum = null;
+	double lastcull = 0;
 
 	private void addgob(Gob ob) {
 	    RenderTree.Slot slot = this.slot;
 	    if(slot == null)
 		return;
+	    Frustum f = this.frustum;
+	    boolean hide = (f != null) && !visible(f, ob, cullmargin);
 	    synchronized(ob) {
 		synchronized(this) {
 		    if(!adding.containsKey(ob))
@@ -556,22 +666,26 @@ public class MapView extends PView implements DTarget, Console.Directory {
 		}
 		RenderTree.Slot nslot;
 		try {
-		    nslot = slot.add(ob.placed);
+		    nslot = slot.add(ob.placed, hide ? culled : null);
 		} catch(RenderTree.SlotRemoved e) {
 		    /* Ignore here as there is a harmless remove-race
 		     * on disposal. */
 		    return;
 		}
 		synchronized(this) {
-		    if(adding.remove(ob) != null)
+		    if(adding.remove(ob) != null) {
 			current.put(ob, nslot);
-		    else
+			if(hide)
+			    hidden.add(ob);
+		    } else {
 			nslot.remove();
+		    }
 		}
 	    }
 	}
 
 	public void added(RenderTree.Slot slot) {
+	    slot.partition();
 	    synchronized(this) {
 		if(this.slot != null)
 		    throw(new RuntimeException());
@@ -595,6 +709,7 @@ public class MapView extends PView implements DTarget, Console.Directory {
 		for(Loader.Future<?> task : tasks)
 		    task.restart();
 		current.clear();
+		hidden.clear();
 	    }
 	}
 
@@ -610,6 +725,7 @@ public class MapView extends PView implements DTarget, Console.Directory {
 	    RenderTree.Slot slot;
 	    synchronized(this) {
 		slot = current.remove(ob);
+		hidden.remove(ob);
 		if(slot == null) {
 		    Loader.Future<?> t = adding.remove(ob);
 		    if(t != null)
@@ -626,6 +742,55 @@ public class MapView extends PView implements DTarget, Console.Directory {
 	    }
 	}
 
+	/* Marks gobs that have gone out of the padded view frustum
+	 * as culled, and unmarks those that have come into it. Gobs
+	 * are only culled once outside twice the margin, so that
+	 * small camera movements don't thrash them in and out. */
+	void cull(Frustum f) {
+	    Map<Gob, RenderTree.Slot> check;
+	    Set<Gob> hidden;
+	    synchronized(this) {
+		this.frustum = f;
+		check = new HashMap<>(current);
+		hidden = new HashSet<>(this.hidden);
+	    }
+	    for(Map.Entry<Gob, RenderTree.Slot> ent : check.entrySet()) {
+		Gob ob = ent.getKey();
+		boolean was = hidden.contains(ob);
+		boolean vis = (f == null) || visible(f, ob, was ? cullmargin : (cullmargin * 2));
+		if(vis != was)
+		    continue;
+		synchronized(ob) {
+		    synchronized(this) {
+			if(current.get(ob) != ent.getValue())
+			    continue;
+			if(vis)
+			    this.hidden.remove(ob);
+			else
+			    this.hidden.add(ob);
+		    }
+		    try {
+			ent.getValue().cstate(vis ? null : culled);
+		    } catch(RenderTree.SlotRemoved e) {
+			/* Ignore here as there is a harmless remove-race
+			 * on disposal. */
+		    }
+		}
+	    }
+	}
+
+	void tick(double dt) {
+	    if(!cullgobs.get()) {
+		if(frustum != null)
+		    cull(null);
+		return;
+	    }
+	    if((lastcull += dt) < 0.25)
+		return;
+	    lastcull = 0;
+	    cull(new Frustum(camera.proj, camera.view));
+	}
+
 	public Loading loading() {
 	    synchronized(this) {
 		if(adding.isEmpty())
@@ -692,6 +857,11 @@ public class MapView extends PView implements DTarget, Console.Directory {
 		}
 	    }
 
+	    public void added(RenderTree.Slot slot) {
+		slot.partition();
+		super.added(slot);
+	    }
+
 	    public void removed(RenderTree.Slot slot) {
 		super.removed(slot);
 		cuts.clear();
@@ -1675,6 +1845,7 @@ public class MapView extends PView implements DTarget, Console.Directory {
 	    camoff.y = (float)((Math.random() - 0.5) * shake);
 	    camoff.z = (float)((Math.random() - 0.5) * shake);
 	    camera.tick(dt);
+	    gobs.tick(dt);
 	} catch(Loading e) {
 	    e.boostprio(5);
 	    camload = e;
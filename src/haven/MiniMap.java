@@ -580,6 +580,7 @@ public class MiniMap extends Widget {
 	public final MapFile file;
 	public final Segment seg;
 	public final Coord sc;
+	public final int lvl;
 	public final Area mapext;
 	public final Indir<? extends DataGrid> gref;
 	public Coord dc;
@@ -591,6 +592,7 @@ public class MiniMap extends Widget {
 	    this.file = seg.file();
 	    this.seg = seg;
 	    this.sc = sc;
+	    this.lvl = lvl;
 	    this.gref = gref;
 	    mapext = Area.sized(sc.mul(cmaps.mul(1 << lvl)), cmaps.mul(1 << lvl));
 	}
@@ -627,7 +629,9 @@ public class MiniMap extends Widget {
 	    if(img_c == null) {
 		img_c = new CachedImage(grid -> {
 			if(grid instanceof MapFile.ZoomGrid) {
-			    return(Defer.later(() -> new TexI(grid.render(sc.mul(cmaps)))));
+			    return(Defer.later(() -> new TexI(file.cachedimg(seg.id, lvl, sc, null,
+									     buf -> grid.imgdata(buf, false, false),
+									     () -> grid.render(sc.mul(cmaps))))));
 			} else {
 			    return(Defer.later(new Defer.Callable<Tex>() {
 				    MapFile.View view = new MapFile.View(seg);
@@ -639,8 +643,10 @@ public class MiniMap extends Widget {
 						    view.addgrid(sc.add(x, y));
 						}
 					    }
-					    view.fin();
-					    return(new TexI(MapSource.drawmap(view, Area.sized(sc.mul(cmaps), cmaps))));
+					    return(new TexI(file.cachedimg(seg.id, 0, sc, null, buf -> seg.imgdata(sc, buf), () -> {
+							view.fin();
+							return(MapSource.drawmap(view, Area.sized(sc.mul(cmaps), cmaps)));
+						    })));
 					}
 				    }
 				}));
@@ -655,7 +661,9 @@ public class MiniMap extends Widget {
 	    CachedImage ret;
 	    synchronized(olimg_c) {
 		if((ret = olimg_c.get(tag)) == null)
-		    olimg_c.put(tag, ret = new CachedImage(grid -> Defer.later(() -> new TexI(grid.olrender(sc.mul(cmaps), tag)))));
+		    olimg_c.put(tag, ret = new CachedImage(grid -> Defer.later(() -> new TexI(file.cachedimg(seg.id, lvl, sc, tag,
+															    buf -> grid.imgdata(buf, false, true),
+															    () -> grid.olrender(sc.mul(cmaps), tag))))));
 	    }
 	    return(ret.get());
 	}
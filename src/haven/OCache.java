@@ -243,15 +243,28 @@ public class OCache implements Iterable<Gob> {
     @Retention(RetentionPolicy.RUNTIME)
     public @interface DeltaType {
 	public int value();
+	/* Delta types which a newly received delta of this type
+	 * makes redundant while they are still pending, counting
+	 * from the earliest pending delta of this same type. Only
+	 * declare this for deltas that fully determine the state of
+	 * whatever they set, regardless of what the superseded
+	 * deltas would have left behind. Note that an attribute that
+	 * is changed away and back again within the dropped deltas
+	 * may therefore be kept rather than recreated. */
+	public int[] supersedes() default {};
     }
     private static final Map<Integer, Delta> deltas = new HashMap<>();
+    private static final Map<Integer, int[]> supersedes = new HashMap<>();
     static {
 	deltas: for(Class<?> cl : dolda.jglob.Loader.get(DeltaType.class).classes()) {
-	    int id = cl.getAnnotation(DeltaType.class).value();
+	    DeltaType dt = cl.getAnnotation(DeltaType.class);
+	    int id = dt.value();
 	    if(Delta.class.isAssignableFrom(cl)) {
 		try {
 		    Constructor<? extends Delta> cons = cl.asSubclass(Delta.class).getConstructor();
 		    deltas.put(id, Utils.construct(cons));
+		    if(dt.supersedes().length > 0)
+			supersedes.put(id, dt.supersedes());
 		    continue deltas;
 		} catch(NoSuchMethodException e) {}
 	    }
@@ -259,7 +272,7 @@ public class OCache implements Iterable<Gob> {
 	}
     }
 
-    @DeltaType(OD_MOVE)
+    @DeltaType(value = OD_MOVE, supersedes = {OD_MOVE})
     public static class $move implements Delta {
 	public void apply(Gob g, AttrDelta msg) {
 	    Coord2d c = msg.coord().mul(posres);
@@ -394,8 +407,9 @@ public class OCache implements Iterable<Gob> {
 			deltas.get(d.type).apply(gob, d.clone());
 		    }
 		    synchronized(this) {
-			if((pending.poll()) != d)
-			    throw(new RuntimeException());
+			/* It may have been superseded while being applied. */
+			if(pending.peek() == d)
+			    pending.poll();
 		    }
 		}
 		if(!added) {
@@ -410,6 +424,32 @@ public class OCache implements Iterable<Gob> {
 	    }
 	}
 
+	private void queue(AttrDelta d) {
+	    int[] sup = supersedes.get(d.type);
+	    if(sup != null) {
+		boolean run = false, head = true, rhead = false;
+		for(Iterator<AttrDelta> i = pending.iterator(); i.hasNext(); head = false) {
+		    AttrDelta p = i.next();
+		    if(p.type == d.type)
+			run = true;
+		    if(run) {
+			for(int t : sup) {
+			    if(p.type == t) {
+				i.remove();
+				rhead |= head;
+				break;
+			    }
+			}
+		    }
+		}
+		/* Don't keep waiting on whatever the superseded head
+		 * delta was loading. */
+		if(rhead && (applier != null))
+		    applier.restart();
+	    }
+	    pending.add(d);
+	}
+
 	public void checkdirty(boolean interrupt) {
 	    synchronized(this) {
 		if(applier == null) {
@@ -522,7 +562,8 @@ public class OCache implements Iterable<Gob> {
 		synchronized(ng) {
 		    ng.frame = delta.frame;
 		    ng.virtual = ((delta.fl & 2) != 0);
-		    ng.pending.addAll(delta.attrs);
+		    for(AttrDelta attr : delta.attrs)
+			ng.queue(attr);
 		    ng.checkdirty(false);
 		}
 	    }
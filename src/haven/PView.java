@@ -129,36 +129,49 @@ public abstract class PView extends Widget {
     }
 
     public Pipe.Op basic(Object id) {
-	try(Locked lk = tree.lock()) {
+	synchronized(basicstates) {
 	    return(basicstates.get(id));
 	}
     }
 
+    /* The basic states may be changed from node callbacks within
+     * partitioned tree updates, such as when adding a gob's sprites,
+     * so the new state is recorded at once, but only applied to the
+     * tree when it can be locked as a whole. */
     public void basic(Object id, Pipe.Op state) {
-	try(Locked lk = tree.lock()) {
-	    Pipe.Op prev;
-	    Collection<Pipe.Op> comb = null;
+	Pipe.Op prev;
+	synchronized(basicstates) {
 	    if(state == null)
 		prev = basicstates.remove(id);
 	    else
 		prev = basicstates.put(id, state);
-	    if(!Utils.eq(prev, state)) {
-		comb = new ArrayList<>(basicstates.values());
-		try {
-		    Collection<Pipe.Op> dcomb = comb;
-		    basic.ostate(p -> {
-			    for(Pipe.Op op : dcomb)
-				op.apply(p);
-			});
-		} catch(RuntimeException e) {
-		    if(prev == null)
-			basicstates.remove(id);
-		    else
-			basicstates.put(id, prev);
-		    throw(e);
-		}
-	    }
 	}
+	if(Utils.eq(prev, state))
+	    return;
+	tree.whole(() -> {
+		try(Locked lk = tree.lock()) {
+		    Collection<Pipe.Op> comb;
+		    synchronized(basicstates) {
+			comb = new ArrayList<>(basicstates.values());
+		    }
+		    try {
+			basic.ostate(p -> {
+				for(Pipe.Op op : comb)
+				    op.apply(p);
+			    });
+		    } catch(RuntimeException e) {
+			synchronized(basicstates) {
+			    if(basicstates.get(id) == state) {
+				if(prev == null)
+				    basicstates.remove(id);
+				else
+				    basicstates.put(id, prev);
+			    }
+			}
+			throw(e);
+		    }
+		}
+	    });
     }
 
     /* XXX? Remove standard clearing and assume implementations to add
@@ -299,10 +312,14 @@ public abstract class PView extends Widget {
     protected void envsetup() {
 	back = env.drawlist().desc("pview: " + this);
 	instancer = new InstanceList(tree);
-	instancer.add(back, Rendered.class);
+	instancer.add(mainlist(back), Rendered.class);
 	instancer.asyncadd(tree, Rendered.class);
     }
 
+    protected RenderList<Rendered> mainlist(DrawList back) {
+	return(back);
+    }
+
     protected void envdispose() {
 	tree.remove(instancer);
 	back.dispose(); back = null;
@@ -0,0 +1,509 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.nio.channels.*;
+import java.net.*;
+import java.util.concurrent.locks.*;
+import static haven.Utils.pj;
+
+/* A ResCache that appends entries to a few large pack files,
+ * rather than keeping one file per entry. Entry locations are kept
+ * in an in-memory hash index, which is persisted as an append-only
+ * journal and read in one go on startup, so that fetching an entry
+ * is a single positional read. Packs are only ever appended to;
+ * space left dead by replaced or removed entries is reclaimed in
+ * the background by moving the live entries of mostly dead packs to
+ * the current one and deleting them.
+ *
+ * A pack directory is owned by one process at a time. A client
+ * finding it locked by another falls back to some other cache. */
+public class PackCache implements ResCache {
+    public static final long PACKSIZE = 64L << 20;
+    public static final double DEADRATIO = 0.4;
+    private static final long MINCOMPACT = 16L << 20;
+    private static final int IDXVER = 1;
+    private static final int REC_PUT = 1, REC_DEL = 2;
+    public final Path dir;
+    public final URI id;
+    public final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Loc> index = new HashMap<>();
+    private final Map<Integer, Pack> packs = new TreeMap<>();
+    private final FileChannel lockf;
+    private final Path idxpath;
+    private FileChannel idxf;
+    private long idxend, total, live;
+    private Pack cur;
+    private Thread compactor = null;
+    private final Object compacting = new Object();
+
+    private static class Pack {
+	final int id;
+	final Path path;
+	final FileChannel fp;
+	long size, live;
+	int nlive;
+
+	Pack(int id, Path path, FileChannel fp) throws IOException {
+	    this.id = id;
+	    this.path = path;
+	    this.fp = fp;
+	    this.size = fp.size();
+	}
+
+	double dead() {
+	    return((size == 0) ? 0 : (1.0 - ((double)live / (double)size)));
+	}
+    }
+
+    private static class Loc {
+	final Pack pack;
+	final long off;
+	final int len;
+
+	Loc(Pack pack, long off, int len) {
+	    this.pack = pack; this.off = off; this.len = len;
+	}
+    }
+
+    public PackCache(Path dir, URI id) throws IOException {
+	this.dir = dir;
+	this.id = id;
+	this.idxpath = pj(dir, "index");
+	Files.createDirectories(dir);
+	FileChannel lockf = FileChannel.open(pj(dir, "lock"), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+	try {
+	    FileLock lk;
+	    try {
+		lk = lockf.tryLock();
+	    } catch(OverlappingFileLockException e) {
+		lk = null;
+	    }
+	    if(lk == null)
+		throw(new IOException("pack cache " + dir + " is in use"));
+	    open();
+	    this.lockf = lockf;
+	    lockf = null;
+	} finally {
+	    if(lockf != null)
+		lockf.close();
+	}
+    }
+
+    private static String packname(int id) {
+	return(String.format("%08x.pack", id));
+    }
+
+    private Pack newpack() throws IOException {
+	int id = packs.isEmpty() ? 0 : (Collections.max(packs.keySet()) + 1);
+	Path path = pj(dir, packname(id));
+	Pack ret = new Pack(id, path, FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+	packs.put(id, ret);
+	return(ret);
+    }
+
+    private void account(Loc prev, Loc nl) {
+	if(prev != null) {
+	    prev.pack.live -= prev.len;
+	    prev.pack.nlive--;
+	    live -= prev.len;
+	}
+	if(nl != null) {
+	    nl.pack.live += nl.len;
+	    nl.pack.nlive++;
+	    live += nl.len;
+	}
+    }
+
+    private void open() throws IOException {
+	try(DirectoryStream<Path> ls = Files.newDirectoryStream(dir, "*.pack")) {
+	    for(Path p : ls) {
+		String nm = p.getFileName().toString();
+		int id;
+		try {
+		    id = Integer.parseInt(nm.substring(0, nm.length() - 5), 16);
+		} catch(NumberFormatException e) {
+		    continue;
+		}
+		packs.put(id, new Pack(id, p, FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE)));
+	    }
+	}
+	idxf = FileChannel.open(idxpath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+	idxend = readindex();
+	idxf.truncate(idxend);
+	for(Iterator<Pack> i = packs.values().iterator(); i.hasNext();) {
+	    Pack pack = i.next();
+	    total += pack.size;
+	    if(pack.nlive == 0) {
+		pack.fp.close();
+		Files.delete(pack.path);
+		total -= pack.size;
+		i.remove();
+	    }
+	}
+	if(packs.isEmpty())
+	    cur = newpack();
+	else
+	    cur = packs.get(Collections.max(packs.keySet()));
+    }
+
+    private long readindex() throws IOException {
+	long sz = idxf.size();
+	if(sz == 0) {
+	    writeheader();
+	    return(idxf.size());
+	}
+	ByteBuffer buf = ByteBuffer.allocate((int)sz);
+	while(buf.hasRemaining()) {
+	    if(idxf.read(buf, buf.position()) < 0)
+		break;
+	}
+	int got = buf.position();
+	DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf.array(), 0, got));
+	long good = 0;
+	try {
+	    if((in.readInt() != IDXVER) || !in.readUTF().equals(id.toString()))
+		throw(new IOException("pack cache " + dir + " has an unknown index"));
+	    good = got - in.available();
+	    while(true) {
+		int type = in.readByte();
+		String name = in.readUTF();
+		if(type == REC_PUT) {
+		    int pid = in.readInt();
+		    long off = in.readLong();
+		    int len = in.readInt();
+		    Pack pack = packs.get(pid);
+		    /* A put whose data didn't make it to the pack is
+		     * just ignored, along with the dead data. */
+		    if((pack != null) && (off + len <= pack.size)) {
+			Loc nl = new Loc(pack, off, len);
+			account(index.put(name, nl), nl);
+		    }
+		} else if(type == REC_DEL) {
+		    account(index.remove(name), null);
+		} else {
+		    break;
+		}
+		good = got - in.available();
+	    }
+	} catch(EOFException e) {
+	}
+	return(good);
+    }
+
+    private void writeheader() throws IOException {
+	ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(buf);
+	out.writeInt(IDXVER);
+	out.writeUTF(id.toString());
+	idxf.truncate(0);
+	writefully(idxf, ByteBuffer.wrap(buf.toByteArray()), 0);
+    }
+
+    private static void writefully(FileChannel fp, ByteBuffer data, long off) throws IOException {
+	while(data.hasRemaining())
+	    off += fp.write(data, off);
+    }
+
+    private static void record(DataOutputStream out, String name, Loc loc) throws IOException {
+	if(loc != null) {
+	    out.writeByte(REC_PUT);
+	    out.writeUTF(name);
+	    out.writeInt(loc.pack.id);
+	    out.writeLong(loc.off);
+	    out.writeInt(loc.len);
+	} else {
+	    out.writeByte(REC_DEL);
+	    out.writeUTF(name);
+	}
+    }
+
+    private void journal(String name, Loc loc) throws IOException {
+	ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	record(new DataOutputStream(buf), name, loc);
+	byte[] rec = buf.toByteArray();
+	writefully(idxf, ByteBuffer.wrap(rec), idxend);
+	idxend += rec.length;
+    }
+
+    /* Must be called with the write lock held. */
+    private void put(String name, byte[] data) throws IOException {
+	if((cur.size > 0) && (cur.size + data.length > PACKSIZE))
+	    cur = newpack();
+	Loc nl = new Loc(cur, cur.size, data.length);
+	writefully(cur.fp, ByteBuffer.wrap(data), nl.off);
+	cur.size += data.length;
+	total += data.length;
+	/* The data must be on disk before the record pointing to it,
+	 * or a crash could leave the journal referring to garbage. */
+	cur.fp.force(false);
+	journal(name, nl);
+	account(index.put(name, nl), nl);
+    }
+
+    private byte[] read(Loc loc) throws IOException {
+	ByteBuffer buf = ByteBuffer.allocate(loc.len);
+	while(buf.hasRemaining()) {
+	    if(loc.pack.fp.read(buf, loc.off + buf.position()) < 0)
+		throw(new EOFException("pack " + loc.pack.path + " truncated"));
+	}
+	return(buf.array());
+    }
+
+    public OutputStream store(String name) throws IOException {
+	return(new ByteArrayOutputStream() {
+		private boolean closed = false;
+
+		public void close() throws IOException {
+		    if(closed)
+			return;
+		    closed = true;
+		    try(Locked lk = new Locked(lock.writeLock())) {
+			put(name, toByteArray());
+		    }
+		    ckcompact();
+		}
+	    });
+    }
+
+    public InputStream fetch(String name) throws IOException {
+	try(Locked lk = new Locked(lock.readLock())) {
+	    Loc loc = index.get(name);
+	    if(loc == null)
+		throw(new FileNotFoundException(name));
+	    return(new ByteArrayInputStream(read(loc)));
+	}
+    }
+
+    public void remove(String name) throws IOException {
+	try(Locked lk = new Locked(lock.writeLock())) {
+	    Loc prev = index.remove(name);
+	    if(prev == null)
+		throw(new FileNotFoundException(name));
+	    journal(name, null);
+	    account(prev, null);
+	}
+	ckcompact();
+    }
+
+    public Collection<String> list() {
+	try(Locked lk = new Locked(lock.readLock())) {
+	    return(new ArrayList<>(index.keySet()));
+	}
+    }
+
+    private boolean needcompact() {
+	return((total > MINCOMPACT) && ((1.0 - ((double)live / (double)total)) > DEADRATIO));
+    }
+
+    private void ckcompact() {
+	synchronized(this) {
+	    if(compactor != null)
+		return;
+	    try(Locked lk = new Locked(lock.readLock())) {
+		if(!needcompact())
+		    return;
+	    }
+	    compactor = new HackThread(() -> {
+		    try {
+			compact();
+		    } catch(IOException e) {
+			new Warning(e, "compacting " + this).issue();
+		    } finally {
+			synchronized(PackCache.this) {
+			    compactor = null;
+			}
+		    }
+		}, "Pack-cache compactor");
+	    compactor.setDaemon(true);
+	    compactor.start();
+	}
+    }
+
+    /* Moves the live entries of every pack that is more than
+     * DEADRATIO dead into the current pack, deleting the emptied
+     * packs, and rewrites the index journal without the dead
+     * records. Only the individual moves hold the write lock, so
+     * that readers and writers proceed in between. */
+    public void compact() throws IOException {
+	synchronized(compacting) {
+	    try(Locked lk = new Locked(lock.writeLock())) {
+		if((cur.size > 0) && (cur.dead() > DEADRATIO))
+		    cur = newpack();
+	    }
+	    while(true) {
+		Pack victim = null;
+		List<String> names = new ArrayList<>();
+		try(Locked lk = new Locked(lock.readLock())) {
+		    for(Pack pack : packs.values()) {
+			if((pack != cur) && (pack.dead() > DEADRATIO)) {
+			    victim = pack;
+			    break;
+			}
+		    }
+		    if(victim == null)
+			break;
+		    for(Map.Entry<String, Loc> ent : index.entrySet()) {
+			if(ent.getValue().pack == victim)
+			    names.add(ent.getKey());
+		    }
+		}
+		for(String name : names) {
+		    Loc loc;
+		    byte[] data;
+		    try(Locked lk = new Locked(lock.readLock())) {
+			if(((loc = index.get(name)) == null) || (loc.pack != victim))
+			    continue;
+			data = read(loc);
+		    }
+		    try(Locked lk = new Locked(lock.writeLock())) {
+			if(index.get(name) == loc)
+			    put(name, data);
+		    }
+		}
+		try(Locked lk = new Locked(lock.writeLock())) {
+		    if(victim.nlive == 0) {
+			packs.remove(victim.id);
+			victim.fp.close();
+			Files.delete(victim.path);
+			total -= victim.size;
+		    }
+		}
+	    }
+	    try(Locked lk = new Locked(lock.writeLock())) {
+		Path tmp = pj(dir, "index.new");
+		try(FileChannel nf = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+		    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		    DataOutputStream out = new DataOutputStream(buf);
+		    out.writeInt(IDXVER);
+		    out.writeUTF(id.toString());
+		    for(Map.Entry<String, Loc> ent : index.entrySet())
+			record(out, ent.getKey(), ent.getValue());
+		    writefully(nf, ByteBuffer.wrap(buf.toByteArray()), 0);
+		    nf.force(true);
+		}
+		/* Should the journal fail to be replaced, the old one
+		 * stays in use as it was. */
+		boolean moved = false;
+		idxf.close();
+		try {
+		    try {
+			Files.move(tmp, idxpath, StandardCopyOption.ATOMIC_MOVE);
+		    } catch(AtomicMoveNotSupportedException e) {
+			Files.move(tmp, idxpath, StandardCopyOption.REPLACE_EXISTING);
+		    }
+		    moved = true;
+		} finally {
+		    idxf = FileChannel.open(idxpath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		    if(!moved)
+			Files.deleteIfExists(tmp);
+		}
+		idxend = idxf.size();
+	    }
+	}
+    }
+
+    public String stats() {
+	try(Locked lk = new Locked(lock.readLock())) {
+	    return(String.format("%d entries, %d packs, %,d/%,d bytes live", index.size(), packs.size(), live, total));
+	}
+    }
+
+    public String toString() {
+	return("PackCache(" + id + ")");
+    }
+
+    private static final Map<URI, PackCache> current = new HashMap<>();
+    public static PackCache get(URI id) throws IOException {
+	synchronized(current) {
+	    PackCache ret = current.get(id);
+	    if(ret == null) {
+		String idstr = id.toString();
+		long h = 0;
+		for(int i = 0; i < idstr.length(); i++)
+		    h = (h * 31) + idstr.charAt(i);
+		current.put(id, ret = new PackCache(pj(HashDirCache.findbase(), String.format("pack-%016x", h)), id));
+	    }
+	    return(ret);
+	}
+    }
+
+    public static PackCache get(String id) throws IOException {
+	return(get(Utils.uri("urn:haven-cache:" + id)));
+    }
+
+    public static PackCache create() {
+	try {
+	    if(cachebase.get() != null)
+		return(get(cachebase.get()));
+	    if(Resource.resurl.get() != null)
+		return(get(Resource.resurl.get()));
+	    return(get("default"));
+	} catch(Exception e) {
+	    return(null);
+	}
+    }
+
+    public static void main(String[] args) throws IOException {
+	if(args.length < 2) {
+	    System.err.println("usage: PackCache ID-URI COMMAND [ARGS...]");
+	    System.exit(1);
+	}
+	PackCache cache = (args[0].indexOf(':') >= 0) ? get(URI.create(args[0])) : get(args[0]);
+	switch(args[1]) {
+	case "ls":
+	    for(String nm : cache.list())
+		System.out.println(nm);
+	    break;
+	case "cat":
+	    try(InputStream fp = cache.fetch(args[2])) {
+		byte[] buf = new byte[1024];
+		for(int n; (n = fp.read(buf)) >= 0;)
+		    System.out.write(buf, 0, n);
+		System.out.flush();
+	    } catch(FileNotFoundException e) {
+		System.err.printf("%s: not found\n", args[2]);
+		System.exit(1);
+	    }
+	    break;
+	case "stat":
+	    System.out.println(cache.stats());
+	    break;
+	case "compact":
+	    cache.compact();
+	    System.out.println(cache.stats());
+	    break;
+	default:
+	    System.err.printf("%s: no such command\n", args[1]);
+	    break;
+	}
+    }
+}
@@ -28,47 +28,230 @@ package haven;
 
 import java.util.*;
 
-public class PrioQueue<E extends Prioritized> extends LinkedList<E> {
-    public E peek() {
-	E rv = null;
-	int mp = 0;
-	for(E e : this) {
-	    int ep = e.priority();
-	    if((rv == null) || (ep > mp)) {
-		mp = ep;
-		rv = e;
-	    }
+/* An indexed binary max-heap over Prioritized elements. Elements
+ * are ordered by the priority they had when they were last added or
+ * updated, ties being broken in insertion order. If the priority of
+ * a queued element changes, update() must be called for the new
+ * priority to take effect. */
+public class PrioQueue<E extends Prioritized> extends AbstractQueue<E> {
+    private static final Object[] EMPTY = new Object[0];
+    private final Map<Object, Integer> index = new IdentityHashMap<>();
+    private Object[] heap = EMPTY;
+    private int[] prio = new int[0];
+    private long[] seq = new long[0];
+    private long nseq = 0;
+    private int size = 0;
+
+    @SuppressWarnings("unchecked")
+    private E get(int i) {
+	return((E)heap[i]);
+    }
+
+    /* Whether slot a should come out before slot b. */
+    private boolean before(int ap, long as, int bp, long bs) {
+	return((ap > bp) || ((ap == bp) && (as < bs)));
+    }
+
+    private void set(int idx, Object ob, int p, long s) {
+	heap[idx] = ob;
+	prio[idx] = p;
+	seq[idx] = s;
+	index.put(ob, idx);
+    }
+
+    private void raise(Object ob, int p, long s, int idx) {
+	while(idx > 0) {
+	    int par = (idx - 1) >> 1;
+	    if(!before(p, s, prio[par], seq[par]))
+		break;
+	    set(idx, heap[par], prio[par], seq[par]);
+	    idx = par;
 	}
-	return(rv);
+	set(idx, ob, p, s);
     }
-    
-    public E element() {
-	E rv;
-	if((rv = peek()) == null)
-	    throw(new NoSuchElementException());
-	return(rv);
+
+    private void lower(Object ob, int p, long s, int idx) {
+	while(true) {
+	    int c = (idx << 1) + 1;
+	    if(c >= size)
+		break;
+	    if((c + 1 < size) && before(prio[c + 1], seq[c + 1], prio[c], seq[c]))
+		c = c + 1;
+	    if(!before(prio[c], seq[c], p, s))
+		break;
+	    set(idx, heap[c], prio[c], seq[c]);
+	    idx = c;
+	}
+	set(idx, ob, p, s);
+    }
+
+    private void place(Object ob, int p, long s, int idx) {
+	if((idx > 0) && before(p, s, prio[(idx - 1) >> 1], seq[(idx - 1) >> 1]))
+	    raise(ob, p, s, idx);
+	else
+	    lower(ob, p, s, idx);
+    }
+
+    private void resize(int nsz) {
+	heap = Arrays.copyOf(heap, nsz);
+	prio = Arrays.copyOf(prio, nsz);
+	seq = Arrays.copyOf(seq, nsz);
+    }
+
+    private void delete(int idx) {
+	Object ob = heap[idx];
+	index.remove(ob);
+	int last = --size;
+	Object rep = heap[last];
+	int rp = prio[last];
+	long rs = seq[last];
+	heap[last] = null;
+	if(rep != ob)
+	    place(rep, rp, rs, idx);
+	if((size <= heap.length >> 2) && (heap.length > 16))
+	    resize(heap.length / 2);
+    }
+
+    public boolean offer(E ob) {
+	if(ob == null)
+	    throw(new NullPointerException());
+	if(index.containsKey(ob))
+	    return(false);
+	if(heap.length == size)
+	    resize(Math.max(heap.length * 2, 16));
+	raise(ob, ob.priority(), nseq++, size++);
+	return(true);
+    }
+
+    /* Re-reads the priority of an element already in the queue and
+     * moves it to its new position. Returns false if the element is
+     * not queued. */
+    public boolean update(E ob) {
+	Integer idx = index.get(ob);
+	if(idx == null)
+	    return(false);
+	int i = idx;
+	int np = ob.priority();
+	if(np != prio[i])
+	    place(ob, np, seq[i], i);
+	return(true);
+    }
+
+    public E peek() {
+	return((size == 0) ? null : get(0));
     }
-    
+
     public E poll() {
-	E rv = peek();
-	removeid(rv);
-	return(rv);
+	if(size == 0)
+	    return(null);
+	E ret = get(0);
+	delete(0);
+	return(ret);
     }
-    
-    public E remove() {
-	E rv;
-	if((rv = poll()) == null)
-	    throw(new NoSuchElementException());
-	return(rv);
+
+    public boolean remove(Object ob) {
+	Integer idx = index.get(ob);
+	if(idx == null)
+	    return(false);
+	delete(idx);
+	return(true);
     }
 
     public boolean removeid(E el) {
-	for(Iterator<E> i = iterator(); i.hasNext();) {
-	    if(i.next() == el) {
-		i.remove();
-		return(true);
+	return(remove(el));
+    }
+
+    public boolean contains(Object ob) {
+	return(index.containsKey(ob));
+    }
+
+    public int size() {
+	return(size);
+    }
+
+    public void clear() {
+	heap = EMPTY;
+	prio = new int[0];
+	seq = new long[0];
+	index.clear();
+	size = 0;
+    }
+
+    public Iterator<E> iterator() {
+	return(new Iterator<E>() {
+		int i = 0;
+
+		public boolean hasNext() {
+		    return(i < size);
+		}
+
+		public E next() {
+		    if(i >= size)
+			throw(new NoSuchElementException());
+		    return(get(i++));
+		}
+	    });
+    }
+
+    private static class Bench implements Prioritized {
+	int prio;
+	Bench(int prio) {this.prio = prio;}
+	public int priority() {return(prio);}
+    }
+
+    private static Bench lpoll(List<Bench> q) {
+	Bench rv = null;
+	for(Bench e : q) {
+	    if((rv == null) || (e.prio > rv.prio))
+		rv = e;
+	}
+	if(rv != null)
+	    q.remove(rv);
+	return(rv);
+    }
+
+    /* Compares this queue to the previous linear-scan list queue
+     * under a loader-like load: fill, then interleave boosts, polls
+     * and re-adds. Usage: PrioQueue [ENTRIES [ROUNDS]] */
+    public static void main(String[] args) {
+	int n = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+	int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+	Random rnd = new Random(4711);
+	Bench[] els = new Bench[n];
+	for(int i = 0; i < n; i++)
+	    els[i] = new Bench(rnd.nextInt(10));
+	for(int r = 0; r < rounds; r++) {
+	    long sum;
+	    for(Bench e : els) e.prio = rnd.nextInt(10);
+	    double st = Utils.rtime();
+	    PrioQueue<Bench> hq = new PrioQueue<>();
+	    for(Bench e : els) hq.add(e);
+	    sum = 0;
+	    for(int i = 0; i < n; i++) {
+		Bench b = els[rnd.nextInt(n)];
+		b.prio++;
+		hq.update(b);
+		Bench p = hq.poll();
+		sum += p.prio;
+		hq.add(p);
+	    }
+	    while(!hq.isEmpty()) sum += hq.poll().prio;
+	    double ht = Utils.rtime() - st;
+
+	    for(Bench e : els) e.prio = rnd.nextInt(10);
+	    st = Utils.rtime();
+	    List<Bench> lq = new LinkedList<>();
+	    for(Bench e : els) lq.add(e);
+	    for(int i = 0; i < n; i++) {
+		Bench b = els[rnd.nextInt(n)];
+		b.prio++;
+		Bench p = lpoll(lq);
+		sum += p.prio;
+		lq.add(p);
 	    }
+	    while(!lq.isEmpty()) sum += lpoll(lq).prio;
+	    double lt = Utils.rtime() - st;
+	    System.out.printf("round %d: heap %.3f ms, list %.3f ms (%d)\n", r, ht * 1000, lt * 1000, sum);
 	}
-	return(false);
     }
 }
@@ -30,6 +30,7 @@ import java.io.*;
 
 public interface ResCache {
     public static final Config.Variable<java.net.URI> cachebase = Config.Variable.propu("haven.cachebase", "");
+    public static final Config.Variable<String> cachetype = Config.Variable.prop("haven.cachetype", "dir");
     public OutputStream store(String name) throws IOException;
     public InputStream fetch(String name) throws IOException;
     
@@ -37,6 +38,11 @@ public interface ResCache {
     
     public static class StupidJavaCodeContainer {
 	private static ResCache makeglobal() {
+	    if(cachetype.get().equals("pack")) {
+		ResCache ret = PackCache.create();
+		if(ret != null)
+		    return(ret);
+	    }
 	    return(HashDirCache.create());
 	}
     }
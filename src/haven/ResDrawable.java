@@ -102,7 +102,7 @@ public class ResDrawable extends Drawable implements Sprite.Owner, EquipTarget {
 	return(null);
     }
 
-    @OCache.DeltaType(OCache.OD_RES)
+    @OCache.DeltaType(value = OCache.OD_RES, supersedes = {OCache.OD_RES})
     public static class $cres implements OCache.Delta {
 	public void apply(Gob g, OCache.AttrDelta msg) {
 	    int resid = msg.uint16();
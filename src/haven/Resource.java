@@ -546,8 +546,14 @@ public class Resource implements Serializable {
 	    }
 
 	    public void boostprio(int prio) {
-		if(this.prio < prio)
-		    this.prio = prio;
+		if(this.prio < prio) {
+		    synchronized(queue) {
+			if(this.prio < prio) {
+			    this.prio = prio;
+			    queue.update(this);
+			}
+		    }
+		}
 		Queued p = awaiting;
 		if(p != null)
 		    p.boostprio(prio);
@@ -1825,6 +1831,7 @@ public class Resource implements Serializable {
 	public final String id;
 	public final Map<String, Object> info;
 	public double bvol = 1.0;
+	private transient Object ckey = null;
 
 	public Audio(Message buf) {
 	    int ver = buf.uint8();
@@ -1852,12 +1859,31 @@ public class Resource implements Serializable {
 
 	public void init() {}
 
-	public haven.Audio.CS stream() {
-	    try {
-		return(new haven.Audio.VorbisClip(new ByteArrayInputStream(coded)));
-	    } catch(IOException e) {
-		throw(new RuntimeException(e));
+	/* Identifies this clip by resource name, version and layer
+	 * index rather than by reference, so that the PCM cache
+	 * doesn't keep resources from being unloaded, and replaced
+	 * versions of a resource aren't served from it. */
+	private Object cachekey() {
+	    if(ckey == null) {
+		int idx = 0;
+		for(Layer l : layers) {
+		    if(l == this)
+			break;
+		    idx++;
+		}
+		ckey = Arrays.asList(name, ver, idx);
 	    }
+	    return(ckey);
+	}
+
+	public haven.Audio.CS stream() {
+	    return(haven.Audio.pcmcache.stream(cachekey(), () -> {
+			try {
+			    return(new haven.Audio.VorbisClip(new ByteArrayInputStream(coded)));
+			} catch(IOException e) {
+			    throw(new RuntimeException(e));
+			}
+		    }));
 	}
 
 	public String layerid() {return(id);}
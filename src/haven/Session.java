@@ -268,10 +268,12 @@ public class Session implements Resource.Resolver {
 	    }
 	};
 
-    public Session(Transport conn, User user) {
+    /* Sessions may share a loader, so that running many of them
+     * does not cost a set of loader threads each. */
+    public Session(Transport conn, User user, Loader loader) {
 	this.conn = conn;
 	this.user = user;
-	this.glob = new Glob(this);
+	this.glob = new Glob(this, loader);
 	conn.add(conncb);
 	if(record.get() != null) {
 	    try {
@@ -284,6 +286,10 @@ public class Session implements Resource.Resolver {
 	queuemsg((PMessage)new PMessage(RMessage.RMSG_SESSKEY).addtto(SignKey.JWK.format(sesskey, true)));
     }
 
+    public Session(Transport conn, User user) {
+	this(conn, user, new Loader());
+    }
+
     public static Session connect(SocketAddress server, User user, boolean encrypt, byte[] cookie, Object... args) throws InterruptedException {
 	Connection conn = new Connection(server);
 	Session sess = new Session(conn, user);
@@ -318,6 +324,20 @@ public class Session implements Resource.Resolver {
 	}
     }
 
+    /* Non-blocking variants of getuimsg, for users that are
+     * notified of new messages by other means. */
+    public PMessage polluimsg() {
+	synchronized(uimsgs) {
+	    return(uimsgs.poll());
+	}
+    }
+
+    public boolean drained() {
+	synchronized(uimsgs) {
+	    return(closed && uimsgs.isEmpty());
+	}
+    }
+
     public void sendmsg(PMessage msg) {
 	conn.send(msg);
     }
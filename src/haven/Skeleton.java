@@ -672,10 +672,12 @@ public class Skeleton {
 	protected boolean speedmod = false;
 	protected double nspeed = 0.0;
 	private boolean back = false;
+	private final Samples samples;
 	
-	public TrackMod(ModOwner owner, Track[] tracks, FxTrack[] effects, float len, WrapMode mode) {
+	private TrackMod(ModOwner owner, Track[] tracks, Samples samples, FxTrack[] effects, float len, WrapMode mode) {
 	    super(owner);
 	    this.tracks = tracks;
+	    this.samples = samples;
 	    this.effects = effects;
 	    this.len = len;
 	    this.mode = mode;
@@ -692,10 +694,19 @@ public class Skeleton {
 	    aupdate(0.0f);
 	}
 
+	public TrackMod(ModOwner owner, Track[] tracks, FxTrack[] effects, float len, WrapMode mode) {
+	    this(owner, tracks, null, effects, len, mode);
+	}
+
+	public TrackMod(ModOwner owner, Samples samples, FxTrack[] effects, WrapMode mode) {
+	    this(owner, samples.tracks, samples, effects, samples.len, mode);
+	}
 	
 	public void aupdate(float time) {
 	    if(time > len)
 		time = len;
+	    if((samples != null) && samples.get(time, scale, lpos, lrot))
+		return;
 	    reset();
 	    for(int i = 0; i < tracks.length; i++) {
 		Track t = tracks[i];
@@ -739,6 +750,8 @@ public class Skeleton {
 		    lpos[i][2] = (cf.trans[2] + ((nf.trans[2] - cf.trans[2]) * d)) * scale;
 		}
 	    }
+	    if(samples != null)
+		samples.put(time, scale, lpos, lrot);
 	}
 
 	private void playfx(float ot, float nt) {
@@ -836,6 +849,63 @@ public class Skeleton {
 	}
     }
 
+    /* Recently sampled states of a set of tracks, shared between
+     * all TrackMods playing them, so that mods at the same point of
+     * the same animation (such as a crowd started in the same tick)
+     * only need to sample it once between them. Samples are copied
+     * in and out rather than shared by reference, since PoseMod
+     * arrays are mutable. */
+    public static class Samples {
+	public final Track[] tracks;
+	public final float len;
+	private final float[] times, scales;
+	private final float[][][] lpos, lrot;
+	private int next = 0;
+	public long hits, misses;
+
+	public Samples(Track[] tracks, float len, int size) {
+	    this.tracks = tracks;
+	    this.len = len;
+	    this.times = new float[size];
+	    this.scales = new float[size];
+	    this.lpos = new float[size][tracks.length][3];
+	    this.lrot = new float[size][tracks.length][4];
+	    Arrays.fill(times, Float.NaN);
+	}
+
+	public Samples(Track[] tracks, float len) {
+	    this(tracks, len, 32);
+	}
+
+	private static void copy(float[][] dpos, float[][] drot, float[][] spos, float[][] srot) {
+	    for(int i = 0; i < dpos.length; i++) {
+		float[] dp = dpos[i], sp = spos[i], dr = drot[i], sr = srot[i];
+		dp[0] = sp[0]; dp[1] = sp[1]; dp[2] = sp[2];
+		dr[0] = sr[0]; dr[1] = sr[1]; dr[2] = sr[2]; dr[3] = sr[3];
+	    }
+	}
+
+	public synchronized boolean get(float time, float scale, float[][] lpos, float[][] lrot) {
+	    for(int i = 0; i < times.length; i++) {
+		if((times[i] == time) && (scales[i] == scale)) {
+		    copy(lpos, lrot, this.lpos[i], this.lrot[i]);
+		    hits++;
+		    return(true);
+		}
+	    }
+	    misses++;
+	    return(false);
+	}
+
+	public synchronized void put(float time, float scale, float[][] lpos, float[][] lrot) {
+	    int i = next;
+	    next = (next + 1) % times.length;
+	    copy(this.lpos[i], this.lrot[i], lpos, lrot);
+	    times[i] = time;
+	    scales[i] = scale;
+	}
+    }
+
     public static class Track {
 	public final String bone;
 	public final Frame[] frames;
@@ -1019,6 +1089,7 @@ public class Skeleton {
 	public final double nspeed;
 	public final WrapMode defmode;
 	private Skeleton refskel;
+	private final Map<Skeleton, Samples> samples = new WeakHashMap<>();
 	
 	private Track.Frame[] parseframes(int fmt, Message buf) {
 	    Track.Frame[] frames = new Track.Frame[buf.uint16()];
@@ -1170,6 +1241,15 @@ public class Skeleton {
 	    return(remap);
 	}
 
+	private Samples samples(Skeleton skel) {
+	    synchronized(samples) {
+		Samples ret = samples.get(skel);
+		if(ret == null)
+		    samples.put(skel, ret = new Samples(iaIaCthulhuFhtagn(skel), len));
+		return(ret);
+	    }
+	}
+
 	public float skelscale(Skeleton from, Skeleton to) {
 	    float acc = 0;
 	    int n = 0;
@@ -1190,7 +1270,7 @@ public class Skeleton {
 
 	public class ResMod extends TrackMod {
 	    public ResMod(ModOwner owner, Skeleton skel, WrapMode mode) {
-		skel.super(owner, iaIaCthulhuFhtagn(skel), ResPose.this.effects, ResPose.this.len, mode);
+		skel.super(owner, samples(skel), ResPose.this.effects, mode);
 		if(ResPose.this.nspeed > 0) {
 		    this.speedmod = true;
 		    this.nspeed = ResPose.this.nspeed;
@@ -1339,4 +1419,63 @@ public class Skeleton {
 		});
 	}
     }
+
+    /* Headless benchmark of animated posing: poses a crowd of
+     * skeletons playing the same animation at a limited number of
+     * distinct phases, with and without shared sampling.
+     * Usage: Skeleton [SKELETONS [PHASES [BONES [TICKS]]]] */
+    public static void main(String[] args) {
+	int nskel = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+	int nph = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+	int nb = (args.length > 2) ? Integer.parseInt(args[2]) : 40;
+	int nt = (args.length > 3) ? Integer.parseInt(args[3]) : 500;
+	Random rnd = new Random(1);
+	List<Bone> bones = new ArrayList<>();
+	for(int i = 0; i < nb; i++) {
+	    Coord3f ax = new Coord3f(rnd.nextFloat() - 0.5f, rnd.nextFloat() - 0.5f, rnd.nextFloat() - 0.5f).norm();
+	    Bone b = new Bone("b" + i, new Coord3f(0, 0, 1), ax, rnd.nextFloat());
+	    if(i > 0)
+		b.parent = bones.get(rnd.nextInt(i));
+	    bones.add(b);
+	}
+	Skeleton skel = new Skeleton(bones);
+	float len = 2.0f;
+	Track[] tracks = new Track[nb];
+	for(int i = 0; i < nb; i++) {
+	    Track.Frame[] frames = new Track.Frame[10];
+	    for(int o = 0; o < frames.length; o++) {
+		float[] ax = new Coord3f(rnd.nextFloat() - 0.5f, rnd.nextFloat() - 0.5f, rnd.nextFloat() - 0.5f).norm().to3a();
+		frames[o] = new Track.Frame(o * len / frames.length, new float[] {rnd.nextFloat(), rnd.nextFloat(), rnd.nextFloat()},
+					    rotasq(new float[4], ax, rnd.nextFloat() * 3.0f));
+	    }
+	    tracks[skel.blist[i].idx] = new Track("b" + i, frames);
+	}
+	for(int pass = 0; pass < 4; pass++) {
+	    boolean shared = (pass % 2) == 1;
+	    Samples samples = shared ? new Samples(tracks, len) : null;
+	    Pose[] poses = new Pose[nskel];
+	    TrackMod[] mods = new TrackMod[nskel];
+	    for(int i = 0; i < nskel; i++) {
+		poses[i] = skel.new Pose(skel.bindpose);
+		mods[i] = shared ? skel.new TrackMod(ModOwner.nil, samples, new FxTrack[0], WrapMode.LOOP)
+		                 : skel.new TrackMod(ModOwner.nil, tracks, new FxTrack[0], len, WrapMode.LOOP);
+		mods[i].tick((i % nph) * len / nph);
+	    }
+	    double st = Utils.rtime();
+	    for(int t = 0; t < nt; t++) {
+		for(int i = 0; i < nskel; i++) {
+		    mods[i].tick(1.0f / 60.0f);
+		    poses[i].reset();
+		    mods[i].apply(poses[i]);
+		    poses[i].gbuild();
+		}
+	    }
+	    double el = Utils.rtime() - st;
+	    System.out.printf("%s: %.1f us/tick, %.2f us/skeleton", shared ? "shared" : "unshared",
+			      el * 1e6 / nt, el * 1e6 / (nt * nskel));
+	    if(shared)
+		System.out.printf(", %d hits, %d misses", samples.hits, samples.misses);
+	    System.out.println();
+	}
+    }
 }
@@ -82,10 +82,7 @@ public class Tileset extends Resource.Layer {
 	    public Obj(Buffer buf, Coord2d c, double a) {
 		super(buf.glob, c);
 		this.a = a;
-		Coord2d ul = Coord2d.of(buf.area.ul).mul(tilesz);
-		Random r = new Random(buf.seed);
-		r.setSeed(r.nextLong() ^ Double.doubleToLongBits(rc.x - ul.x));
-		this.seed = r.nextLong() ^ Double.doubleToLongBits(rc.y - ul.y);
+		this.seed = buf.seed(c);
 	    }
 
 	    public Random mkrandoom() {
@@ -93,6 +90,97 @@ public class Tileset extends Resource.Layer {
 	    }
 	}
 
+	/* A flavor object consisting only of a sprite placed on the
+	 * map surface. Unlike a full Obj, it carries no attributes
+	 * and computes its placement only once, and it occupies a
+	 * single render tree slot, so that the many identical ones in
+	 * a cut are left to be batched by the instancer. */
+	public static class SprObj implements RenderTree.Node, Sprite.Owner {
+	    public final Glob glob;
+	    public final Coord2d rc;
+	    public final double a;
+	    public final Resource res;
+	    public final Sprite spr;
+	    private final long seed;
+	    private Pipe.Op place = null;
+
+	    protected SprObj(Buffer buf, Coord2d c, double a, Resource res) {
+		this.glob = buf.glob;
+		this.rc = c;
+		this.a = a;
+		this.res = res;
+		this.seed = buf.seed(c);
+		this.spr = Sprite.create(this, res, Message.nil);
+		spr.age();
+	    }
+
+	    /* Returns null unless the resource is known to require
+	     * nothing more of its owner than such an object can
+	     * provide, in which case a full Obj should be used
+	     * instead. Sprite code may look for a gob owner at any
+	     * time, not only when constructed, so only plain
+	     * ModSprites of resources with no code or sprite links of
+	     * their own are accepted, as ModSprite does without a gob
+	     * when it has none. */
+	    public static SprObj make(Buffer buf, Coord2d c, double a, Resource res) {
+		Resource.Props props = res.layer(Resource.props);
+		if((props != null) && (props.get("place") != null))
+		    return(null);
+		if((res.layer(Resource.CodeEntry.class) != null) || (res.layer(SpriteLink.class) != null))
+		    return(null);
+		SprObj ret = new SprObj(buf, c, a, res);
+		if(ret.spr.getClass() != ModSprite.class) {
+		    ret.spr.dispose();
+		    return(null);
+		}
+		return(ret);
+	    }
+
+	    /* As for Gob, and placed as a Gob with no attributes would
+	     * be by them. */
+	    public Gob.Placer placer() {
+		return(glob.map.mapplace);
+	    }
+
+	    protected Pipe.Op getmapstate(Coord3f pc) {
+		Tiler tile = glob.map.tiler(glob.map.gettile(Coord2d.of(pc).floor(tilesz)));
+		return(tile.drawstate(glob, pc));
+	    }
+
+	    private synchronized Pipe.Op place() {
+		if(place == null) {
+		    Gob.Placer pl = placer();
+		    Coord3f oc = pl.getc(rc, a);
+		    Coord3f xc = Coord3f.of(oc.x, -oc.y, oc.z);
+		    place = Pipe.Op.compose(new Location(Transform.makexlate(new Matrix4f(), xc), "gobx"),
+					    new Location(pl.getr(Coord2d.of(oc), a), "gob"),
+					    getmapstate(oc),
+					    new TickList.Monitor(this));
+		}
+		return(place);
+	    }
+
+	    public void added(RenderTree.Slot slot) {
+		slot.ostate(place());
+		slot.add(spr);
+	    }
+
+	    public void ctick(double dt) {
+		spr.tick(dt);
+	    }
+
+	    public void gtick(Render g) {
+		spr.gtick(g);
+	    }
+
+	    private static final ClassResolver<SprObj> ctxr = new ClassResolver<SprObj>()
+		.add(Glob.class, o -> o.glob)
+		.add(Session.class, o -> o.glob.sess);
+	    public <T> T context(Class<T> cl) {return(ctxr.context(cl, this));}
+	    public Resource getres() {return(res);}
+	    public Random mkrandoom() {return(new Random(seed));}
+	}
+
 	public static class GridObj extends Obj {
 	    public GridObj(Buffer buf, Coord2d c, double a) {
 		super(buf, c, a);
@@ -116,6 +204,7 @@ public class Tileset extends Resource.Layer {
 	    public final Area area;
 	    public final long seed;
 	    final Map<NodeWrap, Collection<Gob>> mats = new HashMap<>();
+	    final Map<NodeWrap, Collection<SprObj>> sprs = new HashMap<>();
 	    private final Map<Object, Object> data = new IdentityHashMap<>();
 	    private final Collection<Runnable> finish = new LinkedList<>();
 
@@ -140,6 +229,20 @@ public class Tileset extends Resource.Layer {
 		add(ob, null);
 	    }
 
+	    public void add(SprObj ob, NodeWrap mat) {
+		Collection<SprObj> ret = sprs.get(mat);
+		if(ret == null)
+		    sprs.put(mat, ret = new ArrayList<>());
+		ret.add(ob);
+	    }
+
+	    public long seed(Coord2d c) {
+		Coord2d ul = Coord2d.of(area.ul).mul(tilesz);
+		Random r = new Random(seed);
+		r.setSeed(r.nextLong() ^ Double.doubleToLongBits(c.x - ul.x));
+		return(r.nextLong() ^ Double.doubleToLongBits(c.y - ul.y));
+	    }
+
 	    @SuppressWarnings("unchecked")
 	    public <T> T datum(Function<Buffer, T> id) {
 		T ret = (T)data.get(id);
@@ -301,12 +404,21 @@ public class Tileset extends Resource.Layer {
 	    DRandom trnd = new DRandom(new DRandom(seed).randl(res.name.hashCode(), trn.tile));
 	    Random ornd = new Random();
 	    Tileset set = trn.tileset(trn.tile);
+	    boolean light = true;
 	    for(Coord tc : trn.tiles()) {
 		ornd.setSeed(trnd.randl(tc.x - trn.area.ul.x, tc.y - trn.area.ul.y));
 		if(ornd.nextDouble() < p) {
-		    Gob g = new Flavor.Obj(buf,
-					   tc.mul(tilesz).add(tilesz.mul(ornd.nextDouble(), ornd.nextDouble())),
-					   ornd.nextDouble() * 2 * Math.PI);
+		    Coord2d c = tc.mul(tilesz).add(tilesz.mul(ornd.nextDouble(), ornd.nextDouble()));
+		    double a = ornd.nextDouble() * 2 * Math.PI;
+		    if(light) {
+			Flavor.SprObj ob = Flavor.SprObj.make(buf, c, a, res);
+			if(ob != null) {
+			    buf.add(ob, set.flavobjmat);
+			    continue;
+			}
+			light = false;
+		    }
+		    Gob g = new Flavor.Obj(buf, c, a);
 		    g.setattr(new ResDrawable(g, this.res, Message.nil));
 		    buf.add(g, set.flavobjmat);
 		}
@@ -0,0 +1,261 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven;
+
+/* A hierarchical timer wheel, for keeping track of large numbers of
+ * deadlines in constant time per operation. Timers are kept in
+ * buckets of TICK seconds each, the nearest BITS0 bits' worth of
+ * ticks in the first level, the next BITS1 bits' worth in the
+ * second, and anything later in a plain overflow list that is
+ * redistributed as time passes. Not thread-safe. */
+public class TimerWheel {
+    public static final int BITS0 = 8, BITS1 = 6;
+    private static final int N0 = 1 << BITS0, N1 = 1 << BITS1;
+    public final double tick;
+    private final Timer[] l0 = new Timer[N0], l1 = new Timer[N1];
+    private Timer ovf = null, held = null;
+    private int n0 = 0, n1 = 0, nov = 0, nheld = 0;
+    private long cur;
+    private boolean expiring = false;
+
+    public static abstract class Timer {
+	private TimerWheel wheel = null;
+	private Timer prev, next;
+	private double at;
+	private long k;
+	private int lvl;
+
+	public abstract void expire();
+
+	public boolean scheduled() {
+	    return(wheel != null);
+	}
+
+	public double deadline() {
+	    return(at);
+	}
+    }
+
+    public TimerWheel(double tick, double now) {
+	this.tick = tick;
+	this.cur = (long)Math.floor(now / tick);
+    }
+
+    private void link(Timer t) {
+	long k = t.k = Math.max(t.k, cur);
+	Timer[] l;
+	int i;
+	if(k - cur < N0) {
+	    l = l0; i = (int)(k & (N0 - 1)); t.lvl = 0; n0++;
+	} else if((k >> BITS0) - (cur >> BITS0) < N1) {
+	    l = l1; i = (int)((k >> BITS0) & (N1 - 1)); t.lvl = 1; n1++;
+	} else {
+	    t.lvl = 2; nov++;
+	    t.prev = null;
+	    if((t.next = ovf) != null)
+		ovf.prev = t;
+	    ovf = t;
+	    return;
+	}
+	t.prev = null;
+	if((t.next = l[i]) != null)
+	    l[i].prev = t;
+	l[i] = t;
+    }
+
+    /* Timers scheduled while expiring are held aside until done, so
+     * that they are neither run twice nor left behind in a bucket
+     * that has already been passed. */
+    private void hold(Timer t) {
+	t.lvl = 3; nheld++;
+	t.prev = null;
+	if((t.next = held) != null)
+	    held.prev = t;
+	held = t;
+    }
+
+    private void unlink(Timer t) {
+	if(t.prev != null) {
+	    t.prev.next = t.next;
+	} else {
+	    switch(t.lvl) {
+	    case 0: l0[(int)(t.k & (N0 - 1))] = t.next; break;
+	    case 1: l1[(int)((t.k >> BITS0) & (N1 - 1))] = t.next; break;
+	    case 2: ovf = t.next; break;
+	    default: held = t.next; break;
+	    }
+	}
+	if(t.next != null)
+	    t.next.prev = t.prev;
+	t.prev = t.next = null;
+	switch(t.lvl) {
+	case 0: n0--; break;
+	case 1: n1--; break;
+	case 2: nov--; break;
+	default: nheld--; break;
+	}
+    }
+
+    public void schedule(Timer t, double at) {
+	if(t.wheel != null) {
+	    if(t.wheel != this)
+		throw(new IllegalStateException("timer scheduled on another wheel"));
+	    unlink(t);
+	}
+	t.at = at;
+	t.k = Math.max((long)Math.floor(at / tick), cur);
+	t.wheel = this;
+	if(expiring)
+	    hold(t);
+	else
+	    link(t);
+    }
+
+    public void cancel(Timer t) {
+	if(t.wheel == null)
+	    return;
+	if(t.wheel != this)
+	    throw(new IllegalStateException("timer scheduled on another wheel"));
+	unlink(t);
+	t.wheel = null;
+    }
+
+    public int size() {
+	return(n0 + n1 + nov + nheld);
+    }
+
+    /* Called whenever cur enters a new level-0 round. */
+    private void cascade() {
+	int i = (int)((cur >> BITS0) & (N1 - 1));
+	for(Timer t = l1[i], n; t != null; t = n) {
+	    n = t.next;
+	    n1--;
+	    link(t);
+	}
+	l1[i] = null;
+	if(nov > 0) {
+	    Timer ov = ovf;
+	    ovf = null;
+	    nov = 0;
+	    for(Timer t = ov, n; t != null; t = n) {
+		n = t.next;
+		link(t);
+	    }
+	}
+    }
+
+    /* Expires all timers whose deadlines have passed, in order of
+     * their buckets. Timers may be rescheduled from within expire(),
+     * but are then not run again by the same call. */
+    public void expire(double now) {
+	long target = (long)Math.floor(now / tick);
+	expiring = true;
+	try {
+	    expire(now, target);
+	} finally {
+	    expiring = false;
+	    Timer h = held;
+	    held = null;
+	    nheld = 0;
+	    for(Timer t = h, n; t != null; t = n) {
+		n = t.next;
+		link(t);
+	    }
+	}
+    }
+
+    private void expire(double now, long target) {
+	while(true) {
+	    int i = (int)(cur & (N0 - 1));
+	    Timer due = null;
+	    for(Timer t = l0[i], n; t != null; t = n) {
+		n = t.next;
+		if(t.at <= now) {
+		    unlink(t);
+		    t.wheel = null;
+		    t.next = due;
+		    due = t;
+		}
+	    }
+	    for(Timer t = due, n; t != null; t = n) {
+		n = t.next;
+		t.next = null;
+		if(t.wheel == null)
+		    t.expire();
+	    }
+	    if(cur >= target)
+		break;
+	    long next;
+	    if(n0 + n1 + nov == 0)
+		next = target;
+	    else if(n0 == 0)
+		next = Math.min(target, (cur | (N0 - 1)) + 1);
+	    else
+		next = cur + 1;
+	    boolean round = (next >> BITS0) != (cur >> BITS0);
+	    cur = next;
+	    if(round)
+		cascade();
+	}
+    }
+
+    private static double mindl(Timer l, double m) {
+	for(Timer t = l; t != null; t = t.next)
+	    m = ((m < 0) || (t.at < m)) ? t.at : m;
+	return(m);
+    }
+
+    /* The earliest deadline of any scheduled timer, or -1 if there
+     * are none. Only ever scans the buckets, never all timers. */
+    public double next() {
+	double ret = next0();
+	return((nheld > 0) ? mindl(held, ret) : ret);
+    }
+
+    private double next0() {
+	if(n0 > 0) {
+	    for(int o = 0; o < N0; o++) {
+		Timer l = l0[(int)((cur + o) & (N0 - 1))];
+		if(l != null) {
+		    /* The first level reaches into the next round, some
+		     * of which may still be in the second level. */
+		    return(mindl(l1[(int)(((cur >> BITS0) + 1) & (N1 - 1))], mindl(l, -1)));
+		}
+	    }
+	}
+	if(n1 > 0) {
+	    for(int o = 1; o < N1; o++) {
+		Timer l = l1[(int)(((cur >> BITS0) + o) & (N1 - 1))];
+		if(l != null)
+		    return(mindl(l, -1));
+	    }
+	}
+	if(nov > 0)
+	    return(mindl(ovf, -1));
+	return(-1);
+    }
+}
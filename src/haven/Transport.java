@@ -51,6 +51,10 @@ public interface Transport {
 		this.epoch = Utils.rtime();
 	    }
 
+	    protected double now() {
+		return(Utils.rtime() - epoch);
+	    }
+
 	    private void printf(String format, Object... args) {
 		try {
 		    out.write(String.format(format, args));
@@ -60,7 +64,7 @@ public interface Transport {
 	    }
 
 	    public void closed() {
-		printf("%4.6f close\n", Utils.rtime() - epoch);
+		printf("%4.6f close\n", now());
 		try {
 		    out.close();
 		} catch(IOException e) {
@@ -69,11 +73,11 @@ public interface Transport {
 	    }
 
 	    public void handle(PMessage msg) {
-		printf("%4.6f rmsg %d %s\n", Utils.rtime() - epoch, msg.type, Utils.bprint.enc(msg.bytes()));
+		printf("%4.6f rmsg %d %s\n", now(), msg.type, Utils.bprint.enc(msg.bytes()));
 	    }
 
 	    public void handle(OCache.ObjDelta msg) {
-		printf("%4.6f objd", Utils.rtime() - epoch);
+		printf("%4.6f objd", now());
 		String fl = "";
 		if(msg.initframe > 0) fl += "i";
 		if((msg.fl & 2) != 0) fl += "v";
@@ -87,7 +91,7 @@ public interface Transport {
 	    }
 
 	    public void mapdata(Message msg) {
-		printf("%4.6f map %s\n", Utils.rtime() - epoch, Utils.b64.enc(msg.bytes()));
+		printf("%4.6f map %s\n", now(), Utils.b64.enc(msg.bytes()));
 	    }
 	}
     }
@@ -95,7 +99,8 @@ public interface Transport {
     public static class Playback implements Transport {
 	public final BufferedReader in;
 	private final Collection<Callback> cbs = new ArrayList<>();
-	private boolean closed = false;
+	private boolean closed = false, realtime = true;
+	private double lasttm = 0;
 
 	public Playback(Reader in) {
 	    this.in = (in instanceof BufferedReader) ? (BufferedReader)in : new BufferedReader(in);
@@ -106,6 +111,19 @@ public interface Transport {
 	    return(this);
 	}
 
+	/* When not playing in real time, recorded timestamps are
+	 * ignored and statements are fed to the callbacks as fast as
+	 * they return. */
+	public Playback realtime(boolean realtime) {
+	    this.realtime = realtime;
+	    return(this);
+	}
+
+	/* Timestamp of the last statement played */
+	public double rectime() {
+	    return(lasttm);
+	}
+
 	public void close() {}
 	public void queuemsg(PMessage  pmsg) {}
 	public void send(PMessage msg) {}
@@ -154,9 +172,9 @@ public interface Transport {
 		    String[] w = split(ln);
 		    if((w.length < 1) || (w[0].charAt(0) == '#'))
 			continue;
-		    double tm = Double.parseDouble(w[0]);
+		    double tm = lasttm = Double.parseDouble(w[0]);
 		    double now = Utils.rtime() - epoch;
-		    if(tm > now) {
+		    if(realtime && (tm > now)) {
 			try {
 			    Thread.sleep((long)Math.ceil((tm - now) * 1000));
 			} catch(InterruptedException e) {
@@ -179,6 +197,7 @@ public interface Transport {
 			    if(w[2].indexOf('v') >= 0) fl |= 2;
 			    if(w[2].indexOf('o') >= 0) fl |= 4;
 			    OCache.ObjDelta delta = new OCache.ObjDelta(fl, Long.parseLong(w[3]), Integer.parseInt(w[4]));
+			    delta.rem = (w[2].indexOf('d') >= 0);
 			    int a = 5;
 			    if(w[2].indexOf('i') >= 0) delta.initframe = Integer.parseInt(w[a++]);
 			    for(; a < w.length; a++) {
@@ -216,5 +235,255 @@ public interface Transport {
 	public void start() {
 	    new HackThread(this::play, "Protocol playback thread").start();
 	}
+
+	/* Feeds a recording through a headless Session and RemoteUI
+	 * as fast as they will take it, without any GL context. */
+	public static class Benchmark implements Callback {
+	    public final Playback player;
+	    public final Session sess;
+	    public final RemoteUI rui;
+	    public final UI ui;
+	    private final Map<Integer, Defrag> frags = new HashMap<>();
+	    private long uialloc = 0;
+	    public long rmsgs, objds, attrs, mapfrags, grids;
+
+	    public Benchmark(Reader in) {
+		player = new Playback(in).realtime(false);
+		/* Added ahead of the session, so that grids can be
+		 * requested before MCache sees their data. */
+		player.add(this);
+		sess = new Session(player, new Session.User("Benchmark"));
+		rui = new RemoteUI(sess);
+		ui = new UI(null, Coord.of(800, 600), rui);
+	    }
+
+	    public void handle(PMessage msg) {
+		rmsgs++;
+	    }
+
+	    public void handle(OCache.ObjDelta delta) {
+		objds++;
+		attrs += delta.attrs.size();
+	    }
+
+	    public void mapdata(Message msg) {
+		mapfrags++;
+		int pktid = msg.int32();
+		int off = msg.uint16();
+		int len = msg.uint16();
+		Defrag buf = frags.get(pktid);
+		if(buf == null)
+		    frags.put(pktid, buf = new Defrag(len));
+		buf.add(msg.bytes(), off);
+		if(buf.done()) {
+		    frags.remove(pktid);
+		    sess.glob.map.request(buf.msg().coord());
+		    grids++;
+		}
+	    }
+
+	    private static long allocated(long id) {
+		java.lang.management.ThreadMXBean mx = java.lang.management.ManagementFactory.getThreadMXBean();
+		if(!(mx instanceof com.sun.management.ThreadMXBean))
+		    return(-1);
+		return(((com.sun.management.ThreadMXBean)mx).getThreadAllocatedBytes(id));
+	    }
+
+	    private static long allocated() {
+		long ret = 0;
+		for(long id : java.lang.management.ManagementFactory.getThreadMXBean().getAllThreadIds()) {
+		    long a = allocated(id);
+		    if(a < 0)
+			return(-1);
+		    ret += a;
+		}
+		return(ret);
+	    }
+
+	    public void run(PrintStream out) throws InterruptedException {
+		Thread uith = new HackThread(() -> {
+			try {
+			    rui.run(ui);
+			} catch(InterruptedException e) {
+			} finally {
+			    synchronized(this) {
+				uialloc = allocated(Thread.currentThread().getId());
+			    }
+			}
+		}, "Benchmark UI");
+		long a0 = allocated();
+		double st = Utils.rtime();
+		uith.start();
+		player.play();
+		double fed = Utils.rtime();
+		uith.join();
+		/* Loader threads may momentarily look idle between
+		 * tasks, so require it to stay idle for a little while. */
+		for(double idle = -1, now = Utils.rtime(); (now - fed) < 60; now = Utils.rtime()) {
+		    if(!sess.glob.loader.idle())
+			idle = -1;
+		    else if(idle < 0)
+			idle = now;
+		    else if(now - idle > 0.05)
+			break;
+		    Thread.sleep(1);
+		}
+		double et = Utils.rtime() - st;
+		long a1 = allocated();
+		synchronized(this) {
+		    a1 += uialloc;
+		}
+		double rec = player.rectime();
+		out.printf("recording: %.1f s, %d rmsgs, %d objds (%d attrs), %d map fragments (%d grids)\n", rec, rmsgs, objds, attrs, mapfrags, grids);
+		out.printf("elapsed: %.3f s (%.3f s feeding), %.1fx real time\n", et, fed - st, rec / et);
+		out.printf("messages/s: %.0f\n", (rmsgs + objds + mapfrags) / et);
+		out.printf("gob applies/s: %.0f (%d attrs/s)\n", objds / et, Math.round(attrs / et));
+		out.printf("grids decoded/s: %.1f\n", grids / et);
+		if((a0 >= 0) && (a1 >= 0) && (rec > 0))
+		    out.printf("allocation: %.1f MiB total, %.1f KiB per recorded second\n", (a1 - a0) / 1048576.0, ((a1 - a0) / 1024.0) / rec);
+		out.printf("loader: %s\n", sess.glob.loader.stats());
+	    }
+	}
+
+	/* Writes a small synthetic recording that only uses built-in
+	 * widgets and resource-free gob attributes, so that it can be
+	 * played without a resource server. */
+	public static void mksample(Writer out, double dur) {
+	    double[] clock = {0};
+	    Callback.Recorder rec = new Callback.Recorder(out) {
+		    protected double now() {return(clock[0]);}
+		};
+	    Random rnd = new Random(4711);
+	    int nwdg = 20, ngob = 300;
+	    MessageBuf msg = new MessageBuf();
+	    msg.addint32(1); msg.addstring("cnt"); msg.addint32(0);
+	    msg.addlist(Coord.z).adduint8(Message.T_END); msg.addlist(Coord.of(400, 400));
+	    rec.handle(new PMessage(RMessage.RMSG_NEWWDG, msg.fin()));
+	    for(int i = 0; i < nwdg; i++) {
+		msg = new MessageBuf();
+		msg.addint32(i + 2); msg.addstring("cnt"); msg.addint32(1);
+		msg.addlist(Coord.of(i * 10, 0)).adduint8(Message.T_END); msg.addlist(Coord.of(10, 10));
+		rec.handle(new PMessage(RMessage.RMSG_NEWWDG, msg.fin()));
+	    }
+	    int[] frames = new int[ngob];
+	    int pktid = 0;
+	    for(int tick = 0; clock[0] < dur; tick++, clock[0] = tick * 0.1) {
+		for(int i = 0; i < 5; i++) {
+		    msg = new MessageBuf();
+		    msg.addint32(rnd.nextInt(nwdg) + 2);
+		    if(rnd.nextBoolean()) {
+			msg.addstring("z"); msg.addlist(rnd.nextInt(10));
+		    } else {
+			msg.addstring("show"); msg.addlist(rnd.nextInt(2));
+		    }
+		    rec.handle(new PMessage(RMessage.RMSG_WDGMSG, msg.fin()));
+		}
+		for(int i = 0; i < ngob / 5; i++) {
+		    int g = rnd.nextInt(ngob);
+		    OCache.ObjDelta d = new OCache.ObjDelta(0, g + 1, ++frames[g]);
+		    if((tick > 0) && (rnd.nextInt(100) == 0)) {
+			d.rem = true;
+		    } else {
+			Coord c = Coord.of(rnd.nextInt(300 * 1024), rnd.nextInt(300 * 1024));
+			MessageBuf buf = new MessageBuf();
+			buf.addcoord(c); buf.adduint16(rnd.nextInt(65536));
+			d.attrs.add(new OCache.AttrDelta(d, OCache.OD_MOVE, buf.fin()));
+			if(rnd.nextInt(4) == 0) {
+			    buf = new MessageBuf();
+			    buf.addcoord(c); buf.addcoord(Coord.of(rnd.nextInt(2048) - 1024, rnd.nextInt(2048) - 1024));
+			    d.attrs.add(new OCache.AttrDelta(d, OCache.OD_LINBEG, buf.fin()));
+			}
+			if(rnd.nextInt(10) == 0) {
+			    buf = new MessageBuf();
+			    buf.addint16((short)rnd.nextInt(1000));
+			    d.attrs.add(new OCache.AttrDelta(d, OCache.OD_ZOFF, buf.fin()));
+			}
+			if(rnd.nextInt(10) == 0) {
+			    buf = new MessageBuf();
+			    buf.adduint8(rnd.nextInt(5));
+			    d.attrs.add(new OCache.AttrDelta(d, OCache.OD_HEALTH, buf.fin()));
+			}
+		    }
+		    rec.handle(d);
+		}
+		if((tick % 10) == 0) {
+		    int n = (tick == 0) ? 9 : 1;
+		    for(int i = 0; i < n; i++) {
+			Coord gc = (tick == 0) ? Coord.of((i % 3) - 1, (i / 3) - 1) : Coord.of(rnd.nextInt(3) - 1, rnd.nextInt(3) - 1);
+			byte[] data = mkgrid(rnd, gc);
+			int id = pktid++;
+			for(int off = 0; off < data.length; off += 1024) {
+			    int len = Math.min(data.length - off, 1024);
+			    MessageBuf frag = new MessageBuf();
+			    frag.addint32(id); frag.adduint16(off); frag.adduint16(data.length);
+			    frag.addbytes(data, off, len);
+			    rec.mapdata(new MessageBuf(frag.fin()));
+			}
+		    }
+		}
+	    }
+	    rec.closed();
+	}
+
+	private static void mklayer(MessageBuf buf, String nm, MessageBuf layer) {
+	    byte[] data = layer.fin();
+	    buf.addstring(nm);
+	    if(data.length < 0x80) {
+		buf.adduint8(data.length);
+	    } else {
+		buf.adduint8(0x80);
+		buf.addint32(data.length);
+	    }
+	    buf.addbytes(data);
+	}
+
+	private static byte[] mkgrid(Random rnd, Coord gc) {
+	    int n = MCache.cmaps.x * MCache.cmaps.y;
+	    MessageBuf buf = new MessageBuf();
+	    buf.addcoord(gc);
+	    buf.adduint8(1);
+	    MessageBuf id = new MessageBuf();
+	    id.addint64(rnd.nextLong());
+	    mklayer(buf, "m", id);
+	    MessageBuf tiles = new MessageBuf();
+	    for(int i = 0; i < 4; i++) {
+		tiles.adduint16(i); tiles.adduint16(i);
+		tiles.addstring("gfx/tiles/sample" + i); tiles.adduint16(1);
+	    }
+	    tiles.adduint16(65535);
+	    for(int i = 0; i < n; i++)
+		tiles.adduint8(rnd.nextInt(4));
+	    mklayer(buf, "t2", tiles);
+	    MessageBuf z = new MessageBuf();
+	    z.adduint8(2);
+	    z.addfloat32(0); z.addfloat32(0.01f);
+	    for(int i = 0; i < n; i++)
+		z.adduint16(rnd.nextInt(65536));
+	    mklayer(buf, "h", z);
+	    return(buf.fin());
+	}
+
+	public static void main(String[] args) throws Exception {
+	    if(args.length < 2) {
+		System.err.println("usage: Transport$Playback bench RECORDING");
+		System.err.println("       Transport$Playback mksample OUTPUT [SECONDS]");
+		System.exit(1);
+	    }
+	    switch(args[0]) {
+	    case "bench":
+		System.setProperty("java.awt.headless", "true");
+		try(Reader in = java.nio.file.Files.newBufferedReader(Utils.path(args[1]), Utils.utf8)) {
+		    new Benchmark(in).run(System.out);
+		}
+		break;
+	    case "mksample":
+		mksample(java.nio.file.Files.newBufferedWriter(Utils.path(args[1]), Utils.utf8), (args.length > 2) ? Double.parseDouble(args[2]) : 60);
+		break;
+	    default:
+		System.err.println("unknown command: " + args[0]);
+		System.exit(1);
+	    }
+	    System.exit(0);
+	}
     }
 }
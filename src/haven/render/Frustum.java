@@ -0,0 +1,73 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.render;
+
+import haven.*;
+
+/* The clip volume of a combined projection and view transform,
+ * expressed as six world-space planes, for coarse visibility
+ * tests. */
+public class Frustum {
+    private final float[] pl = new float[24];
+
+    public Frustum(Matrix4f xf) {
+	float[] m = xf.m;
+	for(int i = 0; i < 3; i++) {
+	    plane(i * 2,     m[3] + m[i], m[7] + m[4 + i], m[11] + m[8 + i], m[15] + m[12 + i]);
+	    plane(i * 2 + 1, m[3] - m[i], m[7] - m[4 + i], m[11] - m[8 + i], m[15] - m[12 + i]);
+	}
+    }
+
+    public Frustum(Projection proj, Camera view) {
+	this(proj.fin(Matrix4f.id).mul(view.fin(Matrix4f.id)));
+    }
+
+    private void plane(int i, float a, float b, float c, float d) {
+	float l = (float)Math.sqrt((a * a) + (b * b) + (c * c));
+	if(l > 0) {
+	    a /= l; b /= l; c /= l; d /= l;
+	}
+	pl[(i * 4) + 0] = a;
+	pl[(i * 4) + 1] = b;
+	pl[(i * 4) + 2] = c;
+	pl[(i * 4) + 3] = d;
+    }
+
+    /* Whether a sphere at (x, y, z) with radius r is at least
+     * partially inside the volume. Conservative near the corners. */
+    public boolean sphere(float x, float y, float z, float r) {
+	for(int i = 0; i < 24; i += 4) {
+	    if((pl[i] * x) + (pl[i + 1] * y) + (pl[i + 2] * z) + pl[i + 3] < -r)
+		return(false);
+	}
+	return(true);
+    }
+
+    public boolean sphere(Coord3f c, float r) {
+	return(sphere(c.x, c.y, c.z, r));
+    }
+}
@@ -73,11 +73,28 @@ import static haven.Utils.eq;
  *   states, there is no need for it to ensure use of the latest
  *   updated dstate. It is also interned on the DepInfo, and so may be
  *   shared by several tree-slots.
+ *
+ * Locking is also somewhat involved. By default, all updates lock
+ * the whole tree. A tree-slot may, however, be partitioned, which
+ * makes the subtree of each of its children a partition of its
+ * own. Updates within a partition hold the tree lock only shared,
+ * along with the partition's own lock, so that updates in different
+ * partitions may proceed concurrently. The state of the tree-slots
+ * outside of partitions, which partitioned updates still read and
+ * register reverse dependencies on, is only ever changed under the
+ * exclusive tree lock, apart from its lazily computed parts, which
+ * are synchronized on the tree-slots themselves. Clients are still
+ * notified under a single monitor, so that render lists need not
+ * cope with concurrent calls. Updates made from node or client
+ * callbacks during an update within a partition must stay within
+ * that partition; whole-tree updates needed by such callbacks can be
+ * deferred with whole() until the partitioned update is done.
  */
 public class RenderTree implements RenderList.Adapter, Disposable {
-    private final Lock lock = new ReentrantLock();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
     private final TreeSlot root;
     private final List<Client<?>> clients = new ArrayList<>();
+    private final ThreadLocal<List<Runnable>> deferred = ThreadLocal.withInitial(ArrayList::new);
     private int nslots, nleaves;
 
     public RenderTree() {
@@ -85,8 +102,88 @@ public class RenderTree implements RenderList.Adapter, Disposable {
 	nslots = nleaves = 1;
     }
 
+    private void checkexcl() {
+	if((lock.getReadHoldCount() > 0) && !lock.isWriteLockedByCurrentThread())
+	    throw(new IllegalStateException("whole-tree update from within a partitioned update"));
+    }
+
+    /* Locks the whole tree, excluding all other updates. */
     public Locked lock() {
-	return(new Locked(this.lock));
+	checkexcl();
+	return(new Locked(lock.writeLock()));
+    }
+
+    /* Runs an action which needs the whole tree locked. If called
+     * from within a partitioned update, which cannot wait for the
+     * whole tree, the action is instead run by the same thread once
+     * its outermost partitioned update is done. */
+    public void whole(Runnable action) {
+	if((lock.getReadHoldCount() > 0) && !lock.isWriteLockedByCurrentThread())
+	    deferred.get().add(action);
+	else
+	    action.run();
+    }
+
+    private void rundeferred() {
+	List<Runnable> q = deferred.get();
+	RuntimeException err = null;
+	while(!q.isEmpty()) {
+	    try {
+		q.remove(0).run();
+	    } catch(RuntimeException e) {
+		if(err == null)
+		    err = e;
+		else
+		    err.addSuppressed(e);
+	    }
+	}
+	if(err != null)
+	    throw(err);
+    }
+
+    private class Held implements AutoCloseable {
+	private final Lock tl, pl;
+
+	Held(Lock tl, Lock pl) {
+	    this.tl = tl;
+	    this.pl = pl;
+	}
+
+	public void close() {
+	    if(pl != null)
+		pl.unlock();
+	    tl.unlock();
+	    if((pl != null) && (lock.getReadHoldCount() == 0))
+		rundeferred();
+	}
+    }
+
+    private Held lock(TreeSlot part) {
+	if(part == null) {
+	    checkexcl();
+	    Lock tl = lock.writeLock();
+	    tl.lock();
+	    return(new Held(tl, null));
+	}
+	boolean nested = lock.getReadHoldCount() > 0;
+	Lock tl = lock.readLock();
+	tl.lock();
+	if(!part.plock.tryLock()) {
+	    /* A writer would have excluded the other holder, so this
+	     * thread only holds the lock of another partition, and
+	     * waiting for this one could deadlock. */
+	    if(nested) {
+		tl.unlock();
+		throw(new IllegalStateException("concurrently updated partition updated from within another partition"));
+	    }
+	    part.plock.lock();
+	}
+	return(new Held(tl, part.plock));
+    }
+
+    private synchronized void count(int dslots, int dleaves) {
+	nslots += dslots;
+	nleaves += dleaves;
     }
 
     private static class Client<R> {
@@ -390,6 +487,11 @@ public class RenderTree implements RenderList.Adapter, Disposable {
 	public Slot parent();
 	public void update();
 	public default void lockstate() {}
+	/* Makes the subtree of each child of this slot a partition of
+	 * its own, whose updates may be made concurrently with those
+	 * of other partitions. Must be called before any children are
+	 * added. */
+	public default void partition() {}
     }
 
     public static class SlotRemoved extends IllegalStateException {
@@ -417,44 +519,48 @@ public class RenderTree implements RenderList.Adapter, Disposable {
 	private TreeSlot[] children = null;
 	private int nchildren = 0;
 	private int pidx = -1;
+	private volatile boolean partitioned = false;
+	/* The root of the partition this slot is in, if any. */
+	final TreeSlot part;
+	final ReentrantLock plock;
 
 	private TreeSlot(RenderTree tree, TreeSlot parent, Node node) {
 	    this.tree = tree;
 	    this.parent = parent;
 	    this.node = node;
+	    this.part = (parent == null) ? null : parent.partitioned ? this : parent.part;
+	    this.plock = (part == this) ? new ReentrantLock() : null;
 	}
 
 	private void addch(TreeSlot ch) {
-	    if(ch.pidx != -1)
-		throw(new IllegalStateException());
-	    if(children == null)
-		children = new TreeSlot[1];
-	    else if(children.length <= nchildren + 1)
-		children = Arrays.copyOf(children, children.length * 2);
-	    int nidx = nchildren++;
-	    children[nidx] = ch;
-	    ch.pidx = nidx;
-
-	    tree.nslots++;
-	    if(nchildren > 1)
-		tree.nleaves++;
+	    synchronized(this) {
+		if(ch.pidx != -1)
+		    throw(new IllegalStateException());
+		if(children == null)
+		    children = new TreeSlot[1];
+		else if(children.length <= nchildren + 1)
+		    children = Arrays.copyOf(children, children.length * 2);
+		int nidx = nchildren++;
+		children[nidx] = ch;
+		ch.pidx = nidx;
+		tree.count(1, (nchildren > 1) ? 1 : 0);
+	    }
 	}
 
 	private void removech(TreeSlot ch) {
-	    int idx = ch.pidx;
-	    if(idx < 0)
-		throw(new IllegalStateException());
-	    if(children[idx] != ch)
-		throw(new RuntimeException());
-	    (children[idx] = children[nchildren - 1]).pidx = idx;
-	    children[nchildren - 1] = null;
-	    nchildren--;
-	    ch.pidx = -1;
+	    synchronized(this) {
+		int idx = ch.pidx;
+		if(idx < 0)
+		    throw(new IllegalStateException());
+		if(children[idx] != ch)
+		    throw(new RuntimeException());
+		(children[idx] = children[nchildren - 1]).pidx = idx;
+		children[nchildren - 1] = null;
+		nchildren--;
+		ch.pidx = -1;
+		tree.count(-1, (nchildren > 0) ? -1 : 0);
+	    }
 	    ch.setdstate(null);
-
-	    tree.nslots--;
-	    if(nchildren > 0)
-		tree.nleaves--;
 	}
 
 	public Iterable<TreeSlot> children() {
@@ -470,10 +576,10 @@ public class RenderTree implements RenderList.Adapter, Disposable {
 	}
 
 	public TreeSlot add(Node n, Pipe.Op state) {
-	    try(Locked lk = tree.lock()) {
+	    TreeSlot ch = new TreeSlot(tree, this, n);
+	    try(Held lk = tree.lock(ch.part)) {
 		if((parent != null) && (pidx < 0))
 		    throw(new SlotRemoved("adding " + String.valueOf(n), this));
-		TreeSlot ch = new TreeSlot(tree, this, n);
 		ch.cstate = state;
 		addch(ch);
 		synchronized(tree.clients) {
@@ -517,14 +623,14 @@ public class RenderTree implements RenderList.Adapter, Disposable {
 	}
 
 	public void clear() {
-	    try(Locked lk = tree.lock()) {
+	    try(Held lk = tree.lock(part)) {
 		while(nchildren > 0)
 		    children[nchildren - 1].remove();
 	    }
 	}
 
 	public void remove() {
-	    try(Locked lk = tree.lock()) {
+	    try(Held lk = tree.lock(part)) {
 		if((parent != null) && (pidx < 0))
 		    throw(new SlotRemoved(this));
 		while(nchildren > 0)
@@ -546,14 +652,14 @@ public class RenderTree implements RenderList.Adapter, Disposable {
 	    return(new DepPipe(parent.istate()).prep(cstate).prep(ostate).lock().intern());
 	}
 
-	private void remrdep(int stidx, TreeSlot rdep) {
+	private synchronized void remrdep(int stidx, TreeSlot rdep) {
 	    if((rdeps == null) || (rdeps.length <= stidx) ||
 	       (rdeps[stidx] == null) || !rdeps[stidx].remove(rdep))
 		throw(new RuntimeException("Reverse dependency did strangely not exist"));
 	}
 
 	@SuppressWarnings("unchecked")
-	private void addrdep(int stidx, TreeSlot rdep) {
+	private synchronized void addrdep(int stidx, TreeSlot rdep) {
 	    if(rdeps == null)
 		rdeps = (Collection<TreeSlot>[])new Collection[stidx + 1];
 	    else if(rdeps.length <= stidx)
@@ -651,7 +757,7 @@ public class RenderTree implements RenderList.Adapter, Disposable {
 	    }
 	}
 
-	private DepInfo dstate() {
+	private synchronized DepInfo dstate() {
 	    if(dstate == null)
 		setdstate(mkdstate(this.cstate, this.ostate));
 	    return(dstate);
@@ -672,6 +778,16 @@ public class RenderTree implements RenderList.Adapter, Disposable {
 	    stlock = true;
 	}
 
+	public void partition() {
+	    try(Held lk = tree.lock(part)) {
+		if(part != null)
+		    throw(new IllegalStateException("partitioning slot within a partition"));
+		if(nchildren > 0)
+		    throw(new IllegalStateException("slot partitioned after adding children"));
+		partitioned = true;
+	    }
+	}
+
 	private void chstate(Pipe.Op cstate, Pipe.Op ostate) {
 	    if((parent != null) && (pidx < 0))
 		throw(new SlotRemoved(this));
@@ -697,14 +813,14 @@ public class RenderTree implements RenderList.Adapter, Disposable {
 	}
 
 	public void cstate(Pipe.Op state) {
-	    try(Locked lk = tree.lock()) {
+	    try(Held lk = tree.lock(part)) {
 		if(state != this.cstate)
 		    chstate(state, this.ostate);
 	    }
 	}
 
 	public void ostate(Pipe.Op state) {
-	    try(Locked lk = tree.lock()) {
+	    try(Held lk = tree.lock(part)) {
 		if(state != this.ostate)
 		    chstate(this.cstate, state);
 	    }
@@ -742,7 +858,7 @@ public class RenderTree implements RenderList.Adapter, Disposable {
 	}
 
 	private Pipe pdstate = null;
-	private Pipe pdstate() {
+	private synchronized Pipe pdstate() {
 	    if(this.pdstate == null) {
 		if(stlock) {
 		    this.pdstate = StaticPipe.get(dstate());
@@ -755,7 +871,7 @@ public class RenderTree implements RenderList.Adapter, Disposable {
 	}
 
 	private Inheritance istate = null;
-	private Inheritance istate() {
+	private synchronized Inheritance istate() {
 	    if(istate == null) {
 		if(parent == null) {
 		    istate = new Inheritance(new Pipe[0], new int[0]);
@@ -178,7 +178,709 @@ public abstract class BGL {
 	public default void abort() {};
     }
 
+    /*
+     * Commands are recorded into a packed stream rather than as one
+     * closure object per call. Every command is an opcode in the int
+     * array, followed by its int and boolean arguments; float, long
+     * and object arguments go in their own arrays, in argument
+     * order. Commands that cannot be expressed that way are stored
+     * as Command objects behind OP_CMD.
+     */
+    static final int OP_CMD = 0;
+    static final int OP_CALLLIST = 1;
+    static final int OP_COPYBUFFERF = 2;
+    static final int OP_COPYBUFFERFA = 3;
+    static final int OP_ACTIVETEXTURE = 4;
+    static final int OP_ATTACHSHADER = 5;
+    static final int OP_BINDATTRIBLOCATION = 6;
+    static final int OP_BINDBUFFER = 7;
+    static final int OP_BINDFRAMEBUFFER = 8;
+    static final int OP_BINDRENDERBUFFER = 9;
+    static final int OP_BINDTEXTURE = 10;
+    static final int OP_BINDVERTEXARRAY = 11;
+    static final int OP_BLENDCOLOR = 12;
+    static final int OP_BLENDEQUATION = 13;
+    static final int OP_BLENDEQUATIONSEPARATE = 14;
+    static final int OP_BLENDFUNC = 15;
+    static final int OP_BLENDFUNCSEPARATE = 16;
+    static final int OP_BUFFERDATA = 17;
+    static final int OP_BUFFERSUBDATA = 18;
+    static final int OP_CLEAR = 19;
+    static final int OP_CLEARBUFFERFV = 20;
+    static final int OP_CLEARBUFFERIV = 21;
+    static final int OP_CLEARBUFFERUIV = 22;
+    static final int OP_CLEARCOLOR = 23;
+    static final int OP_CLEARDEPTH = 24;
+    static final int OP_COLORMASK = 25;
+    static final int OP_COLORMASKI = 26;
+    static final int OP_DELETEBUFFERS = 27;
+    static final int OP_DELETEFRAMEBUFFERS = 28;
+    static final int OP_DELETERENDERBUFFERS = 29;
+    static final int OP_DELETETEXTURES = 30;
+    static final int OP_DELETEVERTEXARRAYS = 31;
+    static final int OP_DELETESHADER = 32;
+    static final int OP_DELETEPROGRAM = 33;
+    static final int OP_CULLFACE = 34;
+    static final int OP_DEPTHFUNC = 35;
+    static final int OP_DEPTHMASK = 36;
+    static final int OP_DISABLE = 37;
+    static final int OP_DISABLEI = 38;
+    static final int OP_DISABLECLIENTSTATE = 39;
+    static final int OP_DISABLEVERTEXATTRIBARRAY = 40;
+    static final int OP_DRAWBUFFER = 41;
+    static final int OP_DRAWBUFFERS = 42;
+    static final int OP_DRAWARRAYSINSTANCED = 43;
+    static final int OP_DRAWARRAYS = 44;
+    static final int OP_DRAWELEMENTSINSTANCED = 45;
+    static final int OP_DRAWELEMENTS = 46;
+    static final int OP_DRAWRANGEELEMENTS = 47;
+    static final int OP_ENABLE = 48;
+    static final int OP_ENABLEI = 49;
+    static final int OP_ENABLECLIENTSTATE = 50;
+    static final int OP_ENABLEVERTEXATTRIBARRAY = 51;
+    static final int OP_DELETESYNC = 52;
+    static final int OP_FRAMEBUFFERTEXTURE2D = 53;
+    static final int OP_FRAMEBUFFERRENDERBUFFER = 54;
+    static final int OP_GETTEXIMAGE = 55;
+    static final int OP_GETTEXIMAGEOFF = 56;
+    static final int OP_LINEWIDTH = 57;
+    static final int OP_LINKPROGRAM = 58;
+    static final int OP_OBJECTLABEL = 59;
+    static final int OP_PIXELSTOREI = 60;
+    static final int OP_POINTSIZE = 61;
+    static final int OP_POLYGONMODE = 62;
+    static final int OP_POLYGONOFFSET = 63;
+    static final int OP_READBUFFER = 64;
+    static final int OP_READPIXELS = 65;
+    static final int OP_READPIXELSOFF = 66;
+    static final int OP_RENDERBUFFERSTORAGE = 67;
+    static final int OP_RENDERBUFFERSTORAGEMULTISAMPLE = 68;
+    static final int OP_SAMPLECOVERAGE = 69;
+    static final int OP_SCISSOR = 70;
+    static final int OP_TEXIMAGE2D = 71;
+    static final int OP_TEXSUBIMAGE2D = 72;
+    static final int OP_TEXIMAGE2DMULTISAMPLE = 73;
+    static final int OP_TEXIMAGE3D = 74;
+    static final int OP_TEXSUBIMAGE3D = 75;
+    static final int OP_TEXPARAMETERF = 76;
+    static final int OP_TEXPARAMETERFV = 77;
+    static final int OP_TEXPARAMETERI = 78;
+    static final int OP_UNIFORM1F = 79;
+    static final int OP_UNIFORM2F = 80;
+    static final int OP_UNIFORM3F = 81;
+    static final int OP_UNIFORM3FV = 82;
+    static final int OP_UNIFORM4F = 83;
+    static final int OP_UNIFORM4FV = 84;
+    static final int OP_UNIFORM1I = 85;
+    static final int OP_UNIFORM2I = 86;
+    static final int OP_UNIFORM3I = 87;
+    static final int OP_UNIFORM4I = 88;
+    static final int OP_UNIFORMMATRIX3FV = 89;
+    static final int OP_UNIFORMMATRIX4FV = 90;
+    static final int OP_USEPROGRAM = 91;
+    static final int OP_VERTEXATTRIBDIVISOR = 92;
+    static final int OP_VERTEXATTRIBPOINTER = 93;
+    static final int OP_VERTEXATTRIBIPOINTER = 94;
+    static final int OP_VIEWPORT = 95;
+    static final int OP_DEBUGMESSAGECONTROL = 96;
+    static final int NOPS = 97;
+
+    /* Argument kinds: i = int, z = boolean, f = float, d = double, l = long, o = object */
+    private static final String[] opnm = new String[NOPS];
+    private static final String[][] opargn = new String[NOPS][];
+    private static final char[][] opargt = new char[NOPS][];
+    private static final int[] opni = new int[NOPS], opnf = new int[NOPS], opnl = new int[NOPS], opno = new int[NOPS];
+    private static void op(int op, String nm, String args) {
+	if(opnm[op] != null)
+	    throw(new Error("Duplicate BGL opcode: " + op));
+	String[] al = args.isEmpty() ? new String[0] : args.split(" ");
+	opnm[op] = nm;
+	opargn[op] = new String[al.length];
+	opargt[op] = new char[al.length];
+	for(int i = 0; i < al.length; i++) {
+	    char t = opargt[op][i] = al[i].charAt(0);
+	    opargn[op][i] = al[i].substring(2);
+	    switch(t) {
+	    case 'i': case 'z': opni[op]++; break;
+	    case 'f': opnf[op]++; break;
+	    case 'd': case 'l': opnl[op]++; break;
+	    case 'o': opno[op]++; break;
+	    default: throw(new Error("Unknown BGL argument type: " + t));
+	    }
+	}
+    }
+    static {
+	op(OP_CMD, "bglCommand", "o:cmd");
+	op(OP_CALLLIST, "bglCallList", "o:list");
+	op(OP_COPYBUFFERF, "bglCopyBufferf", "o:dst i:doff o:src i:soff i:len");
+	op(OP_COPYBUFFERFA, "bglCopyBufferf", "o:dst i:doff o:src i:soff i:len");
+	op(OP_ACTIVETEXTURE, "glActiveTexture", "i:texture");
+	op(OP_ATTACHSHADER, "glAttachShader", "o:program o:shader");
+	op(OP_BINDATTRIBLOCATION, "glBindAttribLocation", "o:program o:index o:name");
+	op(OP_BINDBUFFER, "glBindBuffer", "i:target o:buffer");
+	op(OP_BINDFRAMEBUFFER, "glBindFramebuffer", "i:target o:buffer");
+	op(OP_BINDRENDERBUFFER, "glBindRenderbuffer", "i:target o:buffer");
+	op(OP_BINDTEXTURE, "glBindTexture", "i:target o:texture");
+	op(OP_BINDVERTEXARRAY, "glBindVertexArray", "o:array");
+	op(OP_BLENDCOLOR, "glBlendColor", "f:red f:green f:blue f:alpha");
+	op(OP_BLENDEQUATION, "glBlendEquation", "i:mode");
+	op(OP_BLENDEQUATIONSEPARATE, "glBlendEquationSeparate", "i:cmode i:amode");
+	op(OP_BLENDFUNC, "glBlendFunc", "i:sfac i:dfac");
+	op(OP_BLENDFUNCSEPARATE, "glBlendFuncSeparate", "i:csfac i:cdfac i:asfac i:adfac");
+	op(OP_BUFFERDATA, "glBufferData", "i:target l:size o:data i:usage");
+	op(OP_BUFFERSUBDATA, "glBufferSubData", "i:target l:offset l:size o:data");
+	op(OP_CLEAR, "glClear", "i:mask");
+	op(OP_CLEARBUFFERFV, "glClearBufferfv", "i:buffer i:drawbuffer o:value");
+	op(OP_CLEARBUFFERIV, "glClearBufferiv", "i:buffer i:drawbuffer o:value");
+	op(OP_CLEARBUFFERUIV, "glClearBufferuiv", "i:buffer i:drawbuffer o:value");
+	op(OP_CLEARCOLOR, "glClearColor", "f:r f:g f:b f:a");
+	op(OP_CLEARDEPTH, "glClearDepth", "d:d");
+	op(OP_COLORMASK, "glColorMask", "z:r z:g z:b z:a");
+	op(OP_COLORMASKI, "glColorMaski", "i:buf z:r z:g z:b z:a");
+	op(OP_DELETEBUFFERS, "glDeleteBuffers", "i:count o:buffers");
+	op(OP_DELETEFRAMEBUFFERS, "glDeleteFramebuffers", "i:count o:buffers");
+	op(OP_DELETERENDERBUFFERS, "glDeleteRenderbuffers", "i:count o:buffers");
+	op(OP_DELETETEXTURES, "glDeleteTextures", "i:count o:buffers");
+	op(OP_DELETEVERTEXARRAYS, "glDeleteVertexArrays", "i:count o:buffers");
+	op(OP_DELETESHADER, "glDeleteShader", "o:id");
+	op(OP_DELETEPROGRAM, "glDeleteProgram", "o:id");
+	op(OP_CULLFACE, "glCullFace", "i:mode");
+	op(OP_DEPTHFUNC, "glDepthFunc", "i:func");
+	op(OP_DEPTHMASK, "glDepthMask", "z:mask");
+	op(OP_DISABLE, "glDisable", "i:cap");
+	op(OP_DISABLEI, "glDisablei", "i:cap i:index");
+	op(OP_DISABLECLIENTSTATE, "glDisableClientState", "i:cap");
+	op(OP_DISABLEVERTEXATTRIBARRAY, "glDisableVertexAttribArray", "o:location i:offset");
+	op(OP_DRAWBUFFER, "glDrawBuffer", "i:buf");
+	op(OP_DRAWBUFFERS, "glDrawBuffers", "i:n o:bufs");
+	op(OP_DRAWARRAYSINSTANCED, "glDrawArraysInstanced", "i:mode i:first i:count i:primcount");
+	op(OP_DRAWARRAYS, "glDrawArrays", "i:mode i:first i:count");
+	op(OP_DRAWELEMENTSINSTANCED, "glDrawElementsInstanced", "i:mode i:count i:type l:indices i:primcount");
+	op(OP_DRAWELEMENTS, "glDrawElements", "i:mode i:count i:type l:indices");
+	op(OP_DRAWRANGEELEMENTS, "glDrawRangeElements", "i:mode i:start i:end i:count i:type l:indices");
+	op(OP_ENABLE, "glEnable", "i:cap");
+	op(OP_ENABLEI, "glEnablei", "i:cap i:index");
+	op(OP_ENABLECLIENTSTATE, "glEnableClientState", "i:cap");
+	op(OP_ENABLEVERTEXATTRIBARRAY, "glEnableVertexAttribArray", "o:location i:offset");
+	op(OP_DELETESYNC, "glDeleteSync", "l:id");
+	op(OP_FRAMEBUFFERTEXTURE2D, "glFramebufferTexture2D", "i:target i:attachment i:textarget o:texture i:level");
+	op(OP_FRAMEBUFFERRENDERBUFFER, "glFramebufferRenderbuffer", "i:target i:attachment i:rbtarget o:renderbuffer");
+	op(OP_GETTEXIMAGE, "glGetTexImage", "i:target i:level i:format i:type o:pixels");
+	op(OP_GETTEXIMAGEOFF, "glGetTexImage", "i:target i:level i:format i:type l:offset");
+	op(OP_LINEWIDTH, "glLineWidth", "f:w");
+	op(OP_LINKPROGRAM, "glLinkProgram", "o:program");
+	op(OP_OBJECTLABEL, "glObjectLabel", "i:identifier o:name i:length o:label");
+	op(OP_PIXELSTOREI, "glPixelStorei", "i:pname i:param");
+	op(OP_POINTSIZE, "glPointSize", "f:size");
+	op(OP_POLYGONMODE, "glPolygonMode", "i:face i:mode");
+	op(OP_POLYGONOFFSET, "glPolygonOffset", "f:factor f:units");
+	op(OP_READBUFFER, "glReadBuffer", "i:buf");
+	op(OP_READPIXELS, "glReadPixels", "i:x i:y i:width i:height i:format i:type o:data");
+	op(OP_READPIXELSOFF, "glReadPixels", "i:x i:y i:width i:height i:format i:type l:offset");
+	op(OP_RENDERBUFFERSTORAGE, "glRenderbufferStorage", "i:target i:format i:width i:height");
+	op(OP_RENDERBUFFERSTORAGEMULTISAMPLE, "glRenderbufferStorageMultisample", "i:target i:samples i:format i:width i:height");
+	op(OP_SAMPLECOVERAGE, "glSampleCoverage", "f:value z:invert");
+	op(OP_SCISSOR, "glScissor", "i:x i:y i:w i:h");
+	op(OP_TEXIMAGE2D, "glTexImage2D", "i:target i:level i:internalformat i:width i:height i:border i:format i:type o:data");
+	op(OP_TEXSUBIMAGE2D, "glTexSubImage2D", "i:target i:level i:xoff i:yoff i:width i:height i:format i:type o:data");
+	op(OP_TEXIMAGE2DMULTISAMPLE, "glTexImage2DMultisample", "i:target i:samples i:internalformat i:width i:height z:fixedsamplelocations");
+	op(OP_TEXIMAGE3D, "glTexImage3D", "i:target i:level i:internalformat i:width i:height i:depth i:border i:format i:type o:data");
+	op(OP_TEXSUBIMAGE3D, "glTexSubImage3D", "i:target i:level i:xoff i:yoff i:zoff i:width i:height i:depth i:format i:type o:data");
+	op(OP_TEXPARAMETERF, "glTexParameterf", "i:target i:pname f:param");
+	op(OP_TEXPARAMETERFV, "glTexParameterfv", "i:target i:pname o:param");
+	op(OP_TEXPARAMETERI, "glTexParameteri", "i:target i:pname i:param");
+	op(OP_UNIFORM1F, "glUniform1f", "o:location f:v0");
+	op(OP_UNIFORM2F, "glUniform2f", "o:location f:v0 f:v1");
+	op(OP_UNIFORM3F, "glUniform3f", "o:location f:v0 f:v1 f:v2");
+	op(OP_UNIFORM3FV, "glUniform3fv", "o:location i:count o:val");
+	op(OP_UNIFORM4F, "glUniform4f", "o:location f:v0 f:v1 f:v2 f:v3");
+	op(OP_UNIFORM4FV, "glUniform4fv", "o:location i:count o:val");
+	op(OP_UNIFORM1I, "glUniform1i", "o:location i:v0");
+	op(OP_UNIFORM2I, "glUniform2i", "o:location i:v0 i:v1");
+	op(OP_UNIFORM3I, "glUniform3i", "o:location i:v0 i:v1 i:v2");
+	op(OP_UNIFORM4I, "glUniform4i", "o:location i:v0 i:v1 i:v2 i:v3");
+	op(OP_UNIFORMMATRIX3FV, "glUniformMatrix3fv", "o:location i:count z:transpose o:value");
+	op(OP_UNIFORMMATRIX4FV, "glUniformMatrix4fv", "o:location i:count z:transpose o:value");
+	op(OP_USEPROGRAM, "glUseProgram", "o:program");
+	op(OP_VERTEXATTRIBDIVISOR, "glVertexAttribDivisor", "o:location i:offset i:divisor");
+	op(OP_VERTEXATTRIBPOINTER, "glVertexAttribPointer", "o:location i:offset i:size i:type z:normalized i:stride l:pointer");
+	op(OP_VERTEXATTRIBIPOINTER, "glVertexAttribIPointer", "o:location i:offset i:size i:type i:stride l:pointer");
+	op(OP_VIEWPORT, "glViewport", "i:x i:y i:w i:h");
+	op(OP_DEBUGMESSAGECONTROL, "glDebugMessageControl", "i:source i:type i:severity o:ids z:enabled");
+	for(int i = 0; i < NOPS; i++) {
+	    if(opnm[i] == null)
+		throw(new Error("Undefined BGL opcode: " + i));
+	}
+    }
+
+    protected static class Stream {
+	int[] iv;
+	float[] fv;
+	long[] lv;
+	Object[] ov;
+	int ni, nf, nl, no;
+
+	/* Most commands carry only int and object arguments, so the
+	 * other arrays are left empty until first used. */
+	Stream(int c) {
+	    iv = new int[Math.max(c, 4)];
+	    fv = new float[0];
+	    lv = new long[0];
+	    ov = new Object[0];
+	}
+
+	Stream i(int v) {
+	    if(ni >= iv.length)
+		iv = Arrays.copyOf(iv, Math.max(iv.length * 2, 16));
+	    iv[ni++] = v;
+	    return(this);
+	}
+
+	Stream z(boolean v) {
+	    return(i(v ? 1 : 0));
+	}
+
+	Stream f(float v) {
+	    if(nf >= fv.length)
+		fv = Arrays.copyOf(fv, Math.max(fv.length * 2, 16));
+	    fv[nf++] = v;
+	    return(this);
+	}
+
+	Stream l(long v) {
+	    if(nl >= lv.length)
+		lv = Arrays.copyOf(lv, Math.max(lv.length * 2, 16));
+	    lv[nl++] = v;
+	    return(this);
+	}
+
+	Stream d(double v) {
+	    return(l(Double.doubleToRawLongBits(v)));
+	}
+
+	Stream o(Object v) {
+	    if(no >= ov.length)
+		ov = Arrays.copyOf(ov, Math.max(ov.length * 2, 16));
+	    ov[no++] = v;
+	    return(this);
+	}
+
+	void trim() {
+	    iv = Arrays.copyOf(iv, ni);
+	    fv = Arrays.copyOf(fv, nf);
+	    lv = Arrays.copyOf(lv, nl);
+	    ov = Arrays.copyOf(ov, no);
+	}
+    }
+
+    protected static class Reader {
+	final Stream s;
+	int ip, fp, lp, op;
+
+	Reader(Stream s, int ip, int fp, int lp, int op) {
+	    this.s = s;
+	    this.ip = ip; this.fp = fp; this.lp = lp; this.op = op;
+	}
+
+	Reader(Stream s) {
+	    this(s, 0, 0, 0, 0);
+	}
+
+	boolean more() {
+	    return(ip < s.ni);
+	}
+
+	int opcode() {
+	    return(s.iv[ip]);
+	}
+
+	private int i() {return(s.iv[ip++]);}
+	private boolean z() {return(s.iv[ip++] != 0);}
+	private float f() {return(s.fv[fp++]);}
+	private long l() {return(s.lv[lp++]);}
+	private double d() {return(Double.longBitsToDouble(s.lv[lp++]));}
+	private Object o() {return(s.ov[op++]);}
+	private ID id() {return((ID)s.ov[op++]);}
+	private int glid() {
+	    ID id = (ID)s.ov[op++];
+	    return((id == null) ? 0 : id.glid());
+	}
+	private ByteBuffer restore() {
+	    BufState ds = (BufState)s.ov[op++];
+	    ds.restore();
+	    return(ds.buf);
+	}
+	private int[] glids() {
+	    ID[] ids = (ID[])s.ov[op++];
+	    int[] buf = new int[ids.length];
+	    for(int i = 0; i < buf.length; i++)
+		buf[i] = ids[i].glid();
+	    return(buf);
+	}
+
+	void skip() {
+	    int op = s.iv[ip++];
+	    this.ip += opni[op]; this.fp += opnf[op]; this.lp += opnl[op]; this.op += opno[op];
+	}
+
+	/* Returns the command at the current position without
+	 * consuming it. Allocates, so only use it for diagnostics. */
+	Command peek() {
+	    if(opcode() == OP_CMD)
+		return((Command)s.ov[op]);
+	    return(new Packed(s, ip, fp, lp, op));
+	}
+
+	void exec(GL gl) {
+	    int op = s.iv[ip++];
+	    switch(op) {
+	    case OP_CMD:
+		((Command)o()).run(gl); break;
+	    case OP_CALLLIST:
+		((BufferBGL)o()).run(gl); break;
+	    case OP_COPYBUFFERF: {
+		FloatBuffer dst = (FloatBuffer)o(), src = (FloatBuffer)o();
+		int doff = i(), soff = i(), len = i();
+		dst.position(doff);
+		src.position(soff).limit(len);
+		dst.put(src);
+		dst.rewind();
+		src.rewind().limit(src.capacity());
+		break;
+	    }
+	    case OP_COPYBUFFERFA: {
+		FloatBuffer dst = (FloatBuffer)o();
+		float[] src = (float[])o();
+		int doff = i(), soff = i(), len = i();
+		dst.position(doff);
+		dst.put(src, soff, len);
+		dst.rewind();
+		break;
+	    }
+	    case OP_ACTIVETEXTURE:
+		gl.glActiveTexture(i()); break;
+	    case OP_ATTACHSHADER:
+		gl.glAttachShader(id().glid(), id().glid()); break;
+	    case OP_BINDATTRIBLOCATION:
+		gl.glBindAttribLocation(id().glid(), id().glid(), (String)o()); break;
+	    case OP_BINDBUFFER:
+		gl.glBindBuffer(i(), glid()); break;
+	    case OP_BINDFRAMEBUFFER:
+		gl.glBindFramebuffer(i(), glid()); break;
+	    case OP_BINDRENDERBUFFER:
+		gl.glBindRenderbuffer(i(), glid()); break;
+	    case OP_BINDTEXTURE:
+		gl.glBindTexture(i(), glid()); break;
+	    case OP_BINDVERTEXARRAY:
+		gl.glBindVertexArray(glid()); break;
+	    case OP_BLENDCOLOR:
+		gl.glBlendColor(f(), f(), f(), f()); break;
+	    case OP_BLENDEQUATION:
+		gl.glBlendEquation(i()); break;
+	    case OP_BLENDEQUATIONSEPARATE:
+		gl.glBlendEquationSeparate(i(), i()); break;
+	    case OP_BLENDFUNC:
+		gl.glBlendFunc(i(), i()); break;
+	    case OP_BLENDFUNCSEPARATE:
+		gl.glBlendFuncSeparate(i(), i(), i(), i()); break;
+	    case OP_BUFFERDATA:
+		gl.glBufferData(i(), l(), restore(), i()); break;
+	    case OP_BUFFERSUBDATA:
+		gl.glBufferSubData(i(), l(), l(), restore()); break;
+	    case OP_CLEAR:
+		gl.glClear(i()); break;
+	    case OP_CLEARBUFFERFV:
+		gl.glClearBufferfv(i(), i(), (float[])o()); break;
+	    case OP_CLEARBUFFERIV:
+		gl.glClearBufferiv(i(), i(), (int[])o()); break;
+	    case OP_CLEARBUFFERUIV:
+		gl.glClearBufferuiv(i(), i(), (int[])o()); break;
+	    case OP_CLEARCOLOR:
+		gl.glClearColor(f(), f(), f(), f()); break;
+	    case OP_CLEARDEPTH:
+		gl.glClearDepth(d()); break;
+	    case OP_COLORMASK:
+		gl.glColorMask(z(), z(), z(), z()); break;
+	    case OP_COLORMASKI:
+		gl.glColorMaski(i(), z(), z(), z(), z()); break;
+	    case OP_DELETEBUFFERS:
+		gl.glDeleteBuffers(i(), glids()); break;
+	    case OP_DELETEFRAMEBUFFERS:
+		gl.glDeleteFramebuffers(i(), glids()); break;
+	    case OP_DELETERENDERBUFFERS:
+		gl.glDeleteRenderbuffers(i(), glids()); break;
+	    case OP_DELETETEXTURES:
+		gl.glDeleteTextures(i(), glids()); break;
+	    case OP_DELETEVERTEXARRAYS:
+		gl.glDeleteVertexArrays(i(), glids()); break;
+	    case OP_DELETESHADER:
+		gl.glDeleteShader(id().glid()); break;
+	    case OP_DELETEPROGRAM:
+		gl.glDeleteProgram(id().glid()); break;
+	    case OP_CULLFACE:
+		gl.glCullFace(i()); break;
+	    case OP_DEPTHFUNC:
+		gl.glDepthFunc(i()); break;
+	    case OP_DEPTHMASK:
+		gl.glDepthMask(z()); break;
+	    case OP_DISABLE:
+		gl.glDisable(i()); break;
+	    case OP_DISABLEI:
+		gl.glDisablei(i(), i()); break;
+	    case OP_DISABLECLIENTSTATE:
+		gl.glDisableClientState(i()); break;
+	    case OP_DISABLEVERTEXATTRIBARRAY:
+		gl.glDisableVertexAttribArray(id().glid() + i()); break;
+	    case OP_DRAWBUFFER:
+		gl.glDrawBuffer(i()); break;
+	    case OP_DRAWBUFFERS:
+		gl.glDrawBuffers(i(), (int[])o()); break;
+	    case OP_DRAWARRAYSINSTANCED:
+		gl.glDrawArraysInstanced(i(), i(), i(), i()); break;
+	    case OP_DRAWARRAYS:
+		gl.glDrawArrays(i(), i(), i()); break;
+	    case OP_DRAWELEMENTSINSTANCED:
+		gl.glDrawElementsInstanced(i(), i(), i(), l(), i()); break;
+	    case OP_DRAWELEMENTS:
+		gl.glDrawElements(i(), i(), i(), l()); break;
+	    case OP_DRAWRANGEELEMENTS:
+		gl.glDrawRangeElements(i(), i(), i(), i(), i(), l()); break;
+	    case OP_ENABLE:
+		gl.glEnable(i()); break;
+	    case OP_ENABLEI:
+		gl.glEnablei(i(), i()); break;
+	    case OP_ENABLECLIENTSTATE:
+		gl.glEnableClientState(i()); break;
+	    case OP_ENABLEVERTEXATTRIBARRAY:
+		gl.glEnableVertexAttribArray(id().glid() + i()); break;
+	    case OP_DELETESYNC:
+		gl.glDeleteSync(l()); break;
+	    case OP_FRAMEBUFFERTEXTURE2D:
+		gl.glFramebufferTexture2D(i(), i(), i(), id().glid(), i()); break;
+	    case OP_FRAMEBUFFERRENDERBUFFER:
+		gl.glFramebufferRenderbuffer(i(), i(), i(), id().glid()); break;
+	    case OP_GETTEXIMAGE:
+		gl.glGetTexImage(i(), i(), i(), i(), (ByteBuffer)o()); break;
+	    case OP_GETTEXIMAGEOFF:
+		gl.glGetTexImage(i(), i(), i(), i(), l()); break;
+	    case OP_LINEWIDTH:
+		gl.glLineWidth(f()); break;
+	    case OP_LINKPROGRAM:
+		gl.glLinkProgram(id().glid()); break;
+	    case OP_OBJECTLABEL:
+		gl.glObjectLabel(i(), id().glid(), i(), (byte[])o()); break;
+	    case OP_PIXELSTOREI:
+		gl.glPixelStorei(i(), i()); break;
+	    case OP_POINTSIZE:
+		gl.glPointSize(f()); break;
+	    case OP_POLYGONMODE:
+		gl.glPolygonMode(i(), i()); break;
+	    case OP_POLYGONOFFSET:
+		gl.glPolygonOffset(f(), f()); break;
+	    case OP_READBUFFER:
+		gl.glReadBuffer(i()); break;
+	    case OP_READPIXELS:
+		gl.glReadPixels(i(), i(), i(), i(), i(), i(), (ByteBuffer)o()); break;
+	    case OP_READPIXELSOFF:
+		gl.glReadPixels(i(), i(), i(), i(), i(), i(), l()); break;
+	    case OP_RENDERBUFFERSTORAGE:
+		gl.glRenderbufferStorage(i(), i(), i(), i()); break;
+	    case OP_RENDERBUFFERSTORAGEMULTISAMPLE:
+		gl.glRenderbufferStorageMultisample(i(), i(), i(), i(), i()); break;
+	    case OP_SAMPLECOVERAGE:
+		gl.glSampleCoverage(f(), z()); break;
+	    case OP_SCISSOR:
+		gl.glScissor(i(), i(), i(), i()); break;
+	    case OP_TEXIMAGE2D:
+		gl.glTexImage2D(i(), i(), i(), i(), i(), i(), i(), i(), restore()); break;
+	    case OP_TEXSUBIMAGE2D:
+		gl.glTexSubImage2D(i(), i(), i(), i(), i(), i(), i(), i(), restore()); break;
+	    case OP_TEXIMAGE2DMULTISAMPLE:
+		gl.glTexImage2DMultisample(i(), i(), i(), i(), i(), z()); break;
+	    case OP_TEXIMAGE3D:
+		gl.glTexImage3D(i(), i(), i(), i(), i(), i(), i(), i(), i(), restore()); break;
+	    case OP_TEXSUBIMAGE3D:
+		gl.glTexSubImage3D(i(), i(), i(), i(), i(), i(), i(), i(), i(), i(), restore()); break;
+	    case OP_TEXPARAMETERF:
+		gl.glTexParameterf(i(), i(), f()); break;
+	    case OP_TEXPARAMETERFV:
+		gl.glTexParameterfv(i(), i(), (float[])o()); break;
+	    case OP_TEXPARAMETERI:
+		gl.glTexParameteri(i(), i(), i()); break;
+	    case OP_UNIFORM1F: {
+		int id = id().glid(); float v0 = f();
+		if(id != -1)
+		    gl.glUniform1f(id, v0);
+		break;
+	    }
+	    case OP_UNIFORM2F: {
+		int id = id().glid(); float v0 = f(), v1 = f();
+		if(id != -1)
+		    gl.glUniform2f(id, v0, v1);
+		break;
+	    }
+	    case OP_UNIFORM3F: {
+		int id = id().glid(); float v0 = f(), v1 = f(), v2 = f();
+		if(id != -1)
+		    gl.glUniform3f(id, v0, v1, v2);
+		break;
+	    }
+	    case OP_UNIFORM3FV: {
+		int id = id().glid(), count = i(); float[] val = (float[])o();
+		if(id != -1)
+		    gl.glUniform3fv(id, count, val);
+		break;
+	    }
+	    case OP_UNIFORM4F: {
+		int id = id().glid(); float v0 = f(), v1 = f(), v2 = f(), v3 = f();
+		if(id != -1)
+		    gl.glUniform4f(id, v0, v1, v2, v3);
+		break;
+	    }
+	    case OP_UNIFORM4FV: {
+		int id = id().glid(), count = i(); float[] val = (float[])o();
+		if(id != -1)
+		    gl.glUniform4fv(id, count, val);
+		break;
+	    }
+	    case OP_UNIFORM1I: {
+		int id = id().glid(), v0 = i();
+		if(id != -1)
+		    gl.glUniform1i(id, v0);
+		break;
+	    }
+	    case OP_UNIFORM2I: {
+		int id = id().glid(), v0 = i(), v1 = i();
+		if(id != -1)
+		    gl.glUniform2i(id, v0, v1);
+		break;
+	    }
+	    case OP_UNIFORM3I: {
+		int id = id().glid(), v0 = i(), v1 = i(), v2 = i();
+		if(id != -1)
+		    gl.glUniform3i(id, v0, v1, v2);
+		break;
+	    }
+	    case OP_UNIFORM4I: {
+		int id = id().glid(), v0 = i(), v1 = i(), v2 = i(), v3 = i();
+		if(id != -1)
+		    gl.glUniform4i(id, v0, v1, v2, v3);
+		break;
+	    }
+	    case OP_UNIFORMMATRIX3FV: {
+		int id = id().glid(), count = i(); boolean transpose = z(); float[] value = (float[])o();
+		if(id != -1)
+		    gl.glUniformMatrix3fv(id, count, transpose, value);
+		break;
+	    }
+	    case OP_UNIFORMMATRIX4FV: {
+		int id = id().glid(), count = i(); boolean transpose = z(); float[] value = (float[])o();
+		if(id != -1)
+		    gl.glUniformMatrix4fv(id, count, transpose, value);
+		break;
+	    }
+	    case OP_USEPROGRAM:
+		gl.glUseProgram(glid()); break;
+	    case OP_VERTEXATTRIBDIVISOR:
+		gl.glVertexAttribDivisor(id().glid() + i(), i()); break;
+	    case OP_VERTEXATTRIBPOINTER:
+		gl.glVertexAttribPointer(id().glid() + i(), i(), i(), z(), i(), l()); break;
+	    case OP_VERTEXATTRIBIPOINTER:
+		gl.glVertexAttribIPointer(id().glid() + i(), i(), i(), i(), l()); break;
+	    case OP_VIEWPORT:
+		gl.glViewport(i(), i(), i(), i()); break;
+	    case OP_DEBUGMESSAGECONTROL: {
+		int source = i(), type = i(), severity = i();
+		int[] ids = (int[])o();
+		gl.glDebugMessageControl(source, type, severity, (ids == null) ? 0 : ids.length, ids, i() != 0);
+		break;
+	    }
+	    default:
+		throw(new AssertionError("Unknown BGL opcode: " + op));
+	    }
+	}
+    }
+
+    /* A packed command viewed as a Command object, for dumps,
+     * profiles and error reports. */
+    protected static class Packed extends Command {
+	final Stream s;
+	final int op, ip, fp, lp, rp;
+
+	Packed(Stream s, int ip, int fp, int lp, int rp) {
+	    this.s = s;
+	    this.op = s.iv[ip];
+	    this.ip = ip; this.fp = fp; this.lp = lp; this.rp = rp;
+	}
+
+	public String name() {
+	    return(opnm[op]);
+	}
+
+	public String[] argn() {
+	    return(opargn[op].clone());
+	}
+
+	public Object[] args() {
+	    char[] t = opargt[op];
+	    Object[] ret = new Object[t.length];
+	    int ip = this.ip + 1, fp = this.fp, lp = this.lp, rp = this.rp;
+	    for(int i = 0; i < t.length; i++) {
+		switch(t[i]) {
+		case 'i': ret[i] = s.iv[ip++]; break;
+		case 'z': ret[i] = (s.iv[ip++] != 0); break;
+		case 'f': ret[i] = s.fv[fp++]; break;
+		case 'l': ret[i] = s.lv[lp++]; break;
+		case 'd': ret[i] = Double.longBitsToDouble(s.lv[lp++]); break;
+		case 'o': ret[i] = s.ov[rp++]; break;
+		}
+	    }
+	    return(ret);
+	}
+
+	public void run(GL gl) {
+	    new Reader(s, ip, fp, lp, rp).exec(gl);
+	}
+
+	public boolean equals(Object o) {
+	    if(!(o instanceof Packed))
+		return(false);
+	    Packed that = (Packed)o;
+	    return((this.s == that.s) && (this.ip == that.ip));
+	}
+
+	public int hashCode() {
+	    return(System.identityHashCode(s) * 31 + ip);
+	}
+
+	public String toString() {
+	    StringBuilder buf = new StringBuilder();
+	    buf.append(name());
+	    buf.append('(');
+	    String[] argn = opargn[op];
+	    Object[] args = args();
+	    for(int i = 0; i < args.length; i++) {
+		if(i > 0)
+		    buf.append(", ");
+		buf.append(argn[i]);
+		buf.append("=");
+		if(args[i] instanceof float[]) {
+		    buf.append(Formatter.format((float[])args[i]));
+		} else if(args[i] instanceof int[]) {
+		    buf.append(Formatter.format((int[])args[i]));
+		} else {
+		    buf.append(String.valueOf(args[i]));
+		}
+	    }
+	    buf.append(')');
+	    return(buf.toString());
+	}
+    }
+
     protected abstract void add(Command cmd);
+    /* Begins a packed command, returning the stream into which
+     * its arguments are to be written. */
+    protected abstract Stream put(int op);
     protected abstract Iterable<Command> dump();
 
     public static class BGLException extends RuntimeException {
@@ -219,407 +921,248 @@ public abstract class BGL {
 	    });
     }
 
-    public void bglCallList(final BufferBGL list) {
-	add(new Command() {
-		public void run(GL gl) {list.run(gl);}
-	    });
+    public void bglCallList(BufferBGL list) {
+	put(OP_CALLLIST).o(list);
     }
 
-    public void bglCopyBufferf(final FloatBuffer dst, final int doff, final FloatBuffer src, final int soff, final int len) {
-	add(new Command() {
-		public void run(GL gl) {
-		    dst.position(doff);
-		    src.position(soff).limit(len);
-		    dst.put(src);
-		    dst.rewind();
-		    src.rewind().limit(src.capacity());
-		}
-	    });
+    public void bglCopyBufferf(FloatBuffer dst, int doff, FloatBuffer src, int soff, int len) {
+	put(OP_COPYBUFFERF).o(dst).i(doff).o(src).i(soff).i(len);
     }
 
-    public void bglCopyBufferf(final FloatBuffer dst, final int doff, final float[] src, final int soff, final int len) {
-	add(new Command() {
-		public void run(GL gl) {
-		    dst.position(doff);
-		    dst.put(src, soff, len);
-		    dst.rewind();
-		}
-	    });
+    public void bglCopyBufferf(FloatBuffer dst, int doff, float[] src, int soff, int len) {
+	put(OP_COPYBUFFERFA).o(dst).i(doff).o(src).i(soff).i(len);
     }
 
-    public void glActiveTexture(final int texture) {
-	add(new Command() {
-		public void run(GL gl) {gl.glActiveTexture(texture);}
-	    });
+    public void glActiveTexture(int texture) {
+	put(OP_ACTIVETEXTURE).i(texture);
     }
 
-    public void glAttachShader(final ID program, final ID shader) {
-	add(new Command() {
-		public void run(GL gl) {gl.glAttachShader(program.glid(), shader.glid());}
-	    });
+    public void glAttachShader(ID program, ID shader) {
+	put(OP_ATTACHSHADER).o(program).o(shader);
     }
 
-    public void glBindAttribLocation(final ID program, final ID index, final String name) {
-	add(new Command() {
-		public void run(GL gl) {gl.glBindAttribLocation(program.glid(), index.glid(), name);}
-	    });
+    public void glBindAttribLocation(ID program, ID index, String name) {
+	put(OP_BINDATTRIBLOCATION).o(program).o(index).o(name);
     }
 
-    public void glBindBuffer(final int target, final ID buffer) {
-	add(new Command() {
-		public void run(GL gl) {gl.glBindBuffer(target, (buffer == null)?0:buffer.glid());}
-	    });
+    public void glBindBuffer(int target, ID buffer) {
+	put(OP_BINDBUFFER).i(target).o(buffer);
     }
 
-    public void glBindFramebuffer(final int target, final ID buffer) {
-	add(new Command() {
-		public void run(GL gl) {gl.glBindFramebuffer(target, (buffer == null)?0:buffer.glid());}
-	    });
+    public void glBindFramebuffer(int target, ID buffer) {
+	put(OP_BINDFRAMEBUFFER).i(target).o(buffer);
     }
 
-    public void glBindRenderbuffer(final int target, final ID buffer) {
-	add(new Command() {
-		public void run(GL gl) {gl.glBindRenderbuffer(target, (buffer == null)?0:buffer.glid());}
-	    });
+    public void glBindRenderbuffer(int target, ID buffer) {
+	put(OP_BINDRENDERBUFFER).i(target).o(buffer);
     }
 
-    public void glBindTexture(final int target, final ID texture) {
-	add(new Command() {
-		public void run(GL gl) {gl.glBindTexture(target, (texture == null)?0:texture.glid());}
-	    });
+    public void glBindTexture(int target, ID texture) {
+	put(OP_BINDTEXTURE).i(target).o(texture);
     }
 
-    public void glBindVertexArray(final ID array) {
-	add(new Command() {
-		public void run(GL gl) {gl.glBindVertexArray((array == null)?0:array.glid());}
-	    });
+    public void glBindVertexArray(ID array) {
+	put(OP_BINDVERTEXARRAY).o(array);
     }
 
-    public void glBlendColor(final float red, final float green, final float blue, final float alpha) {
-	add(new Command() {
-		public void run(GL gl) {gl.glBlendColor(red, green, blue, alpha);}
-	    });
+    public void glBlendColor(float red, float green, float blue, float alpha) {
+	put(OP_BLENDCOLOR).f(red).f(green).f(blue).f(alpha);
     }
 
-    public void glBlendEquation(final int mode) {
-	add(new Command() {
-		public void run(GL gl) {gl.glBlendEquation(mode);}
-	    });
+    public void glBlendEquation(int mode) {
+	put(OP_BLENDEQUATION).i(mode);
     }
 
-    public void glBlendEquationSeparate(final int cmode, final int amode) {
-	add(new Command() {
-		public void run(GL gl) {gl.glBlendEquationSeparate(cmode, amode);}
-	    });
+    public void glBlendEquationSeparate(int cmode, int amode) {
+	put(OP_BLENDEQUATIONSEPARATE).i(cmode).i(amode);
     }
 
-    public void glBlendFunc(final int sfac, final int dfac) {
-	add(new Command() {
-		public void run(GL gl) {gl.glBlendFunc(sfac, dfac);}
-	    });
+    public void glBlendFunc(int sfac, int dfac) {
+	put(OP_BLENDFUNC).i(sfac).i(dfac);
     }
 
-    public void glBlendFuncSeparate(final int csfac, final int cdfac, final int asfac, final int adfac) {
-	add(new Command() {
-		public void run(GL gl) {gl.glBlendFuncSeparate(csfac, cdfac, asfac, adfac);}
-	    });
+    public void glBlendFuncSeparate(int csfac, int cdfac, int asfac, int adfac) {
+	put(OP_BLENDFUNCSEPARATE).i(csfac).i(cdfac).i(asfac).i(adfac);
     }
 
-    public void glBufferData(final int target, final long size, ByteBuffer data, final int usage) {
-	final BufState ds = new BufState(data);
-	add(new Command() {
-		public void run(GL gl) {ds.restore(); gl.glBufferData(target, size, ds.buf, usage);}
-	    });
+    public void glBufferData(int target, long size, ByteBuffer data, int usage) {
+	put(OP_BUFFERDATA).i(target).l(size).o(new BufState(data)).i(usage);
     }
 
-    public void glBufferSubData(final int target, final long offset, final long size, ByteBuffer data) {
-	final BufState ds = new BufState(data);
-	add(new Command() {
-		public void run(GL gl) {ds.restore(); gl.glBufferSubData(target, offset, size, ds.buf);}
-	    });
+    public void glBufferSubData(int target, long offset, long size, ByteBuffer data) {
+	put(OP_BUFFERSUBDATA).i(target).l(offset).l(size).o(new BufState(data));
     }
 
-    public void glClear(final int mask) {
-	add(new Command() {
-		public void run(GL gl) {gl.glClear(mask);}
-	    });
+    public void glClear(int mask) {
+	put(OP_CLEAR).i(mask);
     }
 
-    public void glClearBufferfv(final int buffer, final int drawbuffer, final float[] value) {
-	add(new Command() {
-		public void run(GL gl) {gl.glClearBufferfv(buffer, drawbuffer, value);}
-	    });
+    public void glClearBufferfv(int buffer, int drawbuffer, float[] value) {
+	put(OP_CLEARBUFFERFV).i(buffer).i(drawbuffer).o(value);
     }
 
-    public void glClearBufferiv(final int buffer, final int drawbuffer, final int[] value) {
-	add(new Command() {
-		public void run(GL gl) {gl.glClearBufferiv(buffer, drawbuffer, value);}
-	    });
+    public void glClearBufferiv(int buffer, int drawbuffer, int[] value) {
+	put(OP_CLEARBUFFERIV).i(buffer).i(drawbuffer).o(value);
     }
 
-    public void glClearBufferuiv(final int buffer, final int drawbuffer, final int[] value) {
-	add(new Command() {
-		public void run(GL gl) {gl.glClearBufferuiv(buffer, drawbuffer, value);}
-	    });
+    public void glClearBufferuiv(int buffer, int drawbuffer, int[] value) {
+	put(OP_CLEARBUFFERUIV).i(buffer).i(drawbuffer).o(value);
     }
 
-    public void glClearColor(final float r, final float g, final float b, final float a) {
-	add(new Command() {
-		public void run(GL gl) {gl.glClearColor(r, g, b, a);}
-	    });
+    public void glClearColor(float r, float g, float b, float a) {
+	put(OP_CLEARCOLOR).f(r).f(g).f(b).f(a);
     }
 
-    public void glClearDepth(final double d) {
-	add(new Command() {
-		public void run(GL gl) {gl.glClearDepth(d);}
-	    });
+    public void glClearDepth(double d) {
+	put(OP_CLEARDEPTH).d(d);
     }
 
-    public void glColorMask(final boolean r, final boolean g, final boolean b, final boolean a) {
-	add(new Command() {
-		public void run(GL gl) {gl.glColorMask(r, g, b, a);}
-	    });
+    public void glColorMask(boolean r, boolean g, boolean b, boolean a) {
+	put(OP_COLORMASK).z(r).z(g).z(b).z(a);
     }
 
-    public void glColorMaski(final int buf, final boolean r, final boolean g, final boolean b, final boolean a) {
-	add(new Command() {
-		public void run(GL gl) {gl.glColorMaski(buf, r, g, b, a);}
-	    });
+    public void glColorMaski(int buf, boolean r, boolean g, boolean b, boolean a) {
+	put(OP_COLORMASKI).i(buf).z(r).z(g).z(b).z(a);
     }
 
-    public void glDeleteBuffers(final int count, final ID[] buffers) {
-	add(new Command() {
-		public void run(GL gl) {
-		    int[] buf = new int[buffers.length];
-		    for(int i = 0; i < buf.length; i++)
-			buf[i] = buffers[i].glid();
-		    gl.glDeleteBuffers(count, buf);
-		}
-	    });
+    public void glDeleteBuffers(int count, ID[] buffers) {
+	put(OP_DELETEBUFFERS).i(count).o(buffers);
     }
 
-    public void glDeleteFramebuffers(final int count, final ID[] buffers) {
-	add(new Command() {
-		public void run(GL gl) {
-		    int[] buf = new int[buffers.length];
-		    for(int i = 0; i < buf.length; i++)
-			buf[i] = buffers[i].glid();
-		    gl.glDeleteFramebuffers(count, buf);
-		}
-	    });
+    public void glDeleteFramebuffers(int count, ID[] buffers) {
+	put(OP_DELETEFRAMEBUFFERS).i(count).o(buffers);
     }
 
-    public void glDeleteShader(final ID id) {
-	add(new Command() {
-		public void run(GL gl) {gl.glDeleteShader(id.glid());}
-	    });
+    public void glDeleteShader(ID id) {
+	put(OP_DELETESHADER).o(id);
     }
 
-    public void glDeleteProgram(final ID id) {
-	add(new Command() {
-		public void run(GL gl) {gl.glDeleteProgram(id.glid());}
-	    });
+    public void glDeleteProgram(ID id) {
+	put(OP_DELETEPROGRAM).o(id);
     }
 
-    public void glDeleteRenderbuffers(final int count, final ID[] buffers) {
-	add(new Command() {
-		public void run(GL gl) {
-		    int[] buf = new int[buffers.length];
-		    for(int i = 0; i < buf.length; i++)
-			buf[i] = buffers[i].glid();
-		    gl.glDeleteRenderbuffers(count, buf);
-		}
-	    });
+    public void glDeleteRenderbuffers(int count, ID[] buffers) {
+	put(OP_DELETERENDERBUFFERS).i(count).o(buffers);
     }
 
-    public void glDeleteTextures(final int count, final ID[] buffers) {
-	add(new Command() {
-		public void run(GL gl) {
-		    int[] buf = new int[buffers.length];
-		    for(int i = 0; i < buf.length; i++)
-			buf[i] = buffers[i].glid();
-		    gl.glDeleteTextures(count, buf);
-		}
-	    });
+    public void glDeleteTextures(int count, ID[] buffers) {
+	put(OP_DELETETEXTURES).i(count).o(buffers);
     }
 
-    public void glDeleteVertexArrays(final int count, final ID[] buffers) {
-	add(new Command() {
-		public void run(GL gl) {
-		    int[] buf = new int[buffers.length];
-		    for(int i = 0; i < buf.length; i++)
-			buf[i] = buffers[i].glid();
-		    gl.glDeleteVertexArrays(count, buf);
-		}
-	    });
+    public void glDeleteVertexArrays(int count, ID[] buffers) {
+	put(OP_DELETEVERTEXARRAYS).i(count).o(buffers);
     }
 
-    public void glCullFace(final int mode) {
-	add(new Command() {
-		public void run(GL gl) {gl.glCullFace(mode);}
-	    });
+    public void glCullFace(int mode) {
+	put(OP_CULLFACE).i(mode);
     }
 
-    public void glDepthFunc(final int func) {
-	add(new Command() {
-		public void run(GL gl) {gl.glDepthFunc(func);}
-	    });
+    public void glDepthFunc(int func) {
+	put(OP_DEPTHFUNC).i(func);
     }
 
-    public void glDepthMask(final boolean mask) {
-	add(new Command() {
-		public void run(GL gl) {gl.glDepthMask(mask);}
-	    });
+    public void glDepthMask(boolean mask) {
+	put(OP_DEPTHMASK).z(mask);
     }
 
-    public void glDisable(final int cap) {
-	add(new Command() {
-		public void run(GL gl) {gl.glDisable(cap);}
-	    });
+    public void glDisable(int cap) {
+	put(OP_DISABLE).i(cap);
     }
 
-    public void glDisablei(final int cap, final int index) {
-	add(new Command() {
-		public void run(GL gl) {gl.glDisablei(cap, index);}
-	    });
+    public void glDisablei(int cap, int index) {
+	put(OP_DISABLEI).i(cap).i(index);
     }
 
-    public void glDisableClientState(final int cap) {
-	add(new Command() {
-		public void run(GL gl) {gl.glDisableClientState(cap);}
-	    });
+    public void glDisableClientState(int cap) {
+	put(OP_DISABLECLIENTSTATE).i(cap);
     }
 
-    public void glDisableVertexAttribArray(final ID location) {
-	add(new Command() {
-		public void run(GL gl) {gl.glDisableVertexAttribArray(location.glid());}
-	    });
+    public void glDisableVertexAttribArray(ID location) {
+	glDisableVertexAttribArray(location, 0);
     }
 
-    public void glDisableVertexAttribArray(final ID location, final int offset) {
-	add(new Command() {
-		public void run(GL gl) {gl.glDisableVertexAttribArray(location.glid() + offset);}
-	    });
+    public void glDisableVertexAttribArray(ID location, int offset) {
+	put(OP_DISABLEVERTEXATTRIBARRAY).o(location).i(offset);
     }
 
-    public void glDrawBuffer(final int buf) {
-	add(new Command() {
-		public void run(GL gl) {gl.glDrawBuffer(buf);}
-	    });
+    public void glDrawBuffer(int buf) {
+	put(OP_DRAWBUFFER).i(buf);
     }
 
-    public void glDrawBuffers(final int n, final int[] bufs) {
-	add(new Command() {
-		public void run(GL gl) {gl.glDrawBuffers(n, bufs);}
-	    });
+    public void glDrawBuffers(int n, int[] bufs) {
+	put(OP_DRAWBUFFERS).i(n).o(bufs);
     }
 
-    public void glDrawArraysInstanced(final int mode, final int first, final int count, final int primcount) {
-	add(new Command() {
-		public void run(GL gl) {gl.glDrawArraysInstanced(mode, first, count, primcount);}
-	    });
+    public void glDrawArraysInstanced(int mode, int first, int count, int primcount) {
+	put(OP_DRAWARRAYSINSTANCED).i(mode).i(first).i(count).i(primcount);
     }
 
-    public void glDrawArrays(final int mode, final int first, final int count) {
-	add(new Command() {
-		public void run(GL gl) {gl.glDrawArrays(mode, first, count);}
-	    });
+    public void glDrawArrays(int mode, int first, int count) {
+	put(OP_DRAWARRAYS).i(mode).i(first).i(count);
     }
 
-    public void glDrawElementsInstanced(final int mode, final int count, final int type, final long indices, final int primcount) {
-	add(new Command() {
-		public void run(GL gl) {gl.glDrawElementsInstanced(mode, count, type, indices, primcount);}
-	    });
+    public void glDrawElementsInstanced(int mode, int count, int type, long indices, int primcount) {
+	put(OP_DRAWELEMENTSINSTANCED).i(mode).i(count).i(type).l(indices).i(primcount);
     }
 
-    public void glDrawElements(final int mode, final int count, final int type, final long indices) {
-	add(new Command() {
-		public void run(GL gl) {gl.glDrawElements(mode, count, type, indices);}
-	    });
+    public void glDrawElements(int mode, int count, int type, long indices) {
+	put(OP_DRAWELEMENTS).i(mode).i(count).i(type).l(indices);
     }
 
-    public void glDrawRangeElements(final int mode, final int start, final int end, final int count, final int type, final long indices) {
-	add(new Command() {
-		public void run(GL gl) {gl.glDrawRangeElements(mode, start, end, count, type, indices);}
-	    });
+    public void glDrawRangeElements(int mode, int start, int end, int count, int type, long indices) {
+	put(OP_DRAWRANGEELEMENTS).i(mode).i(start).i(end).i(count).i(type).l(indices);
     }
 
-    public void glEnable(final int cap) {
-	add(new Command() {
-		public void run(GL gl) {gl.glEnable(cap);}
-	    });
+    public void glEnable(int cap) {
+	put(OP_ENABLE).i(cap);
     }
 
-    public void glEnablei(final int cap, final int index) {
-	add(new Command() {
-		public void run(GL gl) {gl.glEnablei(cap, index);}
-	    });
+    public void glEnablei(int cap, int index) {
+	put(OP_ENABLEI).i(cap).i(index);
     }
 
-    public void glEnableClientState(final int cap) {
-	add(new Command() {
-		public void run(GL gl) {gl.glEnableClientState(cap);}
-	    });
+    public void glEnableClientState(int cap) {
+	put(OP_ENABLECLIENTSTATE).i(cap);
     }
 
-    public void glEnableVertexAttribArray(final ID location) {
-	add(new Command() {
-		public void run(GL gl) {gl.glEnableVertexAttribArray(location.glid());}
-	    });
+    public void glEnableVertexAttribArray(ID location) {
+	glEnableVertexAttribArray(location, 0);
     }
 
-    public void glEnableVertexAttribArray(final ID location, final int offset) {
-	add(new Command() {
-		public void run(GL gl) {gl.glEnableVertexAttribArray(location.glid() + offset);}
-	    });
+    public void glEnableVertexAttribArray(ID location, int offset) {
+	put(OP_ENABLEVERTEXATTRIBARRAY).o(location).i(offset);
     }
 
-    public void glDeleteSync(final long id) {
-	add(new Command() {
-		public void run(GL gl) {gl.glDeleteSync(id);}
-	    });
+    public void glDeleteSync(long id) {
+	put(OP_DELETESYNC).l(id);
     }
 
-    public void glFramebufferTexture2D(final int target, final int attachment, final int textarget, final ID texture, final int level) {
-	add(new Command() {
-		public void run(GL gl) {gl.glFramebufferTexture2D(target, attachment, textarget, texture.glid(), level);}
-	    });
+    public void glFramebufferTexture2D(int target, int attachment, int textarget, ID texture, int level) {
+	put(OP_FRAMEBUFFERTEXTURE2D).i(target).i(attachment).i(textarget).o(texture).i(level);
     }
 
-    public void glFramebufferRenderbuffer(final int target, final int attachment, final int rbtarget, final ID renderbuffer) {
-	add(new Command() {
-		public void run(GL gl) {gl.glFramebufferRenderbuffer(target, attachment, rbtarget, renderbuffer.glid());}
-	    });
+    public void glFramebufferRenderbuffer(int target, int attachment, int rbtarget, ID renderbuffer) {
+	put(OP_FRAMEBUFFERRENDERBUFFER).i(target).i(attachment).i(rbtarget).o(renderbuffer);
     }
 
-    public void glGetTexImage(final int target, final int level, final int format, final int type, ByteBuffer pixels) {
-	add(new Command() {
-		public void run(GL gl) {gl.glGetTexImage(target, level, format, type, pixels);}
-	    });
+    public void glGetTexImage(int target, int level, int format, int type, ByteBuffer pixels) {
+	put(OP_GETTEXIMAGE).i(target).i(level).i(format).i(type).o(pixels);
     }
 
-    public void glGetTexImage(final int target, final int level, final int format, final int type, long offset) {
-	add(new Command() {
-		public void run(GL gl) {gl.glGetTexImage(target, level, format, type, offset);}
-	    });
+    public void glGetTexImage(int target, int level, int format, int type, long offset) {
+	put(OP_GETTEXIMAGEOFF).i(target).i(level).i(format).i(type).l(offset);
     }
 
-    public void glLineWidth(final float w) {
-	add(new Command() {
-		public void run(GL gl) {gl.glLineWidth(w);}
-	    });
+    public void glLineWidth(float w) {
+	put(OP_LINEWIDTH).f(w);
     }
 
-    public void glLinkProgram(final ID program) {
-	add(new Command() {
-		public void run(GL gl) {gl.glLinkProgram(program.glid());}
-	    });
+    public void glLinkProgram(ID program) {
+	put(OP_LINKPROGRAM).o(program);
     }
 
-    public void glObjectLabel(final int identifier, final ID name, final int length, final byte[] label) {
-	add(new Command() {
-		public void run(GL gl) {gl.glObjectLabel(identifier, name.glid(), length, label);}
-	    });
+    public void glObjectLabel(int identifier, ID name, int length, byte[] label) {
+	put(OP_OBJECTLABEL).i(identifier).o(name).i(length).o(label);
     }
 
     public void glObjectLabel(int identifier, ID name, String label) {
@@ -627,290 +1170,160 @@ public abstract class BGL {
 	glObjectLabel(identifier, name, enc.length, enc);
     }
 
-    public void glPixelStorei(final int pname, final int param) {
-	add(new Command() {
-		public void run(GL gl) {gl.glPixelStorei(pname, param);}
-	    });
+    public void glPixelStorei(int pname, int param) {
+	put(OP_PIXELSTOREI).i(pname).i(param);
     }
 
-    public void glPointSize(final float size) {
-	add(new Command() {
-		public void run(GL gl) {gl.glPointSize(size);}
-	    });
+    public void glPointSize(float size) {
+	put(OP_POINTSIZE).f(size);
     }
 
-    public void glPolygonMode(final int face, final int mode) {
-	add(new Command() {
-		public void run(GL gl) {gl.glPolygonMode(face, mode);}
-	    });
+    public void glPolygonMode(int face, int mode) {
+	put(OP_POLYGONMODE).i(face).i(mode);
     }
 
-    public void glPolygonOffset(final float factor, final float units) {
-	add(new Command() {
-		public void run(GL gl) {gl.glPolygonOffset(factor, units);}
-	    });
+    public void glPolygonOffset(float factor, float units) {
+	put(OP_POLYGONOFFSET).f(factor).f(units);
     }
 
-    public void glReadBuffer(final int buf) {
-	add(new Command() {
-		public void run(GL gl) {gl.glReadBuffer(buf);}
-	    });
+    public void glReadBuffer(int buf) {
+	put(OP_READBUFFER).i(buf);
     }
 
-    public void glReadPixels(final int x, final int y, final int width, final int height, final int format, final int type, ByteBuffer data) {
-	add(new Command() {
-		public void run(GL gl) {gl.glReadPixels(x, y, width, height, format, type, data);}
-	    });
+    public void glReadPixels(int x, int y, int width, int height, int format, int type, ByteBuffer data) {
+	put(OP_READPIXELS).i(x).i(y).i(width).i(height).i(format).i(type).o(data);
     }
 
-    public void glReadPixels(final int x, final int y, final int width, final int height, final int format, final int type, long offset) {
-	add(new Command() {
-		public void run(GL gl) {gl.glReadPixels(x, y, width, height, format, type, offset);}
-	    });
+    public void glReadPixels(int x, int y, int width, int height, int format, int type, long offset) {
+	put(OP_READPIXELSOFF).i(x).i(y).i(width).i(height).i(format).i(type).l(offset);
     }
 
-    public void glRenderbufferStorage(final int target, final int format, final int width, final int height) {
-	add(new Command() {
-		public void run(GL gl) {gl.glRenderbufferStorage(target, format, width, height);}
-	    });
+    public void glRenderbufferStorage(int target, int format, int width, int height) {
+	put(OP_RENDERBUFFERSTORAGE).i(target).i(format).i(width).i(height);
     }
 
-    public void glRenderbufferStorageMultisample(final int target, final int samples, final int format, final int width, final int height) {
-	add(new Command() {
-		public void run(GL gl) {gl.glRenderbufferStorageMultisample(target, samples, format, width, height);}
-	    });
+    public void glRenderbufferStorageMultisample(int target, int samples, int format, int width, int height) {
+	put(OP_RENDERBUFFERSTORAGEMULTISAMPLE).i(target).i(samples).i(format).i(width).i(height);
     }
 
-    public void glSampleCoverage(final float value, final boolean invert) {
-	add(new Command() {
-		public void run(GL gl) {gl.glSampleCoverage(value, invert);}
-	    });
+    public void glSampleCoverage(float value, boolean invert) {
+	put(OP_SAMPLECOVERAGE).f(value).z(invert);
     }
 
-    public void glScissor(final int x, final int y, final int w, final int h) {
-	add(new Command() {
-		public void run(GL gl) {gl.glScissor(x, y, w, h);}
-	    });
+    public void glScissor(int x, int y, int w, int h) {
+	put(OP_SCISSOR).i(x).i(y).i(w).i(h);
     }
 
-    public void glTexImage2D(final int target, final int level, final int internalformat, final int width, final int height, final int border, final int format, final int type, ByteBuffer data) {
-	final BufState ds = new BufState(data);
-	add(new Command() {
-		public void run(GL gl) {ds.restore(); gl.glTexImage2D(target, level, internalformat, width, height, border, format, type, ds.buf);}
-	    });
+    public void glTexImage2D(int target, int level, int internalformat, int width, int height, int border, int format, int type, ByteBuffer data) {
+	put(OP_TEXIMAGE2D).i(target).i(level).i(internalformat).i(width).i(height).i(border).i(format).i(type).o(new BufState(data));
     }
 
-    public void glTexSubImage2D(final int target, final int level, final int xoff, final int yoff, final int width, final int height, final int format, final int type, ByteBuffer data) {
-	final BufState ds = new BufState(data);
-	add(new Command() {
-		public void run(GL gl) {ds.restore(); gl.glTexSubImage2D(target, level, xoff, yoff, width, height, format, type, ds.buf);}
-	    });
+    public void glTexSubImage2D(int target, int level, int xoff, int yoff, int width, int height, int format, int type, ByteBuffer data) {
+	put(OP_TEXSUBIMAGE2D).i(target).i(level).i(xoff).i(yoff).i(width).i(height).i(format).i(type).o(new BufState(data));
     }
 
-    public void glTexImage2DMultisample(final int target, final int samples, final int internalformat, final int width, final int height, final boolean fixedsamplelocations) {
-	add(new Command() {
-		public void run(GL gl) {gl.glTexImage2DMultisample(target, samples, internalformat, width, height, fixedsamplelocations);}
-	    });
+    public void glTexImage2DMultisample(int target, int samples, int internalformat, int width, int height, boolean fixedsamplelocations) {
+	put(OP_TEXIMAGE2DMULTISAMPLE).i(target).i(samples).i(internalformat).i(width).i(height).z(fixedsamplelocations);
     }
 
-    public void glTexImage3D(final int target, final int level, final int internalformat, final int width, final int height, final int depth, final int border, final int format, final int type, ByteBuffer data) {
-	final BufState ds = new BufState(data);
-	add(new Command() {
-		public void run(GL gl) {ds.restore(); gl.glTexImage3D(target, level, internalformat, width, height, depth, border, format, type, ds.buf);}
-	    });
+    public void glTexImage3D(int target, int level, int internalformat, int width, int height, int depth, int border, int format, int type, ByteBuffer data) {
+	put(OP_TEXIMAGE3D).i(target).i(level).i(internalformat).i(width).i(height).i(depth).i(border).i(format).i(type).o(new BufState(data));
     }
 
-    public void glTexSubImage3D(final int target, final int level, final int xoff, final int yoff, final int zoff, final int width, final int height, final int depth, final int format, final int type, ByteBuffer data) {
-	final BufState ds = new BufState(data);
-	add(new Command() {
-		public void run(GL gl) {ds.restore(); gl.glTexSubImage3D(target, level, xoff, yoff, zoff, width, height, depth, format, type, ds.buf);}
-	    });
+    public void glTexSubImage3D(int target, int level, int xoff, int yoff, int zoff, int width, int height, int depth, int format, int type, ByteBuffer data) {
+	put(OP_TEXSUBIMAGE3D).i(target).i(level).i(xoff).i(yoff).i(zoff).i(width).i(height).i(depth).i(format).i(type).o(new BufState(data));
     }
 
-    public void glTexParameterf(final int target, final int pname, final float param) {
-	add(new Command() {
-		public void run(GL gl) {gl.glTexParameterf(target, pname, param);}
-	    });
+    public void glTexParameterf(int target, int pname, float param) {
+	put(OP_TEXPARAMETERF).i(target).i(pname).f(param);
     }
 
-    public void glTexParameterfv(final int target, final int pname, final float[] param) {
-	add(new Command() {
-		public void run(GL gl) {gl.glTexParameterfv(target, pname, param);}
-	    });
+    public void glTexParameterfv(int target, int pname, float[] param) {
+	put(OP_TEXPARAMETERFV).i(target).i(pname).o(param);
     }
 
-    public void glTexParameteri(final int target, final int pname, final int param) {
-	add(new Command() {
-		public void run(GL gl) {gl.glTexParameteri(target, pname, param);}
-	    });
+    public void glTexParameteri(int target, int pname, int param) {
+	put(OP_TEXPARAMETERI).i(target).i(pname).i(param);
     }
 
-    public void glUniform1f(final ID location, final float v0) {
-	add(new Command() {
-		public void run(GL gl) {
-		    int id = location.glid();
-		    if(id != -1)
-			gl.glUniform1f(id, v0);
-		}
-	    });
+    public void glUniform1f(ID location, float v0) {
+	put(OP_UNIFORM1F).o(location).f(v0);
     }
 
-    public void glUniform2f(final ID location, final float v0, final float v1) {
-	add(new Command() {
-		public void run(GL gl) {
-		    int id = location.glid();
-		    if(id != -1)
-			gl.glUniform2f(id, v0, v1);
-		}
-	    });
+    public void glUniform2f(ID location, float v0, float v1) {
+	put(OP_UNIFORM2F).o(location).f(v0).f(v1);
     }
 
-    public void glUniform3f(final ID location, final float v0, final float v1, final float v2) {
-	add(new Command() {
-		public void run(GL gl) {
-		    int id = location.glid();
-		    if(id != -1)
-			gl.glUniform3f(id, v0, v1, v2);
-		}
-	    });
+    public void glUniform3f(ID location, float v0, float v1, float v2) {
+	put(OP_UNIFORM3F).o(location).f(v0).f(v1).f(v2);
     }
 
-    public void glUniform3fv(final ID location, final int count, final float[] val) {
-	add(new Command() {
-		public void run(GL gl) {
-		    int id = location.glid();
-		    if(id != -1)
-			gl.glUniform3fv(id, count, val);
-		}
-	    });
+    public void glUniform3fv(ID location, int count, float[] val) {
+	put(OP_UNIFORM3FV).o(location).i(count).o(val);
     }
 
-    public void glUniform4f(final ID location, final float v0, final float v1, final float v2, final float v3) {
-	add(new Command() {
-		public void run(GL gl) {
-		    int id = location.glid();
-		    if(id != -1)
-			gl.glUniform4f(id, v0, v1, v2, v3);
-		}
-	    });
+    public void glUniform4f(ID location, float v0, float v1, float v2, float v3) {
+	put(OP_UNIFORM4F).o(location).f(v0).f(v1).f(v2).f(v3);
     }
 
-    public void glUniform4fv(final ID location, final int count, final float[] val) {
-	add(new Command() {
-		public void run(GL gl) {
-		    int id = location.glid();
-		    if(id != -1)
-			gl.glUniform4fv(id, count, val);
-		}
-	    });
+    public void glUniform4fv(ID location, int count, float[] val) {
+	put(OP_UNIFORM4FV).o(location).i(count).o(val);
     }
 
-    public void glUniform1i(final ID location, final int v0) {
-	add(new Command() {
-		public void run(GL gl) {
-		    int id = location.glid();
-		    if(id != -1)
-			gl.glUniform1i(id, v0);
-		}
-	    });
+    public void glUniform1i(ID location, int v0) {
+	put(OP_UNIFORM1I).o(location).i(v0);
     }
 
-    public void glUniform2i(final ID location, final int v0, final int v1) {
-	add(new Command() {
-		public void run(GL gl) {
-		    int id = location.glid();
-		    if(id != -1)
-			gl.glUniform2i(id, v0, v1);
-		}
-	    });
+    public void glUniform2i(ID location, int v0, int v1) {
+	put(OP_UNIFORM2I).o(location).i(v0).i(v1);
     }
 
-    public void glUniform3i(final ID location, final int v0, final int v1, final int v2) {
-	add(new Command() {
-		public void run(GL gl) {
-		    int id = location.glid();
-		    if(id != -1)
-			gl.glUniform3i(id, v0, v1, v2);
-		}
-	    });
+    public void glUniform3i(ID location, int v0, int v1, int v2) {
+	put(OP_UNIFORM3I).o(location).i(v0).i(v1).i(v2);
     }
 
-    public void glUniform4i(final ID location, final int v0, final int v1, final int v2, final int v3) {
-	add(new Command() {
-		public void run(GL gl) {
-		    int id = location.glid();
-		    if(id != -1)
-			gl.glUniform4i(id, v0, v1, v2, v3);
-		}
-	    });
+    public void glUniform4i(ID location, int v0, int v1, int v2, int v3) {
+	put(OP_UNIFORM4I).o(location).i(v0).i(v1).i(v2).i(v3);
     }
 
-    public void glUniformMatrix3fv(final ID location, final int count, final boolean transpose, final float[] value) {
-	add(new Command() {
-		public void run(GL gl) {
-		    int id = location.glid();
-		    if(id != -1)
-			gl.glUniformMatrix3fv(id, count, transpose, value);
-		}
-	    });
+    public void glUniformMatrix3fv(ID location, int count, boolean transpose, float[] value) {
+	put(OP_UNIFORMMATRIX3FV).o(location).i(count).z(transpose).o(value);
     }
 
-    public void glUniformMatrix4fv(final ID location, final int count, final boolean transpose, final float[] value) {
-	add(new Command() {
-		public void run(GL gl) {
-		    int id = location.glid();
-		    if(id != -1)
-			gl.glUniformMatrix4fv(id, count, transpose, value);
-		}
-	    });
+    public void glUniformMatrix4fv(ID location, int count, boolean transpose, float[] value) {
+	put(OP_UNIFORMMATRIX4FV).o(location).i(count).z(transpose).o(value);
     }
 
-    public void glUseProgram(final ID program) {
-	add(new Command() {
-		public void run(GL gl) {gl.glUseProgram((program == null)?0:program.glid());}
-	    });
+    public void glUseProgram(ID program) {
+	put(OP_USEPROGRAM).o(program);
     }
 
-    public void glVertexAttribDivisor(final ID location, final int divisor) {
-	add(new Command() {
-		public void run(GL gl) {gl.glVertexAttribDivisor(location.glid(), divisor);}
-	    });
+    public void glVertexAttribDivisor(ID location, int divisor) {
+	glVertexAttribDivisor(location, 0, divisor);
     }
 
-    public void glVertexAttribDivisor(final ID location, final int offset, final int divisor) {
-	add(new Command() {
-		public void run(GL gl) {gl.glVertexAttribDivisor(location.glid() + offset, divisor);}
-	    });
+    public void glVertexAttribDivisor(ID location, int offset, int divisor) {
+	put(OP_VERTEXATTRIBDIVISOR).o(location).i(offset).i(divisor);
     }
 
-    public void glVertexAttribPointer(final ID location, final int size, final int type, final boolean normalized, final int stride, final long pointer) {
-	add(new Command() {
-		public void run(GL gl) {gl.glVertexAttribPointer(location.glid(), size, type, normalized, stride, pointer);}
-	    });
+    public void glVertexAttribPointer(ID location, int size, int type, boolean normalized, int stride, long pointer) {
+	glVertexAttribPointer(location, 0, size, type, normalized, stride, pointer);
     }
 
-    public void glVertexAttribPointer(final ID location, final int offset, final int size, final int type, final boolean normalized, final int stride, final long pointer) {
-	add(new Command() {
-		public void run(GL gl) {gl.glVertexAttribPointer(location.glid() + offset, size, type, normalized, stride, pointer);}
-	    });
+    public void glVertexAttribPointer(ID location, int offset, int size, int type, boolean normalized, int stride, long pointer) {
+	put(OP_VERTEXATTRIBPOINTER).o(location).i(offset).i(size).i(type).z(normalized).i(stride).l(pointer);
     }
 
-    public void glVertexAttribIPointer(final ID location, final int size, final int type, final int stride, final long pointer) {
-	add(new Command() {
-		public void run(GL gl) {gl.glVertexAttribIPointer(location.glid(), size, type, stride, pointer);}
-	    });
+    public void glVertexAttribIPointer(ID location, int size, int type, int stride, long pointer) {
+	glVertexAttribIPointer(location, 0, size, type, stride, pointer);
     }
 
-    public void glVertexAttribIPointer(final ID location, final int offset, final int size, final int type, final int stride, final long pointer) {
-	add(new Command() {
-		public void run(GL gl) {gl.glVertexAttribIPointer(location.glid() + offset, size, type, stride, pointer);}
-	    });
+    public void glVertexAttribIPointer(ID location, int offset, int size, int type, int stride, long pointer) {
+	put(OP_VERTEXATTRIBIPOINTER).o(location).i(offset).i(size).i(type).i(stride).l(pointer);
     }
 
-    public void glViewport(final int x, final int y, final int w, final int h) {
-	add(new Command() {
-		public void run(GL gl) {gl.glViewport(x, y, w, h);}
-	    });
+    public void glViewport(int x, int y, int w, int h) {
+	put(OP_VIEWPORT).i(x).i(y).i(w).i(h);
     }
 
     public static class DebugMessage {
@@ -927,10 +1340,8 @@ public abstract class BGL {
 	}
     }
 
-    public void glDebugMessageControl(final int source, final int type, final int severity, final int[] ids, final boolean enabled) {
-	add(new Command() {
-		public void run(GL gl) {gl.glDebugMessageControl(source, type, severity, (ids == null) ? 0 : ids.length, ids, enabled);}
-	    });
+    public void glDebugMessageControl(int source, int type, int severity, int[] ids, boolean enabled) {
+	put(OP_DEBUGMESSAGECONTROL).i(source).i(type).i(severity).o(ids).z(enabled);
     }
 
     public void bglGetDebugMessageLog(final Consumer<DebugMessage> cb) {
@@ -1057,6 +1468,16 @@ public abstract class BGL {
 	    public final String[] argn;
 	    public final Object[] args;
 
+	    public DCmd(Dump d, Packed o) {
+		this.clnm = o.getClass().getName();
+		this.mnm = o.name();
+		this.argn = o.argn();
+		Object[] args = o.args();
+		for(int i = 0; i < args.length; i++)
+		    args[i] = d.mapval(args[i]);
+		this.args = args;
+	    }
+
 	    public DCmd(Dump d, Object o) {
 		this.clnm = o.getClass().getName();
 		if(o.getClass().getEnclosingMethod() != null) {
@@ -1103,9 +1524,9 @@ public abstract class BGL {
 	    this.list = new ArrayList<DCmd>();
 	    DCmd marked = null;
 	    for(Command ocmd : buf.dump()) {
-		DCmd cmd = new DCmd(this, ocmd);
+		DCmd cmd = (ocmd instanceof Packed) ? new DCmd(this, (Packed)ocmd) : new DCmd(this, ocmd);
 		list.add(cmd);
-		if(ocmd == mark)
+		if(ocmd.equals(mark))
 		    marked = cmd;
 	    }
 	    this.mark = marked;
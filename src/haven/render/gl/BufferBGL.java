@@ -35,26 +35,27 @@ import java.nio.file.*;
 public class BufferBGL extends BGL {
     public static final boolean DEBUG = false;
     public static final BufferBGL empty = new BufferBGL(0) {
-	    protected void add(Command cmd) {
+	    protected Stream put(int op) {
 		throw(new RuntimeException());
 	    }
 	};
     private static Profile curprof = null;
-    private Command[] list;
-    private int n = 0;
+    private final Stream buf;
 
     public BufferBGL(int c) {
-	list = new Command[Math.max(c, 1)];
+	buf = new Stream(Math.max(c, 1));
     }
     public BufferBGL() {this(128);}
 
     public void run(GL gl) {
-	for(int i = 0; i < n; i++) {
+	Reader rd = new Reader(buf);
+	while(rd.more()) {
 	    if(curprof != null)
-		curprof.register(list[i]);
+		curprof.register(rd.peek());
+	    int ip = rd.ip, fp = rd.fp, lp = rd.lp, op = rd.op;
 	    try {
 		try {
-		    list[i].run(gl);
+		    rd.exec(gl);
 		    if(DEBUG)
 			GLException.checkfor(gl, null);
 		} catch(RuntimeException exc) {
@@ -62,7 +63,7 @@ public class BufferBGL extends BGL {
 		    throw(exc);
 		}
 	    } catch(Exception exc) {
-		BGLException e = new BGLException(this, list[i], exc);
+		BGLException e = new BGLException(this, new Reader(buf, ip, fp, lp, op).peek(), exc);
 		if(DEBUG)
 		    e.dump.dump();
 		throw(e);
@@ -71,18 +72,22 @@ public class BufferBGL extends BGL {
     }
 
     public void abort() {
-	for(int i = 0; i < n; i++)
-	    list[i].abort();
+	for(Reader rd = new Reader(buf); rd.more(); rd.skip()) {
+	    if(rd.opcode() == OP_CMD)
+		rd.peek().abort();
+	}
     }
 
     protected void add(Command cmd) {
-	if(n >= list.length)
-	    list = Arrays.copyOf(list, list.length * 2);
-	list[n++] = cmd;
+	put(OP_CMD).o(cmd);
+    }
+
+    protected Stream put(int op) {
+	return(buf.i(op));
     }
 
     public BufferBGL trim() {
-	list = Arrays.copyOf(list, n);
+	buf.trim();
 	return(this);
     }
 
@@ -90,14 +95,16 @@ public class BufferBGL extends BGL {
 	return(new Iterable<Command>() {
 		public Iterator<Command> iterator() {
 		    return(new Iterator<Command>() {
-			    int i = 0;
+			    Reader rd = new Reader(buf);
 			    public boolean hasNext() {
-				return(i < n);
+				return(rd.more());
 			    }
 			    public Command next() {
-				if(i < n)
-				    return(list[i++]);
-				throw(new NoSuchElementException());
+				if(!rd.more())
+				    throw(new NoSuchElementException());
+				Command ret = rd.peek();
+				rd.skip();
+				return(ret);
 			    }
 			    public void remove() {
 				throw(new UnsupportedOperationException());
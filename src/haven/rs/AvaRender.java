@@ -102,24 +102,128 @@ public class AvaRender {
 	return(ret);
     }
 
-    public static final Server.Command call = new Server.Command() {
-	    public Object[] run(Server.Client cl, Object... args) throws InterruptedException {
-		Coord sz = UI.scale((Coord)args[0]);
-		Resource.Resolver rr = new ServerRes(Resource.remote());
-		Composited.Desc desc = Composited.Desc.decode(rr, Utils.oav(args[1]));
-		Resource.Resolver map = new Resource.Resolver.ResourceMap(rr, Utils.oav(args[2]));
-		String camnm = Utils.sv(args[3]);
-		BufferedImage ava = render(sz.mul(4), desc, map, camnm);
-		ava = PUtils.convolvedown(ava, sz, new PUtils.Lanczos(2));
-		ByteArrayOutputStream buf = new ByteArrayOutputStream();
-		try {
-		    javax.imageio.ImageIO.write(ava, "PNG", buf);
-		} catch(IOException e) {
-		    throw(new Error(e));
+    public static class Call implements Server.Command {
+	/* How long a looked-up resource version is trusted before
+	 * the resource is looked up again, in case it has since been
+	 * updated and reloaded. */
+	public static final double VERTTL = 300;
+	public final RenderCache cache;
+	private final Map<String, String[]> names = new LinkedHashMap<String, String[]>(16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+		    return(size() > 4096);
+		}
+	    };
+	private final Map<String, Version> vers = new HashMap<>();
+
+	private static class Version {
+	    final int ver;
+	    final double at;
+
+	    Version(int ver, double at) {
+		this.ver = ver; this.at = at;
+	    }
+	}
+
+	public Call(RenderCache cache) {
+	    this.cache = cache;
+	}
+
+	protected byte[] draw(Coord sz, Object[] desc, Map<Integer, ? extends Object> map, String camnm) throws InterruptedException {
+	    Resource.Resolver rr = new ServerRes(Resource.remote());
+	    Composited.Desc cdesc = Composited.Desc.decode(rr, desc);
+	    BufferedImage ava = render(sz.mul(4), cdesc, new Resource.Resolver.ResourceMap(rr, map), camnm);
+	    ava = PUtils.convolvedown(ava, sz, new PUtils.Lanczos(2));
+	    ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	    try {
+		javax.imageio.ImageIO.write(ava, "PNG", buf);
+	    } catch(IOException e) {
+		throw(new Error(e));
+	    }
+	    return(buf.toByteArray());
+	}
+
+	/* The names of all resources a request refers to. */
+	protected String[] resnames(Object[] desc, Map<Integer, ? extends Object> map) throws InterruptedException {
+	    Resource.Resolver rr = new ServerRes(Resource.remote());
+	    Composited.Desc cdesc = Composited.Desc.decode(rr, desc);
+	    List<Indir<Resource>> used = new ArrayList<>();
+	    used.add(cdesc.base);
+	    for(MD md : cdesc.mod) {
+		used.add(md.mod);
+		for(ResData tex : md.tex)
+		    used.add(tex.res);
+	    }
+	    for(ED ed : cdesc.equ)
+		used.add(ed.res.res);
+	    for(Object val : map.values()) {
+		if(val instanceof String)
+		    used.add(rr.getresv(val));
+	    }
+	    String[] ret = new String[used.size()];
+	    for(int i = 0; i < ret.length; i++) {
+		Indir<Resource> res = used.get(i);
+		ret[i] = (res instanceof Resource.Named) ? ((Resource.Named)res).name : Loading.waitforint(res).name;
+	    }
+	    return(ret);
+	}
+
+	protected int version(String name) throws InterruptedException {
+	    double now = Utils.rtime();
+	    synchronized(vers) {
+		Version v = vers.get(name);
+		if((v != null) && (now - v.at < VERTTL))
+		    return(v.ver);
+	    }
+	    int ver = Loading.waitforint(Resource.remote().load(name)).ver;
+	    synchronized(vers) {
+		vers.put(name, new Version(ver, now));
+	    }
+	    return(ver);
+	}
+
+	/* The names and versions of all resources a request refers
+	 * to, so that renders made with since updated resources are
+	 * not served from the cache. Both are remembered, so that
+	 * repeated requests need neither decode their descriptions
+	 * nor wait for resources. */
+	protected Object[] versions(String dkey, Object[] desc, Map<Integer, ? extends Object> map) throws InterruptedException {
+	    String[] nms;
+	    synchronized(names) {
+		nms = names.get(dkey);
+	    }
+	    if(nms == null) {
+		nms = resnames(desc, map);
+		synchronized(names) {
+		    names.put(dkey, nms);
 		}
-		return(new Object[] {"ok", buf.toByteArray()});
 	    }
-	};
+	    Object[] ret = new Object[nms.length * 2];
+	    for(int i = 0; i < nms.length; i++) {
+		ret[i * 2] = nms[i];
+		ret[(i * 2) + 1] = version(nms[i]);
+	    }
+	    return(ret);
+	}
+
+	public Object[] run(Server.Client cl, Object... args) throws InterruptedException {
+	    Coord sz = UI.scale((Coord)args[0]);
+	    Object[] desc = Utils.oav(args[1]);
+	    Map<Integer, ? extends Object> map = Resource.Resolver.ResourceMap.decode(Utils.oav(args[2]));
+	    String camnm = Utils.sv(args[3]);
+	    /* The same resource map may arrive in any order, so key
+	     * on it in sorted form. */
+	    List<Object> smap = new ArrayList<>();
+	    for(Map.Entry<Integer, ? extends Object> ent : new TreeMap<>(map).entrySet()) {
+		smap.add(ent.getKey());
+		smap.add(ent.getValue());
+	    }
+	    String dkey = RenderCache.key(desc, smap.toArray());
+	    String key = RenderCache.key("ava", sz, desc, smap.toArray(), camnm, versions(dkey, desc, map));
+	    return(new Object[] {"ok", cache.get(key, () -> draw(sz, desc, map, camnm))});
+	}
+    }
+
+    public static final Server.Command call = new Call(new RenderCache());
 
     @SuppressWarnings("unchecked")
     public static void main(String[] args) throws Exception {
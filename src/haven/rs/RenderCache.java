@@ -0,0 +1,260 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.rs;
+
+import haven.*;
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+
+/* Content-addressed cache of rendered results. Entries are keyed
+ * by a hash over a canonical encoding of the request arguments,
+ * kept in a size-bounded in-memory LRU, and optionally also stored
+ * in a size-bounded directory on disk, from which the least
+ * recently used entries are evicted. Concurrent requests for the
+ * same key wait for a single rendering rather than each doing
+ * their own. */
+public class RenderCache {
+    public static final Config.Variable<Integer> memlimit = Config.Variable.propi("haven.rs.cachesize", 64);
+    public static final Config.Variable<Path> cachedir = Config.Variable.propp("haven.rs.cachedir", "");
+    public static final Config.Variable<Integer> dirlimit = Config.Variable.propi("haven.rs.cachedirsize", 1024);
+    public final long limit, dlimit;
+    public final Path dir;
+    private final LinkedHashMap<String, byte[]> mem = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Pending> running = new HashMap<>();
+    private final Object dlock = new Object();
+    private long size = 0, dsize = -1;
+    public long hits, dhits, misses;
+
+    public interface Renderer {
+	public byte[] render() throws InterruptedException;
+    }
+
+    private static class Pending {
+	byte[] data;
+	Throwable err;
+	boolean done;
+    }
+
+    public RenderCache(long limit, Path dir, long dlimit) {
+	this.limit = limit;
+	this.dir = dir;
+	this.dlimit = dlimit;
+    }
+
+    public RenderCache() {
+	this(memlimit.get() * 1048576L, cachedir.get(), dirlimit.get() * 1048576L);
+    }
+
+    /* Arguments are encoded as a message list, which is
+     * unambiguous for the argument types that the server
+     * receives. */
+    public static String key(Object... args) {
+	MessageBuf buf = new MessageBuf();
+	buf.addlist(args);
+	return(Utils.hex.enc(Digest.hash(Digest.SHA256, buf.fin())));
+    }
+
+    private Path path(String key) {
+	return(dir.resolve(key.substring(0, 2)).resolve(key + ".dat"));
+    }
+
+    private byte[] dget(String key) {
+	if(dir == null)
+	    return(null);
+	try {
+	    Path path = path(key);
+	    byte[] ret = Files.readAllBytes(path);
+	    try {
+		Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+	    } catch(IOException e) {
+	    }
+	    return(ret);
+	} catch(NoSuchFileException e) {
+	    return(null);
+	} catch(IOException e) {
+	    new Warning(e, "could not read cached render " + key).issue();
+	    return(null);
+	}
+    }
+
+    private void dput(String key, byte[] data) {
+	if(dir == null)
+	    return;
+	try {
+	    Path path = path(key);
+	    Files.createDirectories(path.getParent());
+	    Path tmp = Files.createTempFile(path.getParent(), "render", ".new");
+	    try {
+		Files.write(tmp, data);
+		try {
+		    Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+		} catch(AtomicMoveNotSupportedException e) {
+		    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+	    } finally {
+		Files.deleteIfExists(tmp);
+	    }
+	    dtrim(data.length);
+	} catch(IOException e) {
+	    new Warning(e, "could not store cached render " + key).issue();
+	}
+    }
+
+    private static class DEntry {
+	final Path path;
+	final long size, mtime;
+
+	DEntry(Path path, long size, long mtime) {
+	    this.path = path; this.size = size; this.mtime = mtime;
+	}
+    }
+
+    private List<DEntry> dlist() throws IOException {
+	List<DEntry> ret = new ArrayList<>();
+	try(DirectoryStream<Path> subs = Files.newDirectoryStream(dir)) {
+	    for(Path sub : subs) {
+		if(!Files.isDirectory(sub))
+		    continue;
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(sub, "*.dat")) {
+		    for(Path p : files) {
+			try {
+			    ret.add(new DEntry(p, Files.size(p), Files.getLastModifiedTime(p).toMillis()));
+			} catch(NoSuchFileException e) {
+			}
+		    }
+		}
+	    }
+	}
+	return(ret);
+    }
+
+    /* Keeps the disk tier within its budget by evicting the least
+     * recently used entries, as judged by their modification
+     * times, which are refreshed on every disk hit. */
+    private void dtrim(long added) throws IOException {
+	synchronized(dlock) {
+	    if(dsize < 0) {
+		dsize = 0;
+		for(DEntry ent : dlist())
+		    dsize += ent.size;
+	    } else {
+		dsize += added;
+	    }
+	    if((dlimit <= 0) || (dsize <= dlimit))
+		return;
+	    List<DEntry> ents = dlist();
+	    Collections.sort(ents, (a, b) -> Long.compare(a.mtime, b.mtime));
+	    dsize = 0;
+	    for(DEntry ent : ents)
+		dsize += ent.size;
+	    long target = dlimit - (dlimit / 10);
+	    for(DEntry ent : ents) {
+		if(dsize <= target)
+		    break;
+		try {
+		    Files.deleteIfExists(ent.path);
+		    dsize -= ent.size;
+		} catch(IOException e) {
+		}
+	    }
+	}
+    }
+
+    private void mput(String key, byte[] data) {
+	if(data.length > limit)
+	    return;
+	byte[] prev = mem.put(key, data);
+	if(prev != null)
+	    size -= prev.length;
+	size += data.length;
+	for(Iterator<byte[]> i = mem.values().iterator(); (size > limit) && i.hasNext();) {
+	    size -= i.next().length;
+	    i.remove();
+	}
+    }
+
+    public byte[] get(String key, Renderer r) throws InterruptedException {
+	Pending p;
+	boolean owner = false;
+	synchronized(this) {
+	    byte[] ret = mem.get(key);
+	    if(ret != null) {
+		hits++;
+		return(ret);
+	    }
+	    if((p = running.get(key)) == null) {
+		running.put(key, p = new Pending());
+		owner = true;
+	    }
+	}
+	if(!owner) {
+	    synchronized(p) {
+		while(!p.done)
+		    p.wait();
+		if(p.err != null)
+		    throw(new RuntimeException("shared rendering failed", p.err));
+		synchronized(this) {hits++;}
+		return(p.data);
+	    }
+	}
+	byte[] data = null;
+	Throwable err = null;
+	try {
+	    if((data = dget(key)) != null) {
+		synchronized(this) {dhits++;}
+	    } else {
+		synchronized(this) {misses++;}
+		data = r.render();
+		dput(key, data);
+	    }
+	    return(data);
+	} catch(RuntimeException | Error | InterruptedException e) {
+	    err = e;
+	    throw(e);
+	} finally {
+	    synchronized(this) {
+		running.remove(key);
+		if(data != null)
+		    mput(key, data);
+	    }
+	    synchronized(p) {
+		p.data = data;
+		p.err = (err != null) ? err : ((data == null) ? new RuntimeException("no result") : null);
+		p.done = true;
+		p.notifyAll();
+	    }
+	}
+    }
+
+    public String stats() {
+	synchronized(this) {
+	    return(String.format("%d entries, %d bytes; %d hits, %d disk hits, %d misses", mem.size(), size, hits, dhits, misses));
+	}
+    }
+}
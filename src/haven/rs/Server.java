@@ -30,13 +30,21 @@ import haven.*;
 import java.util.*;
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.security.*;
 
 public class Server extends Thread {
+    public static final Config.Variable<Integer> nworkers = Config.Variable.propi("haven.rs.workers", 0);
+    public static final Config.Variable<Integer> maxpending = Config.Variable.propi("haven.rs.maxpending", 4);
     public static final Map<String, Command> commands = new HashMap<String, Command>();
-    private final ServerSocket sk;
+    private final ServerSocketChannel sk;
+    private final Selector sel;
     private final Random rng = new SecureRandom();
     private final byte[] key;
+    private final Collection<Thread> workers = new ArrayList<>();
+    private final LinkedList<Client> runq = new LinkedList<>();
+    private final Collection<Client> dirty = new HashSet<>();
 
     public interface Command {
 	public Object[] run(Client cl, Object... args) throws InterruptedException;
@@ -46,128 +54,338 @@ public class Server extends Thread {
 	commands.put("ava", AvaRender.call);
     }
 
-    public class Client extends Thread {
-	private final InputStream in;
-	private final OutputStream out;
+    /* Clients are multiplexed over a single selector thread, which
+     * only ever reads complete request frames and writes queued
+     * replies. Requests are executed by a fixed set of worker
+     * threads, one request per client at a time so that replies
+     * stay in order and authentication state is sequential. */
+    public class Client {
+	private final SocketChannel ch;
+	private SelectionKey sk;
+	private final ByteBuffer hbuf = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+	private ByteBuffer mbuf = null;
+	private final LinkedList<byte[]> reqs = new LinkedList<>();
+	private final LinkedList<ByteBuffer> replies = new LinkedList<>();
+	private boolean running = false, closed = false;
 	private byte[] nonce = null;
 	private boolean auth = false;
 
-	private Client(InputStream in, OutputStream out, boolean auth) {
-	    super("Render server handler");
-	    this.in = in;
-	    this.out = out;
+	private Client(SocketChannel ch, boolean auth) {
+	    this.ch = ch;
 	    this.auth = auth;
-	    setDaemon(true);
-	    start();
 	}
 
-	private Client(Socket sk) throws IOException {
-	    this(sk.getInputStream(), sk.getOutputStream(), false);
+	private Object[] handle(byte[] data) throws InterruptedException {
+	    Message msg = new MessageBuf(data);
+	    String cmd = msg.string();
+	    Object[] args = msg.list();
+	    if(auth) {
+		Command cc = commands.get(cmd);
+		if(cc != null)
+		    return(cc.run(this, args));
+		else
+		    return(new Object[] {"nocmd"});
+	    } else {
+		if(cmd.equals("nonce")) {
+		    nonce = new byte[32];
+		    rng.nextBytes(nonce);
+		    return(new Object[] {nonce});
+		} else if(cmd.equals("auth")) {
+		    if((nonce != null) &&
+		       Arrays.equals((byte[])args[0],
+				     Digest.hash(Digest.HMAC.of(Digest.SHA256, key), nonce)))
+		    {
+			auth = true;
+			return(new Object[] {"ok"});
+		    } else {
+			return(new Object[] {"no"});
+		    }
+		} else {
+		    return(null);
+		}
+	    }
 	}
 
-	byte[] read(InputStream in, int bytes) throws IOException {
+	private byte[] encode(Object[] reply) {
+	    MessageBuf rb = new MessageBuf();
+	    rb.addlist(reply);
+	    byte[] rbuf = new byte[4 + rb.size()];
+	    Utils.uint32e(rb.size(), rbuf, 0);
+	    rb.fin(rbuf, 4);
+	    return(rbuf);
+	}
+
+	private boolean frame(int len) {
+	    return((len >= 0) && (auth || (len <= 256)));
+	}
+
+	/* Blocking mode, for serving a single client over a pair of
+	 * streams. */
+	private void serve(InputStream in, OutputStream out) throws InterruptedException {
+	    try {
+		while(true) {
+		    byte[] hdr = read(in, 4);
+		    if((hdr == null) || !frame(Utils.int32d(hdr, 0)))
+			return;
+		    byte[] data = read(in, Utils.int32d(hdr, 0));
+		    Object[] reply;
+		    if((data == null) || ((reply = handle(data)) == null))
+			return;
+		    out.write(encode(reply));
+		    out.flush();
+		}
+	    } catch(IOException e) {
+	    } finally {
+		try {
+		    in.close();
+		    out.close();
+		} catch(IOException e) {
+		    throw(new RuntimeException(e));
+		}
+	    }
+	}
+
+	private byte[] read(InputStream in, int bytes) throws IOException {
 	    byte[] ret = new byte[bytes];
 	    int n = 0;
 	    while(n < bytes) {
 		int rv = in.read(ret, n, bytes - n);
 		if(rv < 0)
-		    throw(new IOException("Unexpected end-of-file"));
+		    return(null);
 		n += rv;
 	    }
 	    return(ret);
 	}
 
-	public void run() {
-	    try {
-		while(true) {
-		    try {
-			int len = Utils.int32d(read(in, 4), 0);
-			if(!auth && (len > 256))
-			    return;
-			Message msg = new MessageBuf(read(in, len));
-			String cmd = msg.string();
-			Object[] args = msg.list();
-			Object[] reply;
-			if(auth) {
-			    Command cc = commands.get(cmd);
-			    if(cc != null)
-				reply = cc.run(this, args);
-			    else
-				reply = new Object[] {"nocmd"};
-			} else {
-			    if(cmd.equals("nonce")) {
-				nonce = new byte[32];
-				rng.nextBytes(nonce);
-				reply = new Object[] {nonce};
-			    } else if(cmd.equals("auth")) {
-				if((nonce != null) &&
-				   Arrays.equals((byte[])args[0],
-						 Digest.hash(Digest.HMAC.of(Digest.SHA256, key), nonce)))
-				{
-				    reply = new Object[] {"ok"};
-				    auth = true;
-				} else {
-				    reply = new Object[] {"no"};
-				}
-			    } else {
-				return;
-			    }
+	/* Until authenticated, only one request is read at a time,
+	 * since the size limit of the next frame depends on the
+	 * outcome of the previous one. */
+	private boolean readable() {
+	    if(closed)
+		return(false);
+	    if(!auth)
+		return(!running && reqs.isEmpty());
+	    return(reqs.size() < maxpending.get());
+	}
+
+	/* Called on the selector thread only. */
+	private void input() throws IOException {
+	    synchronized(this) {
+		while(readable()) {
+		    if(mbuf == null) {
+			if(ch.read(hbuf) < 0)
+			    throw(new EOFException());
+			if(hbuf.hasRemaining())
+			    break;
+			int len = hbuf.getInt(0);
+			hbuf.clear();
+			if(!frame(len))
+			    throw(new EOFException());
+			mbuf = ByteBuffer.allocate(len);
+		    }
+		    if(ch.read(mbuf) < 0)
+			throw(new EOFException());
+		    if(mbuf.hasRemaining())
+			break;
+		    reqs.add(mbuf.array());
+		    mbuf = null;
+		    if(!running) {
+			running = true;
+			synchronized(runq) {
+			    runq.add(this);
+			    runq.notify();
 			}
-			MessageBuf rb = new MessageBuf();
-			rb.addlist(reply);
-			byte[] rbuf = new byte[4 + rb.size()];
-			Utils.uint32e(rb.size(), rbuf, 0);
-			rb.fin(rbuf, 4);
-			out.write(rbuf);
-			out.flush();
-		    } catch(IOException e) {
-			return;
 		    }
 		}
+	    }
+	}
+
+	/* Called on the selector thread only. */
+	private void output() throws IOException {
+	    synchronized(this) {
+		while(!replies.isEmpty()) {
+		    ByteBuffer buf = replies.peek();
+		    ch.write(buf);
+		    if(buf.hasRemaining())
+			break;
+		    replies.remove();
+		}
+	    }
+	}
+
+	/* Called on the selector thread only. */
+	private void update() {
+	    synchronized(this) {
+		if(closed && replies.isEmpty()) {
+		    close();
+		    return;
+		}
+		if(sk.isValid())
+		    sk.interestOps((readable() ? SelectionKey.OP_READ : 0) |
+				   (replies.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+	    }
+	}
+
+	private void close() {
+	    synchronized(this) {
+		closed = true;
+		reqs.clear();
+		replies.clear();
+	    }
+	    sk.cancel();
+	    try {
+		ch.close();
+	    } catch(IOException e) {
+	    }
+	}
+
+	private void dirty() {
+	    synchronized(dirty) {
+		dirty.add(this);
+	    }
+	    sel.wakeup();
+	}
+
+	/* Called on a worker thread when this client is taken from
+	 * the run-queue. */
+	private void process() throws InterruptedException {
+	    byte[] req;
+	    synchronized(this) {
+		if(closed || reqs.isEmpty()) {
+		    running = false;
+		    return;
+		}
+		req = reqs.remove();
+	    }
+	    byte[] reply = null;
+	    try {
+		Object[] ret = handle(req);
+		if(ret != null)
+		    reply = encode(ret);
 	    } catch(InterruptedException e) {
+		throw(e);
+	    } catch(Throwable e) {
+		/* Errors included, so that a failing command neither
+		 * kills the worker nor leaves the client hanging. */
+		new Warning(e, "render server command failed").issue();
 	    } finally {
-		try {
-		    in.close();
-		    out.close();
-		} catch(IOException e) {
-		    throw(new RuntimeException(e));
+		synchronized(this) {
+		    if(reply == null)
+			closed = true;
+		    else if(!closed)
+			replies.add(ByteBuffer.wrap(reply));
+		    if(!closed && !reqs.isEmpty()) {
+			synchronized(runq) {
+			    runq.add(this);
+			    runq.notify();
+			}
+		    } else {
+			running = false;
+		    }
 		}
+		dirty();
 	    }
 	}
     }
 
+    private void work() {
+	try {
+	    while(true) {
+		Client cl;
+		synchronized(runq) {
+		    while(runq.isEmpty())
+			runq.wait();
+		    cl = runq.remove();
+		}
+		cl.process();
+	    }
+	} catch(InterruptedException e) {
+	}
+    }
+
     public Server(int port, byte[] key) throws IOException {
 	super("Render server");
 	this.key = key;
-	sk = new ServerSocket(port);
+	sel = Selector.open();
+	sk = ServerSocketChannel.open();
+	sk.bind(new InetSocketAddress(port));
+	sk.configureBlocking(false);
+	sk.register(sel, SelectionKey.OP_ACCEPT);
+	int n = nworkers.get();
+	if(n <= 0)
+	    n = Runtime.getRuntime().availableProcessors();
+	for(int i = 0; i < n; i++) {
+	    Thread th = new HackThread(this::work, "Render server worker " + i);
+	    th.setDaemon(true);
+	    th.start();
+	    workers.add(th);
+	}
 	start();
     }
 
     public Server() {
 	super("Render server");
 	sk = null;
+	sel = null;
 	key = null;
     }
 
-    public static void stdio() {
+    public int port() {
+	return(sk.socket().getLocalPort());
+    }
+
+    private void accept() throws IOException {
+	SocketChannel nch;
+	while((nch = sk.accept()) != null) {
+	    nch.configureBlocking(false);
+	    Client cl = new Client(nch, false);
+	    cl.sk = nch.register(sel, SelectionKey.OP_READ, cl);
+	}
     }
 
     public void run() {
 	try {
 	    while(true) {
-		Socket nsk;
-		try {
-		    nsk = sk.accept();
-		} catch(IOException e) {
-		    break;
+		sel.select();
+		Collection<Client> upd;
+		synchronized(dirty) {
+		    upd = new ArrayList<>(dirty);
+		    dirty.clear();
 		}
-		try {
-		    new Client(nsk);
-		} catch(IOException e) {
+		for(Client cl : upd)
+		    cl.update();
+		for(Iterator<SelectionKey> i = sel.selectedKeys().iterator(); i.hasNext();) {
+		    SelectionKey key = i.next();
+		    i.remove();
+		    if(!key.isValid())
+			continue;
+		    if(key.isAcceptable()) {
+			try {
+			    accept();
+			} catch(IOException e) {
+			    break;
+			}
+			continue;
+		    }
+		    Client cl = (Client)key.attachment();
+		    try {
+			if(key.isReadable())
+			    cl.input();
+			if(key.isValid() && key.isWritable())
+			    cl.output();
+			cl.update();
+		    } catch(IOException e) {
+			cl.close();
+		    }
 		}
 	    }
+	} catch(IOException e) {
+	    new Warning(e, "render server selector failed").issue();
 	} finally {
+	    for(Thread th : workers)
+		th.interrupt();
 	    try {
+		sel.close();
 		sk.close();
 	    } catch(IOException e) {
 		throw(new RuntimeException(e));
@@ -178,8 +396,7 @@ public class Server extends Thread {
     public static void main(String[] args) throws Exception {
 	if(args[0].equals("-")) {
 	    Server s = new Server();
-	    Client c = s.new Client(System.in, System.out, true);
-	    c.join();
+	    s.new Client(null, true).serve(System.in, System.out);
 	} else {
 	    new Server(Integer.parseInt(args[0]), Utils.b64.dec(System.getenv("AUTHKEY")));
 	}
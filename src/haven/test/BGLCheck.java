@@ -0,0 +1,296 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.render.gl.*;
+import java.util.*;
+import java.nio.*;
+import java.lang.reflect.*;
+import static haven.test.Checks.check;
+
+/* Records a mix of GL commands both into a BufferBGL and as one
+ * closure per command, as BGL used to encode them, replays both
+ * against a GL stub that logs every call with its arguments, and
+ * compares the logs. IDs and buffer positions are changed between
+ * recording and replay, since IDs are to be resolved only when
+ * replayed, and buffers replayed as they were when recorded. */
+public class BGLCheck {
+    static class TID implements BGL.ID {
+	int id;
+
+	TID(int id) {
+	    this.id = id;
+	}
+
+	public int glid() {
+	    return(id);
+	}
+    }
+
+    static String fmt(Object a) {
+	if(a == null)
+	    return("null");
+	if(a instanceof int[])
+	    return(Arrays.toString((int[])a));
+	if(a instanceof float[])
+	    return(Arrays.toString((float[])a));
+	if(a instanceof byte[])
+	    return(Arrays.toString((byte[])a));
+	if(a instanceof Buffer) {
+	    Buffer b = (Buffer)a;
+	    return(String.format("buf%x[%d,%d]", System.identityHashCode(a), b.position(), b.limit()));
+	}
+	return(String.valueOf(a));
+    }
+
+    static GL recorder(List<String> log) {
+	return((GL)Proxy.newProxyInstance(GL.class.getClassLoader(), new Class<?>[] {GL.class}, (p, m, args) -> {
+		    if(m.getName().equals("xlateexc"))
+			return(null);
+		    StringBuilder buf = new StringBuilder(m.getName()).append('(');
+		    if(args != null) {
+			for(Object a : args)
+			    buf.append(fmt(a)).append(',');
+		    }
+		    log.add(buf.append(')').toString());
+		    Class<?> r = m.getReturnType();
+		    if(r == int.class)
+			return(0);
+		    if(r == boolean.class)
+			return(false);
+		    if(r == long.class)
+			return(0L);
+		    return(null);
+		}));
+    }
+
+    static int glid(BGL.ID id) {
+	return((id == null) ? 0 : id.glid());
+    }
+
+    static void record(Random rnd, BufferBGL bgl, List<BGL.Request> ref, TID[] ids, ByteBuffer[] bufs, FloatBuffer[] fbufs, int n, int depth) {
+	for(int i = 0; i < n; i++) {
+	    TID id = ids[rnd.nextInt(ids.length)];
+	    TID nid = (rnd.nextInt(5) == 0) ? null : id;
+	    int a = rnd.nextInt(100), b = rnd.nextInt(100), c = rnd.nextInt(100);
+	    float f = rnd.nextFloat(), g = rnd.nextFloat();
+	    long l = rnd.nextLong();
+	    boolean z = rnd.nextBoolean();
+	    switch(rnd.nextInt(24)) {
+	    case 0:
+		bgl.glActiveTexture(a);
+		ref.add(gl -> gl.glActiveTexture(a));
+		break;
+	    case 1:
+		bgl.glBindBuffer(a, nid);
+		ref.add(gl -> gl.glBindBuffer(a, glid(nid)));
+		break;
+	    case 2:
+		bgl.glBindTexture(a, nid);
+		ref.add(gl -> gl.glBindTexture(a, glid(nid)));
+		break;
+	    case 3:
+		bgl.glBindVertexArray(nid);
+		ref.add(gl -> gl.glBindVertexArray(glid(nid)));
+		break;
+	    case 4:
+		bgl.glUseProgram(nid);
+		ref.add(gl -> gl.glUseProgram(glid(nid)));
+		break;
+	    case 5:
+		bgl.glBlendColor(f, g, 1 - f, 1 - g);
+		ref.add(gl -> gl.glBlendColor(f, g, 1 - f, 1 - g));
+		break;
+	    case 6: {
+		ByteBuffer data = bufs[rnd.nextInt(bufs.length)];
+		int p = data.position(), lim = data.limit();
+		bgl.glBufferData(a, l, data, b);
+		ref.add(gl -> {data.limit(lim).position(p); gl.glBufferData(a, l, data, b);});
+		break;
+	    }
+	    case 7: {
+		ByteBuffer data = bufs[rnd.nextInt(bufs.length)];
+		int p = data.position(), lim = data.limit();
+		bgl.glTexImage2D(a, b, c, a + 1, b + 1, 0, c + 1, a + b, data);
+		ref.add(gl -> {data.limit(lim).position(p); gl.glTexImage2D(a, b, c, a + 1, b + 1, 0, c + 1, a + b, data);});
+		break;
+	    }
+	    case 8: {
+		float[] v = {f, g, f + g, f - g};
+		bgl.glClearBufferfv(a, b, v);
+		ref.add(gl -> gl.glClearBufferfv(a, b, v));
+		break;
+	    }
+	    case 9: {
+		double d = rnd.nextDouble();
+		bgl.glClearDepth(d);
+		ref.add(gl -> gl.glClearDepth(d));
+		break;
+	    }
+	    case 10: {
+		boolean y = rnd.nextBoolean();
+		bgl.glColorMask(z, y, !z, !y);
+		ref.add(gl -> gl.glColorMask(z, y, !z, !y));
+		break;
+	    }
+	    case 11: {
+		TID[] del = {ids[a % ids.length], ids[b % ids.length], ids[c % ids.length]};
+		bgl.glDeleteBuffers(del.length, del);
+		ref.add(gl -> gl.glDeleteBuffers(del.length, new int[] {del[0].glid(), del[1].glid(), del[2].glid()}));
+		break;
+	    }
+	    case 12:
+		bgl.glDeleteSync(l);
+		ref.add(gl -> gl.glDeleteSync(l));
+		break;
+	    case 13:
+		bgl.glDisableVertexAttribArray(id, b % 4);
+		ref.add(gl -> gl.glDisableVertexAttribArray(id.glid() + (b % 4)));
+		break;
+	    case 14:
+		bgl.glDrawElements(a, b, c, l);
+		ref.add(gl -> gl.glDrawElements(a, b, c, l));
+		break;
+	    case 15:
+		bgl.glEnable(a);
+		ref.add(gl -> gl.glEnable(a));
+		break;
+	    case 16: {
+		String label = "obj" + a;
+		byte[] enc = label.getBytes(haven.Utils.utf8);
+		bgl.glObjectLabel(b, id, label);
+		ref.add(gl -> gl.glObjectLabel(b, id.glid(), enc.length, enc));
+		break;
+	    }
+	    case 17:
+		bgl.glUniform1i(id, a);
+		ref.add(gl -> {if(id.glid() != -1) gl.glUniform1i(id.glid(), a);});
+		break;
+	    case 18:
+		bgl.glUniform4f(id, f, g, f * g, f + g);
+		ref.add(gl -> {if(id.glid() != -1) gl.glUniform4f(id.glid(), f, g, f * g, f + g);});
+		break;
+	    case 19: {
+		float[] m = new float[16];
+		for(int o = 0; o < m.length; o++)
+		    m[o] = rnd.nextFloat();
+		bgl.glUniformMatrix4fv(id, 1, z, m);
+		ref.add(gl -> {if(id.glid() != -1) gl.glUniformMatrix4fv(id.glid(), 1, z, m);});
+		break;
+	    }
+	    case 20:
+		bgl.glVertexAttribPointer(id, c % 4, a, b, z, c, l);
+		ref.add(gl -> gl.glVertexAttribPointer(id.glid() + (c % 4), a, b, z, c, l));
+		break;
+	    case 21: {
+		FloatBuffer dst = fbufs[0], src = fbufs[1];
+		int doff = a % 8, soff = b % 8, len = soff + (c % 8);
+		bgl.bglCopyBufferf(dst, doff, src, soff, len);
+		ref.add(gl -> {
+			dst.position(doff);
+			src.position(soff).limit(len);
+			dst.put(src);
+			dst.rewind();
+			src.rewind().limit(src.capacity());
+		    });
+		break;
+	    }
+	    case 22: {
+		BGL.Request req = gl -> gl.glViewport(a, b, c, a + b);
+		bgl.bglSubmit(req);
+		ref.add(req);
+		break;
+	    }
+	    case 23: {
+		if(depth > 1)
+		    break;
+		BufferBGL sub = new BufferBGL(rnd.nextInt(4) + 1);
+		List<BGL.Request> subref = new ArrayList<>();
+		record(rnd, sub, subref, ids, bufs, fbufs, rnd.nextInt(20), depth + 1);
+		bgl.bglCallList(sub);
+		ref.add(gl -> {
+			for(BGL.Request r : subref)
+			    r.run(gl);
+		    });
+		break;
+	    }
+	    }
+	}
+    }
+
+    static void round(long seed) {
+	Random rnd = new Random(seed);
+	TID[] ids = new TID[20];
+	for(int i = 0; i < ids.length; i++)
+	    ids[i] = new TID(i + 1);
+	ByteBuffer[] bufs = new ByteBuffer[4];
+	for(int i = 0; i < bufs.length; i++) {
+	    bufs[i] = ByteBuffer.allocate(64);
+	    bufs[i].position(rnd.nextInt(16)).limit(32 + rnd.nextInt(32));
+	}
+	FloatBuffer[] fbufs = {FloatBuffer.allocate(32), FloatBuffer.allocate(32)};
+	for(int i = 0; i < 32; i++)
+	    fbufs[1].put(i, i);
+	BufferBGL bgl = new BufferBGL((seed == 1) ? 1 : 128);
+	List<BGL.Request> ref = new ArrayList<>();
+	record(rnd, bgl, ref, ids, bufs, fbufs, 1000, 0);
+
+	/* Some IDs are resolved differently from when recorded,
+	 * some uniforms not found, and the buffers moved. */
+	for(TID id : ids) {
+	    if(rnd.nextInt(3) == 0)
+		id.id = rnd.nextBoolean() ? -1 : id.id + 100;
+	}
+	for(ByteBuffer buf : bufs)
+	    buf.clear();
+
+	List<String> got = new ArrayList<>(), exp = new ArrayList<>();
+	for(int i = 0; i < 2; i++) {
+	    bgl.run(recorder(got));
+	    GL gl = recorder(exp);
+	    for(BGL.Request r : ref)
+		r.run(gl);
+	}
+	int diff = -1;
+	for(int i = 0; i < Math.min(got.size(), exp.size()); i++) {
+	    if(!got.get(i).equals(exp.get(i))) {
+		diff = i;
+		break;
+	    }
+	}
+	String what = String.format("seed %d, %d calls", seed, exp.size());
+	if(diff >= 0)
+	    what += String.format(", first difference at %d: %s, expected %s", diff, got.get(diff), exp.get(diff));
+	check((diff < 0) && (got.size() == exp.size()), what + ": replayed calls and arguments match");
+    }
+
+    public static void main(String[] args) {
+	for(long seed = 1; seed <= 10; seed++)
+	    round(seed);
+	Checks.exit();
+    }
+}
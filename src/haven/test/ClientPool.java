@@ -0,0 +1,116 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import java.util.*;
+
+/* Shared machinery for running many test clients with a fixed
+ * number of threads: all connections are driven by one reactor,
+ * all sessions share one loader, connecting is done by a small set
+ * of connector threads, and UI messages are processed by a small
+ * set of UI workers. */
+public class ClientPool {
+    public static final Config.Variable<Integer> nconnectors = Config.Variable.propi("haven.test.connectors", 16);
+    public static final Config.Variable<Integer> nuiworkers = Config.Variable.propi("haven.test.uiworkers", 2);
+    public final Connection.Reactor reactor = new Connection.Reactor();
+    public final Loader loader = new Loader();
+    public final Histogram connect = new Histogram("connect");
+    public final Histogram login = new Histogram("login");
+    public final Histogram rtt = new Histogram("rtt");
+    private final ThreadGroup tg;
+    private final LinkedList<TestClient> connq = new LinkedList<>();
+    private final LinkedList<TestClient> uiq = new LinkedList<>();
+    private final Collection<Thread> threads = new ArrayList<>();
+    private static ClientPool dfl = null;
+
+    public ClientPool() {
+	/* Not thread-safe, so do it before the connectors start. */
+	Widget.initnames();
+	tg = new ThreadGroup(HackThread.tg(), "Test clients");
+	for(int i = 0; i < nconnectors.get(); i++)
+	    spawn("Test connector " + i, connq, TestClient::begin);
+	for(int i = 0; i < nuiworkers.get(); i++)
+	    spawn("Test UI worker " + i, uiq, TestClient::process);
+    }
+
+    public static ClientPool get() {
+	synchronized(ClientPool.class) {
+	    if(dfl == null)
+		dfl = new ClientPool();
+	    return(dfl);
+	}
+    }
+
+    private void spawn(String name, LinkedList<TestClient> q, java.util.function.Consumer<TestClient> action) {
+	Thread th = new HackThread(tg, () -> {
+		try {
+		    while(true) {
+			TestClient c;
+			synchronized(q) {
+			    while(q.isEmpty())
+				q.wait();
+			    c = q.remove();
+			}
+			try {
+			    action.accept(c);
+			} catch(RuntimeException | Error e) {
+			    c.crashed(e);
+			}
+		    }
+		} catch(InterruptedException e) {
+		}
+	    }, name);
+	th.setDaemon(true);
+	th.start();
+	threads.add(th);
+    }
+
+    private static void enqueue(LinkedList<TestClient> q, TestClient c) {
+	synchronized(q) {
+	    q.add(c);
+	    q.notify();
+	}
+    }
+
+    void connect(TestClient c) {
+	enqueue(connq, c);
+    }
+
+    void process(TestClient c) {
+	enqueue(uiq, c);
+    }
+
+    public void stop() {
+	for(Thread th : threads)
+	    th.interrupt();
+    }
+
+    public String report() {
+	return(connect + "\n" + login + "\n" + rtt);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import java.util.*;
+import static haven.test.Checks.check;
+
+/* Checks the hit, miss and eviction behavior of Audio.ClipCache
+ * against synthetic clips, keyed the same way as resource audio
+ * layers. */
+public class ClipCacheCheck {
+    /* A decoder stand-in producing len samples of a tone. */
+    static Audio.CS tone(int len, double f, int[] decoded) {
+	decoded[0]++;
+	return(new Audio.CS() {
+		int pos = 0;
+
+		public int get(float[][] buf, int ns) {
+		    if(pos >= len)
+			return(-1);
+		    int n = Math.min(ns, len - pos);
+		    for(int ch = 0; ch < buf.length; ch++) {
+			for(int i = 0; i < n; i++)
+			    buf[ch][i] = (float)(Math.sin((pos + i) * f) * 0.5);
+		    }
+		    pos += n;
+		    return(n);
+		}
+	    });
+    }
+
+    static float[][] play(Audio.CS cs, int max) {
+	int nch = Audio.fmt.getChannels();
+	float[][] ret = new float[nch][0];
+	float[][] buf = new float[nch][512];
+	int len = 0;
+	while(len < max) {
+	    int n = cs.get(buf, Math.min(512, max - len));
+	    if(n < 0)
+		break;
+	    for(int ch = 0; ch < nch; ch++) {
+		ret[ch] = Arrays.copyOf(ret[ch], len + n);
+		System.arraycopy(buf[ch], 0, ret[ch], len, n);
+	    }
+	    len += n;
+	}
+	return(ret);
+    }
+
+    static boolean same(float[][] a, float[][] b) {
+	if(a.length != b.length)
+	    return(false);
+	for(int ch = 0; ch < a.length; ch++) {
+	    if(a[ch].length != b[ch].length)
+		return(false);
+	    for(int i = 0; i < a[ch].length; i++) {
+		if(Math.abs(a[ch][i] - b[ch][i]) > (1.0 / 32768.0))
+		    return(false);
+	    }
+	}
+	return(true);
+    }
+
+    static Object key(String name, int ver, int idx) {
+	return(Arrays.asList(name, ver, idx));
+    }
+
+    public static void main(String[] args) {
+	int rate = (int)Audio.fmt.getSampleRate(), fsz = Audio.fmt.getChannels() * 2;
+	int[] dec = {0};
+	Audio.ClipCache cache = new Audio.ClipCache(rate * fsz * 2, rate);
+
+	float[][] first = play(cache.stream(key("sfx/a", 1, 0), () -> tone(rate / 2, 0.01, dec)), Integer.MAX_VALUE);
+	float[][] second = play(cache.stream(key("sfx/a", 1, 0), () -> tone(rate / 2, 0.01, dec)), Integer.MAX_VALUE);
+	check(dec[0] == 1, "second play of a short clip is not decoded again");
+	check(same(first, second), "cached play matches the decoded one");
+	check(cache.hits == 1, "second play counts as a hit");
+
+	play(cache.stream(key("sfx/a", 2, 0), () -> tone(rate / 2, 0.02, dec)), Integer.MAX_VALUE);
+	check(dec[0] == 2, "a new resource version is decoded afresh");
+	play(cache.stream(key("sfx/a", 1, 1), () -> tone(rate / 2, 0.03, dec)), Integer.MAX_VALUE);
+	check(dec[0] == 3, "another layer of the same resource is decoded afresh");
+
+	play(cache.stream(key("sfx/long", 1, 0), () -> tone(rate * 2, 0.01, dec)), Integer.MAX_VALUE);
+	play(cache.stream(key("sfx/long", 1, 0), () -> tone(rate * 2, 0.01, dec)), Integer.MAX_VALUE);
+	check(dec[0] == 5, "clips over the length limit are not cached");
+
+	play(cache.stream(key("sfx/cut", 1, 0), () -> tone(rate / 2, 0.01, dec)), 1000);
+	play(cache.stream(key("sfx/cut", 1, 0), () -> tone(rate / 2, 0.01, dec)), Integer.MAX_VALUE);
+	check(dec[0] == 7, "clips not played to their end are not cached");
+
+	/* The budget holds four half-second clips, so the fifth
+	 * evicts the least recently used one. */
+	dec[0] = 0;
+	cache.clear();
+	for(int i = 0; i < 5; i++)
+	    play(cache.stream(key("sfx/e" + i, 1, 0), () -> tone(rate / 2, 0.01, dec)), Integer.MAX_VALUE);
+	play(cache.stream(key("sfx/e4", 1, 0), () -> tone(rate / 2, 0.01, dec)), Integer.MAX_VALUE);
+	check(dec[0] == 5, "most recent clip is kept within the budget");
+	play(cache.stream(key("sfx/e0", 1, 0), () -> tone(rate / 2, 0.01, dec)), Integer.MAX_VALUE);
+	check(dec[0] == 6, "least recently used clip is evicted");
+
+	System.out.println(cache.stats());
+	Checks.exit();
+    }
+}
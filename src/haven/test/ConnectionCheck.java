@@ -0,0 +1,275 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import java.util.*;
+import java.net.*;
+import java.util.concurrent.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+import static haven.test.Checks.check;
+
+/* Runs connections against a local StandIn server and checks how
+ * they behave, and checks the session crypto against a reference
+ * AES-GCM implementation. */
+public class ConnectionCheck {
+    static StandIn srv;
+    static SocketAddress addr;
+
+    static Connection connect(Connection.Reactor reactor, CountDownLatch closed) throws InterruptedException {
+	Connection conn = new Connection(addr, reactor);
+	conn.add(new Transport.Callback() {
+		public void closed() {
+		    closed.countDown();
+		}
+	    });
+	conn.connect("test", false, new byte[0]);
+	return(conn);
+    }
+
+    static void closes(Connection.Reactor reactor, String what) throws Exception {
+	long acks = srv.closeacks, closes = srv.closes;
+	CountDownLatch closed = new CountDownLatch(1);
+	connect(reactor, closed);
+	srv.kick();
+	check(closed.await(5, TimeUnit.SECONDS), what + ": server close closes the connection");
+	Thread.sleep(100);
+	check(srv.closeacks == acks + 1, what + ": server close is answered");
+
+	closed = new CountDownLatch(1);
+	Connection conn = connect(reactor, closed);
+	conn.close();
+	check(closed.await(5, TimeUnit.SECONDS), what + ": client close closes the connection");
+	check(srv.closes == closes + 1, what + ": client close reaches the server");
+    }
+
+    /* Sends a burst of reliable messages over a simulated lossy
+     * and delayed link, which exercises the retransmission timeout
+     * and the pacing of the send window. Scheduling jitter may
+     * still cause the odd spurious retransmission, hence the
+     * allowance even on a lossless link. */
+    static void lossy(double loss, double delay, int maxdups, String what) throws Exception {
+	int n = 300;
+	srv.loss = loss;
+	srv.delay = delay;
+	long rels = srv.rels, dups = srv.duprels;
+	CountDownLatch closed = new CountDownLatch(1);
+	Connection conn = connect(null, closed);
+	double t0 = Utils.rtime();
+	for(int i = 0; i < n; i++)
+	    conn.queuemsg((PMessage)new PMessage(1).addstring("msg " + i));
+	while((srv.rels < rels + n) && (Utils.rtime() - t0 < 30))
+	    Thread.sleep(5);
+	double t = Utils.rtime() - t0;
+	srv.loss = 0;
+	conn.close();
+	closed.await(5, TimeUnit.SECONDS);
+	srv.delay = 0;
+	System.out.printf("%s: %d of %d messages in %.2f s, %d duplicates, %s%n", what, srv.rels - rels, n, t, srv.duprels - dups, conn.stats);
+	check(srv.rels == rels + n, what + ": all messages arrive");
+	check(srv.duprels - dups <= maxdups, what + ": few needless retransmissions");
+    }
+
+    /* The server is slow enough to answer the first session
+     * request only after it has been retransmitted. That reply
+     * must not be taken as an RTT sample for the retransmission. */
+    static void karn() throws Exception {
+	srv.delay = 1.1;
+	List<Double> samples = Collections.synchronizedList(new ArrayList<>());
+	Connection conn = new Connection(addr);
+	conn.stats.onreply = samples::add;
+	conn.connect("test", false, new byte[0]);
+	List<Double> seen = new ArrayList<>(samples);
+	srv.delay = 0;
+	conn.close();
+	check(seen.stream().allMatch(r -> r > 2), "handshake RTT not sampled across retransmission " + seen);
+    }
+
+    /* A fragment as it is sliced out of a received packet, with
+     * other data around it. */
+    static PMessage fragment(Random rnd, int head, byte[] data, int off, int len) {
+	int pre = rnd.nextInt(8), post = rnd.nextInt(8);
+	byte[] pk = new byte[pre + 1 + len + post];
+	rnd.nextBytes(pk);
+	pk[pre] = (byte)head;
+	System.arraycopy(data, off, pk, pre + 1, len);
+	return(new PMessage(RMessage.RMSG_FRAGMENT, pk, pre, 1 + len));
+    }
+
+    static boolean fails(Connection.Defragmenter defrag, PMessage msg) {
+	try {
+	    defrag.add(msg.uint8(), msg);
+	    return(false);
+	} catch(Session.MessageException e) {
+	    return(true);
+	}
+    }
+
+    static void fragments() {
+	Random rnd = new Random(3);
+	Connection.Defragmenter defrag = new Connection.Defragmenter();
+	int wrong = 0, early = 0;
+	for(int i = 0; i < 500; i++) {
+	    byte[] data = new byte[rnd.nextInt((i % 10 == 0) ? 100000 : 2000)];
+	    rnd.nextBytes(data);
+	    int type = rnd.nextInt(0x80);
+	    PMessage got = null;
+	    for(int off = 0; true;) {
+		int len = Math.min(data.length - off, rnd.nextInt(1500));
+		int head = (off == 0) ? type : ((off + len < data.length) ? 0x80 : 0x81);
+		PMessage frag = fragment(rnd, head, data, off, len);
+		got = defrag.add(frag.uint8(), frag);
+		off += len;
+		if(head == 0x81)
+		    break;
+		if(got != null)
+		    early++;
+	    }
+	    if((got == null) || (got.type != type) || !Arrays.equals(got.bytes(), data))
+		wrong++;
+	}
+	check((wrong == 0) && (early == 0), "fragmented messages reassemble byte for byte");
+
+	byte[] data = new byte[100];
+	check(fails(new Connection.Defragmenter(), fragment(rnd, 0x80, data, 0, 10)), "continued fragment without start is refused");
+	check(fails(new Connection.Defragmenter(), fragment(rnd, 0x81, data, 0, 10)), "last fragment without start is refused");
+	defrag = new Connection.Defragmenter();
+	PMessage start = fragment(rnd, 1, data, 0, 10);
+	defrag.add(start.uint8(), start);
+	check(fails(defrag, fragment(rnd, 2, data, 10, 10)), "start fragment while defragmenting is refused");
+	check(fails(defrag, fragment(rnd, 0x82, data, 10, 10)), "invalid fragment type is refused");
+    }
+
+    static SecretKeySpec key(byte[] cookie, byte[] salt, String dir) {
+	return(new SecretKeySpec(Digest.hkdf(Digest.SHA256, salt, cookie, dir.getBytes(Utils.ascii), 16), "AES"));
+    }
+
+    static byte[] seal(SecretKeySpec key, long seq, byte[] pt) throws Exception {
+	Cipher ref = Cipher.getInstance("AES/GCM/NoPadding");
+	byte[] iv = new byte[8];
+	Utils.int64e(seq, iv, 0);
+	ref.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, iv));
+	byte[] ct = ref.doFinal(pt);
+	byte[] ret = new byte[ct.length + 3];
+	System.arraycopy(ct, 0, ret, 3, ct.length);
+	ret[0] = (byte)seq; ret[1] = (byte)(seq >> 8); ret[2] = (byte)(seq >> 16);
+	return(ret);
+    }
+
+    static void crypto() throws Exception {
+	byte[] cookie = "cookie-0123456789".getBytes(Utils.ascii), salt = new byte[16];
+	new Random(1).nextBytes(salt);
+	Connection.Crypto cr = new Connection.Crypto(cookie, salt);
+	SecretKeySpec ckey = key(cookie, salt, "client"), skey = key(cookie, salt, "server");
+	Random rnd = new Random(2);
+
+	boolean match = true;
+	for(long seq = 0; seq < 50; seq++) {
+	    byte[] pt = new byte[rnd.nextInt(200)];
+	    rnd.nextBytes(pt);
+	    match &= Arrays.equals(cr.encrypt(pt), seal(ckey, seq, pt));
+	}
+	check(match, "encryption matches reference");
+
+	/* Packets in order, with replays (some of them too old for
+	 * the window), swapped neighbours and a run across the wrap
+	 * of the 24-bit sequence field. A packet must be accepted
+	 * exactly when it has not been accepted before and is within
+	 * the 128 packets up to the highest accepted one. */
+	List<Long> order = new ArrayList<>();
+	for(long i = 0; i < 1500; i++) {
+	    order.add(i);
+	    if(rnd.nextInt(10) == 0)
+		order.add(Math.max(0, i - rnd.nextInt(200)));
+	    if((order.size() > 1) && (rnd.nextInt(20) == 0))
+		Collections.swap(order, order.size() - 1, order.size() - 2);
+	}
+	for(long s = 0x100000L; s < 0xfffff0L; s += 0x100000L)
+	    order.add(s);
+	for(long s = 0xfffff0L; s < 0x1000010L; s++)
+	    order.add(s);
+	order.add(0xfffff8L);
+	order.add(0xffff00L);
+	for(long s = 0x1000010L; s < 0x1000020L; s++)
+	    order.add(s);
+	Set<Long> accepted = new HashSet<>();
+	long top = -1;
+	int wrong = 0, tampered = 0, nacc = 0;
+	for(int i = 0; i < order.size(); i++) {
+	    long seq = order.get(i);
+	    byte[] pt = ("packet " + seq).getBytes(Utils.ascii);
+	    byte[] pk = seal(skey, seq, pt);
+	    if(i % 100 == 0) {
+		byte[] bad = pk.clone();
+		bad[bad.length - 1] ^= 1;
+		try {
+		    cr.decrypt(bad);
+		    tampered++;
+		} catch(Connection.DecryptException e) {
+		}
+	    }
+	    boolean exp = (seq > top - 128) && !accepted.contains(seq);
+	    boolean got;
+	    try {
+		got = Arrays.equals(cr.decrypt(pk), pt);
+	    } catch(Connection.DecryptException e) {
+		got = false;
+	    }
+	    if(got != exp)
+		wrong++;
+	    if(exp) {
+		accepted.add(seq);
+		top = Math.max(top, seq);
+		nacc++;
+	    }
+	}
+	check(wrong == 0, String.format("replayed, reordered and wrapping packets accepted as expected (%d of %d accepted, %d wrong)", nacc, order.size(), wrong));
+	check(tampered == 0, "tampered packets are rejected");
+    }
+
+    public static void main(String[] args) throws Exception {
+	crypto();
+	fragments();
+
+	srv = new StandIn(0);
+	addr = srv.sk.getLocalAddress();
+	Thread th = new Thread(srv, "Stand-in server");
+	th.setDaemon(true);
+	th.start();
+
+	closes(null, "worker thread");
+	Connection.Reactor reactor = new Connection.Reactor();
+	closes(reactor, "reactor");
+
+	lossy(0, 0.15, 5, "lossless 300 ms");
+	lossy(0.05, 0.005, 300, "5% loss 10 ms");
+	karn();
+
+	Checks.exit();
+    }
+}
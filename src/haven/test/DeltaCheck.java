@@ -0,0 +1,216 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import java.util.*;
+import java.io.*;
+import static haven.test.Checks.check;
+
+/* Replays random sequences of movement, resource and offset deltas
+ * through a headless session's object cache, and checks that the
+ * gobs end up as they would had every delta been applied in order.
+ * Each sequence starts with a resource delta whose resource is only
+ * resolved once the whole sequence has been received, so that the
+ * rest of it is pending meanwhile and gets superseded as it would
+ * behind a slow resource load. */
+public class DeltaCheck {
+    static final int NRES = 3;
+
+    static class Stub implements Transport {
+	final Collection<Callback> cbs = new ArrayList<>();
+
+	public void close() {}
+	public void queuemsg(PMessage pmsg) {}
+	public void send(PMessage msg) {}
+	public Transport add(Callback cb) {cbs.add(cb); return(this);}
+
+	void handle(PMessage msg) {
+	    for(Callback cb : cbs)
+		cb.handle(msg);
+	}
+
+	void handle(OCache.ObjDelta delta) {
+	    for(Callback cb : cbs)
+		cb.handle(delta);
+	}
+    }
+
+    /* Resources with nothing in them, which make blank sprites. */
+    static InputStream blank(String name) throws IOException {
+	if(!name.startsWith("test/delta"))
+	    throw(new FileNotFoundException(name));
+	MessageBuf buf = new MessageBuf();
+	buf.addbytes("Haven Resource 1".getBytes(Utils.ascii));
+	buf.adduint16(1);
+	return(new ByteArrayInputStream(buf.fin()));
+    }
+
+    static final Map<Integer, OCache.Delta> deltas = new HashMap<>();
+    static {
+	deltas.put(OCache.OD_MOVE, new OCache.$move());
+	deltas.put(OCache.OD_LINBEG, new LinMove.$linbeg());
+	deltas.put(OCache.OD_LINSTEP, new LinMove.$linstep());
+	deltas.put(OCache.OD_RES, new ResDrawable.$cres());
+	deltas.put(OCache.OD_ZOFF, new DrawOffset.$zoff());
+    }
+
+    static Coord rcoord(Random rnd) {
+	return(Coord.of(rnd.nextInt(1 << 20), rnd.nextInt(1 << 20)));
+    }
+
+    static MessageBuf rdelta(Random rnd, int type, int resbase) {
+	MessageBuf buf = new MessageBuf();
+	switch(type) {
+	case OCache.OD_MOVE:
+	    buf.addcoord(rcoord(rnd)).adduint16(rnd.nextInt(65536));
+	    break;
+	case OCache.OD_LINBEG:
+	    buf.addcoord(rcoord(rnd)).addcoord(Coord.of(rnd.nextInt(2001) - 1000, rnd.nextInt(2001) - 1000));
+	    break;
+	case OCache.OD_LINSTEP:
+	    switch(rnd.nextInt(4)) {
+	    case 0: buf.addint32(-1); break;
+	    case 1: buf.addint32(rnd.nextInt(1 << 20)); break;
+	    case 2: buf.addint32(rnd.nextInt(1 << 20) | 0x80000000).addint32(-1); break;
+	    case 3: buf.addint32(rnd.nextInt(1 << 20) | 0x80000000).addint32(rnd.nextInt(1 << 20)); break;
+	    }
+	    break;
+	case OCache.OD_RES:
+	    buf.adduint16(resbase + rnd.nextInt(NRES));
+	    break;
+	case OCache.OD_ZOFF:
+	    buf.addint16((short)(rnd.nextBoolean() ? 0 : (rnd.nextInt(2001) - 1000)));
+	    break;
+	}
+	return(buf);
+    }
+
+    static final int[] types = {OCache.OD_MOVE, OCache.OD_LINBEG, OCache.OD_LINSTEP, OCache.OD_LINSTEP, OCache.OD_RES, OCache.OD_ZOFF};
+
+    static String state(Gob gob) {
+	StringBuilder buf = new StringBuilder();
+	buf.append(String.format("at %s %.6f", gob.rc, gob.a));
+	Moving m = gob.getattr(Moving.class);
+	if(m instanceof LinMove) {
+	    LinMove lm = (LinMove)m;
+	    buf.append(String.format(", linmove %s %s %s %s %s %s", lm.s, lm.v, lm.t, lm.lt, lm.e, lm.ts));
+	} else if(m != null) {
+	    buf.append(", moving " + m);
+	}
+	DrawOffset dro = gob.getattr(DrawOffset.class);
+	if(dro != null)
+	    buf.append(", offset " + dro.off);
+	Drawable d = gob.getattr(Drawable.class);
+	if(d != null)
+	    buf.append(", drawn " + d.getres().name);
+	return(buf.toString());
+    }
+
+    static void resolve(Stub conn, int resid, int k) {
+	MessageBuf buf = new MessageBuf();
+	buf.adduint16(resid).addstring("test/delta" + k).adduint16(1);
+	conn.handle(new PMessage(RMessage.RMSG_RESID, buf.fin()));
+    }
+
+    static boolean done(OCache.GobInfo info) {
+	synchronized(info) {
+	    return(info.added && info.pending.isEmpty() && (info.applier == null));
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	Resource.remote().add(DeltaCheck::blank);
+	Stub conn = new Stub();
+	Session sess = new Session(conn, new Session.User("Delta check"));
+	Glob glob = sess.glob;
+	int runs = 200, differ = 0, received = 0, superseded = 0, stuck = 0;
+	for(int run = 0; run < runs; run++) {
+	    Random rnd = new Random(run);
+	    long id = run + 1;
+	    int resbase = 1 + (run * (NRES + 1)), head = resbase + NRES;
+	    List<List<OCache.AttrDelta>> frames = new ArrayList<>();
+	    OCache.GobInfo info = null;
+	    for(int frame = 1, n = 10 + rnd.nextInt(50); n > 0; frame++) {
+		OCache.ObjDelta od = new OCache.ObjDelta(0, id, frame);
+		for(int i = 0, na = 1 + rnd.nextInt(3); (i < na) && (n > 0); i++, n--) {
+		    if((frame == 1) && (i == 0)) {
+			MessageBuf data = new MessageBuf();
+			data.adduint16(head);
+			od.attrs.add(new OCache.AttrDelta(od, OCache.OD_RES, data.fin()));
+		    } else {
+			int type = types[rnd.nextInt(types.length)];
+			od.attrs.add(new OCache.AttrDelta(od, type, rdelta(rnd, type, resbase).fin()));
+		    }
+		}
+		List<OCache.AttrDelta> copy = new ArrayList<>();
+		for(OCache.AttrDelta attr : od.attrs)
+		    copy.add(attr.clone());
+		frames.add(copy);
+		received += od.attrs.size();
+		OCache.GobInfo ni = glob.oc.receive(od);
+		if(ni != null)
+		    info = ni;
+	    }
+	    synchronized(info) {
+		superseded += received - info.pending.size();
+	    }
+	    received = 0;
+	    resolve(conn, head, NRES);
+	    for(int k = 0; k < NRES; k++)
+		resolve(conn, resbase + k, k);
+	    double st = Utils.rtime();
+	    while(!done(info)) {
+		if(Utils.rtime() - st > 10)
+		    break;
+		Thread.sleep(1);
+	    }
+	    if(!done(info)) {
+		stuck++;
+		continue;
+	    }
+
+	    Gob ref = new Gob(glob, Coord2d.z, id);
+	    for(List<OCache.AttrDelta> frame : frames) {
+		for(OCache.AttrDelta attr : frame)
+		    deltas.get(attr.type).apply(ref, attr);
+	    }
+	    String got, exp = state(ref);
+	    synchronized(info.gob) {
+		got = state(info.gob);
+	    }
+	    if(!got.equals(exp)) {
+		if(differ++ == 0)
+		    System.out.printf("run %d:\n  expected %s\n  got      %s\n", run, exp, got);
+	    }
+	}
+	check(stuck == 0, String.format("every replay is applied (%d stuck)", stuck));
+	check(superseded > 0, String.format("pending deltas are superseded (%d dropped)", superseded));
+	check(differ == 0, String.format("superseded deltas leave gobs as applying them all would (%d of %d differ)", differ, runs));
+	Checks.exit();
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import java.util.*;
+import java.io.*;
+import java.awt.Color;
+import static haven.test.Checks.check;
+
+/* Round-trips a generated map through both export formats, checking
+ * that version 1 files stay plain single z-streams as older clients
+ * read them, and that exports report progress and can be
+ * cancelled. */
+public class ExportCheck {
+    static final int N = 10;
+
+    static <T> T locked(MapFile file, java.util.function.Supplier<T> f) {
+	file.lock.readLock().lock();
+	try {
+	    return(f.get());
+	} finally {
+	    file.lock.readLock().unlock();
+	}
+    }
+
+    static byte[] export(MapFile file, int ver, MapFile.ExportStatus prog) throws InterruptedException {
+	ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	file.export(buf, MapFile.ExportFilter.all, prog, ver);
+	return(buf.toByteArray());
+    }
+
+    static boolean sig(byte[] data, String sig) {
+	return(new String(data, 0, sig.length(), Utils.ascii).equals(sig));
+    }
+
+    /* Reads a version 1 file the way older clients do, with
+     * nothing but an inflater over everything after the signature,
+     * returning the number of records of each type. */
+    static Map<String, Integer> read1(byte[] data) throws IOException {
+	byte[] raw;
+	try(InputStream fp = new java.util.zip.InflaterInputStream(new ByteArrayInputStream(data, 15, data.length - 15))) {
+	    raw = Utils.readall(fp);
+	}
+	Map<String, Integer> ret = new HashMap<>();
+	Message msg = new MessageBuf(raw);
+	while(!msg.eom()) {
+	    String type = msg.string();
+	    msg.skip(msg.int32());
+	    ret.put(type, ret.getOrDefault(type, 0) + 1);
+	}
+	return(ret);
+    }
+
+    static boolean same(MapFile a, MapFile b, List<MCache.Grid> grids) {
+	for(MCache.Grid g : grids) {
+	    MapFile.Grid ga = locked(a, () -> MapFile.Grid.load(a, g.id));
+	    MapFile.Grid gb = locked(b, () -> MapFile.Grid.load(b, g.id));
+	    if((ga == null) || (gb == null))
+		return(false);
+	    if(!Arrays.equals(MapFixture.tilenames(ga), MapFixture.tilenames(gb)) || !Arrays.equals(ga.zmap, gb.zmap))
+		return(false);
+	    MapFile.GridInfo ia = locked(a, () -> a.gridinfo.get(g.id)), ib = locked(b, () -> b.gridinfo.get(g.id));
+	    if(!ia.sc.sub(g.gc).equals(ib.sc.sub(g.gc)))
+		return(false);
+	}
+	return(true);
+    }
+
+    public static void main(String[] args) throws Exception {
+	MapFixture fx = new MapFixture();
+	MapFile file = new MapFile(new MapFixture.MemCache(), "export");
+	Random rnd = new Random(3);
+	List<MCache.Grid> grids = new ArrayList<>();
+	for(int y = 0; y < N; y++) {
+	    for(int x = 0; x < N; x++) {
+		MCache.Grid g = fx.grid(Coord.of(x, y), 3000 + grids.size(), 1, MapFixture.tiles(2));
+		for(int i = 0; i < g.tiles.length; i++) {
+		    g.tiles[i] = 2 + rnd.nextInt(4);
+		    g.z[i] = rnd.nextInt(100);
+		}
+		grids.add(g);
+	    }
+	}
+	file.update(fx.map, grids);
+	long seg = locked(file, () -> file.gridinfo.get(grids.get(0).id).seg);
+	while(locked(file, () -> file.knownsegs.contains(seg)) == false)
+	    Thread.sleep(10);
+	file.add(new MapFile.PMarker(file, seg, Coord.of(50, 50), "Home", Color.RED, true));
+
+	int[] progress = {0, -1};
+	byte[] v1 = export(file, 1, new MapFile.ExportStatus() {
+		public void grid(int cs, int ns, int cg, int ng) {
+		    if(cg <= progress[1])
+			progress[0] = -1;
+		    else if(progress[0] >= 0)
+			progress[0]++;
+		    progress[1] = cg;
+		}
+	    });
+	check(sig(v1, "Haven Mapfile 1"), "exports are version 1 by default");
+	check(progress[0] == ((N * N) + 31) / 32, "progress is reported for every chunk, in order");
+	Map<String, Integer> recs = read1(v1);
+	check((recs.getOrDefault("grid", 0) == N * N) && (recs.getOrDefault("mark", 0) == 1), "version 1 export reads as a single checksummed z-stream");
+	byte[] v2 = export(file, 2, null);
+	check(sig(v2, "Haven Mapfile 2"), "version 2 is written when asked for");
+	ByteArrayOutputStream dbuf = new ByteArrayOutputStream();
+	file.export(dbuf, MapFile.ExportFilter.all, null);
+	check(Arrays.equals(dbuf.toByteArray(), v1), "exports are deterministic");
+
+	for(int ver = 1; ver <= 2; ver++) {
+	    MapFile imp = new MapFile(new MapFixture.MemCache(), "import");
+	    imp.reimport(new ByteArrayInputStream((ver == 1) ? v1 : v2), MapFile.ImportFilter.all);
+	    check(same(file, imp, grids), String.format("version %d export imports the same grids", ver));
+	    check((imp.markers.size() == 1) && Utils.el(imp.markers).nm.equals("Home"), String.format("version %d export imports the markers", ver));
+	}
+
+	boolean cancelled = false;
+	try {
+	    export(file, 1, new MapFile.ExportStatus() {
+		    public void grid(int cs, int ns, int cg, int ng) {
+			Thread.currentThread().interrupt();
+		    }
+		});
+	} catch(InterruptedException e) {
+	    cancelled = true;
+	}
+	check(cancelled, "exports can be cancelled");
+	Checks.exit();
+    }
+}
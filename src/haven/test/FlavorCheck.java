@@ -0,0 +1,169 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import haven.render.*;
+import haven.render.sl.ShaderMacro;
+import java.util.*;
+import java.io.*;
+import static haven.test.Checks.check;
+
+/* Checks that plain flavor sprite objects are placed as the full
+ * flavor gobs they stand in for would be: for the same flavor
+ * positions, the same number of sprites must end up in the render
+ * tree, with the same transforms and map states. Both kinds are
+ * placed on a made-up sloping map. */
+public class FlavorCheck {
+    static class Tag extends State {
+	static final Slot<Tag> slot = new Slot<>(Slot.Type.DRAW, Tag.class);
+	final int v;
+
+	Tag(int v) {this.v = v;}
+
+	public ShaderMacro shader() {return(null);}
+	public void apply(Pipe p) {p.put(slot, this);}
+	public int hashCode() {return(v);}
+	public boolean equals(Object o) {return((o instanceof Tag) && (((Tag)o).v == v));}
+    }
+
+    /* A wavy surface, inclined along its slope. */
+    static final Gob.Placer ground = new Gob.Placer() {
+	    float z(double x, double y) {
+		return((float)((Math.sin(x / 17) * 5) + (y / 13)));
+	    }
+
+	    public Coord3f getc(Coord2d rc, double ra) {
+		return(Coord3f.of((float)rc.x, (float)rc.y, z(rc.x, rc.y)));
+	    }
+
+	    public Matrix4f getr(Coord2d rc, double ra) {
+		Coord3f norm = Coord3f.of((float)-Math.cos(rc.x / 17) * 5 / 17, 1f / 13, 1).norm();
+		Coord3f rot = Coord3f.zu.cmul(norm);
+		float sin = rot.abs();
+		Matrix4f ret = Transform.makerot(new Matrix4f(), Coord3f.zu, -(float)ra);
+		if(sin > 0)
+		    ret = Transform.makerot(new Matrix4f(), rot.mul(1 / sin), sin, (float)Math.sqrt(1 - (sin * sin))).mul(ret);
+		return(ret);
+	    }
+	};
+
+    static Pipe.Op mapstate(Coord3f pc) {
+	Coord tc = Coord2d.of(pc).floor(MCache.tilesz);
+	return(new Tag((tc.x * 100) + tc.y));
+    }
+
+    static class TObj extends Tileset.Flavor.Obj {
+	TObj(Tileset.Flavor.Buffer buf, Coord2d c, double a) {super(buf, c, a);}
+
+	public Gob.Placer placer() {return(ground);}
+	protected Pipe.Op getmapstate(Coord3f pc) {return(mapstate(pc));}
+    }
+
+    static class TSpr extends Tileset.Flavor.SprObj {
+	TSpr(Tileset.Flavor.Buffer buf, Coord2d c, double a, Resource res) {super(buf, c, a, res);}
+
+	public Gob.Placer placer() {return(ground);}
+	protected Pipe.Op getmapstate(Coord3f pc) {return(mapstate(pc));}
+    }
+
+    /* A resource with nothing in it, which makes a blank sprite. */
+    static InputStream blank(String name) {
+	MessageBuf buf = new MessageBuf();
+	buf.addbytes("Haven Resource 1".getBytes(Utils.ascii));
+	buf.adduint16(1);
+	return(new ByteArrayInputStream(buf.fin()));
+    }
+
+    /* The transforms and map states of the sprites in a tree, in
+     * the order of their objects. */
+    static int collect(RenderTree tree, Map<Sprite, Integer> order, Matrix4f[] xf, Tag[] tag) {
+	int n = 0;
+	for(RenderTree.Slot slot : tree.slots()) {
+	    if(!(slot.obj() instanceof Sprite))
+		continue;
+	    Integer i = order.get(slot.obj());
+	    if(i == null)
+		continue;
+	    xf[i] = Homo3D.locxf(slot.state());
+	    tag[i] = slot.state().get(Tag.slot);
+	    n++;
+	}
+	return(n);
+    }
+
+    static boolean close(Matrix4f a, Matrix4f b) {
+	if((a == null) || (b == null))
+	    return(false);
+	for(int i = 0; i < 16; i++) {
+	    if(Math.abs(a.m[i] - b.m[i]) > 1e-4f)
+		return(false);
+	}
+	return(true);
+    }
+
+    public static void main(String[] args) {
+	Glob glob = new Glob(null);
+	Resource res = Loading.waitfor(new Resource.Pool(FlavorCheck::blank).load("test/flavor", 1));
+	Area area = Area.sized(Coord.of(100, 200), MCache.cutsz);
+	Tileset.Flavor.Buffer buf = new Tileset.Flavor.Buffer(glob, area, 12345);
+	Random rnd = new Random(1);
+	int n = 200;
+	RenderTree stree = new RenderTree(), gtree = new RenderTree();
+	Map<Sprite, Integer> sorder = new IdentityHashMap<>(), gorder = new IdentityHashMap<>();
+	boolean seeds = true;
+	for(int i = 0; i < n; i++) {
+	    Coord tc = area.ul.add(rnd.nextInt(area.sz().x), rnd.nextInt(area.sz().y));
+	    Coord2d c = tc.mul(MCache.tilesz).add(MCache.tilesz.mul(rnd.nextDouble(), rnd.nextDouble()));
+	    double a = rnd.nextDouble() * 2 * Math.PI;
+	    TSpr so = new TSpr(buf, c, a, res);
+	    TObj go = new TObj(buf, c, a);
+	    ResDrawable d = new ResDrawable(go, res.indir(), Message.nil);
+	    go.setattr(d);
+	    sorder.put(so.spr, i);
+	    gorder.put(d.spr, i);
+	    seeds &= so.mkrandoom().nextLong() == go.mkrandoom().nextLong();
+	    stree.add(so);
+	    gtree.add(go.placed);
+	}
+	check(seeds, "sprite objects get the random seeds of gobs");
+	Matrix4f[] sxf = new Matrix4f[n], gxf = new Matrix4f[n];
+	Tag[] stag = new Tag[n], gtag = new Tag[n];
+	int sn = collect(stree, sorder, sxf, stag), gn = collect(gtree, gorder, gxf, gtag);
+	check((sn == n) && (gn == n), String.format("every object has one sprite instance (%d and %d of %d)", sn, gn, n));
+	int xfbad = 0, tagbad = 0;
+	for(int i = 0; i < n; i++) {
+	    if(!close(sxf[i], gxf[i]))
+		xfbad++;
+	    if((stag[i] == null) || !stag[i].equals(gtag[i]))
+		tagbad++;
+	}
+	check(xfbad == 0, String.format("sprite objects are transformed as gobs (%d differ)", xfbad));
+	check(tagbad == 0, String.format("sprite objects get the map states of gobs (%d differ)", tagbad));
+	Checks.exit();
+    }
+}
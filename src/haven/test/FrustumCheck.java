@@ -0,0 +1,153 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import haven.render.*;
+import java.util.*;
+import static haven.test.Checks.check;
+
+/* Checks the frustum culling of MapView.visible() against a
+ * brute-force projection of points through synthetic cameras:
+ * gobs inside the view volume must always be visible, and gobs
+ * just inside and just outside of a face, by their bounding
+ * sphere grown by the margin, must be found on the right side of
+ * it. */
+public class FrustumCheck {
+    static class TGob extends Gob {
+	final Coord3f c;
+
+	TGob(Coord3f wc) {
+	    super(null, Coord2d.of(wc.x, -wc.y), 0);
+	    /* Gob coordinates are mirrored in y from world
+	     * coordinates. */
+	    this.c = Coord3f.of(wc.x, -wc.y, wc.z);
+	}
+
+	public Coord3f getc() {
+	    return(c);
+	}
+    }
+
+    static Coord3f unproject(Matrix4f inv, float x, float y, float z) {
+	float[] h = inv.mul4(new float[] {x, y, z, 1});
+	return(Coord3f.of(h[0] / h[3], h[1] / h[3], h[2] / h[3]));
+    }
+
+    static boolean inside(Matrix4f xf, Coord3f p) {
+	float[] h = xf.mul4(new float[] {p.x, p.y, p.z, 1});
+	return((h[3] > 0) && (Math.abs(h[0]) <= h[3]) && (Math.abs(h[1]) <= h[3]) && (Math.abs(h[2]) <= h[3]));
+    }
+
+    static float[] ndc(int axis, float a, float u, float v) {
+	float[] ret = new float[3];
+	ret[axis] = a;
+	ret[(axis + 1) % 3] = u;
+	ret[(axis + 2) % 3] = v;
+	return(ret);
+    }
+
+    static Coord3f unproject(Matrix4f inv, float[] ndc) {
+	return(unproject(inv, ndc[0], ndc[1], ndc[2]));
+    }
+
+    static void camera(String what, Projection proj, Camera view) {
+	Matrix4f xf = proj.fin(Matrix4f.id).mul(view.fin(Matrix4f.id));
+	Matrix4f inv = xf.invert();
+	Frustum f = new Frustum(proj, view);
+	Coord3f eye = view.fin(Matrix4f.id).invert().mul4(Coord3f.o);
+	Random rnd = new Random(1);
+	float margin = MapView.cullmargin, r = MapView.defbound + margin;
+
+	int inbad = 0, ninside = 0;
+	for(int i = 0; i < 10000; i++) {
+	    Coord3f p = unproject(inv, (rnd.nextFloat() * 2) - 1, (rnd.nextFloat() * 2) - 1, (rnd.nextFloat() * 2) - 1);
+	    if(!inside(xf, p))
+		continue;
+	    ninside++;
+	    if(!MapView.visible(f, new TGob(p), margin))
+		inbad++;
+	}
+	check((ninside > 9000) && (inbad == 0), String.format("%s: gobs inside are visible (%d of %d wrong)", what, inbad, ninside));
+
+	/* For a point well inside one face, the sphere intersects the
+	 * volume exactly when its center is no farther out than its
+	 * radius, since the volume lies wholly on the inner side of
+	 * the face. */
+	int nearbad = 0, farbad = 0, nnear = 0, nfar = 0;
+	for(int i = 0; i < 10000; i++) {
+	    int axis = rnd.nextInt(3);
+	    float side = rnd.nextBoolean() ? 1 : -1;
+	    float u = rnd.nextFloat() - 0.5f, v = rnd.nextFloat() - 0.5f, e = 0.01f;
+	    Coord3f foot = unproject(inv, ndc(axis, side, u, v));
+	    Coord3f du = unproject(inv, ndc(axis, side, u + e, v)).sub(unproject(inv, ndc(axis, side, u - e, v)));
+	    Coord3f dv = unproject(inv, ndc(axis, side, u, v + e)).sub(unproject(inv, ndc(axis, side, u, v - e)));
+	    Coord3f n = du.cmul(dv).norm();
+	    Coord3f in = unproject(inv, ndc(axis, side * 0.5f, u, v));
+	    if(in.sub(foot).dmul(n) > 0)
+		n = n.inv();
+	    boolean near = rnd.nextBoolean();
+	    float d = near ? (r * (0.98f + (rnd.nextFloat() * 0.04f))) : (rnd.nextFloat() * r * 4);
+	    /* Everything is only as accurate as floats, which out at
+	     * the far plane is a noticeable fraction of the radius. */
+	    if(Math.abs(d - r) < (r * 0.001f) + (foot.dist(eye) * 0.0002f))
+		continue;
+	    boolean exp = d < r;
+	    boolean got = MapView.visible(f, new TGob(foot.add(n.mul(d))), margin);
+	    if(near) {
+		nnear++;
+		if(got != exp)
+		    nearbad++;
+	    } else {
+		nfar++;
+		if(got != exp)
+		    farbad++;
+	    }
+	}
+	check(farbad == 0, String.format("%s: gobs inside and outside of faces (%d of %d wrong)", what, farbad, nfar));
+	check(nearbad == 0, String.format("%s: gobs near the margin (%d of %d wrong)", what, nearbad, nnear));
+    }
+
+    public static void main(String[] args) {
+	float field = 0.5f, aspect = 0.75f;
+	camera("perspective", Projection.frustum(-field, field, -aspect * field, aspect * field, 1, 2000),
+	       Camera.pointed(Coord3f.of(1234, -567, 30), 300, 0.8f, 2.1f));
+	camera("steep perspective", Projection.frustum(-field, field, -aspect * field, aspect * field, 1, 2000),
+	       Camera.pointed(Coord3f.of(-50, 80, 0), 150, (float)(Math.PI / 2) - 0.01f, 0.3f));
+	camera("orthographic", Projection.ortho(-400, 400, -300, 300, -1000, 1000),
+	       Camera.pointed(Coord3f.of(200, 200, 5), 500, 0.6f, 5.0f));
+
+	Gob loading = new TGob(Coord3f.of(1e6f, 1e6f, 1e6f)) {
+		public Coord3f getc() {
+		    throw(new Loading());
+		}
+	    };
+	check(MapView.visible(new Frustum(Projection.ortho(-1, 1, -1, 1, -1, 1), Camera.pointed(Coord3f.o, 1, 0, 0)), loading, 0),
+	      "gobs whose position is loading are visible");
+	Checks.exit();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+import static haven.test.Checks.check;
+
+/* Checks that a GridPack can be shared by several clients: grids
+ * saved by one are seen by the other, and compaction only happens
+ * while the pack is not shared. The other client runs in a child
+ * process, since file locks are per-process. */
+public class GridPackCheck {
+    static byte[] grid(long id, int ver) {
+	byte[] ret = new byte[100 + (int)(id % 50)];
+	new Random((id * 31) + ver).nextBytes(ret);
+	return(ret);
+    }
+
+    static boolean has(GridPack pack, long id, int ver) throws IOException {
+	return(Arrays.equals(pack.get(id), grid(id, ver)));
+    }
+
+    static int child(String... args) throws Exception {
+	List<String> cmd = new ArrayList<>(Arrays.asList(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+							 "-cp", System.getProperty("java.class.path"),
+							 GridPackCheck.class.getName()));
+	cmd.addAll(Arrays.asList(args));
+	return(new ProcessBuilder(cmd).inheritIO().start().waitFor());
+    }
+
+    /* Run as the other client: checks the grids of the first, then
+     * saves some of its own. */
+    static int other(Path dir, int n) throws IOException {
+	GridPack pack = new GridPack(dir);
+	boolean all = true;
+	for(long id = 0; id < n; id++)
+	    all &= has(pack, id, 0);
+	check(all, "other client reads the grids of the first");
+	for(long id = n; id < n * 2; id++)
+	    pack.put(id, 1, grid(id, 0));
+	pack.put(0, 1, grid(0, 1));
+	check(!pack.compact(), "shared pack is not compacted");
+	return(Checks.failures());
+    }
+
+    static int verify(Path dir, int n) throws IOException {
+	GridPack pack = new GridPack(dir);
+	check(has(pack, 0, 1), "reopened pack has the updated grid");
+	boolean all = true;
+	for(long id = 1; id < n * 2; id++)
+	    all &= has(pack, id, 0);
+	check(all, "reopened pack has the other grids");
+	return(Checks.failures());
+    }
+
+    public static void main(String[] args) throws Exception {
+	if(args.length > 0) {
+	    Path dir = Paths.get(args[1]);
+	    int n = Integer.parseInt(args[2]);
+	    System.exit((args[0].equals("other") ? other(dir, n) : verify(dir, n)) == 0 ? 0 : 1);
+	}
+	Path dir = Files.createTempDirectory("gridpack");
+	int n = 20;
+	GridPack pack = new GridPack(dir);
+	for(long id = 0; id < n; id++)
+	    pack.put(id, 1, grid(id, 0));
+	check(child("other", dir.toString(), Integer.toString(n)) == 0, "pack opens in a second client");
+	check(has(pack, 0, 1), "grid updated by the other client is seen");
+	boolean all = true;
+	for(long id = n; id < n * 2; id++)
+	    all &= has(pack, id, 0);
+	check(all, "grids saved by the other client are seen");
+	check(pack.size() == n * 2, "index holds the grids of both clients");
+	check(pack.compact(), "unshared pack is compacted");
+	check(has(pack, 0, 1) && has(pack, n, 0), "grids survive compaction");
+	pack.put(n * 3, 1, grid(n * 3, 0));
+	check(has(pack, n * 3, 0), "grids are saved after compaction");
+	check(child("verify", dir.toString(), Integer.toString(n)) == 0, "compacted pack reopens");
+	System.out.println(pack.stats());
+	Checks.exit();
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+/* Latency histogram with logarithmic buckets, eight to every
+ * doubling, starting at ten microseconds. */
+public class Histogram {
+    private static final double BASE = 10e-6;
+    private static final int SUB = 8;
+    public final String name;
+    private final long[] buckets = new long[SUB * 24];
+    private long n;
+    private double sum, max;
+
+    public Histogram(String name) {
+	this.name = name;
+    }
+
+    private static int bucket(double t) {
+	if(t <= BASE)
+	    return(0);
+	return((int)Math.floor(Math.log(t / BASE) / Math.log(2) * SUB) + 1);
+    }
+
+    private static double lower(int b) {
+	return((b == 0) ? 0 : BASE * Math.pow(2, (double)(b - 1) / SUB));
+    }
+
+    public synchronized void add(double t) {
+	buckets[Math.min(bucket(t), buckets.length - 1)]++;
+	n++;
+	sum += t;
+	max = Math.max(max, t);
+    }
+
+    public synchronized long count() {
+	return(n);
+    }
+
+    /* Returns the lower bound of the bucket containing the given
+     * quantile, which is accurate to within 9%. */
+    public synchronized double quantile(double q) {
+	if(n == 0)
+	    return(Double.NaN);
+	long lim = (long)Math.ceil(q * n), acc = 0;
+	for(int i = 0; i < buckets.length; i++) {
+	    if((acc += buckets[i]) >= lim)
+		return(lower(i));
+	}
+	return(max);
+    }
+
+    public synchronized String toString() {
+	if(n == 0)
+	    return(String.format("%s: no samples", name));
+	return(String.format("%s: n=%d, mean %.1f ms, p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms", name, n,
+			     (sum / n) * 1000, quantile(0.5) * 1000, quantile(0.9) * 1000, quantile(0.99) * 1000, max * 1000));
+    }
+}
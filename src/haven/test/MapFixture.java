@@ -0,0 +1,127 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+
+/* Headless stand-ins for what a MapFile needs: an in-memory store,
+ * and an MCache whose tilesets are made up on the spot. Tileset
+ * NOREPL is tagged as not replacing what was previously known.
+ * Raising tilever makes every tileset load anew as that version. */
+public class MapFixture {
+    public static final int NOREPL = 1;
+    public static volatile int tilever = 1;
+    public static final Resource.Pool pool = new Resource.Pool(MapFixture::tileres);
+    public final MCache map;
+
+    public static class MemCache implements ResCache {
+	public final Map<String, byte[]> data = new ConcurrentHashMap<>();
+
+	public OutputStream store(String name) throws IOException {
+	    return(new ByteArrayOutputStream() {
+		    public void close() {
+			data.put(name, toByteArray());
+		    }
+		});
+	}
+
+	public InputStream fetch(String name) throws IOException {
+	    byte[] ret = data.get(name);
+	    if(ret == null)
+		throw(new FileNotFoundException(name));
+	    return(new ByteArrayInputStream(ret));
+	}
+    }
+
+    public static String tilename(int i) {
+	return(String.format("test/tile%d", i));
+    }
+
+    private static InputStream tileres(String name) throws IOException {
+	if(!name.startsWith("test/tile"))
+	    throw(new FileNotFoundException(name));
+	int i = Integer.parseInt(name.substring(9));
+	MessageBuf body = new MessageBuf();
+	if(i == NOREPL)
+	    body.adduint8(2).addint8((byte)1).addstring("norepl");
+	byte[] bd = body.fin();
+	MessageBuf buf = new MessageBuf();
+	buf.addbytes("Haven Resource 1".getBytes(Utils.ascii));
+	buf.adduint16(tilever);
+	buf.addstring("tileset2").addint32(bd.length).addbytes(bd);
+	return(new ByteArrayInputStream(buf.fin()));
+    }
+
+    public MapFixture() {
+	map = new MCache(null) {
+		private final Map<Integer, Tileset> sets = new ConcurrentHashMap<>();
+
+		public Tileset tileset(int i) {
+		    int ver = tilever;
+		    return(sets.compute(i, (k, cur) -> ((cur != null) && (cur.getres().ver == ver)) ? cur :
+					Loading.waitfor(pool.load(tilename(k), ver)).flayer(Tileset.class)));
+		}
+	    };
+    }
+
+    /* Makes a map grid with the given tiles, all at height zero. */
+    @SuppressWarnings("unchecked")
+    public MCache.Grid grid(Coord gc, long id, int seq, int[] tiles) {
+	MCache.Grid ret = map.new Grid(gc);
+	ret.id = id;
+	ret.seq = seq;
+	System.arraycopy(tiles, 0, ret.tiles, 0, ret.tiles.length);
+	ret.ols = new Indir[0];
+	ret.ol = new boolean[0][];
+	return(ret);
+    }
+
+    public static int[] tiles(int... pat) {
+	int[] ret = new int[MCache.cmaps.x * MCache.cmaps.y];
+	for(int i = 0; i < ret.length; i++)
+	    ret[i] = pat[i % pat.length];
+	return(ret);
+    }
+
+    /* The names of the tilesets of each tile of a stored grid. */
+    public static String[] tilenames(MapFile.DataGrid grid) {
+	String[] ret = new String[grid.tiles.length];
+	for(int i = 0; i < ret.length; i++)
+	    ret[i] = grid.tilesets[grid.tiles[i]].res.name;
+	return(ret);
+    }
+
+    public static String[] tilenames(int[] tiles) {
+	String[] ret = new String[tiles.length];
+	for(int i = 0; i < ret.length; i++)
+	    ret[i] = tilename(tiles[i]);
+	return(ret);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import java.util.*;
+import java.awt.image.BufferedImage;
+import static haven.test.Checks.check;
+
+/* Checks that cached minimap images are rendered anew whenever
+ * what they show changes: a re-saved grid, a changed or new
+ * neighbour, or a new version of a tileset. Each rendering is
+ * numbered and leaves its number in the image, so that images
+ * served from the cache can be told apart from fresh ones. */
+public class MapImageCheck {
+    static int renders = 0;
+
+    /* Grids load in the background, as for the minimap. */
+    static BufferedImage image(MapFile file, long id) {
+	while(true) {
+	    file.lock.readLock().lock();
+	    try {
+		MapFile.GridInfo info = file.gridinfo.get(id);
+		MapFile.Segment seg = file.segments.get(info.seg);
+		return(file.cachedimg(seg.id, 0, info.sc, null, buf -> seg.imgdata(info.sc, buf), () -> {
+			    BufferedImage ret = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+			    ret.setRGB(0, 0, ++renders);
+			    return(ret);
+			}));
+	    } catch(Loading l) {
+	    } finally {
+		file.lock.readLock().unlock();
+	    }
+	    try {
+		Thread.sleep(10);
+	    } catch(InterruptedException e) {
+		throw(new RuntimeException(e));
+	    }
+	}
+    }
+
+    /* Whether getting the image of a grid rendered it. */
+    static boolean fresh(MapFile file, long id) {
+	int pre = renders;
+	BufferedImage img = image(file, id);
+	return((renders != pre) && ((img.getRGB(0, 0) & 0xffffff) == renders));
+    }
+
+    static boolean cached(MapFile file, long id, int expect) {
+	int pre = renders;
+	BufferedImage img = image(file, id);
+	return((renders == pre) && ((img.getRGB(0, 0) & 0xffffff) == expect));
+    }
+
+    static void settiles(MCache.Grid g, int[] tiles) {
+	System.arraycopy(tiles, 0, g.tiles, 0, g.tiles.length);
+	g.seq++;
+    }
+
+    static boolean stored(MapFile file, MCache.Grid g) {
+	file.lock.readLock().lock();
+	try {
+	    MapFile.GridInfo info = file.gridinfo.get(g.id);
+	    if((info == null) || (file.segments.get(info.seg) == null))
+		return(false);
+	    MapFile.Grid sg = MapFile.Grid.load(file, g.id);
+	    if((sg == null) || !Arrays.equals(MapFixture.tilenames(sg), MapFixture.tilenames(g.tiles)))
+		return(false);
+	    for(MapFile.TileInfo ts : sg.tilesets) {
+		if(ts.res.savever() != MapFixture.tilever)
+		    return(false);
+	    }
+	    return(true);
+	} finally {
+	    file.lock.readLock().unlock();
+	}
+    }
+
+    /* Grids and segments are written behind, so wait for them. */
+    static void update(MapFixture fx, MapFile file, Collection<MCache.Grid> grids) throws InterruptedException {
+	file.update(fx.map, grids);
+	double st = Utils.rtime();
+	for(MCache.Grid g : grids) {
+	    while(!stored(file, g)) {
+		if(Utils.rtime() - st > 10)
+		    throw(new RuntimeException("grid " + g.id + " was never stored"));
+		Thread.sleep(10);
+	    }
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	MapFixture fx = new MapFixture();
+	MapFixture.MemCache store = new MapFixture.MemCache();
+	MapFile file = new MapFile(store, "images");
+	/* A 4x3 block, without the corner at 0, 0. */
+	Map<Coord, MCache.Grid> grids = new HashMap<>();
+	for(int y = 0; y < 3; y++) {
+	    for(int x = 0; x < 4; x++) {
+		if((x != 0) || (y != 0))
+		    grids.put(Coord.of(x, y), fx.grid(Coord.of(x, y), 1000 + (y * 4) + x, 0, MapFixture.tiles(2, 3)));
+	    }
+	}
+	update(fx, file, grids.values());
+	long id = grids.get(Coord.of(1, 1)).id;
+
+	check(fresh(file, id), "image is rendered at first");
+	check(cached(file, id, renders), "unchanged image is cached");
+	check(cached(new MapFile(store, "images"), id, renders), "cached image is kept in the store");
+
+	MCache.Grid g = grids.get(Coord.of(1, 1));
+	settiles(g, MapFixture.tiles(3, 2));
+	update(fx, file, Arrays.asList(g));
+	check(fresh(file, id), "re-saved grid is rendered anew");
+	check(cached(file, id, renders), "re-rendered image is cached");
+
+	g = grids.get(Coord.of(2, 2));
+	settiles(g, MapFixture.tiles(4));
+	update(fx, file, Arrays.asList(g));
+	check(fresh(file, id), "changed neighbour renders the image anew");
+
+	g = grids.get(Coord.of(3, 1));
+	settiles(g, MapFixture.tiles(4));
+	update(fx, file, Arrays.asList(g));
+	check(cached(file, id, renders), "grids further off do not affect the image");
+
+	/* A new grid is placed by the known ones updated with it, as
+	 * when the client updates all grids in view. */
+	grids.put(Coord.of(0, 0), fx.grid(Coord.of(0, 0), 1000, 0, MapFixture.tiles(2, 3)));
+	update(fx, file, grids.values());
+	check(fresh(file, id), "new neighbour renders the image anew");
+
+	MapFixture.tilever = 2;
+	g = grids.get(Coord.of(1, 1));
+	g.seq++;
+	update(fx, file, Arrays.asList(g));
+	check(fresh(file, id), "new tileset version renders the image anew");
+	check(cached(file, id, renders), "image of the new version is cached");
+	Checks.exit();
+    }
+}
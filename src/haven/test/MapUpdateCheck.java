@@ -0,0 +1,255 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+import static haven.test.Checks.check;
+
+/* Hammers MapFile.update with readers looking at the grids in
+ * parallel, and races updates against imports of the same grids,
+ * checking that no update is merged with a version of a grid that
+ * an import has since replaced. */
+public class MapUpdateCheck {
+    static MCache.Grid[] block(MapFixture fx, int n, int tile) {
+	MCache.Grid[] ret = new MCache.Grid[n * n];
+	for(int y = 0, i = 0; y < n; y++) {
+	    for(int x = 0; x < n; x++, i++)
+		ret[i] = fx.grid(Coord.of(x, y), 1000 + i, 0, MapFixture.tiles(tile));
+	}
+	return(ret);
+    }
+
+    static void settiles(MCache.Grid g, int[] tiles) {
+	System.arraycopy(tiles, 0, g.tiles, 0, g.tiles.length);
+	g.seq++;
+    }
+
+    static MapFile.Grid load(MapFile file, long id) {
+	file.lock.readLock().lock();
+	try {
+	    return(MapFile.Grid.load(file, id));
+	} finally {
+	    file.lock.readLock().unlock();
+	}
+    }
+
+    static void hammer(MapFixture fx) throws InterruptedException {
+	MapFile file = new MapFile(new MapFixture.MemCache(), "hammer");
+	MCache.Grid[] grids = block(fx, 4, 2);
+	file.update(fx.map, Arrays.asList(grids));
+	AtomicBoolean done = new AtomicBoolean(false);
+	AtomicInteger reads = new AtomicInteger(0), torn = new AtomicInteger(0), lost = new AtomicInteger(0);
+	List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+	List<Thread> readers = new ArrayList<>();
+	for(int r = 0; r < 4; r++) {
+	    Thread th = new Thread(() -> {
+		    try {
+			while(!done.get()) {
+			    for(MCache.Grid g : grids) {
+				MapFile.Grid sg = load(file, g.id);
+				if(sg == null) {
+				    lost.incrementAndGet();
+				    continue;
+				}
+				String[] names = MapFixture.tilenames(sg);
+				for(String nm : names) {
+				    if(!nm.equals(names[0]))
+					torn.incrementAndGet();
+				}
+				reads.incrementAndGet();
+			    }
+			}
+		    } catch(Throwable t) {
+			errors.add(t);
+		    }
+	    }, "Reader " + r);
+	    th.start();
+	    readers.add(th);
+	}
+	int[][] last = new int[grids.length][];
+	List<Thread> updaters = new ArrayList<>();
+	for(int u = 0; u < 2; u++) {
+	    int part = u;
+	    Thread th = new Thread(() -> {
+		    try {
+			Random rnd = new Random(part);
+			for(int i = 0; i < 300; i++) {
+			    List<MCache.Grid> upd = new ArrayList<>();
+			    for(int o = part; o < grids.length; o += 2) {
+				if(rnd.nextBoolean()) {
+				    int[] tiles = MapFixture.tiles(2 + rnd.nextInt(5));
+				    settiles(grids[o], tiles);
+				    last[o] = tiles;
+				    upd.add(grids[o]);
+				}
+			    }
+			    file.update(fx.map, upd);
+			}
+		    } catch(Throwable t) {
+			errors.add(t);
+		    }
+	    }, "Updater " + u);
+	    th.start();
+	    updaters.add(th);
+	}
+	for(Thread th : updaters)
+	    th.join();
+	done.set(true);
+	for(Thread th : readers)
+	    th.join();
+	for(Throwable t : errors)
+	    t.printStackTrace();
+	check(errors.isEmpty(), "no errors with parallel reads and updates");
+	check((torn.get() == 0) && (lost.get() == 0), String.format("readers always see whole grids (%d reads)", reads.get()));
+	boolean same = true, oneseg = true;
+	MapFile.GridInfo first = file.gridinfo.get(grids[0].id);
+	for(int i = 0; i < grids.length; i++) {
+	    if(last[i] != null)
+		same &= Arrays.equals(MapFixture.tilenames(load(file, grids[i].id)), MapFixture.tilenames(last[i]));
+	    MapFile.GridInfo info = file.gridinfo.get(grids[i].id);
+	    oneseg &= (info.seg == first.seg) && info.sc.sub(grids[i].gc).equals(first.sc.sub(grids[0].gc));
+	}
+	check(same, "every grid ends up as last updated");
+	check(oneseg, "grids stay in one segment at their places");
+    }
+
+    static byte[] export(MapFixture fx, MCache.Grid[] grids, int k) throws InterruptedException {
+	MapFile src = new MapFile(new MapFixture.MemCache(), "src");
+	for(MCache.Grid g : grids)
+	    settiles(g, MapFixture.tiles(2 + (k % 5), 2 + ((k + 1) % 5)));
+	src.update(fx.map, Arrays.asList(grids));
+	/* New segments are only exported once stored. */
+	while(true) {
+	    src.lock.readLock().lock();
+	    try {
+		if(!src.knownsegs.isEmpty())
+		    break;
+	    } finally {
+		src.lock.readLock().unlock();
+	    }
+	    Thread.sleep(10);
+	}
+	ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	src.export(buf, MapFile.ExportFilter.all, new MapFile.ExportStatus() {});
+	return(buf.toByteArray());
+    }
+
+    /* Updates with nothing but norepl tiles just carry over the
+     * previous version of a grid, so that every grid must end up as
+     * last imported, however the imports and updates interleave. */
+    static void race(MapFixture fx, int rounds, int imports) throws InterruptedException {
+	MCache.Grid[] grids = block(fx, 2, 0);
+	byte[][] blobs = new byte[imports][];
+	for(int k = 0; k < imports; k++)
+	    blobs[k] = export(fx, grids, k);
+	String[] expect = MapFixture.tilenames(MapFixture.tiles(2 + ((imports - 1) % 5), 2 + (imports % 5)));
+	int stale = 0;
+	List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+	for(int r = 0; r < rounds; r++) {
+	    MapFile file = new MapFile(new MapFixture.MemCache(), "race");
+	    for(MCache.Grid g : grids)
+		settiles(g, MapFixture.tiles(0));
+	    file.update(fx.map, Arrays.asList(grids));
+	    Thread importer = new Thread(() -> {
+		    try {
+			for(byte[] blob : blobs)
+			    file.reimport(new ByteArrayInputStream(blob), MapFile.ImportFilter.all);
+		    } catch(Throwable t) {
+			errors.add(t);
+		    }
+	    }, "Importer");
+	    importer.start();
+	    do {
+		for(MCache.Grid g : grids)
+		    settiles(g, MapFixture.tiles(MapFixture.NOREPL));
+		file.update(fx.map, Arrays.asList(grids));
+	    } while(importer.isAlive());
+	    importer.join();
+	    for(MCache.Grid g : grids)
+		settiles(g, MapFixture.tiles(MapFixture.NOREPL));
+	    file.update(fx.map, Arrays.asList(grids));
+	    for(MCache.Grid g : grids) {
+		if(!Arrays.equals(MapFixture.tilenames(load(file, g.id)), expect))
+		    stale++;
+	    }
+	}
+	for(Throwable t : errors)
+	    t.printStackTrace();
+	check(errors.isEmpty(), "no errors with imports racing updates");
+	check(stale == 0, String.format("updates merge with the last imported grids (%d stale of %d)", stale, rounds * grids.length));
+    }
+
+    static boolean await(MapFile file, long id, int[] tiles, double timeout) throws InterruptedException {
+	double st = Utils.rtime();
+	while(Utils.rtime() - st < timeout) {
+	    MapFile.Grid g = load(file, id);
+	    if((g != null) && Arrays.equals(MapFixture.tilenames(g), MapFixture.tilenames(tiles)))
+		return(true);
+	    Thread.sleep(50);
+	}
+	return(false);
+    }
+
+    /* A grid failing to be written is still served, and written
+     * once the store works again. */
+    static void failing(MapFixture fx) throws InterruptedException {
+	AtomicBoolean fail = new AtomicBoolean(false);
+	MapFixture.MemCache store = new MapFixture.MemCache() {
+		public OutputStream store(String name) throws IOException {
+		    if(fail.get() && name.contains("grid"))
+			throw(new IOException("simulated write failure"));
+		    return(super.store(name));
+		}
+	    };
+	MapFile file = new MapFile(store, "fail");
+	MCache.Grid[] grids = block(fx, 2, 2);
+	file.update(fx.map, Arrays.asList(grids));
+	check(await(new MapFile(store, "fail"), grids[0].id, MapFixture.tiles(2), 5), "grids are written behind");
+	fail.set(true);
+	settiles(grids[0], MapFixture.tiles(3));
+	file.update(fx.map, Arrays.asList(grids[0]));
+	Thread.sleep(500);
+	check(await(file, grids[0].id, MapFixture.tiles(3), 1), "unwritten grid is still served");
+	fail.set(false);
+	settiles(grids[1], MapFixture.tiles(4));
+	file.update(fx.map, Arrays.asList(grids[1]));
+	MapFile other = new MapFile(store, "fail");
+	check(await(other, grids[1].id, MapFixture.tiles(4), 5), "write-behind goes on after a failure");
+	check(await(other, grids[0].id, MapFixture.tiles(3), 20), "failed grid is written later");
+    }
+
+    public static void main(String[] args) throws Exception {
+	MapFixture fx = new MapFixture();
+	hammer(fx);
+	race(fx, 50, 20);
+	failing(fx);
+	Checks.exit();
+    }
+}
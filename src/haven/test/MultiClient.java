@@ -27,9 +27,12 @@
 package haven.test;
 
 import java.util.*;
+import java.net.InetSocketAddress;
 
 public class MultiClient extends BaseTest {
+    public final ClientPool pool = new ClientPool();
     public Collection<TestClient> clients = new HashSet<TestClient>();
+    public InetSocketAddress addr = null;
     public int num, delay;
     public int started;
     
@@ -40,14 +43,16 @@ public class MultiClient extends BaseTest {
     }
     
     public void run() {
-	long lastck = System.currentTimeMillis();
+	long lastck = System.currentTimeMillis(), lastrep = lastck;
 	long laststarted = 0;
 	try {
 	    while(true) {
 		long now = System.currentTimeMillis();
 		long timeout = 1000;
 		if((started < num) && (now - laststarted >= delay)) {
-		    TestClient c = new TestClient("test" + (started + 1));
+		    TestClient c = new TestClient(pool, "test" + (started + 1));
+		    if(addr != null)
+			c.addr = addr;
 		    new CharSelector(c, null, null) {
 			public void succeed() {
 			    System.out.println("Selected character");
@@ -82,10 +87,15 @@ public class MultiClient extends BaseTest {
 		    }
 		    printf("Alive: %d/%d/%d", alive, started, num);
 		    lastck = now;
+		    if(now - lastrep >= 10000) {
+			printf("%s", pool.report());
+			lastrep = now;
+		    }
 		}
 	    }
 	} finally {
 	    stopall();
+	    printf("%s", pool.report());
 	}
     }
     
@@ -97,7 +107,7 @@ public class MultiClient extends BaseTest {
     }
     
     public static void usage() {
-	System.err.println("usage: MultiClient NUM [DELAY]");
+	System.err.println("usage: MultiClient NUM [DELAY [HOST[:PORT]]]");
     }
 
     public static void main(String[] args) {
@@ -109,6 +119,11 @@ public class MultiClient extends BaseTest {
 	int delay = 0;
 	if(args.length > 1)
 	    delay = Integer.parseInt(args[1]);
-	new MultiClient(num, delay).start();
+	MultiClient test = new MultiClient(num, delay);
+	if(args.length > 2) {
+	    String[] hp = args[2].split(":");
+	    test.addr = new InetSocketAddress(hp[0], (hp.length > 1) ? Integer.parseInt(hp[1]) : 1870);
+	}
+	test.start();
     }
 }
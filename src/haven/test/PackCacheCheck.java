@@ -0,0 +1,245 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import java.util.*;
+import java.io.*;
+import java.nio.file.*;
+import java.nio.channels.*;
+import java.net.*;
+import static haven.test.Checks.check;
+
+/* Runs several writers and the compactor concurrently against a
+ * PackCache in a temporary directory, and checks that every entry
+ * reads back as last written, both in the same process and after
+ * reopening the cache in another. Also checks that a pack cut short
+ * as by a crash never yields wrong data. Each stage runs in a child
+ * process, since the cache is locked per-process. */
+public class PackCacheCheck {
+    static final URI id = URI.create("urn:haven-cache:check");
+
+    static byte[] blob(String name, int ver) throws IOException {
+	ByteArrayOutputStream buf = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(buf);
+	out.writeUTF(name);
+	out.writeInt(ver);
+	Random rnd = new Random(name.hashCode() * 31L + ver);
+	byte[] data = new byte[rnd.nextInt(64 << 10)];
+	rnd.nextBytes(data);
+	out.write(data);
+	return(buf.toByteArray());
+    }
+
+    static byte[] fetch(PackCache cache, String name) throws IOException {
+	try(InputStream fp = cache.fetch(name)) {
+	    return(Utils.readall(fp));
+	} catch(FileNotFoundException e) {
+	    return(null);
+	}
+    }
+
+    /* Whether data is some version ever written of the entry. */
+    static boolean valid(String name, byte[] data) throws IOException {
+	DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+	try {
+	    if(!in.readUTF().equals(name))
+		return(false);
+	    return(Arrays.equals(data, blob(name, in.readInt())));
+	} catch(EOFException e) {
+	    return(false);
+	}
+    }
+
+    static void store(PackCache cache, String name, byte[] data) throws IOException {
+	try(OutputStream fp = cache.store(name)) {
+	    fp.write(data);
+	}
+    }
+
+    static class Writer extends Thread {
+	final PackCache cache;
+	final int n;
+	final Map<String, Integer> vers = new HashMap<>();
+	int wrong = 0;
+	IOException err = null;
+
+	Writer(PackCache cache, int n) {
+	    this.cache = cache;
+	    this.n = n;
+	}
+
+	public void run() {
+	    Random rnd = new Random(n);
+	    try {
+		for(int i = 0; i < 300; i++) {
+		    String own = String.format("w%d/%d", n, rnd.nextInt(40));
+		    String shared = String.format("shared/%d", rnd.nextInt(10));
+		    switch(rnd.nextInt(6)) {
+		    case 0:
+			if(vers.getOrDefault(own, -1) >= 0) {
+			    cache.remove(own);
+			    vers.put(own, -1);
+			}
+			break;
+		    case 1: {
+			byte[] data = fetch(cache, shared);
+			if((data != null) && !valid(shared, data))
+			    wrong++;
+			break;
+		    }
+		    case 2:
+			store(cache, shared, blob(shared, rnd.nextInt(1000)));
+			break;
+		    default: {
+			int ver = i;
+			store(cache, own, blob(own, ver));
+			vers.put(own, ver);
+			break;
+		    }
+		    }
+		    String chk = String.format("w%d/%d", n, rnd.nextInt(40));
+		    int ver = vers.getOrDefault(chk, -1);
+		    byte[] data = fetch(cache, chk);
+		    if((ver < 0) ? (data != null) : !Arrays.equals(data, blob(chk, ver)))
+			wrong++;
+		}
+	    } catch(IOException e) {
+		err = e;
+	    }
+	}
+    }
+
+    static void expect(Path file, Map<String, Integer> vers) throws IOException {
+	try(PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+	    for(Map.Entry<String, Integer> ent : vers.entrySet())
+		out.printf("%s %d\n", ent.getKey(), ent.getValue());
+	}
+    }
+
+    /* Run in the child: checks every expected entry. When crashed,
+     * entries may be missing, but never wrong. */
+    static int verify(Path dir, Path file, boolean crashed) throws IOException {
+	PackCache cache = new PackCache(dir, id);
+	int wrong = 0, missing = 0, n = 0;
+	for(String ln : Files.readAllLines(file)) {
+	    String[] w = ln.split(" ");
+	    int ver = Integer.parseInt(w[1]);
+	    byte[] data = fetch(cache, w[0]);
+	    if(ver < 0) {
+		if(data != null)
+		    wrong++;
+	    } else if(data == null) {
+		missing++;
+	    } else if(!Arrays.equals(data, blob(w[0], ver))) {
+		wrong++;
+	    }
+	    n++;
+	}
+	boolean sh = true;
+	for(String name : cache.list()) {
+	    if(name.startsWith("shared/"))
+		sh &= valid(name, fetch(cache, name));
+	}
+	String what = crashed ? "cut-short cache" : "reopened cache";
+	check(wrong == 0, String.format("%s has no wrong entries (%d of %d)", what, wrong, n));
+	if(crashed)
+	    check((missing > 0) && (missing < n), String.format("%s has the entries before the cut (%d of %d missing)", what, missing, n));
+	else
+	    check(missing == 0, String.format("%s has its entries (%d of %d missing)", what, missing, n));
+	check(sh, what + " has valid shared entries");
+	return(Checks.failures());
+    }
+
+    static int child(String... args) throws Exception {
+	List<String> cmd = new ArrayList<>(Arrays.asList(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+							 "-cp", System.getProperty("java.class.path"),
+							 PackCacheCheck.class.getName()));
+	cmd.addAll(Arrays.asList(args));
+	return(new ProcessBuilder(cmd).inheritIO().start().waitFor());
+    }
+
+    /* Run in the child: writes concurrently while compacting, and
+     * saves what each entry should be. */
+    static int write(Path dir, Path file) throws Exception {
+	PackCache cache = new PackCache(dir, id);
+	List<Writer> writers = new ArrayList<>();
+	for(int i = 0; i < 8; i++)
+	    writers.add(new Writer(cache, i));
+	for(Writer w : writers)
+	    w.start();
+	int compactions = 0;
+	IOException cerr = null;
+	while(writers.stream().anyMatch(Thread::isAlive)) {
+	    try {
+		cache.compact();
+	    } catch(IOException e) {
+		cerr = e;
+	    }
+	    compactions++;
+	}
+	Map<String, Integer> vers = new HashMap<>();
+	int wrong = 0;
+	for(Writer w : writers) {
+	    w.join();
+	    if(w.err != null)
+		w.err.printStackTrace();
+	    check(w.err == null, "writer " + w.n + " succeeds");
+	    wrong += w.wrong;
+	    vers.putAll(w.vers);
+	}
+	check(cerr == null, String.format("%d concurrent compactions succeed", compactions));
+	check(wrong == 0, String.format("writers read back what they wrote (%d wrong)", wrong));
+	System.out.println(cache.stats());
+	expect(file, vers);
+	return(Checks.failures());
+    }
+
+    public static void main(String[] args) throws Exception {
+	if(args.length > 0) {
+	    Path dir = Paths.get(args[1]), file = Paths.get(args[2]);
+	    int ret = args[0].equals("write") ? write(dir, file) : verify(dir, file, args[0].equals("crashed"));
+	    System.exit((ret == 0) ? 0 : 1);
+	}
+	Path dir = Files.createTempDirectory("packcache");
+	Path file = dir.resolve("expect");
+	check(child("write", dir.toString(), file.toString()) == 0, "concurrent writing");
+	check(child("reopen", dir.toString(), file.toString()) == 0, "cache reopens in another process");
+
+	/* Cut the packs short, as though their tails never made it to
+	 * disk. */
+	try(DirectoryStream<Path> ls = Files.newDirectoryStream(dir, "*.pack")) {
+	    for(Path p : ls) {
+		try(FileChannel fp = FileChannel.open(p, StandardOpenOption.WRITE)) {
+		    fp.truncate((fp.size() * 3) / 4);
+		}
+	    }
+	}
+	check(child("crashed", dir.toString(), file.toString()) == 0, "cut-short cache reopens");
+	Checks.exit();
+    }
+}
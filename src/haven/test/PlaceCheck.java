@@ -0,0 +1,195 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import haven.render.*;
+import haven.render.sl.ShaderMacro;
+import java.util.*;
+import static haven.test.Checks.check;
+
+/* Checks that gob placements are only rebuilt when something they
+ * depend on has changed, and that the kept placements always equal
+ * ones constructed afresh, for static gobs as well as moving ones. */
+public class PlaceCheck {
+    static class Tag extends State {
+	static final Slot<Tag> slot = new Slot<>(Slot.Type.DRAW, Tag.class);
+	final int v;
+
+	Tag(int v) {this.v = v;}
+
+	public ShaderMacro shader() {return(null);}
+	public void apply(Pipe p) {p.put(slot, this);}
+	public int hashCode() {return(v);}
+	public boolean equals(Object o) {return((o instanceof Tag) && (((Tag)o).v == v));}
+    }
+
+    /* Stands in for the map, whose changes bump its chseq. */
+    static float ground = 0;
+
+    static class Flat implements Gob.Placer {
+	final float tilt;
+
+	Flat(float tilt) {this.tilt = tilt;}
+
+	public Coord3f getc(Coord2d rc, double ra) {
+	    return(Coord3f.of((float)rc.x, (float)rc.y, ground));
+	}
+
+	public Matrix4f getr(Coord2d rc, double ra) {
+	    return(Transform.makerot(new Matrix4f(), Coord3f.zu, tilt - (float)ra));
+	}
+    }
+
+    static class TGob extends Gob {
+	Gob.Placer placer = new Flat(0);
+
+	TGob(Glob glob, Coord2d c, long id) {
+	    super(glob, c, id);
+	}
+
+	public Gob.Placer placer() {
+	    return(placer);
+	}
+
+	protected Pipe.Op getmapstate(Coord3f pc) {
+	    return(new Tag((int)ground));
+	}
+    }
+
+    static class Mod extends GAttrib implements Gob.SetupMod {
+	Pipe.Op st;
+
+	Mod(Gob gob, Pipe.Op st) {
+	    super(gob);
+	    this.st = st;
+	}
+
+	public Pipe.Op placestate() {return(st);}
+    }
+
+    static class Walking extends Moving {
+	double t = 0;
+
+	Walking(Gob gob) {super(gob);}
+
+	public Coord3f getc() {
+	    return(Coord3f.of((float)(gob.rc.x + t * 5), (float)gob.rc.y, ground));
+	}
+
+	public double getv() {return(5);}
+
+	public void ctick(double dt) {
+	    t += dt;
+	}
+    }
+
+    static int rebuilt;
+    static Pipe.Op last;
+
+    /* Ticks the placement, counting rebuilds, and checks it against
+     * a fresh one. */
+    static boolean tick(Gob gob) {
+	gob.ctick(1);
+	gob.placed.autotick(1);
+	Pipe.Op cur = gob.placed.curplace();
+	if(cur != last)
+	    rebuilt++;
+	last = cur;
+	return(Utils.eq(cur, gob.placed.placement()));
+    }
+
+    static boolean ticks(Gob gob, int n) {
+	boolean ok = true;
+	for(int i = 0; i < n; i++)
+	    ok &= tick(gob);
+	return(ok);
+    }
+
+    static boolean at(Gob gob, float x, float y, float z) {
+	Coord3f c = gob.placed.getc();
+	return((c != null) && (c.x == x) && (c.y == y) && (c.z == z));
+    }
+
+    public static void main(String[] args) {
+	Glob glob = new Glob(null);
+	TGob gob = new TGob(glob, Coord2d.of(10, 20), 1);
+	last = gob.placed.curplace();
+	rebuilt = 0;
+
+	check(ticks(gob, 100) && (rebuilt == 0), "static gob keeps its placement");
+
+	gob.move(Coord2d.of(30, 40), 1.0);
+	rebuilt = 0;
+	check(tick(gob) && (rebuilt == 1) && at(gob, 30, 40, 0), "move rebuilds placement");
+	check(ticks(gob, 10) && (rebuilt == 1), "and is then kept again");
+
+	ground = 7;
+	glob.map.chseq++;
+	rebuilt = 0;
+	check(tick(gob) && (rebuilt == 1) && at(gob, 30, 40, 7), "map change rebuilds placement");
+
+	Mod mod = new Mod(gob, new Tag(1));
+	gob.setattr(mod);
+	rebuilt = 0;
+	check(tick(gob) && (rebuilt == 1), "setattr of a setup mod rebuilds placement");
+	mod.st = new Tag(2);
+	rebuilt = 0;
+	check(tick(gob) && (rebuilt == 1), "changed setup mod placestate rebuilds placement");
+	mod.st = new Tag(2);
+	rebuilt = 0;
+	check(tick(gob) && (rebuilt == 0), "equal setup mod placestate keeps placement");
+	gob.delattr(Mod.class);
+	rebuilt = 0;
+	check(tick(gob) && (rebuilt == 1), "delattr rebuilds placement");
+
+	DrawOffset dro = new DrawOffset(gob, Coord3f.of(0, 0, 3));
+	gob.setattr(dro);
+	rebuilt = 0;
+	check(tick(gob) && (rebuilt == 1) && at(gob, 30, 40, 10), "draw offset added");
+	dro.off = Coord3f.of(0, 0, 5);
+	gob.plchanged();
+	rebuilt = 0;
+	check(tick(gob) && (rebuilt == 1) && at(gob, 30, 40, 12), "plchanged rebuilds placement");
+
+	gob.placer = new Flat(0.5f);
+	rebuilt = 0;
+	check(tick(gob) && (rebuilt == 1), "changed placer rebuilds placement");
+
+	gob.setattr(new Walking(gob));
+	boolean moved = true;
+	for(int i = 1; i <= 20; i++)
+	    moved &= tick(gob) && at(gob, 30 + (i * 5), 40, 12);
+	check(moved, "moving gob placement follows its movement every tick");
+	gob.delattr(Moving.class);
+	ticks(gob, 1);
+	rebuilt = 0;
+	check(ticks(gob, 10) && (rebuilt == 0) && at(gob, 30, 40, 12), "gob is static again after stopping");
+
+	Checks.exit();
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import haven.rs.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.*;
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import static haven.test.Checks.check;
+
+/* Checks RenderCache and the render server's worker pool with a
+ * fake renderer that only sleeps and echoes its key: concurrent
+ * requests share one rendering, the memory and disk tiers hit and
+ * evict as they should, failures are not cached, and the workers
+ * run clients in parallel but each client's requests one at a time
+ * and in order. */
+public class RenderServerCheck {
+    static class Fake implements RenderCache.Renderer {
+	final String key;
+	final int ms, size;
+	final AtomicInteger count;
+
+	Fake(String key, int ms, int size, AtomicInteger count) {
+	    this.key = key; this.ms = ms; this.size = size; this.count = count;
+	}
+
+	public byte[] render() throws InterruptedException {
+	    count.incrementAndGet();
+	    Thread.sleep(ms);
+	    byte[] ret = Arrays.copyOf(key.getBytes(Utils.utf8), size);
+	    return(ret);
+	}
+    }
+
+    static String str(byte[] data) {
+	int n = 0;
+	while((n < data.length) && (data[n] != 0))
+	    n++;
+	return(new String(data, 0, n, Utils.utf8));
+    }
+
+    static void cache() throws Exception {
+	RenderCache cache = new RenderCache(1000, null, 0);
+	AtomicInteger count = new AtomicInteger();
+	ExecutorService pool = Executors.newFixedThreadPool(16);
+	List<Future<byte[]>> res = new ArrayList<>();
+	for(int i = 0; i < 16; i++)
+	    res.add(pool.submit(() -> cache.get("a", new Fake("a", 200, 100, count))));
+	boolean same = true;
+	for(Future<byte[]> f : res)
+	    same &= str(f.get()).equals("a");
+	check(same && (count.get() == 1), "concurrent requests share one rendering (" + count.get() + " renders)");
+
+	count.set(0);
+	cache.get("b", new Fake("b", 0, 400, count));
+	cache.get("c", new Fake("c", 0, 400, count));
+	cache.get("b", new Fake("b", 0, 400, count));
+	cache.get("d", new Fake("d", 0, 400, count));
+	check(count.get() == 3, "memory hits are not rendered again");
+	cache.get("b", new Fake("b", 0, 400, count));
+	check(count.get() == 3, "recently used entries stay in memory");
+	cache.get("c", new Fake("c", 0, 400, count));
+	check(count.get() == 4, "least recently used entries are evicted");
+	cache.get("big", new Fake("big", 0, 2000, count));
+	cache.get("big", new Fake("big", 0, 2000, count));
+	check(count.get() == 6, "entries larger than the memory limit are not kept");
+
+	AtomicInteger fails = new AtomicInteger();
+	RenderCache.Renderer bad = () -> {
+	    fails.incrementAndGet();
+	    Thread.sleep(100);
+	    throw(new RuntimeException("fake failure"));
+	};
+	List<Future<byte[]>> fres = new ArrayList<>();
+	for(int i = 0; i < 4; i++)
+	    fres.add(pool.submit(() -> cache.get("bad", bad)));
+	int thrown = 0;
+	for(Future<byte[]> f : fres) {
+	    try {
+		f.get();
+	    } catch(ExecutionException e) {
+		thrown++;
+	    }
+	}
+	check((thrown == 4) && (fails.get() == 1), "a failed rendering fails all its waiters");
+	count.set(0);
+	check(str(cache.get("bad", new Fake("bad", 0, 10, count))).equals("bad") && (count.get() == 1), "failures are not cached");
+	pool.shutdown();
+
+	Path dir = Files.createTempDirectory("rendercache");
+	RenderCache d1 = new RenderCache(1000, dir, 4000);
+	count.set(0);
+	for(int i = 0; i < 3; i++)
+	    d1.get("disk" + i, new Fake("disk" + i, 0, 500, count));
+	RenderCache d2 = new RenderCache(1000, dir, 4000);
+	byte[] got = d2.get("disk1", new Fake("disk1", 0, 500, count));
+	check(str(got).equals("disk1") && (count.get() == 3) && (d2.dhits == 1), "renders are found on disk by another cache");
+	for(int i = 3; i < 20; i++)
+	    d2.get("disk" + i, new Fake("disk" + i, 0, 500, count));
+	long dsize = 0;
+	try(DirectoryStream<Path> subs = Files.newDirectoryStream(dir)) {
+	    for(Path sub : subs) {
+		try(DirectoryStream<Path> files = Files.newDirectoryStream(sub)) {
+		    for(Path p : files)
+			dsize += Files.size(p);
+		}
+	    }
+	}
+	check(dsize <= 4000, "disk tier is kept within its limit (" + dsize + " bytes)");
+    }
+
+    static class Conn implements AutoCloseable {
+	final Socket sk;
+	final InputStream in;
+	final OutputStream out;
+
+	Conn(int port, byte[] key) throws IOException {
+	    sk = new Socket(InetAddress.getLoopbackAddress(), port);
+	    in = sk.getInputStream();
+	    out = sk.getOutputStream();
+	    send("nonce");
+	    byte[] nonce = (byte[])recv()[0];
+	    send("auth", Digest.hash(Digest.HMAC.of(Digest.SHA256, key), nonce));
+	    if(!recv()[0].equals("ok"))
+		throw(new IOException("not authenticated"));
+	}
+
+	void send(String cmd, Object... args) throws IOException {
+	    MessageBuf msg = new MessageBuf();
+	    msg.addstring(cmd);
+	    msg.addlist(args);
+	    byte[] buf = new byte[4 + msg.size()];
+	    Utils.uint32e(msg.size(), buf, 0);
+	    msg.fin(buf, 4);
+	    out.write(buf);
+	    out.flush();
+	}
+
+	byte[] read(int n) throws IOException {
+	    byte[] ret = new byte[n];
+	    for(int off = 0; off < n;) {
+		int rv = in.read(ret, off, n - off);
+		if(rv < 0)
+		    throw(new EOFException());
+		off += rv;
+	    }
+	    return(ret);
+	}
+
+	Object[] recv() throws IOException {
+	    int len = Utils.int32d(read(4), 0);
+	    return(new MessageBuf(read(len)).list());
+	}
+
+	public void close() throws IOException {
+	    sk.close();
+	}
+    }
+
+    static void server() throws Exception {
+	RenderCache cache = new RenderCache(1 << 20, null, 0);
+	AtomicInteger renders = new AtomicInteger(), running = new AtomicInteger(), maxrunning = new AtomicInteger();
+	Map<Server.Client, Integer> perclient = new ConcurrentHashMap<>();
+	AtomicInteger overlap = new AtomicInteger();
+	Server.commands.put("fake", (cl, args) -> {
+		if(perclient.merge(cl, 1, Integer::sum) > 1)
+		    overlap.incrementAndGet();
+		maxrunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+		try {
+		    String key = (String)args[0];
+		    return(new Object[] {"ok", cache.get(key, new Fake(key, 50, 16, renders))});
+		} finally {
+		    running.decrementAndGet();
+		    perclient.merge(cl, -1, Integer::sum);
+		}
+	    });
+	Server.nworkers.set(4);
+	byte[] key = new byte[32];
+	new Random(1).nextBytes(key);
+	Server srv = new Server(0, key);
+
+	int nc = 6, nreq = 8;
+	ExecutorService pool = Executors.newFixedThreadPool(nc);
+	List<Future<Boolean>> res = new ArrayList<>();
+	for(int c = 0; c < nc; c++) {
+	    int fc = c;
+	    res.add(pool.submit(() -> {
+			try(Conn conn = new Conn(srv.port(), key)) {
+			    /* Requests are sent ahead of the replies,
+			     * and overlap with those of other clients. */
+			    for(int i = 0; i < nreq; i++)
+				conn.send("fake", "k" + ((fc + i) % 10));
+			    boolean ok = true;
+			    for(int i = 0; i < nreq; i++) {
+				Object[] rep = conn.recv();
+				ok &= rep[0].equals("ok") && str((byte[])rep[1]).equals("k" + ((fc + i) % 10));
+			    }
+			    return(ok);
+			}
+		    }));
+	}
+	boolean ok = true;
+	for(Future<Boolean> f : res)
+	    ok &= f.get(30, TimeUnit.SECONDS);
+	pool.shutdown();
+	check(ok, "every client gets its replies in order");
+	check(overlap.get() == 0, "requests of one client run one at a time");
+	check(maxrunning.get() > 1, "clients are served in parallel (" + maxrunning.get() + " at once)");
+	check(renders.get() == 10, "each distinct render is made once (" + renders.get() + " renders)");
+	System.out.println(cache.stats());
+    }
+
+    public static void main(String[] args) throws Exception {
+	cache();
+	server();
+	Checks.exit();
+    }
+}
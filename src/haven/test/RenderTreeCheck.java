@@ -0,0 +1,245 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import haven.render.*;
+import haven.render.sl.ShaderMacro;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import static haven.test.Checks.check;
+
+/* Stresses partitioned render tree updates from several threads,
+ * each adding, removing and restating slots in its own partition,
+ * while the shared state above the partitions is changed
+ * exclusively, and checks the tree and a client list modelled on
+ * the map view's click list against each other afterwards. */
+public class RenderTreeCheck {
+    static final int THREADS = 8, OPS = 20000;
+
+    static class Tag extends State {
+	static final Slot<Tag> slot = new Slot<>(Slot.Type.DRAW, Tag.class);
+	final int v;
+
+	Tag(int v) {this.v = v;}
+
+	public ShaderMacro shader() {return(null);}
+	public void apply(Pipe p) {p.put(slot, this);}
+	public int hashCode() {return(v);}
+	public boolean equals(Object o) {return((o instanceof Tag) && (((Tag)o).v == v));}
+    }
+
+    /* Like MapView.Clicklist, unsynchronized and asserting its
+     * consistency, relying on the tree to serialize client calls. */
+    static class Strict implements RenderList<Leaf> {
+	final Map<Slot<? extends Leaf>, Integer> slots = new HashMap<>();
+	final Map<Integer, Slot<? extends Leaf>> idmap = new HashMap<>();
+	int nextid = 1, updates = 0;
+
+	public void add(Slot<? extends Leaf> slot) {
+	    slot.state().get(Tag.slot);
+	    int id;
+	    while(idmap.get(id = nextid) != null)
+		nextid++;
+	    if((slots.put(slot, id) != null) || (idmap.put(id, slot) != null))
+		throw(new AssertionError());
+	}
+
+	public void remove(Slot<? extends Leaf> slot) {
+	    Integer id = slots.remove(slot);
+	    if((id == null) || (idmap.remove(id) != slot))
+		throw(new AssertionError());
+	}
+
+	public void update(Slot<? extends Leaf> slot) {
+	    if(!slots.containsKey(slot))
+		throw(new AssertionError());
+	    updates++;
+	}
+
+	public void update(Pipe group, int[] statemask) {
+	    updates++;
+	}
+    }
+
+    static RenderTree tree;
+    static RenderTree.Slot shared;
+    static final Map<RenderTree.Slot, Tag> cstates = new ConcurrentHashMap<>();
+    static final AtomicInteger asked = new AtomicInteger(), ran = new AtomicInteger();
+    static volatile Tag sharedtag = null;
+    static final Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+
+    static class Leaf implements RenderTree.Node {
+	final boolean nest, whole;
+	final Tag chst;
+
+	Leaf(Random rnd, boolean top) {
+	    nest = top && (rnd.nextInt(3) == 0);
+	    whole = rnd.nextInt(10) == 0;
+	    chst = (rnd.nextInt(2) == 0) ? new Tag(rnd.nextInt(100)) : null;
+	}
+
+	public void added(RenderTree.Slot slot) {
+	    if(nest)
+		add(slot, new Leaf(new Random(), false), chst);
+	    if(whole) {
+		asked.incrementAndGet();
+		/* As PView.basic does for RenderedNormals. */
+		tree.whole(() -> {
+			try(Locked lk = tree.lock()) {
+			    Tag t = new Tag(1000 + ran.incrementAndGet());
+			    shared.ostate(t);
+			    sharedtag = t;
+			}
+		    });
+	    }
+	}
+    }
+
+    static RenderTree.Slot add(RenderTree.Slot p, Leaf n, Tag st) {
+	RenderTree.Slot ret = p.add(n, st);
+	if(st != null)
+	    cstates.put(ret, st);
+	return(ret);
+    }
+
+    static Tag expected(RenderTree.Slot slot) {
+	for(RenderTree.Slot s = slot; s != shared; s = s.parent()) {
+	    Tag t = cstates.get(s);
+	    if(t != null)
+		return(t);
+	}
+	return(sharedtag);
+    }
+
+    static void worker(RenderTree.Slot part, long seed) {
+	Random rnd = new Random(seed);
+	List<RenderTree.Slot> mine = new ArrayList<>();
+	for(int i = 0; i < OPS; i++) {
+	    int op = rnd.nextInt(10);
+	    if((op < 4) || mine.isEmpty()) {
+		Tag st = (rnd.nextInt(2) == 0) ? new Tag(rnd.nextInt(100)) : null;
+		mine.add(add(part, new Leaf(rnd, true), st));
+	    } else if(op < 7) {
+		RenderTree.Slot s = mine.remove(rnd.nextInt(mine.size()));
+		s.remove();
+		cstates.remove(s);
+	    } else {
+		RenderTree.Slot s = mine.get(rnd.nextInt(mine.size()));
+		Tag st = new Tag(rnd.nextInt(100));
+		s.cstate(st);
+		cstates.put(s, st);
+	    }
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	tree = new RenderTree();
+	Strict list = new Strict();
+	tree.add(list, Leaf.class);
+	shared = tree.add((RenderTree.Node)null);
+	sharedtag = new Tag(0);
+	shared.ostate(sharedtag);
+	RenderTree.Slot parts = shared.add((RenderTree.Node)null);
+	parts.partition();
+	List<Thread> threads = new ArrayList<>();
+	for(int i = 0; i < THREADS; i++) {
+	    RenderTree.Slot part = parts.add((RenderTree.Node)null);
+	    long seed = i;
+	    threads.add(new Thread(() -> {
+		    try {
+			worker(part, seed);
+		    } catch(Throwable t) {
+			errors.add(t);
+		    }
+	    }));
+	}
+	AtomicBoolean done = new AtomicBoolean(false);
+	Thread excl = new Thread(() -> {
+		try {
+		    Random rnd = new Random(THREADS);
+		    while(!done.get()) {
+			try(Locked lk = tree.lock()) {
+			    Tag t = new Tag(-1 - rnd.nextInt(100));
+			    shared.ostate(t);
+			    sharedtag = t;
+			}
+			Thread.yield();
+		    }
+		} catch(Throwable t) {
+		    errors.add(t);
+		}
+	});
+	long start = System.nanoTime();
+	excl.start();
+	threads.forEach(Thread::start);
+	for(Thread th : threads)
+	    th.join();
+	done.set(true);
+	excl.join();
+	System.out.printf("%d threads x %d updates in %.1f s\n", THREADS, OPS, (System.nanoTime() - start) / 1e9);
+	for(Throwable t : errors)
+	    t.printStackTrace();
+	check(errors.isEmpty(), "no update failed");
+
+	Set<RenderTree.Slot> leaves = new HashSet<>();
+	int nslots = 0, wrong = 0;
+	for(RenderTree.Slot s : tree.slots()) {
+	    nslots++;
+	    if(s.obj() instanceof Leaf) {
+		leaves.add(s);
+		if(!Objects.equals(s.state().get(Tag.slot), expected(s)))
+		    wrong++;
+	    }
+	}
+	check(list.slots.keySet().equals(leaves), String.format("client list holds exactly the %d live leaves", leaves.size()));
+	check(new HashSet<>(list.idmap.values()).equals(leaves) && (list.idmap.size() == leaves.size()), "client ids are unique");
+	check(tree.stats().endsWith(String.format("%,d N", nslots)), "slot count matches tree (" + tree.stats() + ")");
+	check(wrong == 0, String.format("states of live leaves match their definitions (%d wrong)", wrong));
+	check((asked.get() > 0) && (ran.get() == asked.get()), String.format("deferred whole-tree updates all ran (%d of %d)", ran.get(), asked.get()));
+
+	boolean threw = false;
+	RenderTree.Slot part = parts.add((RenderTree.Node)null);
+	try {
+	    part.add(new RenderTree.Node() {
+		    public void added(RenderTree.Slot slot) {
+			try(Locked lk = tree.lock()) {
+			}
+		    }
+		});
+	} catch(IllegalStateException e) {
+	    threw = true;
+	}
+	check(threw, "direct whole-tree lock within a partition is refused");
+	try(Locked lk = tree.lock()) {
+	    check(true, "whole tree lockable after refusal");
+	}
+
+	Checks.exit();
+    }
+}
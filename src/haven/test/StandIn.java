@@ -0,0 +1,211 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import java.util.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+/* Minimal stand-in for the game server, for exercising the test
+ * clients locally. It accepts any session, presents a single
+ * container widget, acknowledges all reliable messages and
+ * answers closes. It can also close all sessions itself, as the
+ * server does when kicking clients, and counts the clients that
+ * answer such closes.
+ *
+ * For checking the client's retransmission timing, it can also
+ * simulate a lossy link: each packet in either direction is
+ * dropped with probability `loss', and delayed by `delay' seconds,
+ * so that the round-trip time is twice that. */
+public class StandIn implements Runnable {
+    public final DatagramChannel sk;
+    private final Map<SocketAddress, Peer> peers = new HashMap<>();
+    private final ByteBuffer buf = ByteBuffer.allocate(65536);
+    private final Random rnd = new Random(1);
+    private ScheduledExecutorService timer = null;
+    public volatile long sessions, rels, duprels, closes, closeacks;
+    public volatile double loss = 0, delay = 0;
+
+    private static class Peer {
+	int tseq = 0, rseq = 0;
+	final Set<Integer> ahead = new HashSet<>();
+	boolean inorder = false, closing = false;
+    }
+
+    public StandIn(int port) throws IOException {
+	sk = DatagramChannel.open();
+	sk.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    private void send(SocketAddress to, PMessage msg) throws IOException {
+	ByteBuffer out = ByteBuffer.allocate(msg.size() + 1);
+	out.put((byte)msg.type);
+	msg.fin(out);
+	out.flip();
+	if(lost())
+	    return;
+	later(() -> {
+		try {
+		    sk.send(out, to);
+		} catch(IOException e) {
+		}
+	    });
+    }
+
+    private boolean lost() {
+	return((loss > 0) && (rnd.nextDouble() < loss));
+    }
+
+    private synchronized void later(Runnable task) {
+	if(delay <= 0) {
+	    task.run();
+	    return;
+	}
+	if(timer == null) {
+	    timer = Executors.newSingleThreadScheduledExecutor(tgt -> {
+		    Thread th = new Thread(tgt, "Stand-in delay");
+		    th.setDaemon(true);
+		    return(th);
+		});
+	}
+	timer.schedule(task, (long)(delay * 1000000), TimeUnit.MICROSECONDS);
+    }
+
+    private void sendrel(SocketAddress to, Peer peer, int type, byte[] data) throws IOException {
+	PMessage msg = new PMessage(Session.MSG_REL);
+	msg.adduint16(peer.tseq++).adduint8(type).addbytes(data);
+	send(to, msg);
+    }
+
+    /* Closes all current sessions from the server's side. */
+    public synchronized void kick() throws IOException {
+	for(Map.Entry<SocketAddress, Peer> ent : peers.entrySet()) {
+	    ent.getValue().closing = true;
+	    send(ent.getKey(), new PMessage(Session.MSG_CLOSE));
+	}
+    }
+
+    private synchronized void handle(SocketAddress from, PMessage msg) throws IOException {
+	Peer peer = peers.get(from);
+	switch(msg.type) {
+	case Session.MSG_SESS: {
+	    if(peer == null) {
+		peers.put(from, peer = new Peer());
+		sessions++;
+	    }
+	    send(from, (PMessage)new PMessage(Session.MSG_SESS).adduint8(0));
+	    if(peer.tseq == 0) {
+		MessageBuf wdg = new MessageBuf();
+		wdg.addint32(1); wdg.addstring("cnt"); wdg.addint32(0);
+		wdg.addlist(Coord.z).adduint8(Message.T_END); wdg.addlist(Coord.of(400, 400));
+		sendrel(from, peer, RMessage.RMSG_NEWWDG, wdg.fin());
+	    }
+	    break;
+	}
+	case Session.MSG_REL: {
+	    if(peer == null)
+		break;
+	    int seq = msg.uint16();
+	    while(!msg.eom()) {
+		int type = msg.uint8();
+		if((type & 0x80) != 0)
+		    msg.skip(msg.uint16());
+		else
+		    msg.skip();
+		int d = (short)(seq - peer.rseq);
+		if((d < 0) || !peer.ahead.add(seq & 0xffff)) {
+		    duprels++;
+		} else {
+		    rels++;
+		    while(peer.ahead.remove(peer.rseq)) {
+			peer.rseq = (peer.rseq + 1) & 0xffff;
+			peer.inorder = true;
+		    }
+		}
+		seq = (seq + 1) & 0xffff;
+	    }
+	    /* Only what has been received in order is acknowledged,
+	     * like the server does. */
+	    if(peer.inorder)
+		send(from, (PMessage)new PMessage(Session.MSG_ACK).adduint16(peer.rseq - 1));
+	    break;
+	}
+	case Session.MSG_CLOSE: {
+	    peers.remove(from);
+	    if((peer != null) && peer.closing) {
+		closeacks++;
+	    } else {
+		if(peer != null)
+		    closes++;
+		send(from, new PMessage(Session.MSG_CLOSE));
+	    }
+	    break;
+	}
+	}
+    }
+
+    public void run() {
+	try {
+	    while(true) {
+		buf.clear();
+		SocketAddress from = sk.receive(buf);
+		buf.flip();
+		if(!buf.hasRemaining())
+		    continue;
+		byte type = buf.get();
+		byte[] data = new byte[buf.remaining()];
+		buf.get(data);
+		if(lost())
+		    continue;
+		PMessage msg = new PMessage(type, data);
+		later(() -> {
+			try {
+			    handle(from, msg);
+			} catch(IOException e) {
+			    throw(new RuntimeException(e));
+			}
+		    });
+	    }
+	} catch(ClosedChannelException e) {
+	} catch(IOException e) {
+	    throw(new RuntimeException(e));
+	}
+    }
+
+    public static void main(String[] args) throws IOException {
+	StandIn srv = new StandIn((args.length > 0) ? Integer.parseInt(args[0]) : 1870);
+	if(args.length > 1)
+	    srv.loss = Double.parseDouble(args[1]);
+	if(args.length > 2)
+	    srv.delay = Double.parseDouble(args[2]);
+	srv.run();
+    }
+}
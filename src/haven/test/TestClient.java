@@ -31,19 +31,24 @@ import java.util.*;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 
-public class TestClient implements Runnable, UI.Context {
+public class TestClient implements UI.Context {
+    public final ClientPool pool;
     public Session sess;
     public InetSocketAddress addr;
     public String user;
     public byte[] cookie;
-    public ThreadGroup tg;
-    public Thread me;
+    public RemoteUI rui;
     public UI ui;
     public boolean loop = false;
     public Collection<Robot> robots = new HashSet<Robot>();
     private static Object errsync = new Object();
+    private boolean started, stopped, dead;
+    private boolean scheduled, pending;
+    private double tconn;
+    private boolean gotwdg;
     
-    public TestClient(String user) {
+    public TestClient(ClientPool pool, String user) {
+	this.pool = pool;
 	try {
 	    addr = new InetSocketAddress(InetAddress.getByName("localhost"), 1870);
 	} catch(java.net.UnknownHostException e) {
@@ -51,19 +56,32 @@ public class TestClient implements Runnable, UI.Context {
 	}
 	this.user = user;
 	this.cookie = new byte[64];
-	tg = new ThreadGroup(HackThread.tg(), "Test client") {
-		public void uncaughtException(Thread t, Throwable e) {
-		    synchronized(errsync) {
-			System.err.println("Exception in test client: " + TestClient.this.user);
-			e.printStackTrace(System.err);
-		    }
-		    TestClient.this.stop();
-		}
-	    };
+    }
+
+    public TestClient(String user) {
+	this(ClientPool.get(), user);
     }
     
+    private final Transport.Callback uicb = new Transport.Callback() {
+	    public void closed() {
+		schedule();
+	    }
+
+	    public void handle(PMessage msg) {
+		schedule();
+	    }
+	};
+
     public void connect() throws InterruptedException {
-	sess = Session.connect(addr, new Session.User(user), false, cookie);
+	Connection conn = new Connection(addr, pool.reactor);
+	conn.stats.onreply = pool.rtt::add;
+	Session sess = new Session(conn, new Session.User(user), pool.loader);
+	conn.add(uicb);
+	double st = Utils.rtime();
+	conn.connect(user, false, cookie);
+	tconn = Utils.rtime();
+	pool.connect.add(tconn - st);
+	this.sess = sess;
     }
     
     public void addbot(Robot bot) {
@@ -82,13 +100,18 @@ public class TestClient implements Runnable, UI.Context {
     }
 
     public class TestUI extends UI {
-	public TestUI(Coord sz, Session sess) {
-	    super(TestClient.this, sz, null);
-	    this.sess = sess;
+	public TestUI(Coord sz, RemoteUI rui) {
+	    super(TestClient.this, sz, rui);
 	}
 	
 	public void newwidgetp(int id, String type, int parent, Object[] pargs, Object... cargs) throws InterruptedException {
-	    super.newwidget(id, type, parent, pargs, cargs);
+	    if(!gotwdg) {
+		/* The first widget is the server's response to a
+		 * successful login. */
+		pool.login.add(Utils.rtime() - tconn);
+		gotwdg = true;
+	    }
+	    super.newwidgetp(id, type, parent, pargs, cargs);
 	    Widget w = getwidget(id);
 	    synchronized(robots) {
 		for(Robot r : robots)
@@ -115,42 +138,137 @@ public class TestClient implements Runnable, UI.Context {
 	}
     }
 
-    public void run() {
+    /* Run by the connector threads of the pool. */
+    void begin() {
 	try {
-	    try {
-		do {
-		    connect();
-		    RemoteUI rui = new RemoteUI(sess);
-		    ui = new TestUI(new Coord(800, 600), sess);
-		    rui.run(ui);
-		} while(loop);
-	    } catch(InterruptedException e) {
+	    connect();
+	} catch(InterruptedException e) {
+	    died();
+	    Thread.currentThread().interrupt();
+	    return;
+	} catch(Connection.SessionError e) {
+	    synchronized(errsync) {
+		System.err.println("Could not connect test client " + user + ": " + e.getMessage());
+	    }
+	    died();
+	    return;
+	}
+	rui = new RemoteUI(sess);
+	ui = new TestUI(new Coord(800, 600), rui);
+	gotwdg = false;
+	rui.attach(ui);
+	synchronized(this) {
+	    if(stopped)
+		sess.close();
+	}
+	schedule();
+    }
+
+    private void schedule() {
+	synchronized(this) {
+	    pending = true;
+	    if(scheduled || (ui == null))
+		return;
+	    scheduled = true;
+	}
+	pool.process(this);
+    }
+
+    /* Run by the UI workers of the pool, never concurrently for
+     * the same client. */
+    void process() {
+	while(true) {
+	    synchronized(this) {
+		pending = false;
+	    }
+	    PMessage msg;
+	    while((msg = sess.polluimsg()) != null) {
+		if((msg instanceof RemoteUI.Return) || stopped)
+		    continue;
+		try {
+		    rui.dispatch(ui, msg);
+		} catch(InterruptedException e) {
+		    throw(new RuntimeException(e));
+		}
+	    }
+	    if(sess.drained()) {
+		ended();
+		return;
 	    }
-	} finally {
-	    stop();
+	    synchronized(this) {
+		if(!pending) {
+		    scheduled = false;
+		    return;
+		}
+	    }
+	}
+    }
+
+    void crashed(Throwable e) {
+	synchronized(errsync) {
+	    System.err.println("Exception in test client: " + user);
+	    e.printStackTrace(System.err);
+	}
+	boolean attached;
+	synchronized(this) {
+	    stopped = true;
+	    scheduled = false;
+	    attached = (ui != null);
+	}
+	if(sess != null)
+	    sess.close();
+	if(attached)
+	    schedule();
+	else
+	    died();
+    }
+
+    private void ended() {
+	synchronized(this) {
+	    ui = null;
+	    scheduled = false;
+	    if(loop && !stopped) {
+		pool.connect(this);
+		return;
+	    }
+	}
+	died();
+    }
+
+    private void died() {
+	synchronized(this) {
+	    dead = true;
+	    notifyAll();
 	}
     }
     
     public void start() {
-	me = new HackThread(tg, this, "Main thread");
-	me.start();
+	synchronized(this) {
+	    if(started)
+		throw(new IllegalStateException());
+	    started = true;
+	}
+	pool.connect(this);
     }
     
     public void stop() {
-	tg.interrupt();
+	synchronized(this) {
+	    stopped = true;
+	    if(ui != null)
+		sess.close();
+	}
     }
     
     public boolean alive() {
-	return((me != null) && me.isAlive());
+	synchronized(this) {
+	    return(started && !dead);
+	}
     }
     
-    public void join() {
-	while(alive()) {
-	    try {
-		me.join();
-	    } catch(InterruptedException e) {
-		tg.interrupt();
-	    }
+    public void join() throws InterruptedException {
+	synchronized(this) {
+	    while(alive())
+		wait();
 	}
     }
     
@@ -0,0 +1,192 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import java.util.*;
+import static haven.test.Checks.check;
+
+/* Runs a TimerWheel on a fake clock through random scheduling,
+ * cancelling, rescheduling and expiry, and compares it against a
+ * plain priority queue of the same deadlines. Deadlines and clock
+ * steps span all levels of the wheel and its overflow list. */
+public class TimerWheelCheck {
+    static final double TICK = 0.01;
+    static TimerWheel wheel;
+    static double now;
+    static List<T> fired = new ArrayList<>();
+    static List<Double> firedat = new ArrayList<>();
+
+    static class T extends TimerWheel.Timer {
+	final int id;
+	double period = 0;
+
+	T(int id) {
+	    this.id = id;
+	}
+
+	public void expire() {
+	    fired.add(this);
+	    firedat.add(deadline());
+	    if(period != 0)
+		wheel.schedule(this, now + period);
+	}
+    }
+
+    static class Ref implements Comparable<Ref> {
+	final T t;
+	final double at;
+
+	Ref(T t, double at) {
+	    this.t = t;
+	    this.at = at;
+	}
+
+	public int compareTo(Ref o) {
+	    return((at != o.at) ? Double.compare(at, o.at) : Integer.compare(t.id, o.t.id));
+	}
+    }
+
+    static PriorityQueue<Ref> ref;
+    static Map<T, Ref> refs;
+
+    static void refsched(T t, double at) {
+	refcancel(t);
+	Ref r = new Ref(t, at);
+	ref.add(r);
+	refs.put(t, r);
+    }
+
+    static void refcancel(T t) {
+	Ref r = refs.remove(t);
+	if(r != null)
+	    ref.remove(r);
+    }
+
+    static double delay(Random rnd) {
+	switch(rnd.nextInt(5)) {
+	case 0: return(rnd.nextDouble() * TICK * 4);
+	case 1: return(rnd.nextDouble() * TICK * 300);
+	case 2: return(rnd.nextDouble() * TICK * (1 << (TimerWheel.BITS0 + TimerWheel.BITS1)));
+	case 3: return(rnd.nextDouble() * TICK * (1 << (TimerWheel.BITS0 + TimerWheel.BITS1)) * 4);
+	default: return(-rnd.nextDouble() * TICK * 4);
+	}
+    }
+
+    static double step(Random rnd) {
+	switch(rnd.nextInt(20)) {
+	case 0: return(rnd.nextDouble() * TICK * 1000);
+	case 1: return(rnd.nextDouble() * TICK * (1 << (TimerWheel.BITS0 + TimerWheel.BITS1)) * 2);
+	case 2: return(0);
+	default: return(rnd.nextDouble() * TICK * 3);
+	}
+    }
+
+    static void run(long seed) {
+	Random rnd = new Random(seed);
+	now = rnd.nextDouble() * 1000;
+	wheel = new TimerWheel(TICK, now);
+	ref = new PriorityQueue<>();
+	refs = new HashMap<>();
+	List<T> all = new ArrayList<>();
+	int sets = 0, wrong = 0, order = 0, sizes = 0, nexts = 0, nfired = 0, resched = 0;
+	for(int op = 0; op < 10000; op++) {
+	    int c = rnd.nextInt(10);
+	    if((c < 4) || all.isEmpty()) {
+		T t = new T(all.size());
+		if(rnd.nextInt(10) == 0)
+		    t.period = delay(rnd);
+		all.add(t);
+		double at = now + delay(rnd);
+		wheel.schedule(t, at);
+		refsched(t, at);
+	    } else if(c < 5) {
+		T t = all.get(rnd.nextInt(all.size()));
+		double at = now + delay(rnd);
+		wheel.schedule(t, at);
+		refsched(t, at);
+	    } else if(c < 6) {
+		T t = all.get(rnd.nextInt(all.size()));
+		wheel.cancel(t);
+		refcancel(t);
+	    } else {
+		double cur = Math.floor(now / TICK);
+		now += step(rnd);
+		fired.clear();
+		firedat.clear();
+		wheel.expire(now);
+		List<T> exp = new ArrayList<>();
+		while(!ref.isEmpty() && (ref.peek().at <= now)) {
+		    Ref r = ref.poll();
+		    refs.remove(r.t);
+		    exp.add(r.t);
+		}
+		/* Rescheduled from within expire(), and so not run
+		 * again by the same call even if already due. */
+		for(T t : exp) {
+		    if(t.period != 0) {
+			refsched(t, now + t.period);
+			resched++;
+		    }
+		}
+		if(!new HashSet<>(fired).equals(new HashSet<>(exp)) || (fired.size() != exp.size()))
+		    wrong++;
+		/* Timers that were already due when scheduled are kept
+		 * in the current bucket. */
+		for(int i = 1; i < firedat.size(); i++) {
+		    if(Math.max(Math.floor(firedat.get(i) / TICK), cur) < Math.max(Math.floor(firedat.get(i - 1) / TICK), cur))
+			order++;
+		}
+		cur = Math.floor(now / TICK);
+		sets++;
+		nfired += fired.size();
+	    }
+	    if(wheel.size() != ref.size())
+		sizes++;
+	    double exp = ref.isEmpty() ? -1 : ref.peek().at;
+	    if(wheel.next() != exp)
+		nexts++;
+	    for(T t : all) {
+		if(t.scheduled() != refs.containsKey(t)) {
+		    sizes++;
+		    break;
+		}
+	    }
+	}
+	String what = String.format("seed %d, %d timers, %d expiries, %d fired, %d rescheduled", seed, all.size(), sets, nfired, resched);
+	check(wrong == 0, what + ": expired timers match (" + wrong + " wrong)");
+	check(order == 0, what + ": timers expire in bucket order");
+	check(sizes == 0, what + ": scheduled timers match");
+	check(nexts == 0, what + ": next() matches (" + nexts + " wrong)");
+    }
+
+    public static void main(String[] args) {
+	for(long seed = 1; seed <= 5; seed++)
+	    run(seed);
+	Checks.exit();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ *  This file is part of the Haven & Hearth game client.
+ *  Copyright (C) 2009 Fredrik Tolf <fredrik@dolda2000.com>, and
+ *                     Björn Johannessen <johannessen.bjorn@gmail.com>
+ *
+ *  Redistribution and/or modification of this file is subject to the
+ *  terms of the GNU Lesser General Public License, version 3, as
+ *  published by the Free Software Foundation.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  Other parts of this source tree adhere to other copying
+ *  rights. Please see the file `COPYING' in the root directory of the
+ *  source tree for details.
+ *
+ *  A copy the GNU Lesser General Public License is distributed along
+ *  with the source tree of which this file is a part in the file
+ *  `doc/LPGL-3'. If it is missing for any reason, please see the Free
+ *  Software Foundation's website at <http://www.fsf.org/>, or write
+ *  to the Free Software Foundation, Inc., 59 Temple Place, Suite 330,
+ *  Boston, MA 02111-1307 USA
+ */
+
+package haven.test;
+
+import haven.*;
+import java.util.*;
+import static haven.test.Checks.check;
+
+/* Checks the zoom pyramid of a generated segment, as built on demand
+ * and as rebuilt incrementally in the background after updates,
+ * against one computed from scratch from the base grids. */
+public class ZoomCheck {
+    static final int N = 8, LVLS = 3;
+
+    static void randomize(MCache.Grid g, Random rnd) {
+	int base = 2 + rnd.nextInt(4);
+	for(int i = 0; i < g.tiles.length; i++) {
+	    g.tiles[i] = (rnd.nextInt(4) == 0) ? (2 + rnd.nextInt(4)) : base;
+	    g.z[i] = rnd.nextInt(100) * 0.5f;
+	}
+	g.seq++;
+    }
+
+    static <T> T locked(MapFile file, java.util.function.Supplier<T> f) {
+	file.lock.readLock().lock();
+	try {
+	    return(f.get());
+	} finally {
+	    file.lock.readLock().unlock();
+	}
+    }
+
+    static MapFile.DataGrid scratch(MapFile file, Map<Coord, Long> ids, long seg, int lvl, Coord sc) {
+	if(lvl == 0) {
+	    Long id = ids.get(sc);
+	    return((id == null) ? null : locked(file, () -> MapFile.Grid.load(file, id)));
+	}
+	MapFile.DataGrid[] lower = new MapFile.DataGrid[4];
+	for(int i = 0; i < 4; i++)
+	    lower[i] = scratch(file, ids, seg, lvl - 1, sc.add((i % 2) << (lvl - 1), (i / 2) << (lvl - 1)));
+	return(MapFile.ZoomGrid.build(seg, lvl, sc, lower));
+    }
+
+    static boolean same(MapFile.DataGrid a, MapFile.DataGrid b) {
+	if((a == null) || (b == null))
+	    return(a == b);
+	return(Arrays.equals(MapFixture.tilenames(a), MapFixture.tilenames(b)) && Arrays.equals(a.zmap, b.zmap));
+    }
+
+    static List<MapFile.ZoomCoord> coords() {
+	List<MapFile.ZoomCoord> ret = new ArrayList<>();
+	for(int lvl = 1; lvl <= LVLS; lvl++) {
+	    for(int y = 0; y < N; y += (1 << lvl)) {
+		for(int x = 0; x < N; x += (1 << lvl))
+		    ret.add(new MapFile.ZoomCoord(lvl, Coord.of(x, y)));
+	    }
+	}
+	return(ret);
+    }
+
+    /* Returns the number of zoom grids, stored or viewed, that
+     * differ from the ones built from scratch. */
+    static int mismatches(MapFile file, Map<Coord, Long> ids, long seg, Map<MapFile.ZoomCoord, Indir<? extends MapFile.DataGrid>> views) {
+	int ret = 0;
+	for(MapFile.ZoomCoord zc : coords()) {
+	    MapFile.DataGrid ref = scratch(file, ids, seg, zc.lvl, zc.c);
+	    if(!same(ref, locked(file, () -> MapFile.ZoomGrid.load(file, seg, zc.lvl, zc.c))))
+		ret++;
+	    MapFile.DataGrid view;
+	    try {
+		view = views.get(zc).get();
+	    } catch(Loading l) {
+		view = null;
+	    }
+	    if(!same(ref, view))
+		ret++;
+	}
+	return(ret);
+    }
+
+    static int await(MapFile file, Map<Coord, Long> ids, long seg, Map<MapFile.ZoomCoord, Indir<? extends MapFile.DataGrid>> views) throws InterruptedException {
+	double st = Utils.rtime();
+	while(true) {
+	    int ret = mismatches(file, ids, seg, views);
+	    if((ret == 0) || (Utils.rtime() - st > 20))
+		return(ret);
+	    Thread.sleep(100);
+	}
+    }
+
+    public static void main(String[] args) throws Exception {
+	MapFixture fx = new MapFixture();
+	MapFile file = new MapFile(new MapFixture.MemCache(), "zoom");
+	Random rnd = new Random(2);
+	List<MCache.Grid> grids = new ArrayList<>();
+	Map<Coord, Long> ids = new HashMap<>();
+	for(int y = 0; y < N; y++) {
+	    for(int x = 0; x < N; x++) {
+		/* Leave a hole, so that partial zoom grids are
+		 * checked as well. */
+		if((x == 5) && (y == 2))
+		    continue;
+		MCache.Grid g = fx.grid(Coord.of(x, y), 2000 + grids.size(), 0, MapFixture.tiles(2));
+		randomize(g, rnd);
+		grids.add(g);
+		ids.put(g.gc, g.id);
+	    }
+	}
+	file.update(fx.map, grids);
+	long seg = locked(file, () -> file.gridinfo.get(grids.get(0).id).seg);
+	while(locked(file, () -> file.segments.get(seg)) == null)
+	    Thread.sleep(10);
+	MapFile.Segment s = locked(file, () -> file.segments.get(seg));
+	check(locked(file, () -> file.gridinfo.get(grids.get(0).id).sc).equals(grids.get(0).gc), "segment is laid out as the map");
+
+	Map<MapFile.ZoomCoord, Indir<? extends MapFile.DataGrid>> views = new HashMap<>();
+	for(MapFile.ZoomCoord zc : coords())
+	    views.put(zc, locked(file, () -> s.grid(zc.lvl, zc.c)));
+	check(await(file, ids, seg, views) == 0, "pyramid built on demand matches one built from scratch");
+
+	for(int i = 0; i < 10; i++) {
+	    List<MCache.Grid> upd = new ArrayList<>();
+	    for(int o = 0; o < 3; o++) {
+		MCache.Grid g = grids.get(rnd.nextInt(grids.size()));
+		randomize(g, rnd);
+		upd.add(g);
+	    }
+	    file.update(fx.map, upd);
+	}
+	int left = await(file, ids, seg, views);
+	check(left == 0, String.format("pyramid rebuilt incrementally matches one built from scratch (%d mismatches)", left));
+	Checks.exit();
+    }
+}